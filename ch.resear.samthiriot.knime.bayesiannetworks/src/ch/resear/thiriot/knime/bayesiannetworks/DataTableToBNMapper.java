@@ -41,6 +41,8 @@ public class DataTableToBNMapper {
 	
 	private Map<DataCell,String> cell2string = new ConcurrentHashMap<>();
 	private Map<String,DataCell> string2cell = new ConcurrentHashMap<>();
+
+	private volatile DataCell[] domainCells = null;
 	
 	
     public static Map<NodeCategorical,DataTableToBNMapper> createMapper(
@@ -184,6 +186,24 @@ public class DataTableToBNMapper {
     	return res;
     }
     
+    /**
+     * Returns one cell per value of the domain, in the order of the domain.
+     * The cells are immutable: they are created once, and can be shared by all the rows
+     * instead of creating a cell per row with {@link #createCellForStringValue(String)}.
+     * @return
+     */
+    public DataCell[] getCellsForDomain() {
+
+    	DataCell[] res = domainCells;
+    	if (res == null) {
+    		res = new DataCell[nodeDomain.size()];
+    		for (int i=0; i<res.length; i++)
+    			res[i] = createCellForStringValue(nodeDomain.get(i));
+    		domainCells = res;
+    	}
+    	return res.clone();
+    }
+
     public String getStringValueForCell(DataCell cell) {
     	String res = cell2string.get(cell);
     	
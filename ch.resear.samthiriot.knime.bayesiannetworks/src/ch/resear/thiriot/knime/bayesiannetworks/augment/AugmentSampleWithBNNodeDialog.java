@@ -1,8 +1,19 @@
 package ch.resear.thiriot.knime.bayesiannetworks.augment;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentSeed;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelSeed;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.GibbsSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ImportanceSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEngineFactory;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.LoopyBeliefPropagationEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.RecursiveConditionningEngine;
 
 /**
  * <code>NodeDialog</code> for the "SampleFromBNNode" Node.
@@ -32,6 +43,43 @@ public class AugmentSampleWithBNNodeDialog extends DefaultNodeSettingsPane {
         				false),
         	    "seed"
         	    ));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelDoubleBounded(
+        				AugmentSampleWithBNNodeModel.CFGKEY_MAX_EXACT_COST, 
+        				AugmentSampleWithBNNodeModel.DEFAULT_MAX_EXACT_COST, 
+        				1, Double.MAX_VALUE),
+        		"max cost for exact inference", 
+        		1e6
+        		));
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString(
+        				AugmentSampleWithBNNodeModel.CFGKEY_EXACT_ENGINE, 
+        				RecursiveConditionningEngine.ENGINE_NAME),
+        		"exact inference", 
+        		InferenceEngineFactory.EXACT_ENGINES
+        		));
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString(
+        				AugmentSampleWithBNNodeModel.CFGKEY_APPROXIMATE_ENGINE, 
+        				LoopyBeliefPropagationEngine.ENGINE_NAME),
+        		"approximate inference", 
+        		java.util.Arrays.asList(
+        				LoopyBeliefPropagationEngine.ENGINE_NAME,
+        				ImportanceSamplingInferenceEngine.ENGINE_NAME,
+        				GibbsSamplingInferenceEngine.ENGINE_NAME)
+        		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded(
+        				AugmentSampleWithBNNodeModel.CFGKEY_CACHE_SIZE, 
+        				AugmentSampleWithBNNodeModel.DEFAULT_CACHE_SIZE, 
+        				0, Integer.MAX_VALUE),
+        		"evidence cache size", 
+        		1000
+        		));
     }
 }
 
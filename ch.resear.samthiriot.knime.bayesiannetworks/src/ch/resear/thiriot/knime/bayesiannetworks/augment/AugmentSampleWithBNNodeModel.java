@@ -2,6 +2,7 @@ package ch.resear.thiriot.knime.bayesiannetworks.augment;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -24,7 +25,10 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelSeed;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.port.PortObject;
 import org.knime.core.node.port.PortObjectSpec;
 import org.knime.core.node.port.PortType;
@@ -35,10 +39,15 @@ import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.DataTableToBNMapper;
 import ch.resear.thiriot.knime.bayesiannetworks.LogIntoNodeLogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EvidenceCache;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EvidenceSignaturePlan;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEngineFactory;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferencePerformanceUtils;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.LoopyBeliefPropagationEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.RecursiveConditionningEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.port.BayesianNetworkPortObject;
 import ch.resear.thiriot.knime.bayesiannetworks.port.BayesianNetworkPortSpec;
@@ -64,6 +73,38 @@ public class AugmentSampleWithBNNodeModel extends NodeModel {
     				(int)System.currentTimeMillis(), 
     				false);
 
+    /**
+     * count of rows passed together to the inference engine
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    static final String CFGKEY_MAX_EXACT_COST = "max_exact_cost";
+    static final double DEFAULT_MAX_EXACT_COST = 1e9;
+
+    private final SettingsModelDoubleBounded m_maxExactCost =
+            new SettingsModelDoubleBounded(CFGKEY_MAX_EXACT_COST, DEFAULT_MAX_EXACT_COST, 1, Double.MAX_VALUE);
+
+    static final String CFGKEY_EXACT_ENGINE = "exact_engine";
+
+    private final SettingsModelString m_exactEngine =
+            new SettingsModelString(CFGKEY_EXACT_ENGINE, RecursiveConditionningEngine.ENGINE_NAME);
+
+    static final String CFGKEY_APPROXIMATE_ENGINE = "approximate_engine";
+
+    private final SettingsModelString m_approximateEngine =
+            new SettingsModelString(CFGKEY_APPROXIMATE_ENGINE, LoopyBeliefPropagationEngine.ENGINE_NAME);
+
+    static final String CFGKEY_CACHE_SIZE = "evidence_cache_size";
+    static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * the memory the posteriors of the cache may use, in bytes
+     */
+    static final long CACHE_MAX_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+    private final SettingsModelIntegerBounded m_cacheSize =
+            new SettingsModelIntegerBounded(CFGKEY_CACHE_SIZE, DEFAULT_CACHE_SIZE, 0, Integer.MAX_VALUE);
+
     
     /**
      * Constructor for the node model.
@@ -230,108 +271,133 @@ public class AugmentSampleWithBNNodeModel extends NodeModel {
         
         final RandomEngine random = new MersenneTwister(seed);
         
-        // TODO automatic selection?
-        // TODO ?final AbstractInferenceEngine engine = new BestInferenceEngine(ilogger, random, bn);
-        
-        //EliminationInferenceEngine engine = new EliminationInferenceEngine(ilogger, random, bn); NO not good for reverse!
-        AbstractInferenceEngine engine = new RecursiveConditionningEngine(ilogger, random, bn);
-        
+        // exact inference, unless it would be too costly for this network
+        final AbstractInferenceEngine engine = InferenceEngineFactory.create(
+        		m_exactEngine.getStringValue(), 
+        		m_approximateEngine.getStringValue(), 
+        		m_maxExactCost.getDoubleValue(), 
+        		ilogger, 
+        		random, 
+        		bn);
 		
     	// iterate each row of data, and learn the count to later fill in the BN
     	Iterator<DataRow> itRows = sample.iterator();
+    	
+    	final NodeCategorical[] observed = nodesForEvidence.toArray(new NodeCategorical[nodesForEvidence.size()]);
         	
     	final long timestart = System.currentTimeMillis();
     	
     	InferencePerformanceUtils.singleton.reset();
+    	
+    	// the posteriors of the evidence tuples already met, bounded by their count and their memory
+    	final EvidenceCache<EvidenceSignaturePlan.Posterior> cache = m_cacheSize.getIntValue() > 0 ? 
+    			new EvidenceCache<>(m_cacheSize.getIntValue(), CACHE_MAX_BYTES, EvidenceSignaturePlan.Posterior::estimateBytes) : null;
+
+    	// the rows are augmented by blocks, so the engine processes together the rows having the same observed columns
+    	List<DataRow> block = new ArrayList<>(BATCH_SIZE);
 
     	long rowIdx = 0;
         long entitiesPerSecond = -1;
         
-    	while (itRows.hasNext()) {
+    	try {
+	    	while (itRows.hasNext()) {
     	
-		    // check if the execution monitor was canceled
-            exec.checkCanceled();
-
-            // from time to time, try to update the count of entities per sec
-            if (rowIdx % 100 == 0)
-            	try {
-            		entitiesPerSecond = rowIdx / ( (System.currentTimeMillis() - timestart) / 1000);
-            	} catch (java.lang.ArithmeticException e) { }
+			    // check if the execution monitor was canceled
+	            exec.checkCanceled();
+
+	            // from time to time, try to update the count of entities per sec
+	        	try {
+	        		entitiesPerSecond = rowIdx / ( (System.currentTimeMillis() - timestart) / 1000);
+	        	} catch (java.lang.ArithmeticException e) { }
             
-            if (entitiesPerSecond < 0)
-	            exec.setProgress(
-	            		(double)(rowIdx + 1) / sample.size(), 
-	            		"augmenting row " + rowIdx);
-            else
-            	exec.setProgress(
-	            		(double)(rowIdx + 1) / sample.size(), 
-	            		"augmenting row " + rowIdx + " ("+entitiesPerSecond+"/s)");
+	            if (entitiesPerSecond < 0)
+		            exec.setProgress(
+		            		(double)(rowIdx + 1) / sample.size(), 
+		            		"augmenting row " + rowIdx);
+	            else
+	            	exec.setProgress(
+		            		(double)(rowIdx + 1) / sample.size(), 
+		            		"augmenting row " + rowIdx + " ("+entitiesPerSecond+"/s)");
             
-            DataRow row = itRows.next();
-        	
-    		// add evidence from the row
-    		for (NodeCategorical nodeForEvidence: nodeEvidence2idx.keySet()) {
-    			DataCell val = row.getCell(nodeEvidence2idx.get(nodeForEvidence));
-    			
-    			if (!val.isMissing())
-    				engine.addEvidence(
-	    					nodeForEvidence, 
-	    					node2mapper.get(nodeForEvidence).getStringValueForCell(val)
-	    					);
-    		}
-    		try {
-    			engine.compute();
-        	} catch (java.lang.ArithmeticException e) { 
-        		throw new RuntimeException("error when running the inference engine for row "+row.toString(), e);
-        	}
-			//System.err.println("p(evidence): "+engine.getProbabilityEvidence());
-    	
-    		Map<NodeCategorical,String> generated = null;
-    		try {
-    			generated = engine.sampleOne();
-        	} catch (java.lang.ArithmeticException e) { 
-        		throw new RuntimeException("error when sampling for row "+row.toString(), e);
-        	}
-    		engine.clearEvidence();
-    		
-    		// copy the past content of the table
-    		DataCell[] results = new DataCell[row.getNumCells()+nodesToAdd.size()];
-    		for (int j=0; j<row.getNumCells(); j++) {
-    			
-    			if (row.getCell(j).isMissing()) {
-    				// the content is missing
-    				
-    				NodeCategorical n = idx2nodeEvidence.get(j);
-    				if (n != null) {
-    					// and also we have a corresponding node so we might complete it
-    					results[j] = node2mapper.get(n).createCellForStringValue(generated.get(n));
-    					// end of the processing here :-)
-    					continue;
-    				}
-   
-    			} 
-    			
-    			// copy the past result
-    			results[j] = row.getCell(j);	    			
-    		}
+	            block.clear();
+	            while (itRows.hasNext() && block.size() < BATCH_SIZE)
+	            	block.add(itRows.next());
+            
+	    		// decode the evidence of each row as indices of values, or -1 if missing
+	            int[][] evidence = new int[block.size()][observed.length];
+	            for (int r=0; r<block.size(); r++) {
+	            	DataRow row = block.get(r);
+		    		for (int k=0; k<observed.length; k++) {
+		    			DataCell val = row.getCell(nodeEvidence2idx.get(observed[k]));
+		    			if (val.isMissing()) {
+		    				evidence[r][k] = -1;
+		    				continue;
+		    			}
+		    			final String s = node2mapper.get(observed[k]).getStringValueForCell(val);
+		    			if (!observed[k].contains(s))
+		    				throw new IllegalArgumentException("value \""+s+"\" unknown in node "+observed[k]
+		    						+" (it contains "+observed[k].getDomain()+")");
+		    			evidence[r][k] = observed[k].getDomainIndex(s);
+		    		}
+	            }
+            
+	    		List<Assignment> generatedForRows = null;
+	    		try {
+	    			generatedForRows = engine.sampleAssignmentsForRows(observed, evidence, cache);
+	        	} catch (java.lang.ArithmeticException e) { 
+	        		throw new RuntimeException("error when sampling for rows "+block.get(0).getKey()+" to "+block.get(block.size()-1).getKey(), e);
+	        	}
     		
-    		// add the novel values
-    		for (NodeCategorical nodeToAdd: nodeToAdd2idx.keySet()) {
-    			int idxRes = nodeToAdd2idx.get(nodeToAdd);
-    			DataCell data = node2mapper.get(nodeToAdd).createCellForStringValue(generated.get(nodeToAdd));
-    			results[idxRes] = data;
+	            for (int r=0; r<block.size(); r++) {
+	            	DataRow row = block.get(r);
+	            	Assignment generated = generatedForRows.get(r);
+            	
+		    		// copy the past content of the table
+		    		DataCell[] results = new DataCell[row.getNumCells()+nodesToAdd.size()];
+		    		for (int j=0; j<row.getNumCells(); j++) {
+	    			
+		    			if (row.getCell(j).isMissing()) {
+		    				// the content is missing
+	    				
+		    				NodeCategorical n = idx2nodeEvidence.get(j);
+		    				if (n != null) {
+		    					// and also we have a corresponding node so we might complete it
+		    					results[j] = node2mapper.get(n).createCellForStringValue(generated.getValue(n));
+		    					// end of the processing here :-)
+		    					continue;
+		    				}
+	   
+		    			} 
+	    			
+		    			// copy the past result
+		    			results[j] = row.getCell(j);	    			
+		    		}
+	    		
+		    		// add the novel values
+		    		for (NodeCategorical nodeToAdd: nodeToAdd2idx.keySet()) {
+		    			int idxRes = nodeToAdd2idx.get(nodeToAdd);
+		    			DataCell data = node2mapper.get(nodeToAdd).createCellForStringValue(generated.getValue(nodeToAdd));
+		    			results[idxRes] = data;
+		    		}
+	    		
+		    		// add this has a result
+		    		// append
+		        	container.addRowToTable(
+		        			new DefaultRow(
+		        				row.getKey(), 
+			        			results
+			        			)
+		        			);
+	    		
+		    		rowIdx++;
+	            }
+	    	}
+    	} finally {
+    		// the posteriors are not used by another execution
+    		if (cache != null) {
+    			cache.display(ilogger);
+    			cache.clear();
     		}
-    		
-    		// add this has a result
-    		// append
-        	container.addRowToTable(
-        			new DefaultRow(
-        				row.getKey(), 
-	        			results
-	        			)
-        			);
-    		
-    		rowIdx++;
     	}
     	
     	final long timeend = System.currentTimeMillis();
@@ -340,6 +406,12 @@ public class AugmentSampleWithBNNodeModel extends NodeModel {
     		logger.info("inference took "+(durationms/sample.size())+"ms per line");
     	
     	InferencePerformanceUtils.singleton.display(ilogger);
+    	final long notConverged = InferencePerformanceUtils.singleton.getCountNotConverged();
+    	if (notConverged > 0) {
+    		final String w = "the approximate inference did not converge "+notConverged+" times; these probabilities are less precise";
+    		logger.warn(w);
+    		setWarningMessage(w);
+    	}
     	
         // once we are done, we close the container and return its table
         exec.setProgress(100, "closing the output table");
@@ -366,6 +438,10 @@ public class AugmentSampleWithBNNodeModel extends NodeModel {
     protected void saveSettingsTo(final NodeSettingsWO settings) {
 
     	m_seed.saveSettingsTo(settings);
+    	m_maxExactCost.saveSettingsTo(settings);
+    	m_exactEngine.saveSettingsTo(settings);
+    	m_approximateEngine.saveSettingsTo(settings);
+    	m_cacheSize.saveSettingsTo(settings);
 
     }
 
@@ -377,6 +453,11 @@ public class AugmentSampleWithBNNodeModel extends NodeModel {
             throws InvalidSettingsException {
             
     	m_seed.loadSettingsFrom(settings);
+    	// these settings came after the first versions of the node: older workflows do not have them
+    	m_maxExactCost.setDoubleValue(settings.getDouble(CFGKEY_MAX_EXACT_COST, DEFAULT_MAX_EXACT_COST));
+    	m_exactEngine.setStringValue(settings.getString(CFGKEY_EXACT_ENGINE, RecursiveConditionningEngine.ENGINE_NAME));
+    	m_approximateEngine.setStringValue(settings.getString(CFGKEY_APPROXIMATE_ENGINE, LoopyBeliefPropagationEngine.ENGINE_NAME));
+    	m_cacheSize.setIntValue(settings.getInt(CFGKEY_CACHE_SIZE, DEFAULT_CACHE_SIZE));
     }
 
     /**
@@ -387,6 +468,14 @@ public class AugmentSampleWithBNNodeModel extends NodeModel {
             throws InvalidSettingsException {
             
     	m_seed.validateSettings(settings);
+    	if (settings.containsKey(CFGKEY_MAX_EXACT_COST))
+    		m_maxExactCost.validateSettings(settings);
+    	if (settings.containsKey(CFGKEY_EXACT_ENGINE))
+    		m_exactEngine.validateSettings(settings);
+    	if (settings.containsKey(CFGKEY_APPROXIMATE_ENGINE))
+    		m_approximateEngine.validateSettings(settings);
+    	if (settings.containsKey(CFGKEY_CACHE_SIZE))
+    		m_cacheSize.validateSettings(settings);
     	
     }
     
@@ -1,9 +1,18 @@
 package ch.resear.thiriot.knime.bayesiannetworks.computeproba;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ImportanceSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEngineFactory;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.LoopyBeliefPropagationEngine;
+
 /**
  * 
  * @author Samuel Thiriot
@@ -24,6 +33,42 @@ public class ComputeProbaNodeDialog extends DefaultNodeSettingsPane {
         		true, 
         		30
         		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelDoubleBounded(
+        				ComputeProbaNodeModel.CFGKEY_MAX_EXACT_COST, 
+        				ComputeProbaNodeModel.DEFAULT_MAX_EXACT_COST, 
+        				1, Double.MAX_VALUE),
+        		"max cost for exact inference", 
+        		1e6
+        		));
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString(
+        				ComputeProbaNodeModel.CFGKEY_EXACT_ENGINE, 
+        				EliminationInferenceEngine.ENGINE_NAME),
+        		"exact inference", 
+        		InferenceEngineFactory.EXACT_ENGINES
+        		));
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString(
+        				ComputeProbaNodeModel.CFGKEY_APPROXIMATE_ENGINE, 
+        				LoopyBeliefPropagationEngine.ENGINE_NAME),
+        		"approximate inference", 
+        		java.util.Arrays.asList(
+        				LoopyBeliefPropagationEngine.ENGINE_NAME,
+        				ImportanceSamplingInferenceEngine.ENGINE_NAME)
+        		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded(
+        				ComputeProbaNodeModel.CFGKEY_CACHE_SIZE, 
+        				ComputeProbaNodeModel.DEFAULT_CACHE_SIZE, 
+        				0, Integer.MAX_VALUE),
+        		"evidence cache size", 
+        		1000
+        		));
                   
     }
 }
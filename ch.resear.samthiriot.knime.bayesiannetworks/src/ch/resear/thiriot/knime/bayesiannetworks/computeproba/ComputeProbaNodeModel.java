@@ -2,13 +2,12 @@ package ch.resear.thiriot.knime.bayesiannetworks.computeproba;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
@@ -28,6 +27,8 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.port.PortObject;
 import org.knime.core.node.port.PortObjectSpec;
@@ -38,8 +39,14 @@ import ch.resear.thiriot.knime.bayesiannetworks.LogIntoNodeLogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EvidenceCache;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EvidenceJointTable;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEngineFactory;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferencePerformanceUtils;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.LoopyBeliefPropagationEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.port.BayesianNetworkPortObject;
 
 
@@ -56,6 +63,33 @@ public class ComputeProbaNodeModel extends NodeModel {
 
     private final SettingsModelString m_colname =
             new SettingsModelString("colname", "probability");
+
+    /**
+     * count of rows passed together to the inference engine
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    static final String CFGKEY_MAX_EXACT_COST = "max_exact_cost";
+    static final double DEFAULT_MAX_EXACT_COST = 1e9;
+
+    private final SettingsModelDoubleBounded m_maxExactCost =
+            new SettingsModelDoubleBounded(CFGKEY_MAX_EXACT_COST, DEFAULT_MAX_EXACT_COST, 1, Double.MAX_VALUE);
+
+    static final String CFGKEY_EXACT_ENGINE = "exact_engine";
+
+    private final SettingsModelString m_exactEngine =
+            new SettingsModelString(CFGKEY_EXACT_ENGINE, EliminationInferenceEngine.ENGINE_NAME);
+
+    static final String CFGKEY_APPROXIMATE_ENGINE = "approximate_engine";
+
+    private final SettingsModelString m_approximateEngine =
+            new SettingsModelString(CFGKEY_APPROXIMATE_ENGINE, LoopyBeliefPropagationEngine.ENGINE_NAME);
+
+    static final String CFGKEY_CACHE_SIZE = "evidence_cache_size";
+    static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private final SettingsModelIntegerBounded m_cacheSize =
+            new SettingsModelIntegerBounded(CFGKEY_CACHE_SIZE, DEFAULT_CACHE_SIZE, 0, Integer.MAX_VALUE);
         
     
     /**
@@ -158,7 +192,11 @@ public class ComputeProbaNodeModel extends NodeModel {
         DataTableSpec outputSpec = createSpecsForTable(sample.getDataTableSpec());
         BufferedDataContainer container = exec.createDataContainer(outputSpec);
         
-        EliminationInferenceEngine engine = new EliminationInferenceEngine(
+        // exact inference, unless it would be too costly for this network
+        final AbstractInferenceEngine engine = InferenceEngineFactory.create(
+        		m_exactEngine.getStringValue(), 
+        		m_approximateEngine.getStringValue(), 
+        		m_maxExactCost.getDoubleValue(), 
         		ilogger, 
         		null,//random, 
         		bn);
@@ -166,61 +204,89 @@ public class ComputeProbaNodeModel extends NodeModel {
     	// iterate each row of data, and learn the count to later fill in the BN
     	Iterator<DataRow> itRows = sample.iterator();
     	
-    	Set<NodeCategorical> failedNodes = new HashSet<NodeCategorical>();
+    	final NodeCategorical[] observed = nodesForEvidence.toArray(new NodeCategorical[nodesForEvidence.size()]);
     	
     	final long timestart = System.currentTimeMillis();
     	
     	InferencePerformanceUtils.singleton.reset();
+    	
+    	// when the evidence columns have few combinations of values, 
+    	// the probability of each combination is computed at once
+    	EvidenceJointTable jointTable = null;
+    	final double combinations = EvidenceJointTable.countCombinations(observed);
+    	if ((engine instanceof EliminationInferenceEngine || engine instanceof JunctionTreeInferenceEngine) && combinations <= EvidenceJointTable.MAX_COMBINATIONS) {
+    		exec.setMessage("computing the probabilities of the "+(long)combinations+" combinations of evidence");
+    		logger.info("the evidence columns have "+(long)combinations+" combinations of values; their probabilities are computed at once");
+    		jointTable = EvidenceJointTable.compute(engine, observed);
+    	}
+    	
+    	// the probabilities of the evidence tuples already met
+    	final EvidenceCache<Double> cache = m_cacheSize.getIntValue() > 0 && jointTable == null ? 
+    			new EvidenceCache<>(m_cacheSize.getIntValue()) : null;
 
+    	// the rows are computed by blocks, so the engine processes together the rows having the same observed columns
+    	List<DataRow> block = new ArrayList<>(BATCH_SIZE);
+    	
     	// TODO manage long!!!
     	int rowIdx = 0;
     	while (itRows.hasNext()) {
     	
 		    // check if the execution monitor was canceled
             exec.checkCanceled();
+            
+            block.clear();
+            while (itRows.hasNext() && block.size() < BATCH_SIZE)
+            	block.add(itRows.next());
+            
             exec.setProgress(
             		(double)(rowIdx + 1) / sample.size(), 
             		"computing row " + rowIdx);
-        
-            DataRow row = itRows.next();
-        	
-    		// add evidence from the row
-    		for (NodeCategorical nodeForEvidence: nodeEvidence2idx.keySet()) {
-    			DataCell val = row.getCell(nodeEvidence2idx.get(nodeForEvidence));
-    			
-    			// TODO deal with missing !!!
-    			if (!val.isMissing())
-    				engine.addEvidence(
-    					nodeForEvidence, 
-    					node2mapper.get(nodeForEvidence).getStringValueForCell(val)
-    					);
-    		}
-    		engine.compute();
-    		//System.err.println("p(evidence): "+engine.getProbabilityEvidence());
-    		
-    		// copy the existing row
-    		DataCell[] results = new DataCell[row.getNumCells()+1];
-    		for (int j=0; j<row.getNumCells(); j++) {
-    			results[j] = row.getCell(j);
-    		}
-    		
+
+    		// decode the evidence of each row as indices of values, or -1 if missing
+            int[][] evidence = new int[block.size()][observed.length];
+            for (int r=0; r<block.size(); r++) {
+            	DataRow row = block.get(r);
+	    		for (int i=0; i<observed.length; i++) {
+	    			DataCell val = row.getCell(nodeEvidence2idx.get(observed[i]));
+	    			if (val.isMissing()) {
+	    				evidence[r][i] = -1;
+	    				continue;
+	    			}
+	    			final String s = node2mapper.get(observed[i]).getStringValueForCell(val);
+	    			if (!observed[i].contains(s))
+	    				throw new IllegalArgumentException("value \""+s+"\" unknown in node "+observed[i]
+	    						+" (it contains "+observed[i].getDomain()+")");
+	    			evidence[r][i] = observed[i].getDomainIndex(s);
+	    		}
+            }
+            
     		// compute proba
-    		double p = engine.getProbabilityEvidence();
-    		engine.clearEvidence();
-    		
-    		results[row.getNumCells()] = DoubleCellFactory.create(p);
-    				
-    		// add this has a result
-    		// append
-        	container.addRowToTable(
-        			new DefaultRow(
-        				row.getKey(), 
-	        			results
-	        			)
-        			);
-    		
+            double[] probabilities = jointTable != null ? 
+            		jointTable.getProbabilityEvidenceForRows(evidence) 
+            		: engine.getProbabilityEvidenceForRows(observed, evidence, cache);
+            
+            for (int r=0; r<block.size(); r++) {
+            	DataRow row = block.get(r);
+
+	    		// copy the existing row
+	    		DataCell[] results = new DataCell[row.getNumCells()+1];
+	    		for (int j=0; j<row.getNumCells(); j++) {
+	    			results[j] = row.getCell(j);
+	    		}
+	    		
+	    		results[row.getNumCells()] = DoubleCellFactory.create(probabilities[r]);
+	    				
+	    		// add this has a result
+	    		// append
+	        	container.addRowToTable(
+	        			new DefaultRow(
+	        				row.getKey(), 
+		        			results
+		        			)
+	        			);
 
-    		rowIdx++;
+	    		rowIdx++;
+            }
     	}
     	
     	final long timeend = System.currentTimeMillis();
@@ -228,6 +294,14 @@ public class ComputeProbaNodeModel extends NodeModel {
     	logger.info("inference took "+(durationms/sample.size())+"ms per line");
     	
     	InferencePerformanceUtils.singleton.display(ilogger);
+    	final long notConverged = InferencePerformanceUtils.singleton.getCountNotConverged();
+    	if (notConverged > 0) {
+    		final String w = "the approximate inference did not converge "+notConverged+" times; these probabilities are less precise";
+    		logger.warn(w);
+    		setWarningMessage(w);
+    	}
+    	if (cache != null)
+    		cache.display(ilogger);
     	
         // once we are done, we close the container and return its table
         exec.setProgress(100, "closing the output table");
@@ -254,6 +328,10 @@ public class ComputeProbaNodeModel extends NodeModel {
     @Override
     protected void saveSettingsTo(final NodeSettingsWO settings) {
     	m_colname.saveSettingsTo(settings);
+    	m_maxExactCost.saveSettingsTo(settings);
+    	m_exactEngine.saveSettingsTo(settings);
+    	m_approximateEngine.saveSettingsTo(settings);
+    	m_cacheSize.saveSettingsTo(settings);
     }
 
     /**
@@ -264,6 +342,11 @@ public class ComputeProbaNodeModel extends NodeModel {
             throws InvalidSettingsException {
             
         m_colname.loadSettingsFrom(settings);
+        // these settings came after the first versions of the node: older workflows do not have them
+        m_maxExactCost.setDoubleValue(settings.getDouble(CFGKEY_MAX_EXACT_COST, DEFAULT_MAX_EXACT_COST));
+        m_exactEngine.setStringValue(settings.getString(CFGKEY_EXACT_ENGINE, EliminationInferenceEngine.ENGINE_NAME));
+        m_approximateEngine.setStringValue(settings.getString(CFGKEY_APPROXIMATE_ENGINE, LoopyBeliefPropagationEngine.ENGINE_NAME));
+        m_cacheSize.setIntValue(settings.getInt(CFGKEY_CACHE_SIZE, DEFAULT_CACHE_SIZE));
     }
 
     /**
@@ -274,6 +357,14 @@ public class ComputeProbaNodeModel extends NodeModel {
             throws InvalidSettingsException {
             
         m_colname.validateSettings(settings);
+        if (settings.containsKey(CFGKEY_MAX_EXACT_COST))
+        	m_maxExactCost.validateSettings(settings);
+        if (settings.containsKey(CFGKEY_EXACT_ENGINE))
+        	m_exactEngine.validateSettings(settings);
+        if (settings.containsKey(CFGKEY_APPROXIMATE_ENGINE))
+        	m_approximateEngine.validateSettings(settings);
+        if (settings.containsKey(CFGKEY_CACHE_SIZE))
+        	m_cacheSize.validateSettings(settings);
         
     }
     
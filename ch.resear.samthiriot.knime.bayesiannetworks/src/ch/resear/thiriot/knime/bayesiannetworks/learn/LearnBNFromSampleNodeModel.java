@@ -34,7 +34,7 @@ import ch.resear.thiriot.knime.bayesiannetworks.DataTableToBNMapper;
 import ch.resear.thiriot.knime.bayesiannetworks.LogIntoNodeLogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.IteratorCategoricalVariables;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.DomainCursor;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 import ch.resear.thiriot.knime.bayesiannetworks.port.BayesianNetworkPortObject;
 import ch.resear.thiriot.knime.bayesiannetworks.port.BayesianNetworkPortSpec;
@@ -170,42 +170,13 @@ public class LearnBNFromSampleNodeModel extends NodeModel {
     	// Node "weather" = "ugly" |  => 500
     
     	exec.setMessage("initializing counters");
-    	// prepare the empty data structure
-    	Map<NodeCategorical,
-    		Map<String,
-    			Map<Map<NodeCategorical,
-    					String>,
-    					Double>>> node2value2coordinates2count = new HashMap<>();
-    	
+    	// prepare the empty data structure: the counts of each node are stored like its CPT,
+    	// so the count for the values of a row is at the offset of these values in the CPT
+    	Map<NodeCategorical,double[]> node2counts = new HashMap<>();
     	for (NodeCategorical n: nodesToLearn) {
-    		
-    		Map<String,Map<Map<NodeCategorical,String>,Double>> value2coordinates2count = new HashMap<>();
-    		
-    		for (String value : n.getDomain()) {
-    			//String value = valueRaw.toLowerCase();
-    			//System.out.println("studying "+n.getName()+"="+value);
-    			Map<Map<NodeCategorical,String>,Double> coordinates2count = new HashMap<>();
-    			IteratorCategoricalVariables itDomains = learnt.iterateDomains(n.getParents());
-    			while (itDomains.hasNext()) {
-    				Map<NodeCategorical,String> coord = itDomains.next().entrySet().stream().collect(
-    						Collectors.toMap(
-    								entry -> entry.getKey(), 
-    								entry -> entry.getValue())
-    						);
-    				coordinates2count.put(coord, 0.0);
-    				//System.out.println("\t"+coord);
-    			}
-    			value2coordinates2count.put(value, coordinates2count);
-    			
-                exec.checkCanceled();
-
-    		}
-    		
-    		node2value2coordinates2count.put(n, value2coordinates2count);
-    		
-
+    		node2counts.put(n, new double[n.getCardinality()]);
     	}
-    	
+    	exec.checkCanceled();
 
     	Map<NodeCategorical,DataTableToBNMapper> node2mapper = 
     			DataTableToBNMapper.createMapper(
@@ -232,47 +203,50 @@ public class LearnBNFromSampleNodeModel extends NodeModel {
     	while (itRows.hasNext()) {
     		DataRow row = itRows.next();
     		
+			double toAdd = 1;
+			if (useWeightColumn)
+				toAdd = ((DoubleValue)row.getCell(idxWeightColumn)).getDoubleValue();
+			
     		// for each node to learn...
     		for (NodeCategorical nodeToLearn: nodesToLearn) {
     			    			
     			// identify the value for this node
-    			
-    			final DataCell cellValue = row.getCell(node2column.get(nodeToLearn));
-    			final String value = node2mapper.get(nodeToLearn).getStringValueForCell(cellValue);
-    			
-    			
-    			// TODO deal with missing values!!!
-    			Map<NodeCategorical,String> coordinate = 
-    					nodeToLearn.getParents()
-								.stream()
-								.collect( 
-										Collectors.toMap( 
-												Function.identity(), 
-												n -> node2mapper.get(n).getStringValueForCell(row.getCell(node2column.get(n)))
-												)
-										);
-
-    			try {
-	    			//System.out.println(nodeToLearn+"="+value+" | "+coordinate);
-	
-    				Double previousCount = node2value2coordinates2count.get(nodeToLearn).get(value).get(coordinate);
-	    			
-	    			double toAdd = 1;
-	    			if (useWeightColumn)
-	    				toAdd = ((DoubleValue)row.getCell(idxWeightColumn)).getDoubleValue();
-	    			
-	    			node2value2coordinates2count.get(nodeToLearn).get(value).put(coordinate, previousCount+toAdd);
-	    			
-	    			//System.out.println(nodeToLearn.getName()+"="+value+" | "+coordinate+" => "+(previousCount+1));
-    			} catch (NullPointerException e) {
+    			final String value = node2mapper.get(nodeToLearn).getStringValueForCell(
+    					row.getCell(node2column.get(nodeToLearn)));
+    			int offset = nodeToLearn.indexOf(value);
+    			if (offset < 0) {
     				// the content of columns does not fit the domains of the nodes !!!
     				logger.error(
     						"unknown value "+nodeToLearn.getName()+"="+value+
     						", domain is "+nodeToLearn.getDomain()
     						);
-    				//logger.error("unable to process "+nodeToLearn.getName()+"="+value+" | "+coordinate);
     				failedNodes.add(nodeToLearn);
+    				continue;
+    			}
+    			
+    			// TODO deal with missing values!!!
+    			final NodeCategorical[] parents = nodeToLearn.getParentsArray();
+    			final int[] strides = nodeToLearn.getParentsStrides();
+    			for (int p=0; p<parents.length; p++) {
+    				final String parentValue = node2mapper.get(parents[p]).getStringValueForCell(
+    						row.getCell(node2column.get(parents[p])));
+    				final int idx = parents[p].indexOf(parentValue);
+    				if (idx < 0) {
+        				logger.error(
+        						"unknown value "+parents[p].getName()+"="+parentValue+
+        						", domain is "+parents[p].getDomain()
+        						);
+    					offset = -1;
+    					break;
+    				}
+    				offset += idx * strides[p];
     			}
+    			if (offset < 0) {
+    				failedNodes.add(nodeToLearn);
+    				continue;
+    			}
+    			
+    			node2counts.get(nodeToLearn)[offset] += toAdd;
     		}
     		
     		if (i % 10 == 0) { // TODO granularity?
@@ -303,105 +277,46 @@ public class LearnBNFromSampleNodeModel extends NodeModel {
             		0.7 + 0.3 * (double)n++ / nodesToLearn.size(), 
             		"aggregating statistics for " + node.name);
             
-    		// count all the measures for this 
-    		/*int total = node2value2coordinates2count.get(node).values()
-    							.stream()
-    							.mapToInt( coordinates2count -> coordinates2count.values()
-    															.stream()
-    															.mapToInt(Integer::intValue)
-    															.sum())
-    							.sum();
-    		
-    		System.out.println(node.getName()+": total "+total);
-    		*/
+            final double[] counts = node2counts.get(node);
+            final int card = node.getDomainSize();
             
-    		for (String value: node.getDomain()) {
-    			
-    			//String value = valueRaw.toLowerCase();
-    			
-        		// count all the measures for this 
-    			
-    			
-    			/*
-        		int totalValue = node2value2coordinates2count.get(node)
-        				node2value2coordinates2count.get(node).get(value).values()
-        							.stream()
-        							.mapToInt(Integer::intValue)
-        							.sum();
-        		*/
-        		//System.out.println(node.getName()+"="+value+": total "+totalValue);
-        		
-        		
-    			//System.out.println("parents: "+node.getParents());
-    			IteratorCategoricalVariables itDomains = learnt.iterateDomains(node.getParents());
-    			while (itDomains.hasNext()) {
-    				
-    				Map<NodeCategorical,String> coord = itDomains.next();
-    				
-    				//System.out.println("coord: "+coord);
-    				
-    				Map<NodeCategorical,String> coordLower = coord.entrySet().stream().collect(
-    						Collectors.toMap(
-    								entry -> entry.getKey(), 
-    								entry -> entry.getValue() 
-    								)
-    						);
-    				
-    				double totalValue = node.getDomain().stream()
-		    				.mapToDouble( val -> node2value2coordinates2count.get(node).get(val).get(coord) + constantToAdd)
-		    				.sum();
-	
-    				double p;
-    				
-    				if (totalValue == constantToAdd * node.getDomainSize()) {
-    					//p = 0;
-    					
-    					if (methodNoCaseEquiproba) {
-    						if (warnings.size() < MAX_WARNINGS)
-    							warnings.add("no observation for the case "+node.name+"="+value+" given " +
-    									coord.entrySet().stream().map(e -> e.getKey().name+"="+e.getValue()).collect(Collectors.joining(", "))+
-    									"; will assume equiprobability");
-    						else
-    							moreWarnings++;
-    						
-	    					// no case found. Hard to say :-/ 
-	    					p = 1.0/node.getDomainSize();
-    					} else {
-    						if (warnings.size() < MAX_WARNINGS)
-        						warnings.add("no observation for the case "+node.name+"="+value+" given "+
-    								coord.entrySet().stream().map(e -> e.getKey().name+"="+e.getValue()).collect(Collectors.joining(", "))+
-    								"; will keep former probabilities");
-    						else
-    							moreWarnings++;
-    						
-        					p = -1;
-    					}
-    				} else {
-	
-	    				
-	    				double countForCoord = node2value2coordinates2count.get(node).get(value).get(coord) + constantToAdd;
-	    				// / node.getDomainSize()
-	    				p = (double)countForCoord / totalValue; // * node.getParentsDimensionality(); // totalValue
-	    				//System.out.println(node.getName()+"="+value+" | "+coord+" => "+countForCoord+"/"+totalValue+" => "+p);
+            // start from the former probabilities, which are kept when there is no observation
+            final double[] content = node.getContent();
+            
+            // walk the combinations of parents, with the offset of their row in the CPT
+            DomainCursor cursor = new DomainCursor(node.getParentsArray());
+            final int cpt = cursor.trackCPT(node);
+            while (cursor.next()) {
+            	
+            	final int rowOffset = cursor.getOffset(cpt);
+            	
+            	double totalValue = 0;
+            	for (int v=0; v<card; v++)
+            		totalValue += counts[rowOffset+v] + constantToAdd;
+            	
+            	if (totalValue == constantToAdd * card) {
 
-    				}
-    				
-    				if (p >= 0) {
-	    				try {
-	    					//double previous = node.getProbability(value, coordLower);
-	    					node.setProbabilities(p, 
-												value, 
-												coordLower);
-	    					//System.out.println("setting "+node.getName()+"="+value+" | "+coord+" = "+p+" (instead of "+previous+")");
-	    				} catch (IllegalArgumentException e) {
-	    					e.printStackTrace();
-	    					throw e;
-	    				}
-    				}
-	    			
-    			}
-    			
-    		}
+            		for (int v=0; v<card; v++) {
+	            		if (warnings.size() < MAX_WARNINGS)
+							warnings.add("no observation for the case "+node.name+"="+node.getValueIndexed(v)+" given " +
+									describe(cursor)+
+									(methodNoCaseEquiproba ? "; will assume equiprobability" : "; will keep former probabilities"));
+						else
+							moreWarnings++;
+            		}
+            		
+					if (methodNoCaseEquiproba) {
+    					// no case found. Hard to say :-/ 
+						for (int v=0; v<card; v++)
+							content[rowOffset+v] = 1.0/card;
+					}
+            	} else {
+            		for (int v=0; v<card; v++)
+            			content[rowOffset+v] = (counts[rowOffset+v] + constantToAdd) / totalValue;
+            	}
+            }
+            
+            node.setProbabilities(content);
     		
     		node.normalize();
     		
@@ -428,6 +343,19 @@ public class LearnBNFromSampleNodeModel extends NodeModel {
         
 	}
 
+    /**
+     * returns a description of the current values of the cursor such as "a=x, b=y"
+     */
+    private static String describe(DomainCursor cursor) {
+    	StringBuilder sb = new StringBuilder();
+    	for (int i=0; i<cursor.countVariables(); i++) {
+    		if (i > 0)
+    			sb.append(", ");
+    		sb.append(cursor.getVariable(i).name).append('=').append(cursor.getValue(i));
+    	}
+    	return sb.toString();
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,150 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.bn;
+
+import java.util.Arrays;
+
+/**
+ * Walker alias tables for each row of a CPT, laid out as {@link NodeCategorical#getContent()}:
+ * for each row of probabilities, a value is drawn in constant time from one uniform number,
+ * whatever the size of the domain.
+ * The rows which sum to 0 (impossible combinations of parents) are drawn uniformly.
+ *
+ * It is immutable and safe to share between threads.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class AliasTable {
+
+	/**
+	 * the count of values per row
+	 */
+	private final int card;
+
+	/**
+	 * for each cell, the probability to keep the value of the cell rather than its alias
+	 */
+	private final double[] threshold;
+
+	/**
+	 * for each cell, the index of the value to return instead
+	 */
+	private final int[] alias;
+
+	/**
+	 * Builds the alias tables for each row of cpt
+	 * @param cpt the probabilities, rows after rows
+	 * @param card the count of values per row
+	 */
+	public AliasTable(double[] cpt, int card) {
+
+		if (card <= 0 || cpt.length % card != 0)
+			throw new IllegalArgumentException("a table of "+cpt.length+" probabilities cannot be cut in rows of "+card+" values");
+
+		this.card = card;
+		this.threshold = new double[cpt.length];
+		this.alias = new int[cpt.length];
+
+		final double[] scaled = new double[card];
+		final int[] small = new int[card];
+		final int[] large = new int[card];
+
+		for (int row=0; row<cpt.length; row+=card) {
+
+			double total = 0.;
+			int argmax = 0;
+			for (int k=0; k<card; k++) {
+				total += cpt[row+k];
+				if (cpt[row+k] > cpt[row+argmax])
+					argmax = k;
+			}
+
+			if (total <= 0.) {
+				// impossible row: uniform
+				Arrays.fill(threshold, row, row+card, 1.);
+				for (int k=0; k<card; k++)
+					alias[row+k] = k;
+				continue;
+			}
+
+			int countSmall = 0;
+			int countLarge = 0;
+			for (int k=0; k<card; k++) {
+				scaled[k] = cpt[row+k] * card / total;
+				if (scaled[k] < 1.)
+					small[countSmall++] = k;
+				else
+					large[countLarge++] = k;
+			}
+
+			while (countSmall > 0 && countLarge > 0) {
+				final int l = small[--countSmall];
+				final int g = large[--countLarge];
+				threshold[row+l] = scaled[l];
+				alias[row+l] = g;
+				scaled[g] -= 1. - scaled[l];
+				if (scaled[g] < 1.)
+					small[countSmall++] = g;
+				else
+					large[countLarge++] = g;
+			}
+
+			// the cells left are worth 1, but for rounding errors
+			while (countLarge > 0) {
+				final int g = large[--countLarge];
+				threshold[row+g] = 1.;
+				alias[row+g] = g;
+			}
+			while (countSmall > 0) {
+				final int l = small[--countSmall];
+				// never draw an impossible value because of a rounding error
+				threshold[row+l] = cpt[row+l] > 0. ? 1. : 0.;
+				alias[row+l] = cpt[row+l] > 0. ? l : argmax;
+			}
+		}
+	}
+
+	public int getCard() {
+		return card;
+	}
+
+	public int countRows() {
+		return threshold.length / card;
+	}
+
+	/**
+	 * Draws the index of a value in the row starting at this offset of the CPT.
+	 * @param row the offset of the first value of the row in the CPT
+	 * @param u a uniform number in [0,1[
+	 * @return
+	 */
+	public int sample(int row, double u) {
+
+		final double x = u * card;
+		int k = (int)x;
+		if (k >= card)
+			k = card - 1;
+		return x - k < threshold[row+k] ? k : alias[row+k];
+	}
+
+	/**
+	 * returns the probability that {@link #sample(int, double)} returns each value of this row;
+	 * used to check the tables
+	 * @param row the offset of the first value of the row in the CPT
+	 * @return
+	 */
+	public double[] getProbabilities(int row) {
+
+		double[] res = new double[card];
+		for (int k=0; k<card; k++) {
+			res[k] += threshold[row+k] / card;
+			res[alias[row+k]] += (1. - threshold[row+k]) / card;
+		}
+		return res;
+	}
+
+	@Override
+	public String toString() {
+		return "alias tables for "+countRows()+" rows of "+card+" values";
+	}
+
+}
@@ -0,0 +1,317 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.bn;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Values for some of the nodes of a {@link CompiledNetwork}, stored as the index of the value
+ * of each node by id, plus the bitmask of the nodes having a value.
+ * It replaces a Map&lt;NodeCategorical,String&gt; in the loops which create one instanciation
+ * per row or per sample: an assignment is allocated once and then recycled with
+ * {@link #clear()}, {@link #set(int, int)} and {@link #copyFrom(Assignment)}.
+ *
+ * It is mutable and not thread safe.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class Assignment {
+
+	private final CompiledNetwork network;
+
+	/**
+	 * the index of the value of each node by id, or -1 if not observed
+	 */
+	private final int[] values;
+
+	/**
+	 * the bitmask of the observed nodes
+	 */
+	private final long[] observed;
+
+	public Assignment(CompiledNetwork network) {
+		this.network = network;
+		this.values = new int[network.size()];
+		this.observed = new long[(network.size()+63) >>> 6];
+		Arrays.fill(values, -1);
+	}
+
+	public Assignment(Assignment other) {
+		this.network = other.network;
+		this.values = other.values.clone();
+		this.observed = other.observed.clone();
+	}
+
+	/**
+	 * Creates an assignment with these values
+	 * @param network
+	 * @param node2value
+	 * @return
+	 */
+	public static Assignment of(CompiledNetwork network, Map<NodeCategorical,String> node2value) {
+		return new Assignment(network).setAll(node2value);
+	}
+
+	public CompiledNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * returns the count of nodes of the network, observed or not
+	 * @return
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	public boolean isObserved(int id) {
+		return (observed[id >>> 6] & (1L << id)) != 0;
+	}
+
+	public boolean isObserved(NodeCategorical n) {
+		return isObserved(network.getId(n));
+	}
+
+	public int countObserved() {
+		int count = 0;
+		for (long w: observed)
+			count += Long.bitCount(w);
+		return count;
+	}
+
+	public boolean isEmpty() {
+		for (long w: observed)
+			if (w != 0)
+				return false;
+		return true;
+	}
+
+	public boolean isComplete() {
+		return countObserved() == values.length;
+	}
+
+	/**
+	 * returns the index of the value of this node, or -1 if it is not observed
+	 * @param id
+	 * @return
+	 */
+	public int get(int id) {
+		return values[id];
+	}
+
+	/**
+	 * returns the index of the value of this node, or -1 if it is not observed
+	 * @param n
+	 * @return
+	 */
+	public int get(NodeCategorical n) {
+		return values[network.getId(n)];
+	}
+
+	/**
+	 * returns the value of this node, or null if it is not observed
+	 * @param n
+	 * @return
+	 */
+	public String getValue(NodeCategorical n) {
+		final int id = network.getId(n);
+		return values[id] < 0 ? null : network.getValue(id, values[id]);
+	}
+
+	/**
+	 * returns the indices of the values of all the nodes by id, -1 for the ones not observed.
+	 * The array is the one of the assignment: it should not be modified.
+	 */
+	int[] values() {
+		return values;
+	}
+
+	public Assignment set(int id, int value) {
+		if (value < 0 || value >= network.getCard(id))
+			throw new IllegalArgumentException("no value "+value+" in the domain of "+network.getNode(id));
+		values[id] = value;
+		observed[id >>> 6] |= 1L << id;
+		return this;
+	}
+
+	public Assignment set(NodeCategorical n, String value) {
+		final int id = network.getId(n);
+		return set(id, network.getValueIndex(id, value));
+	}
+
+	public Assignment setAll(Map<NodeCategorical,String> node2value) {
+		for (Map.Entry<NodeCategorical,String> e: node2value.entrySet())
+			set(e.getKey(), e.getValue());
+		return this;
+	}
+
+	/**
+	 * sets the values of all the nodes from an array of indices by id, starting at this offset,
+	 * such as a row of a block of sampled entities
+	 * @param values
+	 * @param offset
+	 * @return
+	 */
+	public Assignment setAll(int[] values, int offset) {
+		if (offset < 0 || offset + this.values.length > values.length)
+			throw new IllegalArgumentException("expecting the values of the "+this.values.length+" nodes from "+offset+" but got "+values.length+" values");
+		for (int id=0; id<this.values.length; id++)
+			set(id, values[offset+id]);
+		return this;
+	}
+
+	public Assignment unset(int id) {
+		values[id] = -1;
+		observed[id >>> 6] &= ~(1L << id);
+		return this;
+	}
+
+	public Assignment clear() {
+		Arrays.fill(values, -1);
+		Arrays.fill(observed, 0L);
+		return this;
+	}
+
+	/**
+	 * replaces the values of this assignment by the ones of another assignment of the same network
+	 * @param other
+	 * @return
+	 */
+	public Assignment copyFrom(Assignment other) {
+		if (other.network != network)
+			throw new IllegalArgumentException("cannot copy an assignment of another network");
+		System.arraycopy(other.values, 0, values, 0, values.length);
+		System.arraycopy(other.observed, 0, observed, 0, observed.length);
+		return this;
+	}
+
+	/**
+	 * returns a new map with the values of the observed nodes
+	 * @return
+	 */
+	public Map<NodeCategorical,String> toMap() {
+		Map<NodeCategorical,String> res = new HashMap<>(values.length*2);
+		for (int id=0; id<values.length; id++)
+			if (values[id] >= 0)
+				res.put(network.getNode(id), network.getValue(id, values[id]));
+		return res;
+	}
+
+	/**
+	 * returns a read-only map backed by this assignment,
+	 * for the code expecting a map; it reflects the later changes of the assignment.
+	 * @return
+	 */
+	public Map<NodeCategorical,String> asMap() {
+		return new AbstractMap<NodeCategorical,String>() {
+
+			@Override
+			public String get(Object key) {
+				if (!(key instanceof NodeCategorical) || !containsKey(key))
+					return null;
+				return getValue((NodeCategorical)key);
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				if (!(key instanceof NodeCategorical))
+					return false;
+				final int id;
+				try {
+					id = network.getId((NodeCategorical)key);
+				} catch (IllegalArgumentException e) {
+					return false;
+				}
+				return isObserved(id);
+			}
+
+			@Override
+			public int size() {
+				return countObserved();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return Assignment.this.isEmpty();
+			}
+
+			@Override
+			public Set<Map.Entry<NodeCategorical,String>> entrySet() {
+				return new AbstractSet<Map.Entry<NodeCategorical,String>>() {
+
+					@Override
+					public Iterator<Map.Entry<NodeCategorical,String>> iterator() {
+						return new Iterator<Map.Entry<NodeCategorical,String>>() {
+
+							private int next = skip(0);
+
+							private int skip(int id) {
+								while (id < values.length && values[id] < 0)
+									id++;
+								return id;
+							}
+
+							@Override
+							public boolean hasNext() {
+								return next < values.length;
+							}
+
+							@Override
+							public Map.Entry<NodeCategorical,String> next() {
+								if (next >= values.length)
+									throw new NoSuchElementException();
+								final int id = next;
+								next = skip(next+1);
+								return new AbstractMap.SimpleImmutableEntry<>(
+										network.getNode(id),
+										network.getValue(id, values[id]));
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return countObserved();
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Assignment))
+			return false;
+		Assignment other = (Assignment)obj;
+		return network == other.network
+				&& Arrays.equals(observed, other.observed)
+				&& Arrays.equals(values, other.values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int id=0; id<values.length; id++) {
+			if (values[id] < 0)
+				continue;
+			if (sb.length() > 1)
+				sb.append(", ");
+			sb.append(network.getNode(id)).append('=').append(network.getValue(id, values[id]));
+		}
+		return sb.append('}').toString();
+	}
+
+}
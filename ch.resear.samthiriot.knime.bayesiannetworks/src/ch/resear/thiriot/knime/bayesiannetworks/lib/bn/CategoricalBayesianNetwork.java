@@ -81,6 +81,33 @@ public class CategoricalBayesianNetwork extends BayesianNetwork<NodeCategorical>
 		super.notifyNodesChanged();
 		node2factor.clear();
 		cacheNodesRankedPerZero = null; 
+		compiled = null;
+	}
+	
+	/**
+	 * Called when the probabilities of a node changed
+	 * @param n
+	 */
+	public void notifyContentChanged(NodeCategorical n) {
+		node2factor.remove(n);
+		compiled = null;
+	}
+	
+	private volatile CompiledNetwork compiled = null;
+	
+	/**
+	 * Returns the immutable snapshot of the current state of this network, 
+	 * which is compiled once and shared until the network changes.
+	 * @return
+	 */
+	public CompiledNetwork getCompiled() {
+		
+		CompiledNetwork res = compiled;
+		if (res == null) {
+			res = new CompiledNetwork(this);
+			compiled = res;
+		}
+		return res;
 	}
 	
 	/**
@@ -476,7 +503,7 @@ public class CategoricalBayesianNetwork extends BayesianNetwork<NodeCategorical>
 			if (n == null || (nodes != null && !nodes.contains(n)))
 				throw new IllegalArgumentException("Unknown variable "+sss[i]);
 			String v = sss[i+1];
-			if (!n.getDomain().contains(v))
+			if (n.indexOf(v) < 0)
 				throw new IllegalArgumentException("unknown value "+v+" for variable "+sss[i]);
 			n2s.put(n, v);
 		}
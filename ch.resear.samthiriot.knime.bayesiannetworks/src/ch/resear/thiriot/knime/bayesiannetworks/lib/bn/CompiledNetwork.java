@@ -0,0 +1,355 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.bn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.Factor;
+
+/**
+ * An immutable snapshot of a categorical Bayesian network, indexed by integers:
+ * the nodes are identified by their index in the topological order of the network,
+ * the values by their index in the domain of the node.
+ * For each node, it stores the indices of its parents and children, and its CPT as a flat
+ * array where the value of the node varies the fastest, then the last parent, and the first
+ * parent the slowest (as {@link NodeCategorical#getContent()}).
+ *
+ * It is safe to share it between threads. It does not reflect the changes of the network
+ * after its creation; use {@link CategoricalBayesianNetwork#getCompiled()} to get the
+ * snapshot of the current state of a network.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class CompiledNetwork {
+
+	private final NodeCategorical[] nodes;
+	private final Map<NodeCategorical,Integer> node2id;
+	private final List<Map<String,Integer>> value2index;
+
+	private final int[] cards;
+	private final int[] valueOffset;
+	private final int[][] parents;
+	private final int[][] parentStrides;
+	private final int[][] children;
+	private final double[][] cpts;
+
+	/**
+	 * the alias tables of the CPTs, built on demand. They are immutable, so a table built
+	 * twice by concurrent threads does no harm.
+	 */
+	private final AliasTable[] aliases;
+
+	public CompiledNetwork(CategoricalBayesianNetwork bn) {
+
+		List<NodeCategorical> enumerated = bn.enumerateNodes();
+		final int count = enumerated.size();
+		this.nodes = enumerated.toArray(new NodeCategorical[count]);
+
+		Map<NodeCategorical,Integer> n2id = new HashMap<>(count*2);
+		List<Map<String,Integer>> v2i = new ArrayList<>(count);
+		this.cards = new int[count];
+		this.valueOffset = new int[count+1];
+		for (int i=0; i<count; i++) {
+			n2id.put(nodes[i], i);
+			cards[i] = nodes[i].getDomainSize();
+			valueOffset[i+1] = valueOffset[i] + cards[i];
+			Map<String,Integer> values = new HashMap<>(cards[i]*2);
+			for (int x=0; x<cards[i]; x++)
+				values.put(nodes[i].getValueIndexed(x), x);
+			v2i.add(Collections.unmodifiableMap(values));
+		}
+		this.node2id = Collections.unmodifiableMap(n2id);
+		this.value2index = Collections.unmodifiableList(v2i);
+
+		this.parents = new int[count][];
+		this.parentStrides = new int[count][];
+		this.cpts = new double[count][];
+		List<List<Integer>> node2children = new ArrayList<>(count);
+		for (int i=0; i<count; i++)
+			node2children.add(new ArrayList<>());
+		for (int i=0; i<count; i++) {
+			NodeCategorical[] pp = nodes[i].getParentsArray();
+			parents[i] = new int[pp.length];
+			parentStrides[i] = new int[pp.length];
+			int stride = cards[i];
+			for (int p=pp.length-1; p>=0; p--) {
+				parents[i][p] = n2id.get(pp[p]);
+				parentStrides[i][p] = stride;
+				stride *= cards[parents[i][p]];
+				node2children.get(parents[i][p]).add(i);
+			}
+			cpts[i] = nodes[i].getContent();
+		}
+		this.aliases = new AliasTable[count];
+		this.children = new int[count][];
+		for (int i=0; i<count; i++)
+			children[i] = node2children.get(i).stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * returns the count of nodes
+	 * @return
+	 */
+	public int size() {
+		return nodes.length;
+	}
+
+	/**
+	 * returns the nodes in topological order, that is by id
+	 * @return
+	 */
+	public NodeCategorical[] getNodes() {
+		return nodes.clone();
+	}
+
+	public NodeCategorical getNode(int id) {
+		return nodes[id];
+	}
+
+	/**
+	 * returns the id of this node
+	 * @param n
+	 * @return
+	 */
+	public int getId(NodeCategorical n) {
+		Integer id = node2id.get(n);
+		if (id == null)
+			throw new IllegalArgumentException("the node "+n+" is not part of this network");
+		return id;
+	}
+
+	public int getCard(int id) {
+		return cards[id];
+	}
+
+	/**
+	 * returns the count of values of all the nodes
+	 * @return
+	 */
+	public int countValues() {
+		return valueOffset[nodes.length];
+	}
+
+	/**
+	 * returns the position of the first value of this node when the values of all the nodes are
+	 * stored one after the other, by id
+	 * @param id
+	 * @return
+	 */
+	public int getValueOffset(int id) {
+		return valueOffset[id];
+	}
+
+	public String getValue(int id, int value) {
+		return nodes[id].getValueIndexed(value);
+	}
+
+	/**
+	 * returns the index of this value in the domain of the node
+	 * @param id
+	 * @param value
+	 * @return
+	 */
+	public int getValueIndex(int id, String value) {
+		Integer idx = value2index.get(id).get(value);
+		if (idx == null)
+			throw new IllegalArgumentException("value \""+value+"\" unknown in node "+nodes[id]
+					+" (it contains "+nodes[id].getDomain()+")");
+		return idx;
+	}
+
+	public int countParents(int id) {
+		return parents[id].length;
+	}
+
+	/**
+	 * returns the id of the k-th parent of this node, in the order of {@link NodeCategorical#getParentsArray()}
+	 */
+	public int getParent(int id, int k) {
+		return parents[id][k];
+	}
+
+	/**
+	 * returns the offset in the CPT of this node between two successive values of its k-th parent
+	 */
+	public int getParentStride(int id, int k) {
+		return parentStrides[id][k];
+	}
+
+	public int[] getParents(int id) {
+		return parents[id].clone();
+	}
+
+	public int[] getParentStrides(int id) {
+		return parentStrides[id].clone();
+	}
+
+	public int countChildren(int id) {
+		return children[id].length;
+	}
+
+	public int getChild(int id, int k) {
+		return children[id][k];
+	}
+
+	public int[] getChildren(int id) {
+		return children[id].clone();
+	}
+
+	/**
+	 * returns the offset in the CPT of this node of the row for the values of its parents
+	 * @param id
+	 * @param values the index of the value of each node, by id
+	 * @return
+	 */
+	public int rowOf(int id, int[] values) {
+		final int[] pp = parents[id];
+		final int[] strides = parentStrides[id];
+		int row = 0;
+		for (int p=0; p<pp.length; p++)
+			row += values[pp[p]] * strides[p];
+		return row;
+	}
+
+	/**
+	 * returns the value at this index of the CPT of this node
+	 * @param id
+	 * @param index
+	 * @return
+	 */
+	public double getProbability(int id, int index) {
+		return cpts[id][index];
+	}
+
+	/**
+	 * returns the probability of the value of this node knowing the values of its parents
+	 * @param id
+	 * @param values the index of the value of each node, by id
+	 * @return
+	 */
+	public double getProbability(int id, int[] values) {
+		return cpts[id][rowOf(id, values) + values[id]];
+	}
+
+	public int getCPTSize(int id) {
+		return cpts[id].length;
+	}
+
+	/**
+	 * returns a copy of the CPT of this node
+	 * @param id
+	 * @return
+	 */
+	public double[] getCPT(int id) {
+		return cpts[id].clone();
+	}
+
+	/**
+	 * returns a new factor over this node and its parents, holding a copy of its CPT.
+	 * Factors are not safe to share between threads, so each call creates one;
+	 * the engines keep the factors they use.
+	 * @param id
+	 * @return
+	 */
+	public Factor getFactor(int id) {
+		// the CPT is laid out with the value of the node varying the fastest, then the last parent:
+		// this is the layout of a factor over the reversed family
+		final int[] pp = parents[id];
+		NodeCategorical[] variables = new NodeCategorical[pp.length+1];
+		variables[0] = nodes[id];
+		for (int p=0; p<pp.length; p++)
+			variables[pp.length-p] = nodes[pp[p]];
+		return new Factor(nodes[id].getNetwork(), variables, cpts[id].clone());
+	}
+
+	/**
+	 * returns a new factor over this node and its parents
+	 * @see #getFactor(int)
+	 * @param n
+	 * @return
+	 */
+	public Factor getFactor(NodeCategorical n) {
+		return getFactor(getId(n));
+	}
+
+	/**
+	 * returns the alias tables of the rows of the CPT of this node, built on the first call
+	 * @param id
+	 * @return
+	 */
+	public AliasTable getAliasTable(int id) {
+		AliasTable table = aliases[id];
+		if (table == null) {
+			table = new AliasTable(cpts[id], cards[id]);
+			aliases[id] = table;
+		}
+		return table;
+	}
+
+	/**
+	 * Draws the index of a value for this node knowing the values of its parents,
+	 * in constant time.
+	 * @param id
+	 * @param values the index of the value of each node, by id; only the parents are read
+	 * @param u a uniform number in [0,1[
+	 * @return
+	 */
+	public int sample(int id, int[] values, double u) {
+		return getAliasTable(id).sample(rowOf(id, values), u);
+	}
+
+	/**
+	 * returns the joint probability of this complete assignment
+	 * @param values the index of the value of each node, by id
+	 * @return
+	 */
+	public double jointProbability(int[] values) {
+		if (values.length != nodes.length)
+			throw new IllegalArgumentException("expecting the values of the "+nodes.length+" nodes but got "+values.length);
+		double p = 1.;
+		for (int i=0; i<nodes.length && p != 0.; i++)
+			p *= getProbability(i, values);
+		return p;
+	}
+
+	/**
+	 * returns the probability of the value of this node knowing the values of its parents,
+	 * which should all be observed in the assignment
+	 * @param id
+	 * @param assignment
+	 * @return
+	 */
+	public double getProbability(int id, Assignment assignment) {
+		if (assignment.getNetwork() != this)
+			throw new IllegalArgumentException("the assignment belongs another network");
+		final int[] values = assignment.values();
+		if (values[id] < 0)
+			throw new IllegalArgumentException("no value for "+nodes[id]+" in "+assignment);
+		for (int p: parents[id])
+			if (values[p] < 0)
+				throw new IllegalArgumentException("no value for the parent "+nodes[p]+" of "+nodes[id]+" in "+assignment);
+		return getProbability(id, values);
+	}
+
+	/**
+	 * returns the joint probability of this complete assignment
+	 * @param assignment
+	 * @return
+	 */
+	public double jointProbability(Assignment assignment) {
+		if (assignment.getNetwork() != this)
+			throw new IllegalArgumentException("the assignment belongs another network");
+		if (!assignment.isComplete())
+			throw new IllegalArgumentException("expecting the values of the "+nodes.length+" nodes but got "+assignment);
+		return jointProbability(assignment.values());
+	}
+
+	@Override
+	public String toString() {
+		return "compiled network of "+nodes.length+" nodes";
+	}
+
+}
@@ -0,0 +1,281 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.bn;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Walks the combinations of values of several variables as an odometer, the last variable
+ * varying the fastest (as {@link IteratorCategoricalVariables}). The current combination is
+ * stored in place as the index of the value of each variable, so advancing does not allocate anything.
+ *
+ * The cursor can also track flat offsets in tables over these variables, such as the CPT of a node:
+ * each tracked offset is updated incrementally when the cursor moves, so a step costs one addition
+ * per variable which changed instead of recomputing the offset.
+ *
+ * The cursor covers a range of the combinations numbered in the order of the walk, which can be
+ * split in two for parallel walks (see {@link #trySplit()}).
+ *
+ * <pre>
+ * DomainCursor cursor = new DomainCursor(n.getParentsArray());
+ * final int cpt = cursor.trackCPT(n);
+ * while (cursor.next()) {
+ *     double p = content[cursor.getOffset(cpt) + v];
+ * }
+ * </pre>
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class DomainCursor {
+
+	private final NodeCategorical[] variables;
+	private final int[] cards;
+
+	/**
+	 * the index of the current value of each variable
+	 */
+	private final int[] values;
+
+	/**
+	 * the range of combinations to walk, [from, to[
+	 */
+	private final long from;
+	private long to;
+
+	/**
+	 * the number of the current combination, or from-1 before the first call to next
+	 */
+	private long position;
+
+	/**
+	 * the strides of each tracked table for each variable, and the current offsets in these tables
+	 */
+	private int[][] strides = new int[0][];
+	private int[] offsets = new int[0];
+
+	public DomainCursor(NodeCategorical ... variables) {
+		this(variables.clone(), 0, countCombinations(variables));
+	}
+
+	public DomainCursor(Collection<NodeCategorical> variables) {
+		this(variables.toArray(new NodeCategorical[variables.size()]));
+	}
+
+	private DomainCursor(NodeCategorical[] variables, long from, long to) {
+
+		this.variables = variables;
+		this.cards = new int[variables.length];
+		for (int i=0; i<variables.length; i++)
+			cards[i] = variables[i].getDomainSize();
+		this.values = new int[variables.length];
+		this.from = from;
+		this.to = to;
+		this.position = from-1;
+
+		// decode the first combination
+		long rest = from;
+		for (int i=variables.length-1; i>=0 && cards[i] > 0; i--) {
+			values[i] = (int)(rest % cards[i]);
+			rest /= cards[i];
+		}
+	}
+
+	/**
+	 * returns the count of combinations of values of these variables
+	 * @param variables
+	 * @return
+	 */
+	public static long countCombinations(NodeCategorical[] variables) {
+		long count = 1;
+		for (NodeCategorical n: variables)
+			count = Math.multiplyExact(count, n.getDomainSize());
+		return count;
+	}
+
+	/**
+	 * Tracks the offset in a table over these variables with these strides,
+	 * one for each variable of the cursor (0 for the variables which are not part of the table).
+	 * @param strides
+	 * @return the index of the offset for {@link #getOffset(int)}
+	 */
+	public int track(int[] strides) {
+
+		if (strides.length != variables.length)
+			throw new IllegalArgumentException("expecting one stride for each of the "+variables.length+" variables");
+
+		final int k = offsets.length;
+		this.strides = Arrays.copyOf(this.strides, k+1);
+		this.strides[k] = strides.clone();
+		this.offsets = Arrays.copyOf(offsets, k+1);
+		int offset = 0;
+		for (int i=0; i<variables.length; i++)
+			offset += values[i] * strides[i];
+		offsets[k] = offset;
+		return k;
+	}
+
+	/**
+	 * Tracks the offset in the CPT of this node, as stored by {@link NodeCategorical#getContent()}.
+	 * The variables of the cursor which are neither the node nor one of its parents are ignored;
+	 * the ones missing from the cursor remain at their first value.
+	 * @param n
+	 * @return the index of the offset for {@link #getOffset(int)}
+	 */
+	public int trackCPT(NodeCategorical n) {
+
+		// the value of the node varies the fastest, then the last parent
+		Map<NodeCategorical,Integer> variable2stride = new HashMap<>();
+		int stride = n.getDomainSize();
+		variable2stride.put(n, 1);
+		NodeCategorical[] parents = n.getParentsArray();
+		for (int p=parents.length-1; p>=0; p--) {
+			variable2stride.put(parents[p], stride);
+			stride *= parents[p].getDomainSize();
+		}
+
+		int[] res = new int[variables.length];
+		for (int i=0; i<variables.length; i++)
+			res[i] = variable2stride.getOrDefault(variables[i], 0);
+		return track(res);
+	}
+
+	/**
+	 * Moves to the next combination.
+	 * The first call moves to the first combination of the range.
+	 * @return false if there is no more combination to walk
+	 */
+	public boolean next() {
+
+		if (position+1 >= to)
+			return false;
+
+		if (position++ < from)
+			// this is the first combination, decoded already
+			return true;
+
+		for (int i=values.length-1; i>=0; i--) {
+			values[i]++;
+			for (int k=0; k<offsets.length; k++)
+				offsets[k] += strides[k][i];
+			if (values[i] < cards[i])
+				break;
+			// shift back this one, and increment the previous one
+			values[i] = 0;
+			for (int k=0; k<offsets.length; k++)
+				offsets[k] -= strides[k][i] * cards[i];
+		}
+		return true;
+	}
+
+	/**
+	 * returns the offset of the current combination in the tracked table
+	 * @param k
+	 * @return
+	 */
+	public int getOffset(int k) {
+		return offsets[k];
+	}
+
+	public int countVariables() {
+		return variables.length;
+	}
+
+	public NodeCategorical getVariable(int i) {
+		return variables[i];
+	}
+
+	/**
+	 * returns the index of the current value of the i-th variable
+	 * @param i
+	 * @return
+	 */
+	public int get(int i) {
+		return values[i];
+	}
+
+	/**
+	 * returns the current value of the i-th variable
+	 * @param i
+	 * @return
+	 */
+	public String getValue(int i) {
+		return variables[i].getValueIndexed(values[i]);
+	}
+
+	/**
+	 * returns the number of the current combination in the order of the walk
+	 * @return
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * returns the count of combinations not walked yet
+	 * @return
+	 */
+	public long remaining() {
+		return to - Math.max(position+1, from);
+	}
+
+	/**
+	 * Puts the current values into this map, replacing the former values of these variables.
+	 * Recycling a map is cheaper than creating a new one for each combination.
+	 * @param n2v
+	 */
+	public void putInto(Map<NodeCategorical,String> n2v) {
+		for (int i=0; i<variables.length; i++)
+			n2v.put(variables[i], variables[i].getValueIndexed(values[i]));
+	}
+
+	/**
+	 * returns a new map with the current values
+	 * @return
+	 */
+	public Map<NodeCategorical,String> toMap() {
+		Map<NodeCategorical,String> res = new HashMap<>(variables.length*2);
+		putInto(res);
+		return res;
+	}
+
+	/**
+	 * Writes the current values into this assignment.
+	 * @param into
+	 */
+	public void copyInto(Assignment into) {
+		final CompiledNetwork network = into.getNetwork();
+		for (int i=0; i<variables.length; i++)
+			into.set(network.getId(variables[i]), values[i]);
+	}
+
+	/**
+	 * Splits the combinations not walked yet: this cursor keeps the first half,
+	 * and the returned one walks the second half. The returned cursor tracks the same tables.
+	 * @return the cursor for the second half, or null if there are less than 2 combinations remaining
+	 */
+	public DomainCursor trySplit() {
+
+		final long start = Math.max(position+1, from);
+		final long remaining = to - start;
+		if (remaining < 2)
+			return null;
+
+		final long middle = start + remaining/2;
+		DomainCursor other = new DomainCursor(variables, middle, to);
+		for (int[] s: strides)
+			other.track(s);
+		this.to = middle;
+		return other;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("cursor over ");
+		sb.append(Arrays.toString(variables));
+		sb.append(" [").append(from).append(':').append(to).append("[ at ").append(position);
+		return sb.toString();
+	}
+
+}
@@ -1,29 +1,74 @@
 package ch.resear.thiriot.knime.bayesiannetworks.lib.bn;
 
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 public abstract class FiniteNode<N extends AbstractNode<N>> extends AbstractNode<N> {
 
-	protected List<String> domain = new LinkedList<>();
-	protected Map<Object,Integer> domain2index = new HashMap<>(30);
+	/**
+	 * the values of the domain, interned, in their order. The array is replaced (never modified) 
+	 * when values are added, so it can be read without copy.
+	 */
+	private String[] values = new String[0];
+	
+	/**
+	 * open addressing index of the values: each slot contains 1 + the index of the value 
+	 * in the domain, or 0 if empty. Its length is a power of two at least twice the domain size.
+	 */
+	private int[] slots = new int[8];
+	
+	/**
+	 * read-only view of the values of the domain
+	 */
+	protected List<String> domain = Collections.emptyList();
 	
 	public FiniteNode(BayesianNetwork<N> net, String name) {
 		super(net, name);
 	}
 
-
 	/**
-	 * (internal) Adds a value into the domain of the categorical variable with no verification. 
-	 * @param vv
+	 * returns the slot where the value is stored, or the empty slot where it should be
 	 */
-	private final void _addDomain(String vv) {
-		domain2index.put(vv, domain.size());
-		domain.add(vv);
+	private static final int findSlot(String[] values, int[] slots, String value) {
+		int h = value.hashCode();
+		h ^= (h >>> 16);
+		final int mask = slots.length - 1;
+		for (int i = h & mask; ; i = (i + 1) & mask) {
+			final int s = slots[i];
+			if (s == 0)
+				return i;
+			final String v = values[s-1];
+			if (v == value || v.equals(value))
+				return i;
+		}
+	}
+	
+	/**
+	 * (internal) Adds values into the domain of the categorical variable with no verification. 
+	 * @param vvs
+	 */
+	private final void _addDomain(String ... vvs) {
+		
+		final String[] values = Arrays.copyOf(this.values, this.values.length + vvs.length);
+		int[] slots = this.slots;
+		if (values.length * 2 > slots.length) {
+			// rebuild a larger index
+			slots = new int[Integer.highestOneBit(values.length * 4 - 1)];
+			for (int i=0; i<this.values.length; i++)
+				slots[findSlot(values, slots, values[i])] = i+1;
+		}
+		for (int i=this.values.length; i<values.length; i++) {
+			values[i] = vvs[i - this.values.length].intern();
+			slots[findSlot(values, slots, values[i])] = i+1;
+		}
+		
+		this.values = values;
+		this.slots = slots;
+		this.domain = Collections.unmodifiableList(Arrays.asList(values));
 	}
 	
 	/**
@@ -32,7 +77,7 @@ public abstract class FiniteNode<N extends AbstractNode<N>> extends AbstractNode
 	 * @param vv
 	 */
 	public void addDomain(String vv) {
-		if (domain2index.containsKey(vv)) {
+		if (indexOf(vv) >= 0) {
 			throw new IllegalArgumentException(vv+" is already part of the domain");
 		}
 		this._addDomain(vv);
@@ -46,16 +91,15 @@ public abstract class FiniteNode<N extends AbstractNode<N>> extends AbstractNode
 	public final void addDomain(String ... vvs) {
 		
 		// check params
+		Set<String> added = new HashSet<>(vvs.length);
 		for (String vv : vvs) {
-			if (domain.contains(vv)) {
+			if (indexOf(vv) >= 0 || !added.add(vv)) {
 				throw new IllegalArgumentException(vv+" is already part of the domain");
 			}
 		}
 		
 		// add values
-		for (String vv : vvs) {
-			_addDomain(vv);
-		}
+		_addDomain(vvs);
 		
 		// adapt cpt size
 		adaptContentSize();
@@ -68,38 +112,47 @@ public abstract class FiniteNode<N extends AbstractNode<N>> extends AbstractNode
 	protected abstract void adaptContentSize();
 	
 	public final List<String> getDomain() {
-		return Collections.unmodifiableList(domain);
+		return domain;
 	}
 	
 	public final String getDomain(int index) {
-		return domain.get(index);
+		return values[index];
 	}
 	
 	
 	public final String getValueIndexed(int v) {
-		return domain.get(v);
+		return values[v];
+	}
+	
+	/**
+	 * Returns the index of this value in the domain, or -1 if it is not part of the domain.
+	 * Constant time whatever the size of the domain.
+	 * @param value
+	 * @return
+	 */
+	public final int indexOf(String value) {
+		if (value == null)
+			return -1;
+		return slots[findSlot(values, slots, value)] - 1;
 	}
 	
 	public final int getDomainIndex(String value) {
-		try {
-			return domain2index.get(value);
-		} catch (NullPointerException e) {
-			if (!domain2index.containsKey(value))
-				throw new IllegalArgumentException("there is no value \""+value
-						+"\" in variable "+this);
-			throw e;
-		}
+		final int idx = indexOf(value);
+		if (idx < 0)
+			throw new IllegalArgumentException("there is no value \""+value
+					+"\" in variable "+this);
+		return idx;
 	}
 
 	public final int getDomainSize() {
-		return domain.size();
+		return values.length;
 	}
 	
 	/**
 	 * Returns true if the domain contains this string
 	 */
 	public boolean contains(String vv) {
-		boolean res = domain2index.containsKey(vv);
+		boolean res = indexOf(vv) >= 0;
 		
 		if (!res) {
 			System.err.println("domain of: "+getName()+" does not contains \""+vv+"\" = "+domain);
@@ -109,12 +162,11 @@ public abstract class FiniteNode<N extends AbstractNode<N>> extends AbstractNode
 						.collect(Collectors.joining("-"))
 						);
 			System.err.println("searching for \""+vv+"\"");
-			for (Object o: domain2index.keySet()) {
-				String s = (String)o;
+			for (String s: values) {
 				System.err.print("* \""+s+"\" ? ");
 				System.err.print(s.equals(vv));
 				System.err.print(" ");
-				System.err.println(o.equals(vv));
+				System.err.println(s == vv);
 				
 				
 				System.err.print("* [");
@@ -1,89 +1,69 @@
 package ch.resear.thiriot.knime.bayesiannetworks.lib.bn;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * Iterates over the combinations of values for the domains of each variable passed at initialization.
- * 
+ * Each combination is returned as a new map; the loops over many combinations should rather
+ * walk a {@link DomainCursor}, which does not allocate anything.
+ *
  * @author Samuel Thiriot
  *
  */
 public final class IteratorCategoricalVariables implements Iterator<Map<NodeCategorical,String>> {
 
-	
-	/**
-	 * the nodes we have to explore the values for 
-	 */
-	private final NodeCategorical[] nuisance;
-	
 	/**
-	 * the current values we are exploring for each node
+	 * the cursor over the nodes we have to explore the values for
 	 */
-	private final int[] nodeIdx2valueIdx;
-	
-	private boolean hasNext;
-	
-	
+	private final DomainCursor cursor;
+
 	public IteratorCategoricalVariables(Collection<NodeCategorical> variables) {
-				
-		// store the variables in a way which can be accessed quickly in an indexed way
-		this.nuisance = new NodeCategorical[variables.size()];
-		variables.toArray(nuisance);
-		
-		// store the initial indices we explore (initialized at 0)
-		this.nodeIdx2valueIdx = new int[nuisance.length];
-		
-		// at the beginning, we have something to explore if we have at least one variable having a value in its domain
-		this.hasNext = true;
-		/*
-		for (NodeCategorical n: this.nuisance) {
-			if (n.getDomainSize() > 0) {
-				this.hasNext = true;
-				break;
-			}
-		}*/
-		
+
+		this.cursor = new DomainCursor(variables);
 	}
 
 	@Override
 	public boolean hasNext() {
-		return hasNext;
+		return cursor.remaining() > 0;
 	}
 
 	@Override
 	public Map<NodeCategorical, String> next() {
-		
+
+		if (!cursor.next())
+			throw new NoSuchElementException();
+
 		// create the combination we explore now
-		Map<NodeCategorical,String> n2v = new HashMap<>(nuisance.length);
-		for (int i=0; i<nodeIdx2valueIdx.length; i++) {
-			n2v.put(nuisance[i], nuisance[i].getValueIndexed(nodeIdx2valueIdx[i]));
-		}
-		
-		// skip to the next index
-		int cursorParents = nodeIdx2valueIdx.length-1;
-		if (nodeIdx2valueIdx.length == 0) {
-			hasNext = false; 
-		} else {
-			nodeIdx2valueIdx[cursorParents]++;
-			// ... if we are at the max of the domain size of the current node, then shift back
-			while (nodeIdx2valueIdx[cursorParents] >= nuisance[cursorParents].getDomainSize()) {
-				nodeIdx2valueIdx[cursorParents] = 0;
-				cursorParents--;
-				// maybe we finished the exploration ?
-				if (cursorParents < 0) {
-					hasNext = false;
-					break;
-				}
-				// skip to the next one 
-				nodeIdx2valueIdx[cursorParents]++;
-			}
+		return cursor.toMap();
+	}
+
+	/**
+	 * the ids of the variables in the network of the last assignment passed to {@link #next(Assignment)}
+	 */
+	private CompiledNetwork idsNetwork = null;
+	private int[] ids = null;
+
+	/**
+	 * Writes the next combination into this assignment instead of creating a map.
+	 * The other values of the assignment are left unchanged.
+	 * @param into
+	 */
+	public void next(Assignment into) {
+
+		if (!cursor.next())
+			throw new NoSuchElementException();
+
+		if (idsNetwork != into.getNetwork()) {
+			ids = new int[cursor.countVariables()];
+			for (int i=0; i<ids.length; i++)
+				ids[i] = into.getNetwork().getId(cursor.getVariable(i));
+			idsNetwork = into.getNetwork();
 		}
-		
-		return n2v;
+		for (int i=0; i<ids.length; i++)
+			into.set(ids[i], cursor.get(i));
 	}
 
-	
 }
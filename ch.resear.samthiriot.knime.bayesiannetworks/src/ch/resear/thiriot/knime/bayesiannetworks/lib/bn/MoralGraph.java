@@ -1,6 +1,8 @@
 package ch.resear.thiriot.knime.bayesiannetworks.lib.bn;
 
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -195,4 +197,18 @@ public class MoralGraph extends SingleGraph {
 	public int getNeighboors(NodeCategorical n) {
 		return super.getNode(variable2nodeId.get(n)).getDegree();
 	}
+
+	/**
+	 * Returns the variables linked to this one in the moral graph, 
+	 * that is its parents, children and the other parents of its children.
+	 * @param n
+	 * @return
+	 */
+	public Set<NodeCategorical> getNeighboorVariables(NodeCategorical n) {
+		Set<NodeCategorical> res = new LinkedHashSet<>();
+		Iterator<Node> it = super.getNode(variable2nodeId.get(n)).getNeighborNodeIterator();
+		while (it.hasNext()) 
+			res.add(nodeId2variable.get(it.next().getId()));
+		return res;
+	}
 }
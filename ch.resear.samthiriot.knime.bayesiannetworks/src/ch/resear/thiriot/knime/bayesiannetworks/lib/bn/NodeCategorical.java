@@ -74,6 +74,24 @@ public final class NodeCategorical extends FiniteNode<NodeCategorical> {
 		return Arrays.copyOf(content, content.length);
 	}
 	
+	/**
+	 * Returns the parents in the order of the content: after the value of this node,
+	 * the last parent varies the fastest and the first parent the slowest.
+	 * @return
+	 */
+	public final NodeCategorical[] getParentsArray() {
+		return Arrays.copyOf(parentsArray, parentsArray.length);
+	}
+
+	/**
+	 * Returns for each parent, in the order of {@link #getParentsArray()}, 
+	 * the offset in the content between two successive values of this parent.
+	 * @return
+	 */
+	public final int[] getParentsStrides() {
+		return Arrays.copyOf(multipliers, multipliers.length);
+	}
+
 	public final CategoricalBayesianNetwork getNetwork() {
 		return cNetwork;
 	}
@@ -150,6 +168,8 @@ public final class NodeCategorical extends FiniteNode<NodeCategorical> {
 		
 		// TODO keep the old array, reuse its probas, etc.
 		content = new double[card];
+		if (cNetwork != null)
+			cNetwork.notifyContentChanged(this);
 		
 		// adapt the association domain / size
 		
@@ -210,11 +230,15 @@ public final class NodeCategorical extends FiniteNode<NodeCategorical> {
 	public void setProbabilities(double p, String key, Object ... parentAndValue) {
 		countZeros = null;
 		content[_getIndex(key, parentAndValue)] = p;
+		if (cNetwork != null)
+			cNetwork.notifyContentChanged(this);
 	}
 	
 	public void setProbabilities(double p, String key, Map<NodeCategorical,String> parent2Value) {
 		countZeros = null;
 		content[_getIndex(key, parent2Value)] = p;
+		if (cNetwork != null)
+			cNetwork.notifyContentChanged(this);
 	}
 	
 	public void setProbabilities(double[] values) {
@@ -222,6 +246,8 @@ public final class NodeCategorical extends FiniteNode<NodeCategorical> {
 			throw new IllegalArgumentException("wrong size for the content");
 		countZeros = null;
 		this.content = values;
+		if (cNetwork != null)
+			cNetwork.notifyContentChanged(this);
 	}
 
 
@@ -233,7 +259,37 @@ public final class NodeCategorical extends FiniteNode<NodeCategorical> {
 	public double getProbability(String key, Map<NodeCategorical,String> parent2Value) {
 		return content[_getIndex(key, parent2Value)];
 	}
-	
+
+	/**
+	 * Returns the probability of the value of this index knowing the values of the parents
+	 * in this assignment, without creating any map.
+	 * The probabilities are the ones of the compiled network of the assignment.
+	 * @param value
+	 * @param parents
+	 * @return
+	 */
+	public double getProbability(int value, Assignment parents) {
+		final CompiledNetwork network = parents.getNetwork();
+		final int id = network.getId(this);
+		if (value < 0 || value >= network.getCard(id))
+			throw new IllegalArgumentException("no value "+value+" in the domain of "+this);
+		final int[] values = parents.values();
+		for (int k=0; k<network.countParents(id); k++)
+			if (values[network.getParent(id, k)] < 0)
+				throw new IllegalArgumentException("no value for the parent "+network.getNode(network.getParent(id, k))+" of "+this+" in "+parents);
+		return network.getProbability(id, network.rowOf(id, values) + value);
+	}
+
+	/**
+	 * Returns the probability of the value of this node knowing the values of its parents,
+	 * all read from this assignment
+	 * @param assignment
+	 * @return
+	 */
+	public double getProbability(Assignment assignment) {
+		return assignment.getNetwork().getProbability(assignment.getNetwork().getId(this), assignment);
+	}
+
 
 	
 	/**
@@ -341,35 +397,38 @@ public final class NodeCategorical extends FiniteNode<NodeCategorical> {
 		
 		//System.out.println("before:\t"+Arrays.toString(content));
 		
-		IteratorCategoricalVariables it = cNetwork.iterateDomains(getParents());
-		while (it.hasNext()) {
-			Map<NodeCategorical,String> n2s = it.next();
+		final int card = domain.size();
+		DomainCursor cursor = new DomainCursor(getParentsArray());
+		final int cpt = cursor.trackCPT(this);
+		boolean changed = false;
+		while (cursor.next()) {
+			final int row = cursor.getOffset(cpt);
 			
 			double total = .0;
-			for (String n: domain) {
-				total += getProbability(n, n2s);
+			for (int v=0; v<card; v++) {
+				total += content[row+v];
 			}
 			if (total == 0) {
 				// no data at all ! we have to assume equiprobability
-				System.out.println(
-						"equiprobability for p("+name+"|"+
-						n2s.entrySet().stream().map(k2v -> k2v.getKey().getName()+"="+k2v.getValue()).collect(Collectors.joining(","))+
-						")");
-				double eq = 1.0 / domain.size();
-				for (String n: domain) {
-					setProbabilities(eq, n, n2s);
+				System.out.println("equiprobability for p("+name+"|"+describeParents(cursor)+")");
+				double eq = 1.0 / card;
+				for (int v=0; v<card; v++) {
+					content[row+v] = eq;
 				}
+				changed = true;
 			} else if (Math.abs(total - 1.0) > 10e-8) {
-				System.out.println(
-						"normalizing p("+name+"|"+
-						n2s.entrySet().stream().map(k2v -> k2v.getKey().getName()+"="+k2v.getValue()).collect(Collectors.joining(","))+
-						")");
-				for (String n: domain) {
-					double p = getProbability(n, n2s);
-					setProbabilities(p/total, n, n2s);
+				System.out.println("normalizing p("+name+"|"+describeParents(cursor)+")");
+				for (int v=0; v<card; v++) {
+					content[row+v] /= total;
 				}
+				changed = true;
 			}
 		}
+		if (changed) {
+			countZeros = null;
+			if (cNetwork != null)
+				cNetwork.notifyContentChanged(this);
+		}
 		
 		//System.out.println("after:\t"+Arrays.toString(content));
 		
@@ -380,6 +439,16 @@ public final class NodeCategorical extends FiniteNode<NodeCategorical> {
 		
 	}
 	
+	private static String describeParents(DomainCursor cursor) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<cursor.countVariables(); i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(cursor.getVariable(i).getName()).append('=').append(cursor.getValue(i));
+		}
+		return sb.toString();
+	}
+	
 	/**
 	 * returns the probability conditional to all parents P(V=v | parents=*)
 	 * @param d
@@ -847,21 +916,16 @@ public final class NodeCategorical extends FiniteNode<NodeCategorical> {
 	 */
 	public Factor asFactor() {
 		
-		Set<NodeCategorical> variables = new HashSet<>(parents);
-		variables.add(this);
-		
-		Factor f = new Factor(cNetwork, variables);
-		
-		for (IteratorCategoricalVariables it = cNetwork.iterateDomains(this.parents); it.hasNext(); ) {
-			Map<NodeCategorical,String> v2n = it.next();
-			for (String v: this.domain) {
-				double d = this.getProbability(v, v2n);
-				HashMap<NodeCategorical,String> v2n2 = new HashMap<>(v2n);
-				v2n2.put(this, v);
-				f.setFactor(v2n2, d);
-			}
+		// our content is already laid out with our value varying the fastest, 
+		// then the last parent, and so on until the first parent: 
+		// this is exactly the layout of a factor over the reversed family
+		NodeCategorical[] variables = new NodeCategorical[parentsArray.length+1];
+		variables[0] = this;
+		for (int i=0; i<parentsArray.length; i++) {
+			variables[parentsArray.length-i] = parentsArray[i];
 		}
-		return f;
+		
+		return new Factor(cNetwork, variables, getContent());
 	}
 	
 	/**
@@ -1,17 +1,25 @@
 package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.apache.commons.collections4.map.LRUMap;
+
 import cern.jet.random.AbstractContinousDistribution;
 import cern.jet.random.Uniform;
 import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 
 public abstract class AbstractInferenceEngine {
@@ -30,6 +38,24 @@ public abstract class AbstractInferenceEngine {
 	 */
 	protected boolean dirty = true;
 	
+	/**
+	 * count of plans compiled for signatures of evidence kept by each engine
+	 */
+	public static int PLANS_CACHE_SIZE = 64;
+	
+	private LRUMap<List<NodeCategorical>,EvidenceSignaturePlan> signature2plan = null;
+	
+	/**
+	 * the state of the network the plans of the cache were compiled for
+	 */
+	private CompiledNetwork plansNetwork = null;
+	
+	/**
+	 * the factors of the CPTs used by this engine, by id in the compiled network they were built from
+	 */
+	private Factor[] factors = null;
+	private CompiledNetwork factorsNetwork = null;
+	
 	
 	public AbstractInferenceEngine(ILogger logger, 
 			RandomEngine random,
@@ -249,45 +275,41 @@ public abstract class AbstractInferenceEngine {
 		}
 	}
 	
-	private Map<NodeCategorical,double[]> node2cumulatedProbability = new HashMap<>();
-	
-	private double[] getCumulatedProbabilities(NodeCategorical n) {
-		
-		double[] res = node2cumulatedProbability.get(n);
-		
-		if (res == null) {
-		
-			// build the table of cumulated probas 
-			
-			res = new double[n.getDomainSize()];
-		
-			List<String> domain = n.getDomain();
-			//System.err.println("should pick a value for "+n.name);
-			
-			double cumulated = 0.;
-			for (int i=0; i<domain.size(); i++) {
-				double p = this.getConditionalProbability(n, domain.get(i));
-				cumulated += p;
-				res[i] = cumulated;
-			}
-			
-			node2cumulatedProbability.put(n, res);
+	/**
+	 * Adds as evidence the values of the observed nodes of this assignment
+	 * @param evidence
+	 */
+	public void addEvidence(Assignment evidence) {
+		final CompiledNetwork network = evidence.getNetwork();
+		for (int id=0; id<evidence.size(); id++) {
+			final int v = evidence.get(id);
+			if (v >= 0)
+				addEvidence(network.getNode(id), network.getValue(id, v));
 		}
-		
-		return res;
 	}
 	
-	private String sampleValueWithProbaCache(NodeCategorical n, double rng) {
-		
-		double[] cumulated = getCumulatedProbabilities(n);
-		
-		int idx = java.util.Arrays.binarySearch(cumulated, rng);
-		if (idx > 0) {
-			return n.getDomain(idx); 
-		} else {
-			return n.getDomain(-idx-1);
+	/**
+	 * returns, for each node id, true if one of the descendants of the node is observed
+	 * in this evidence. The other nodes only depend on the values of their parents.
+	 * @param network
+	 * @param evidence
+	 * @return
+	 */
+	private static boolean[] evidenceBelow(CompiledNetwork network, Map<NodeCategorical,String> evidence) {
+		
+		final boolean[] observed = new boolean[network.size()];
+		for (NodeCategorical n: evidence.keySet())
+			observed[network.getId(n)] = true;
+		
+		// ids are in topological order: children come after their parents
+		final boolean[] res = new boolean[network.size()];
+		for (int id=network.size()-1; id>=0; id--) {
+			for (int k=0; k<network.countChildren(id) && !res[id]; k++) {
+				final int c = network.getChild(id, k);
+				res[id] = observed[c] || res[c];
+			}
 		}
-		
+		return res;
 	}
 	
 	/**
@@ -307,9 +329,17 @@ public abstract class AbstractInferenceEngine {
 		
 		// we start with the original evidence. 
 		
+		// the nodes with no evidence below only depend on the values of their parents: 
+		// they are drawn from the alias tables of their CPT, with no inference
+		final CompiledNetwork network = bn.getCompiled();
+		final boolean[] evidenceBelow = evidenceBelow(network, originalEvidence);
+		final int[] values = new int[network.size()];
+		
 		Map<NodeCategorical,String> node2attribute = new HashMap<>();
 		// define values for each individual
-		for (NodeCategorical n: bn.enumerateNodes()) {
+		for (int id=0; id<network.size(); id++) {
+			
+			final NodeCategorical n = network.getNode(id);
 			
 			String value = null;
 			
@@ -319,20 +349,11 @@ public abstract class AbstractInferenceEngine {
 			
 				final double random = rng.nextDouble();
 				
-				if (!n.hasParents())
-					// we can use a method with a cache of cumulated probabilities
-					value = sampleValueWithProbaCache(n, random);
+				if (!evidenceBelow[id])
+					// one table lookup
+					value = n.getValueIndexed(network.sample(id, values, random));
 				else { 
 					
-					//value = weightedRoulette(n, random);
-					
-					// TODO maybe there is a way to optimize here
-					// by indexing the cumulated probability over the domain
-					// store a few elements such as 
-					// for a given node
-					// probabilities [0.1,0.2...0.9}
-					// are in domain [a, b ....z]
-					
 					// pick up a value
 					double cumulated = 0.;
 					
@@ -355,10 +376,16 @@ public abstract class AbstractInferenceEngine {
 			}
 			// that' the property of this individual
 			node2attribute.put(n, value);
+			values[id] = n.getDomainIndex(value);
 			// store this novel value as evidence for this individual
-			this.addEvidence(n, value);
+			// (only useful to the inference of the next nodes)
+			if (!originalEvidence.isEmpty())
+				this.addEvidence(n, value);
 		}
 		
+		if (originalEvidence.isEmpty())
+			return node2attribute;
+		
 		// reset evidence to its original value
 		this.clearEvidence();
 		this.addEvidence(originalEvidence);
@@ -376,6 +403,18 @@ public abstract class AbstractInferenceEngine {
 		
 		return node2attribute;
 	}
+	
+	/**
+	 * Generates an instanciation of the network given current evidence into this assignment, 
+	 * which is cleared first. 
+	 * The default implementation copies the result of {@link #sampleOne()}; the engines which
+	 * store their samples as indices write them directly.
+	 * @param into an assignment of the compiled network of the Bayesian network
+	 */
+	public void sampleOne(Assignment into) {
+		
+		into.clear().setAll(sampleOne());
+	}
 
 		
 	/**
@@ -415,6 +454,295 @@ public abstract class AbstractInferenceEngine {
 
 	
 
+	/**
+	 * returns true if the batch methods should replay plans compiled per signature of evidence,
+	 * rather than asserting evidence in this engine row per row. 
+	 * Engines which compute everything again for each evidence, such as variable elimination
+	 * and conditioning, benefit from plans; engines compiled once for the network answer
+	 * each evidence faster by themselves. 
+	 * @return
+	 */
+	protected boolean usesEvidenceSignaturePlans() {
+		return false;
+	}
+	
+	/**
+	 * returns the factor of the CPT of this node, built from the compiled network
+	 * on the first call. The factors are kept by each engine, as they are not thread safe;
+	 * they are built again once the network changed.
+	 * @param n
+	 * @return
+	 */
+	protected Factor getFactor(NodeCategorical n) {
+		
+		final CompiledNetwork network = bn.getCompiled();
+		if (factors == null || factorsNetwork != network) {
+			factors = new Factor[network.size()];
+			factorsNetwork = network;
+		}
+		final int id = network.getId(n);
+		Factor f = factors[id];
+		if (f == null) {
+			f = network.getFactor(id);
+			factors[id] = f;
+		}
+		return f;
+	}
+	
+	/**
+	 * returns the plan for the evidence on these variables, compiled or from the cache.
+	 * The cache is emptied when the network changed since the plans were compiled.
+	 * @param observed
+	 * @return
+	 */
+	protected EvidenceSignaturePlan getEvidenceSignaturePlan(NodeCategorical[] observed) {
+		
+		final CompiledNetwork network = bn.getCompiled();
+		if (signature2plan == null || plansNetwork != network) {
+			signature2plan = new LRUMap<>(PLANS_CACHE_SIZE);
+			plansNetwork = network;
+		}
+		
+		List<NodeCategorical> key = Arrays.asList(observed);
+		EvidenceSignaturePlan plan = signature2plan.get(key);
+		if (plan == null) {
+			InferencePerformanceUtils.singleton.incCacheMiss();
+			plan = EvidenceSignaturePlan.compile(bn, observed);
+			signature2plan.put(key, plan);
+			if (logger.isDebugEnabled())
+				logger.debug("compiled a plan for evidence on "+key+" replaying "+plan.countDynamicSteps()+" eliminations");
+		} else {
+			InferencePerformanceUtils.singleton.incCacheHit();
+		}
+		return plan;
+	}
+	
+	/**
+	 * Groups the rows by their signature, that is the bitmask of their observed variables
+	 * (the values which are not negative).
+	 * @param rows
+	 * @return
+	 */
+	protected static Map<BitSet,List<Integer>> groupBySignature(int[][] rows) {
+		
+		Map<BitSet,List<Integer>> signature2rows = new LinkedHashMap<>();
+		for (int r=0; r<rows.length; r++) {
+			BitSet signature = new BitSet(rows[r].length);
+			for (int i=0; i<rows[r].length; i++)
+				if (rows[r][i] >= 0)
+					signature.set(i);
+			signature2rows.computeIfAbsent(signature, k -> new ArrayList<>()).add(r);
+		}
+		return signature2rows;
+	}
+	
+	/**
+	 * Processes these rows of evidence grouped by signature, either with the plan of 
+	 * the signature, or by asserting the evidence of each row in this engine.  
+	 * The evidence of the engine is the same after the call. 
+	 */
+	private interface RowProcessor {
+		void process(int row, EvidenceSignaturePlan plan, int[] values);
+	}
+	
+	private void processRows(NodeCategorical[] observed, int[][] rows, RowProcessor processor) {
+		
+		Map<NodeCategorical,String> originalEvidence = new HashMap<>(evidenceVariable2value);
+		final boolean usePlans = usesEvidenceSignaturePlans();
+		
+		try {
+			for (Map.Entry<BitSet,List<Integer>> e: groupBySignature(rows).entrySet()) {
+				
+				final BitSet signature = e.getKey();
+				final int[] positions = signature.stream().toArray();
+				final NodeCategorical[] observedInSignature = new NodeCategorical[positions.length];
+				for (int i=0; i<positions.length; i++)
+					observedInSignature[i] = observed[positions[i]];
+				
+				final EvidenceSignaturePlan plan = usePlans ? getEvidenceSignaturePlan(observedInSignature) : null;
+	
+				for (int r: e.getValue()) {
+					int[] values = new int[positions.length];
+					for (int i=0; i<positions.length; i++)
+						values[i] = rows[r][positions[i]];
+					if (!usePlans) {
+						clearEvidence();
+						for (int i=0; i<positions.length; i++)
+							addEvidence(observedInSignature[i], observedInSignature[i].getValueIndexed(values[i]));
+					}
+					processor.process(r, plan, values);
+				}
+			}
+		} finally {
+			if (!usePlans) {
+				clearEvidence();
+				addEvidence(originalEvidence);
+			}
+		}
+	}
+	
+	/**
+	 * Computes the probability of evidence for many rows of evidence at once. 
+	 * The rows sharing the same observed variables are computed together; depending on the engine, 
+	 * in batch by the plan compiled for these observed variables (see {@link EvidenceSignaturePlan}). 
+	 * @param observed the variables which might be observed
+	 * @param rows for each row, the index of the value of each observed variable, or -1 if it is missing
+	 * @return the probability of the evidence of each row
+	 */
+	public double[] getProbabilityEvidenceForRows(NodeCategorical[] observed, int[][] rows) {
+		
+		final double[] res = new double[rows.length];
+		if (!usesEvidenceSignaturePlans()) {
+			processRows(observed, rows, (r, plan, values) -> {
+				res[r] = getProbabilityEvidence();
+			});
+			return res;
+		}
+		
+		// the rows sharing the same observed variables are evaluated in batch by their plan
+		for (Map.Entry<BitSet,List<Integer>> e: groupBySignature(rows).entrySet()) {
+			
+			final int[] positions = e.getKey().stream().toArray();
+			final NodeCategorical[] observedInSignature = new NodeCategorical[positions.length];
+			for (int i=0; i<positions.length; i++)
+				observedInSignature[i] = observed[positions[i]];
+			
+			final List<Integer> group = e.getValue();
+			final int[][] values = new int[group.size()][positions.length];
+			for (int j=0; j<values.length; j++)
+				for (int i=0; i<positions.length; i++)
+					values[j][i] = rows[group.get(j)][positions[i]];
+			
+			final double[] p = getEvidenceSignaturePlan(observedInSignature).getProbabilityEvidence(values);
+			for (int j=0; j<p.length; j++)
+				res[group.get(j)] = p[j];
+		}
+		return res;
+	}
+	
+	/**
+	 * Computes the probability of evidence for many rows of evidence at once, 
+	 * reusing the probabilities cached for the same evidence tuples. 
+	 * Only the distinct tuples missing in the cache are computed, and then cached. 
+	 * @see #getProbabilityEvidenceForRows(NodeCategorical[], int[][])
+	 * @param observed the variables which might be observed
+	 * @param rows for each row, the index of the value of each observed variable, or -1 if it is missing
+	 * @param cache the probabilities of evidence tuples, or null
+	 * @return the probability of the evidence of each row
+	 */
+	public double[] getProbabilityEvidenceForRows(NodeCategorical[] observed, int[][] rows, EvidenceCache<Double> cache) {
+		
+		if (cache == null)
+			return getProbabilityEvidenceForRows(observed, rows);
+		
+		List<Double> probabilities = cache.getOrCompute(rows, missing -> {
+			double[] computed = getProbabilityEvidenceForRows(observed, missing);
+			List<Double> res = new ArrayList<>(computed.length);
+			for (double p: computed)
+				res.add(p);
+			return res;
+		});
+		final double[] res = new double[rows.length];
+		for (int r=0; r<res.length; r++)
+			res[r] = probabilities.get(r);
+		return res;
+	}
+	
+	/**
+	 * Generates one instanciation of the network for each row of evidence. 
+	 * @see #getProbabilityEvidenceForRows(NodeCategorical[], int[][])
+	 * @param observed the variables which might be observed
+	 * @param rows for each row, the index of the value of each observed variable, or -1 if it is missing
+	 * @return an instanciation for each row
+	 */
+	public List<Map<NodeCategorical,String>> sampleForRows(NodeCategorical[] observed, int[][] rows) {
+		
+		return sampleAssignmentsForRows(observed, rows).stream()
+				.map(Assignment::toMap)
+				.collect(Collectors.toList());
+	}
+	
+	/**
+	 * Generates one instanciation of the network for each row of evidence,
+	 * as assignments of the compiled network instead of maps.
+	 * @see #sampleForRows(NodeCategorical[], int[][])
+	 */
+	public List<Assignment> sampleAssignmentsForRows(NodeCategorical[] observed, int[][] rows) {
+		
+		final CompiledNetwork network = bn.getCompiled();
+		final List<Assignment> res = new ArrayList<>(rows.length);
+		for (int r=0; r<rows.length; r++)
+			res.add(new Assignment(network));
+		processRows(observed, rows, (r, plan, values) -> {
+			if (plan != null)
+				plan.sample(values, rng, res.get(r));
+			else
+				sampleOne(res.get(r));
+		});
+		return res;
+	}
+	
+	/**
+	 * Generates one instanciation of the network for each row of evidence, 
+	 * reusing the posteriors cached for the same evidence tuples. 
+	 * The cache is only used by the engines which compile plans for evidence 
+	 * (see {@link EvidenceSignaturePlan.Posterior}); the others ignore it.   
+	 * @see #sampleForRows(NodeCategorical[], int[][])
+	 * @param observed the variables which might be observed
+	 * @param rows for each row, the index of the value of each observed variable, or -1 if it is missing
+	 * @param cache the posteriors of evidence tuples, or null
+	 * @return an instanciation for each row
+	 */
+	public List<Map<NodeCategorical,String>> sampleForRows(
+			NodeCategorical[] observed, int[][] rows, 
+			EvidenceCache<EvidenceSignaturePlan.Posterior> cache) {
+		
+		return sampleAssignmentsForRows(observed, rows, cache).stream()
+				.map(Assignment::toMap)
+				.collect(Collectors.toList());
+	}
+	
+	/**
+	 * Generates one instanciation of the network for each row of evidence, 
+	 * as assignments of the compiled network instead of maps, 
+	 * reusing the posteriors cached for the same evidence tuples. 
+	 * @see #sampleForRows(NodeCategorical[], int[][], EvidenceCache)
+	 */
+	public List<Assignment> sampleAssignmentsForRows(
+			NodeCategorical[] observed, int[][] rows, 
+			EvidenceCache<EvidenceSignaturePlan.Posterior> cache) {
+		
+		if (cache == null || !usesEvidenceSignaturePlans())
+			return sampleAssignmentsForRows(observed, rows);
+		
+		List<EvidenceSignaturePlan.Posterior> posteriors = cache.getOrCompute(rows, missing -> {
+			List<EvidenceSignaturePlan.Posterior> computed = new ArrayList<>(missing.length);
+			for (int[] row: missing) {
+				List<Integer> positions = new ArrayList<>(row.length);
+				for (int i=0; i<row.length; i++)
+					if (row[i] >= 0)
+						positions.add(i);
+				final NodeCategorical[] observedInRow = new NodeCategorical[positions.size()];
+				final int[] values = new int[positions.size()];
+				for (int i=0; i<values.length; i++) {
+					observedInRow[i] = observed[positions.get(i)];
+					values[i] = row[positions.get(i)];
+				}
+				computed.add(getEvidenceSignaturePlan(observedInRow).getPosterior(values));
+			}
+			return computed;
+		});
+		
+		final CompiledNetwork network = bn.getCompiled();
+		final List<Assignment> res = new ArrayList<>(rows.length);
+		for (EvidenceSignaturePlan.Posterior posterior: posteriors) {
+			Assignment generated = new Assignment(network);
+			posterior.sample(rng, generated);
+			res.add(generated);
+		}
+		return res;
+	}
+	
 	/**
 	 * if this node is part of evidence, returns an array of double 
 	 * with 1. when compliant with evidence or else 0.
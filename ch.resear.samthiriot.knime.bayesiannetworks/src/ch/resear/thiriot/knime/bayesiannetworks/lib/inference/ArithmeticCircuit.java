@@ -0,0 +1,465 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * An arithmetic circuit computing the network polynomial of a Bayesian network,
+ * compiled by running a symbolic variable elimination: each entry of each factor
+ * is a node of the circuit instead of a number.
+ * The leaves are constants (the parameters of the CPTs) and indicators (one for each
+ * value of each variable), the other nodes are sums and products.
+ * The nodes are stored in flat arrays in topological order (children first).
+ *
+ * Evaluating the circuit upward with indicators set from evidence gives p(evidence);
+ * differentiating it downward gives for each indicator the probability p(x,evidence)
+ * so all the marginals are obtained in time linear in the size of the circuit.
+ *
+ * The circuit is immutable: it can be shared by several threads, each one providing
+ * its own arrays for values and derivatives to {@link #evaluate(int[], double[])} and
+ * {@link #differentiate(double[], double[])}, which allocate nothing.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class ArithmeticCircuit {
+
+	/**
+	 * Maximum count of nodes of a circuit; compiling a more complex
+	 * network fails.
+	 */
+	public static int MAX_NODES = 50000000;
+
+	private static final byte CONSTANT = 0;
+	private static final byte INDICATOR = 1;
+	private static final byte SUM = 2;
+	private static final byte PRODUCT = 3;
+
+	private final CategoricalBayesianNetwork bn;
+
+	private final NodeCategorical[] variables;
+	private final Map<NodeCategorical,Integer> variable2index;
+
+	/**
+	 * the indicators are the first nodes of the circuit: the indicator
+	 * of value v of variable i is node indicatorOffsets[i]+v
+	 */
+	private final int[] indicatorOffsets;
+	private final int[] indicatorVariable;
+
+	private final byte[] types;
+	private final double[] constants;
+	private final int[] childrenStart;
+	private final int[] children;
+	private final int root;
+
+	private ArithmeticCircuit(CategoricalBayesianNetwork bn, NodeCategorical[] variables, int[] indicatorOffsets, Builder builder, int root) {
+		this.bn = bn;
+		this.variables = variables;
+		this.variable2index = new HashMap<>(variables.length*2);
+		for (int i=0; i<variables.length; i++)
+			variable2index.put(variables[i], i);
+		this.indicatorOffsets = indicatorOffsets;
+		this.indicatorVariable = new int[indicatorOffsets[variables.length]];
+		for (int i=0; i<variables.length; i++)
+			Arrays.fill(indicatorVariable, indicatorOffsets[i], indicatorOffsets[i+1], i);
+		this.types = Arrays.copyOf(builder.types, builder.count);
+		this.constants = Arrays.copyOf(builder.constants, builder.count);
+		this.childrenStart = Arrays.copyOf(builder.childrenStart, builder.count+1);
+		this.children = Arrays.copyOf(builder.children, builder.countChildren);
+		this.root = root;
+	}
+
+	/**
+	 * Compiles the network using a greedy elimination order
+	 * @param bn
+	 * @return
+	 */
+	public static ArithmeticCircuit compile(CategoricalBayesianNetwork bn) {
+		return compile(bn, EliminationOrderGreedy.computeEliminationOrder(bn));
+	}
+
+	/**
+	 * Compiles the network by eliminating the variables in this order,
+	 * which should contain all the variables of the network.
+	 * @param bn
+	 * @param eliminationOrder
+	 * @return
+	 */
+	public static ArithmeticCircuit compile(CategoricalBayesianNetwork bn, List<NodeCategorical> eliminationOrder) {
+
+		NodeCategorical[] variables = bn.enumerateNodes().toArray(new NodeCategorical[0]);
+
+		if (!new LinkedHashSet<>(eliminationOrder).containsAll(Arrays.asList(variables)))
+			throw new IllegalArgumentException("the elimination order "+eliminationOrder+" should contain all the variables of the network");
+
+		Builder builder = new Builder();
+
+		// first the indicators
+		int[] indicatorOffsets = new int[variables.length+1];
+		for (int i=0; i<variables.length; i++) {
+			indicatorOffsets[i] = builder.count;
+			for (int v=0; v<variables[i].getDomainSize(); v++)
+				builder.add(INDICATOR, 0., null, 0);
+		}
+		indicatorOffsets[variables.length] = builder.count;
+		builder.zero = builder.constant(0.);
+		builder.one = builder.constant(1.);
+
+		// each CPT becomes a factor of the parameters multiplied by the indicators of its variable
+		List<SymbolicFactor> factors = new ArrayList<>(variables.length);
+		for (int i=0; i<variables.length; i++) {
+			NodeCategorical n = variables[i];
+			NodeCategorical[] parents = n.getParentsArray();
+			NodeCategorical[] vars = new NodeCategorical[parents.length+1];
+			vars[0] = n;
+			for (int p=0; p<parents.length; p++)
+				vars[parents.length-p] = parents[p];
+			double[] content = n.getContent();
+			int[] nodes = new int[content.length];
+			for (int j=0; j<content.length; j++)
+				nodes[j] = builder.product(builder.constant(content[j]), indicatorOffsets[i] + j % n.getDomainSize());
+			factors.add(new SymbolicFactor(vars, nodes));
+		}
+
+		// symbolic variable elimination
+		for (NodeCategorical n: eliminationOrder) {
+			List<SymbolicFactor> withN = new ArrayList<>();
+			for (Iterator<SymbolicFactor> it = factors.iterator(); it.hasNext(); ) {
+				SymbolicFactor f = it.next();
+				if (f.indexOf(n) >= 0) {
+					withN.add(f);
+					it.remove();
+				}
+			}
+			if (!withN.isEmpty())
+				factors.add(multiplyAndSumOut(builder, withN, n));
+		}
+
+		// what remains are scalars
+		int root = builder.one;
+		for (SymbolicFactor f: factors)
+			root = builder.product(root, f.nodes[0]);
+
+		return new ArithmeticCircuit(bn, variables, indicatorOffsets, builder, root);
+	}
+
+	/**
+	 * Multiplies these symbolic factors and sums out the variable n, walking the joint
+	 * instantiations with n varying the fastest
+	 */
+	private static SymbolicFactor multiplyAndSumOut(Builder builder, List<SymbolicFactor> factors, NodeCategorical n) {
+
+		LinkedHashSet<NodeCategorical> resultVariables = new LinkedHashSet<>();
+		for (SymbolicFactor f: factors)
+			resultVariables.addAll(Arrays.asList(f.variables));
+		resultVariables.remove(n);
+		List<NodeCategorical> walked = new ArrayList<>(resultVariables.size()+1);
+		walked.add(n);
+		walked.addAll(resultVariables);
+
+		long capacity = 1;
+		for (NodeCategorical v: resultVariables)
+			capacity *= v.getDomainSize();
+		if (capacity * n.getDomainSize() * factors.size() + builder.count > MAX_NODES)
+			throw new IllegalArgumentException("the network is too complex to be compiled as an arithmetic circuit of less than "+MAX_NODES+" nodes");
+
+		SymbolicFactor res = new SymbolicFactor(resultVariables.toArray(new NodeCategorical[resultVariables.size()]), new int[(int)capacity]);
+
+		final int countWalked = walked.size();
+		final int[] cards = new int[countWalked];
+		final int[][] factorStrides = new int[countWalked][factors.size()];
+		final int[] resStrides = new int[countWalked];
+		for (int l=0; l<countWalked; l++) {
+			final NodeCategorical v = walked.get(l);
+			cards[l] = v.getDomainSize();
+			for (int i=0; i<factors.size(); i++) {
+				final int idx = factors.get(i).indexOf(v);
+				factorStrides[l][i] = idx < 0 ? 0 : factors.get(i).strides[idx];
+			}
+			final int idx = res.indexOf(v);
+			resStrides[l] = idx < 0 ? 0 : res.strides[idx];
+		}
+
+		final int[] positions = new int[factors.size()];
+		final int[] assignment = new int[countWalked];
+		final int[] terms = new int[cards[0]];
+		int k = 0;
+		for (long c=0; c<capacity; c++) {
+
+			// one term of the sum for each value of n
+			for (int v=0; v<cards[0]; v++) {
+				int p = builder.one;
+				for (int i=0; i<positions.length; i++)
+					p = builder.product(p, factors.get(i).nodes[positions[i]+v*factorStrides[0][i]]);
+				terms[v] = p;
+			}
+			res.nodes[k] = builder.sum(terms);
+
+			// next instantiation of the result variables
+			for (int l=1; l<countWalked; l++) {
+				final int[] stridesL = factorStrides[l];
+				if (++assignment[l] < cards[l]) {
+					for (int i=0; i<positions.length; i++)
+						positions[i] += stridesL[i];
+					k += resStrides[l];
+					break;
+				}
+				assignment[l] = 0;
+				for (int i=0; i<positions.length; i++)
+					positions[i] -= (cards[l]-1)*stridesL[i];
+				k -= (cards[l]-1)*resStrides[l];
+			}
+		}
+
+		return res;
+	}
+
+	/**
+	 * A factor whose entries are nodes of the circuit
+	 */
+	private static final class SymbolicFactor {
+
+		private final NodeCategorical[] variables;
+		private final int[] strides;
+		private final int[] nodes;
+
+		private SymbolicFactor(NodeCategorical[] variables, int[] nodes) {
+			this.variables = variables;
+			this.nodes = nodes;
+			this.strides = new int[variables.length];
+			int stride = 1;
+			for (int i=0; i<variables.length; i++) {
+				strides[i] = stride;
+				stride *= variables[i].getDomainSize();
+			}
+		}
+
+		private int indexOf(NodeCategorical n) {
+			for (int i=0; i<variables.length; i++)
+				if (variables[i] == n)
+					return i;
+			return -1;
+		}
+	}
+
+	/**
+	 * Grows the arrays of the circuit during compilation, and simplifies the operations
+	 * on constants (so null parameters remove whole parts of the circuit).
+	 */
+	private static final class Builder {
+
+		private byte[] types = new byte[1024];
+		private double[] constants = new double[1024];
+		private int[] childrenStart = new int[1025];
+		private int[] children = new int[2048];
+		private int count = 0;
+		private int countChildren = 0;
+
+		private int zero = -1;
+		private int one = -1;
+
+		private final Map<Double,Integer> constant2node = new HashMap<>();
+		private final Map<Long,Integer> product2node = new HashMap<>();
+
+		private int add(byte type, double constant, int[] nodeChildren, int countNodeChildren) {
+			if (count == types.length) {
+				types = Arrays.copyOf(types, count*2);
+				constants = Arrays.copyOf(constants, count*2);
+				childrenStart = Arrays.copyOf(childrenStart, count*2+1);
+			}
+			while (countChildren + countNodeChildren > children.length)
+				children = Arrays.copyOf(children, children.length*2);
+			types[count] = type;
+			constants[count] = constant;
+			for (int i=0; i<countNodeChildren; i++)
+				children[countChildren++] = nodeChildren[i];
+			childrenStart[count+1] = countChildren;
+			return count++;
+		}
+
+		private int constant(double d) {
+			Integer res = constant2node.get(d);
+			if (res == null) {
+				res = add(CONSTANT, d, null, 0);
+				constant2node.put(d, res);
+			}
+			return res;
+		}
+
+		private int product(int a, int b) {
+			if (a == zero || b == zero)
+				return zero;
+			if (a == one)
+				return b;
+			if (b == one)
+				return a;
+			if (types[a] == CONSTANT && types[b] == CONSTANT)
+				return constant(constants[a]*constants[b]);
+			final long key = a < b ? ((long)a << 32) | b : ((long)b << 32) | a;
+			Integer res = product2node.get(key);
+			if (res == null) {
+				res = add(PRODUCT, 0., new int[] { a, b }, 2);
+				product2node.put(key, res);
+			}
+			return res;
+		}
+
+		private int sum(int[] terms) {
+			int[] nonZero = new int[terms.length];
+			int countNonZero = 0;
+			boolean allConstants = true;
+			double total = 0.;
+			for (int t: terms) {
+				if (t == zero)
+					continue;
+				nonZero[countNonZero++] = t;
+				allConstants = allConstants && types[t] == CONSTANT;
+				total += constants[t];
+			}
+			if (countNonZero == 0)
+				return zero;
+			if (countNonZero == 1)
+				return nonZero[0];
+			if (allConstants)
+				return constant(total);
+			return add(SUM, 0., nonZero, countNonZero);
+		}
+	}
+
+	public CategoricalBayesianNetwork getNetwork() {
+		return bn;
+	}
+
+	/**
+	 * returns the count of nodes of the circuit, which is the size of the arrays
+	 * to pass for values and derivatives.
+	 * @return
+	 */
+	public int size() {
+		return types.length;
+	}
+
+	/**
+	 * returns the count of edges of the circuit
+	 * @return
+	 */
+	public int countEdges() {
+		return children.length;
+	}
+
+	/**
+	 * returns the count of variables, which is the size of the evidence arrays
+	 * @return
+	 */
+	public int countVariables() {
+		return variables.length;
+	}
+
+	/**
+	 * returns the index of this variable in evidence arrays
+	 * @param n
+	 * @return
+	 */
+	public int indexOf(NodeCategorical n) {
+		Integer res = variable2index.get(n);
+		if (res == null)
+			throw new IllegalArgumentException("the variable "+n+" is not part of this circuit");
+		return res;
+	}
+
+	/**
+	 * returns the node of the indicator of the value of index v for the variable of index i
+	 * @param i
+	 * @param v
+	 * @return
+	 */
+	public int getIndicator(int i, int v) {
+		return indicatorOffsets[i] + v;
+	}
+
+	/**
+	 * Evaluates the circuit upward.
+	 * @param evidence for each variable, the index of its observed value or -1 if it is not observed
+	 * @param values an array of size {@link #size()} which will receive the value of each node
+	 * @return the probability of evidence
+	 */
+	public double evaluate(int[] evidence, double[] values) {
+
+		final int countIndicators = indicatorVariable.length;
+		for (int i=0; i<countIndicators; i++) {
+			final int observed = evidence[indicatorVariable[i]];
+			values[i] = observed < 0 || observed == i - indicatorOffsets[indicatorVariable[i]] ? 1. : 0.;
+		}
+
+		for (int i=countIndicators; i<types.length; i++) {
+			switch (types[i]) {
+			case CONSTANT:
+				values[i] = constants[i];
+				break;
+			case SUM: {
+				double total = 0.;
+				for (int c=childrenStart[i]; c<childrenStart[i+1]; c++)
+					total += values[children[c]];
+				values[i] = total;
+				break;
+			}
+			case PRODUCT: {
+				double p = 1.;
+				for (int c=childrenStart[i]; c<childrenStart[i+1]; c++)
+					p *= values[children[c]];
+				values[i] = p;
+				break;
+			}
+			default:
+				throw new RuntimeException("unexpected node type "+types[i]);
+			}
+		}
+
+		return values[root];
+	}
+
+	/**
+	 * Differentiates the circuit downward, after it was evaluated with {@link #evaluate(int[], double[])}.
+	 * The derivative of the indicator of value v of variable x is then p(x=v,evidence without x).
+	 * @param values the values computed by the evaluation
+	 * @param derivatives an array of size {@link #size()} which will receive the derivative of each node
+	 */
+	public void differentiate(double[] values, double[] derivatives) {
+
+		Arrays.fill(derivatives, 0.);
+		derivatives[root] = 1.;
+
+		for (int i=root; i>=indicatorVariable.length; i--) {
+			final double d = derivatives[i];
+			if (d == 0.)
+				continue;
+			switch (types[i]) {
+			case SUM:
+				for (int c=childrenStart[i]; c<childrenStart[i+1]; c++)
+					derivatives[children[c]] += d;
+				break;
+			case PRODUCT:
+				for (int c=childrenStart[i]; c<childrenStart[i+1]; c++) {
+					double others = d;
+					for (int o=childrenStart[i]; o<childrenStart[i+1]; o++)
+						if (o != c)
+							others *= values[children[o]];
+					derivatives[children[c]] += others;
+				}
+				break;
+			default:
+				// nothing to propagate from constants
+			}
+		}
+	}
+
+}
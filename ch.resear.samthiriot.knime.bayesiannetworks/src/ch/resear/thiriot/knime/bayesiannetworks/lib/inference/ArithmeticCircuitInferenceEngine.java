@@ -0,0 +1,120 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import cern.jet.random.engine.RandomEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * Inference engine based on an arithmetic circuit compiled once for the network.
+ * Each evidence set costs one upward evaluation of the circuit for p(evidence),
+ * and one downward differentiation (done only when posteriors are questioned)
+ * for the marginals of all the variables. Queries allocate nothing.
+ *
+ * The circuit is read-only: several engines, for instance one per thread, can share
+ * the same circuit by using {@link #ArithmeticCircuitInferenceEngine(ILogger, RandomEngine, CategoricalBayesianNetwork, ArithmeticCircuit)}.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public class ArithmeticCircuitInferenceEngine extends AbstractInferenceEngine {
+
+	public static final String ENGINE_NAME = "arithmetic circuit";
+
+	protected final ArithmeticCircuit circuit;
+
+	// the state of this engine for the current evidence
+	protected final int[] evidence;
+	protected final double[] values;
+	protected final double[] derivatives;
+	protected boolean differentiated = false;
+	protected double pEvidence = 1.;
+
+	public ArithmeticCircuitInferenceEngine(
+			ILogger logger,
+			RandomEngine random,
+			CategoricalBayesianNetwork bn) {
+
+		this(logger, random, bn, ArithmeticCircuit.compile(bn));
+
+		if (logger.isInfoEnabled())
+			logger.info("compiled an arithmetic circuit with "+circuit.size()+" nodes and "+circuit.countEdges()+" edges");
+	}
+
+	public ArithmeticCircuitInferenceEngine(
+			ILogger logger,
+			RandomEngine random,
+			CategoricalBayesianNetwork bn,
+			ArithmeticCircuit circuit) {
+
+		super(logger, random, bn);
+
+		if (circuit.getNetwork() != bn)
+			throw new IllegalArgumentException("this arithmetic circuit was compiled for another network");
+
+		this.circuit = circuit;
+		this.evidence = new int[circuit.countVariables()];
+		this.values = new double[circuit.size()];
+		this.derivatives = new double[circuit.size()];
+	}
+
+	public ArithmeticCircuit getCircuit() {
+		return circuit;
+	}
+
+	@Override
+	public void compute() {
+
+		Arrays.fill(evidence, -1);
+		for (Map.Entry<NodeCategorical,String> e: evidenceVariable2value.entrySet())
+			evidence[circuit.indexOf(e.getKey())] = e.getKey().getDomainIndex(e.getValue());
+
+		pEvidence = circuit.evaluate(evidence, values);
+		differentiated = false;
+
+		if (logger.isDebugEnabled())
+			logger.debug("probability for evidence p("+evidenceVariable2value+")="+pEvidence);
+
+		super.compute();
+	}
+
+	@Override
+	protected double retrieveConditionalProbability(NodeCategorical n, String s) {
+
+		if (dirty)
+			compute();
+
+		if (!differentiated) {
+			circuit.differentiate(values, derivatives);
+			differentiated = true;
+		}
+
+		final int i = circuit.indexOf(n);
+		final int v = n.getDomainIndex(s);
+
+		// the derivative is p(n=s, evidence without n)
+		if (evidence[i] >= 0)
+			return evidence[i] == v ? 1. : 0.;
+
+		return derivatives[circuit.getIndicator(i, v)] / pEvidence;
+	}
+
+	@Override
+	protected double[] retrieveConditionalProbability(NodeCategorical n) {
+
+		double[] res = new double[n.getDomainSize()];
+		for (int v=0; v<res.length; v++)
+			res[v] = retrieveConditionalProbability(n, n.getValueIndexed(v));
+		return res;
+	}
+
+	@Override
+	protected double computeProbabilityEvidence() {
+
+		return pEvidence;
+	}
+
+}
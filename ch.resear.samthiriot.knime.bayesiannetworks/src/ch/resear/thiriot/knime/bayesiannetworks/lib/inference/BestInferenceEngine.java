@@ -4,6 +4,7 @@ import java.util.Map;
 
 import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 
@@ -170,5 +171,30 @@ public final class BestInferenceEngine extends AbstractInferenceEngine {
 			
 	}
 	
-	
+	/**
+	 * Generates an instanciation of the network given current evidence into the assignment, 
+	 * with the same engine as {@link #sampleOne()}. 
+	 */
+	@Override
+	public void sampleOne(Assignment into) {
+		
+		if (evidenceVariable2value.isEmpty()) {
+			getSimpleConditionningInferenceEngine().sampleOne(into);
+			return;
+		}
+			
+		AbstractInferenceEngine ie = getEliminationInferenceEngine();
+		if (!ie.evidenceVariable2value.equals(evidenceVariable2value)) {
+			ie.clearEvidence();
+			ie.addEvidence(evidenceVariable2value);
+			ie.compute();
+		}
+		ie.sampleOne(into);
+	}
+
+	@Override
+	protected boolean usesEvidenceSignaturePlans() {
+		return true;
+	}
+
 }
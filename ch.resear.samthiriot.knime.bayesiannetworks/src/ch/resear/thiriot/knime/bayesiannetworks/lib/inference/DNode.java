@@ -20,7 +20,7 @@ import cern.jet.random.AbstractContinousDistribution;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.IteratorCategoricalVariables;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.DomainCursor;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 
 /**
@@ -233,7 +233,8 @@ public final class DNode {
 	 */
 	public DNode(NodeCategorical n) {
 		this.n = n;
-		this.f = n.asFactor();
+		// reduced in place by evidence, so the leaf has its own factor
+		this.f = n.getNetwork().getCompiled().getFactor(n);
 		this.bn = n.getNetwork();
 	}
 	
@@ -681,10 +682,11 @@ public final class DNode {
 			last = left;
 		}*/
 		
-		for (IteratorCategoricalVariables it = bn.iterateDomains(uninstantiated); it.hasNext(); ) {
+		// the same map is filled with each instantiation; the children copy what they cache
+		Map<NodeCategorical,String> instantiation = new HashMap<>(n2v);
+		for (DomainCursor cursor = new DomainCursor(uninstantiated); cursor.next(); ) {
 		
-			Map<NodeCategorical,String> instantiation = it.next();
-			instantiation.putAll(n2v);
+			cursor.putInto(instantiation);
 			
 			if (logger.isDebugEnabled())
 				logger.debug("Sum of "+instantiation+" over\n " + this);
@@ -885,12 +887,16 @@ public final class DNode {
 			random = random * this.n.getParents().size();
 			
 			double cumulated = 0.;
-			for (Map.Entry<Map<NodeCategorical,String>,Double> e: reduced.values.entrySet()) {
-				cumulated += e.getValue();
+			for (int i=0; i<reduced.size(); i++) {
+				final double p = reduced.getValue(i);
+				if (p == 0)
+					continue;
+				cumulated += p;
 				if (cumulated >= random) {
-					defined.putAll(e.getKey());
+					Map<NodeCategorical,String> picked = reduced.getInstantiation(i);
+					defined.putAll(picked);
 					if (logger.isDebugEnabled())
-						logger.debug("picked from CPT: " + e.getKey());
+						logger.debug("picked from CPT: " + picked);
 					return; // stop all !
 				} 
 			}
@@ -22,6 +22,8 @@ import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 // TODO sampleOne: maybe we can create bigger factors then randomly pick up a value with a roulette in the entire factor? 
 
 public class EliminationInferenceEngine extends AbstractInferenceEngine {
+
+	public static final String ENGINE_NAME = "variable elimination";
 	
 	//private Map<NodeCategorical,Factor> node2factorForEvidence = null;
 	private List<NodeCategorical> eliminationOrderForEvidence = null;
@@ -52,7 +54,7 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 		Set<Factor> res = new HashSet<>(vars.size());
 		
 		for (NodeCategorical n: vars) {
-			res.add(bn.getFactor(n));
+			res.add(getFactor(n));
 		}
 		
 		return res;
@@ -194,7 +196,7 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 
 		Map<NodeCategorical,Factor> node2factor = all.stream().collect(Collectors.toMap(
 																m->m, 
-																m->bn.getFactor(m).reduction(evidenceVariable2value)
+																m->getFactor(m).reduction(evidenceVariable2value)
 																));
 		
 		if (logger.isDebugEnabled())
@@ -204,46 +206,28 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 		for (NodeCategorical n: orderOtherVariables) {
 			if (logger.isDebugEnabled())
 				logger.debug("processing " + n);
-			Factor f = null;
-			
-			// product of all relevant factors
-			if (logger.isDebugEnabled())
-				logger.debug("product for " + f);
 			
+			// all the factors relevant for this variable
+			List<Factor> factorsWithN = new ArrayList<>();
 			for (NodeCategorical m: all ) { // bn.getNodes()
-				if (!node2factor.containsKey(m))
-					continue;
-				
 				Factor f2 = node2factor.get(m);
-				if (!f2.contains(n))
+				if (f2 == null || !f2.contains(n))
 					continue;
 				
-				if (f == null)
-					f = f2;
-				else {
-					if (logger.isDebugEnabled())
-						logger.debug("mult "+f.toStringLong()+" X " + f2.toStringLong());
-					f = f.multiply(f2);
-					if (logger.isDebugEnabled())
-						logger.debug("=" + f.toStringLong());
-				}
+				factorsWithN.add(f2);
+				biggestCPT = Math.max(biggestCPT, f2.size());
 				node2factor.remove(m);
 			}
 			
-			//if (f == null)
-			//	f = new Factor(bn, Collections.emptySet());
-			
-			if (f==null) {
+			if (factorsWithN.isEmpty()) {
 				// there was nothing to compute with this variable !
-				// let's remove it 
-				 //node2factor.remove(f); // TODO???
 			} else {
-				biggestCPT = Math.max(biggestCPT, f.size());
 				if (logger.isDebugEnabled())
-					logger.debug("sum "+n.name+" for " + f.toStringLong());
+					logger.debug("sum "+n.name+" for the product of " + factorsWithN.stream().map(f2 -> f2.toStringLong()).collect(Collectors.joining(" X ")));
 
-				// sum of all relevant factors
-				f = f.sumOut(n);
+				// product of all relevant factors, summed over n in the same pass 
+				// (so the product of all these factors is never stored)
+				Factor f = Factor.multiplyAndSumOut(factorsWithN, n);
 				if (logger.isDebugEnabled())
 					logger.debug("=" + f.toStringLong());
 
@@ -251,40 +235,15 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 				node2factor.put(n, f);
 			}
 			
-			
-			
-			
-			//node2factor.remove(n);
-			//logger.debug("put {} => {}", n, f);
-
-			//logger.debug("computed {}", f.toStringLong());
-
-			/*
-			for (NodeCategorical m: bn.getNodes()) {
-				Factor f2 = node2factor.get(m);
-				if (!f2.variables.contains(n))
-					continue;
-				//Factor novel = f2.multiply(f).sumOut(n);
-				logger.debug("put for {}: {}", m , f);
-				node2factor.put(m, f);
-			}*/
-			
 		}
 		
-		Factor res = new Factor(bn, Collections.emptySet());
-		for (Factor f: node2factor.values()) {
-			if (res == null)
-				res = f;
-			else {
-				//logger.debug(res.toStringLong());
-				if (logger.isDebugEnabled())
-					logger.debug("mult "+res+" X " + f.toStringLong());
-				res = res.multiply(f);
-				if (logger.isDebugEnabled())
-					logger.debug("= " + res.toStringLong());
-				
-			}
-		}
+		Factor res;
+		if (node2factor.isEmpty()) 
+			res = new Factor(bn, Collections.emptySet());
+		else 
+			res = Factor.multiplyAndSumOut(node2factor.values(), Collections.emptySet());
+		if (logger.isDebugEnabled())
+			logger.debug("= " + res.toStringLong());
 		
 		if (logger.isDebugEnabled())
 			logger.debug("perf: biggest CPT was "+biggestCPT+" with order " + orderOtherVariables);
@@ -304,11 +263,11 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 	protected Factor getFactorByEliminationFor(NodeCategorical n) {
 
 		Factor f = null;
-		List<Factor> factorsToProcessL = n.getAllAncestors().stream().map(m -> bn.getFactor(m)).collect(Collectors.toList());
+		List<Factor> factorsToProcessL = n.getAllAncestors().stream().map(m -> getFactor(m)).collect(Collectors.toList());
 		LinkedHashSet<Factor> factorsToProcess = new LinkedHashSet<>(
 														bn.enumerateNodes()
 															.stream()
-															.map(m -> bn.getFactor(m))
+															.map(m -> getFactor(m))
 															.collect(Collectors.toList())
 															);
 		factorsToProcess.retainAll(factorsToProcessL);
@@ -439,7 +398,7 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 				;
 		node2factorForEvidence = eliminationOrder.stream().collect(Collectors.toMap(
 				m->m, 
-				m->bn.getFactor(m).reduction(evidenceVariable2value)
+				m->getFactor(m).reduction(evidenceVariable2value)
 				));
 		*/
 		
@@ -483,7 +442,7 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 			// bn.getNodes()
 			factorsForEvidence = getEliminationOrderForEvidence().stream().collect(Collectors.toMap(
 					m->m, 
-					m->bn.getFactor(m).reduction(evidenceVariable2value)
+					m->getFactor(m).reduction(evidenceVariable2value)
 					));
 			
 			/*
@@ -561,7 +520,7 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 		Map<NodeCategorical,Factor> node2factor = new HashMap<>(getFactorsForEvidence());
 		/*eliminationOrder.stream().collect(Collectors.toMap(
 				m->m, 
-				m->bn.getFactor(m).reduction(evidenceVariable2value)
+				m->getFactor(m).reduction(evidenceVariable2value)
 				));
 		*/
 		
@@ -622,4 +581,9 @@ public class EliminationInferenceEngine extends AbstractInferenceEngine {
 		return node2attribute;
 	}
 
+	@Override
+	protected boolean usesEvidenceSignaturePlans() {
+		return true;
+	}
+
 }
@@ -0,0 +1,207 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.MoralGraph;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * Computes an elimination order by eliminating greedily the variable producing
+ * the smallest cluster (in count of entries), and then the fewest fill-in edges.
+ * Not optimal as {@link EliminationOrderBestFirstSearch}, but immediate even
+ * on large networks, so it suits the engines compiling the network once.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class EliminationOrderGreedy {
+
+	private EliminationOrderGreedy() {
+
+	}
+
+	/**
+	 * An undirected graph of variables from which variables are eliminated one after the other:
+	 * eliminating a variable connects all its neighboors with fill-in edges.
+	 * It is shared by the computation of orders, the estimation of their cost
+	 * and the triangulation of the junction tree.
+	 */
+	static final class EliminationGraph {
+
+		private final Map<NodeCategorical,Set<NodeCategorical>> adjacency = new LinkedHashMap<>();
+
+		/**
+		 * copies the moral graph of this network
+		 * @param bn
+		 */
+		EliminationGraph(CategoricalBayesianNetwork bn) {
+			MoralGraph moral = new MoralGraph(bn);
+			for (NodeCategorical n: bn.enumerateNodes())
+				adjacency.put(n, new LinkedHashSet<>(moral.getNeighboorVariables(n)));
+		}
+
+		/**
+		 * connects the variables of each factor
+		 * @param scopes the variables of each factor
+		 */
+		EliminationGraph(Collection<? extends Collection<NodeCategorical>> scopes) {
+			for (Collection<NodeCategorical> scope: scopes)
+				for (NodeCategorical n: scope) {
+					Set<NodeCategorical> adj = adjacency.computeIfAbsent(n, k -> new LinkedHashSet<>());
+					adj.addAll(scope);
+					adj.remove(n);
+				}
+		}
+
+		/**
+		 * returns the variables not eliminated yet
+		 * @return
+		 */
+		Set<NodeCategorical> getVariables() {
+			return adjacency.keySet();
+		}
+
+		Set<NodeCategorical> getNeighboors(NodeCategorical n) {
+			return adjacency.get(n);
+		}
+
+		/**
+		 * Removes this variable from the graph and connects its neighboors
+		 * @param variable
+		 * @return the neighboors of the variable when it was eliminated
+		 */
+		Set<NodeCategorical> eliminate(NodeCategorical variable) {
+			Set<NodeCategorical> neighboors = adjacency.remove(variable);
+			for (NodeCategorical n: neighboors) {
+				Set<NodeCategorical> adj = adjacency.get(n);
+				adj.remove(variable);
+				adj.addAll(neighboors);
+				adj.remove(n);
+			}
+			return neighboors;
+		}
+
+	}
+
+	public static List<NodeCategorical> computeEliminationOrder(
+			CategoricalBayesianNetwork bn) {
+
+		return computeEliminationOrder(LogIntoJavaLogger.getLogger(EliminationOrderGreedy.class), bn);
+	}
+
+	public static List<NodeCategorical> computeEliminationOrder(
+			ILogger logger,
+			CategoricalBayesianNetwork bn) {
+
+		EliminationGraph graph = new EliminationGraph(bn);
+
+		List<NodeCategorical> res = eliminateGreedily(graph, graph.getVariables());
+
+		if (logger.isDebugEnabled())
+			logger.debug("greedy elimination order: "+res);
+
+		return res;
+	}
+
+	/**
+	 * Computes a greedy order to eliminate only the given variables
+	 * from factors having these scopes; the other variables are kept.
+	 * @param scopes the variables of each factor
+	 * @param toEliminate
+	 * @return
+	 */
+	public static List<NodeCategorical> computeEliminationOrder(
+			Collection<? extends Collection<NodeCategorical>> scopes,
+			Set<NodeCategorical> toEliminate) {
+
+		return eliminateGreedily(new EliminationGraph(scopes), toEliminate);
+	}
+
+	/**
+	 * Eliminates greedily the candidates from this graph, updated with fill-in edges.
+	 * @param graph
+	 * @param candidates
+	 * @return
+	 */
+	private static List<NodeCategorical> eliminateGreedily(
+			EliminationGraph graph,
+			Set<NodeCategorical> candidates) {
+
+		List<NodeCategorical> res = new ArrayList<>(candidates.size());
+		Set<NodeCategorical> remaining = new LinkedHashSet<>(candidates);
+		remaining.retainAll(graph.getVariables());
+
+		while (!remaining.isEmpty()) {
+
+			// select the variable to eliminate
+			NodeCategorical best = null;
+			double bestSize = Double.MAX_VALUE;
+			int bestFill = Integer.MAX_VALUE;
+			for (NodeCategorical candidate: remaining) {
+				Set<NodeCategorical> neighboors = graph.getNeighboors(candidate);
+				double size = candidate.getDomainSize();
+				for (NodeCategorical n: neighboors)
+					size *= n.getDomainSize();
+				if (size > bestSize)
+					continue;
+				int fill = 0;
+				for (NodeCategorical n1: neighboors)
+					for (NodeCategorical n2: neighboors)
+						if (n1 != n2 && !graph.getNeighboors(n1).contains(n2))
+							fill++;
+				if (size < bestSize || fill < bestFill) {
+					best = candidate;
+					bestSize = size;
+					bestFill = fill;
+				}
+			}
+
+			graph.eliminate(best);
+			remaining.remove(best);
+			res.add(best);
+		}
+
+		return res;
+	}
+
+	/**
+	 * Estimates the cost of exact inference on this network as the total count
+	 * of entries of the clusters created by eliminating the variables in this order.
+	 * This is the order of magnitude of the operations of variable elimination,
+	 * and of the size of a junction tree or of an arithmetic circuit.
+	 * @param bn
+	 * @param order
+	 * @return
+	 */
+	public static double estimateCost(CategoricalBayesianNetwork bn, List<NodeCategorical> order) {
+
+		EliminationGraph graph = new EliminationGraph(bn);
+
+		double cost = 0.;
+		for (NodeCategorical best: order) {
+			double size = best.getDomainSize();
+			for (NodeCategorical n: graph.eliminate(best))
+				size *= n.getDomainSize();
+			cost += size;
+		}
+		return cost;
+	}
+
+	/**
+	 * Estimates the cost of exact inference on this network with a greedy elimination order.
+	 * @see #estimateCost(CategoricalBayesianNetwork, List)
+	 */
+	public static double estimateCost(CategoricalBayesianNetwork bn) {
+		return estimateCost(bn, computeEliminationOrder(bn));
+	}
+
+}
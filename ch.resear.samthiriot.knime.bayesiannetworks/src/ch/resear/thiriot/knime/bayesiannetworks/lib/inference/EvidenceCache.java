@@ -0,0 +1,206 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.apache.commons.collections4.map.LRUMap;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+
+/**
+ * A cache bounded in size which associates an evidence tuple, that is the indices of the values
+ * of the observed variables (-1 when missing), to a result such as p(evidence) or a posterior.
+ * The tuples used the least recently are forgotten first.
+ * The cache can also be bounded by the total weight of its values, such as their size in bytes:
+ * the values are then forgotten until the total weight is under the maximum, and a value heavier 
+ * than the maximum is not kept.
+ * Counts the hits and misses for monitoring.
+ *
+ * Not thread safe.
+ *
+ * @author Samuel Thiriot
+ *
+ * @param <V>
+ */
+public class EvidenceCache<V> {
+
+	/**
+	 * an evidence tuple as a key
+	 */
+	private static final class Tuple {
+
+		private final int[] values;
+		private final int hash;
+
+		public Tuple(int[] values) {
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Tuple))
+				return false;
+			Tuple other = (Tuple)obj;
+			return hash == other.hash && Arrays.equals(values, other.values);
+		}
+
+	}
+
+	private final LRUMap<Tuple,V> tuple2value;
+
+	private final ToLongFunction<? super V> weigher;
+	private final long maxWeight;
+	private long weight = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a cache keeping at most maxSize tuples
+	 * @param maxSize
+	 */
+	public EvidenceCache(int maxSize) {
+		this(maxSize, Long.MAX_VALUE, v -> 0);
+	}
+
+	/**
+	 * Creates a cache keeping at most maxSize tuples, and values weighting at most maxWeight in total
+	 * @param maxSize
+	 * @param maxWeight
+	 * @param weigher returns the weight of a value, for instance its estimated size in bytes
+	 */
+	public EvidenceCache(int maxSize, long maxWeight, ToLongFunction<? super V> weigher) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("the size of the cache should be at least 1");
+		if (maxWeight < 0)
+			throw new IllegalArgumentException("the weight of the cache cannot be negative");
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.tuple2value = new LRUMap<Tuple,V>(maxSize) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeLRU(LinkEntry<Tuple,V> entry) {
+				weight -= weigher.applyAsLong(entry.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * returns the value cached for this tuple, or null
+	 * @param tuple
+	 * @return
+	 */
+	public V get(int[] tuple) {
+		V value = tuple2value.get(new Tuple(tuple));
+		if (value == null)
+			misses++;
+		else
+			hits++;
+		return value;
+	}
+
+	public void put(int[] tuple, V value) {
+
+		final long w = weigher.applyAsLong(value);
+		if (w > maxWeight)
+			return;
+		final V previous = tuple2value.put(new Tuple(tuple.clone()), value);
+		if (previous != null)
+			weight -= weigher.applyAsLong(previous);
+		weight += w;
+		while (weight > maxWeight)
+			weight -= weigher.applyAsLong(tuple2value.remove(tuple2value.firstKey()));
+	}
+
+	/**
+	 * Returns the value of each row, either from the cache, or computed once for the
+	 * distinct tuples missing in the cache.
+	 * The rows which are the same as a missing tuple are counted as hits.
+	 * @param rows the evidence tuples
+	 * @param compute computes the values of the distinct missing tuples, in their order
+	 * @return the value of each row
+	 */
+	public List<V> getOrCompute(int[][] rows, Function<int[][],List<V>> compute) {
+
+		List<V> res = new ArrayList<>(rows.length);
+		Map<Tuple,List<Integer>> missing2rows = new HashMap<>();
+		List<int[]> missing = new ArrayList<>();
+		for (int r=0; r<rows.length; r++) {
+			final Tuple tuple = new Tuple(rows[r]);
+			V value = tuple2value.get(tuple);
+			res.add(value);
+			if (value != null) {
+				hits++;
+				continue;
+			}
+			List<Integer> same = missing2rows.get(tuple);
+			if (same == null) {
+				misses++;
+				same = new ArrayList<>();
+				missing2rows.put(tuple, same);
+				missing.add(rows[r]);
+			} else {
+				hits++;
+			}
+			same.add(r);
+		}
+
+		if (missing.isEmpty())
+			return res;
+
+		List<V> computed = compute.apply(missing.toArray(new int[missing.size()][]));
+		for (int j=0; j<missing.size(); j++) {
+			final V value = computed.get(j);
+			put(missing.get(j), value);
+			for (int r: missing2rows.get(new Tuple(missing.get(j))))
+				res.set(r, value);
+		}
+		return res;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public int size() {
+		return tuple2value.size();
+	}
+
+	/**
+	 * returns the total weight of the values kept
+	 * @return
+	 */
+	public long getWeight() {
+		return weight;
+	}
+
+	public void clear() {
+		tuple2value.clear();
+		weight = 0;
+	}
+
+	public void display(ILogger logger) {
+		logger.info("evidence cache: "+hits+" hits and "+misses+" misses, "
+				+size()+" tuples kept (max "+tuple2value.maxSize()+")"
+				+(maxWeight < Long.MAX_VALUE ? ", weighting "+weight+" (max "+maxWeight+")" : ""));
+	}
+
+}
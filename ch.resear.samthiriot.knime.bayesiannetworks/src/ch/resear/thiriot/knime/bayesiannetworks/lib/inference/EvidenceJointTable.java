@@ -0,0 +1,183 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * The joint probability of all the combinations of values of a few observed variables,
+ * computed once by one elimination down to these variables. The probability of the evidence
+ * of a row is then a lookup in the table. For the rows having missing values, the missing
+ * variables are summed out of the table; these marginal tables are computed once per
+ * combination of missing variables.
+ *
+ * Only relevant when the joint domain of the observed variables is small
+ * (see {@link #MAX_COMBINATIONS}).
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class EvidenceJointTable {
+
+	/**
+	 * the maximum count of combinations of values of the observed variables for which the table is worth computing
+	 */
+	public static double MAX_COMBINATIONS = 1e6;
+
+	private final NodeCategorical[] observed;
+	private final int[] cards;
+
+	// for each mask of the variables present in rows, the table over them;
+	// the table is indexed by the strides of the present variables
+	private final Map<BitSet,double[]> present2table = new HashMap<>();
+	private final Map<BitSet,int[]> present2strides = new HashMap<>();
+
+	private final BitSet all;
+
+	private EvidenceJointTable(NodeCategorical[] observed, double[] joint, int[] strides) {
+		this.observed = observed;
+		this.cards = new int[observed.length];
+		for (int i=0; i<observed.length; i++)
+			cards[i] = observed[i].getDomainSize();
+		this.all = new BitSet(observed.length);
+		all.set(0, observed.length);
+		present2table.put(all, joint);
+		present2strides.put(all, strides);
+	}
+
+	/**
+	 * returns the count of combinations of values of these variables
+	 * @param observed
+	 * @return
+	 */
+	public static double countCombinations(NodeCategorical[] observed) {
+		double count = 1;
+		for (NodeCategorical n: observed)
+			count *= n.getDomainSize();
+		return count;
+	}
+
+	/**
+	 * Computes the joint probability of the observed variables with this engine.
+	 * The engine should not have any evidence.
+	 * @param engine
+	 * @param observed
+	 * @return
+	 */
+	public static EvidenceJointTable compute(AbstractInferenceEngine engine, NodeCategorical[] observed) {
+
+		if (!engine.evidenceVariable2value.isEmpty())
+			throw new IllegalArgumentException("the joint probability of the observed variables should be computed without evidence");
+		if (new HashSet<>(Arrays.asList(observed)).size() != observed.length)
+			throw new IllegalArgumentException("a variable cannot be observed twice: "+Arrays.toString(observed));
+		if (countCombinations(observed) > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("too many combinations of values for "+Arrays.toString(observed));
+
+		Factor f = engine.computeFactorPosteriorMarginals(new HashSet<>(Arrays.asList(observed)));
+
+		int[] strides = new int[observed.length];
+		for (int i=0; i<observed.length; i++) {
+			strides[i] = (int)f.getStride(observed[i]);
+			if (strides[i] == 0 && observed[i].getDomainSize() > 1)
+				throw new IllegalStateException("the variable "+observed[i]+" is missing from the joint probability "+f);
+		}
+		return new EvidenceJointTable(observed.clone(), f.getDenseValues(), strides);
+	}
+
+	public NodeCategorical[] getObservedVariables() {
+		return observed.clone();
+	}
+
+	/**
+	 * returns the table over the variables present in the mask,
+	 * by summing out the other ones from the joint table
+	 */
+	private double[] getTable(BitSet present) {
+
+		double[] table = present2table.get(present);
+		if (table != null)
+			return table;
+
+		final int[] jointStrides = present2strides.get(all);
+		final double[] joint = present2table.get(all);
+
+		int[] strides = new int[observed.length];
+		int capacity = 1;
+		for (int i=0; i<observed.length; i++) {
+			if (present.get(i)) {
+				strides[i] = capacity;
+				capacity *= cards[i];
+			}
+		}
+		table = new double[capacity];
+
+		// walk every combination of the joint table
+		int[] counters = new int[observed.length];
+		int position = 0;
+		int result = 0;
+		final int count = joint.length;
+		for (int j=0; j<count; j++) {
+			table[result] += joint[position];
+			for (int i=0; i<observed.length; i++) {
+				counters[i]++;
+				position += jointStrides[i];
+				result += strides[i];
+				if (counters[i] < cards[i])
+					break;
+				counters[i] = 0;
+				position -= jointStrides[i] * cards[i];
+				result -= strides[i] * cards[i];
+			}
+		}
+		InferencePerformanceUtils.singleton.incAdditions(count);
+
+		present2table.put((BitSet)present.clone(), table);
+		present2strides.put((BitSet)present.clone(), strides);
+		return table;
+	}
+
+	/**
+	 * returns p(evidence) for these indices of values of the observed variables, -1 meaning missing
+	 * @param row
+	 * @return
+	 */
+	public double getProbabilityEvidence(int[] row) {
+
+		if (row.length != observed.length)
+			throw new IllegalArgumentException("expecting "+observed.length+" values for the observed variables "+Arrays.toString(observed));
+
+		BitSet present = all;
+		for (int i=0; i<row.length; i++) {
+			if (row[i] < 0) {
+				if (present == all)
+					present = (BitSet)all.clone();
+				present.clear(i);
+			}
+		}
+		final double[] table = getTable(present);
+		final int[] strides = present2strides.get(present);
+		int idx = 0;
+		for (int i=0; i<row.length; i++)
+			if (row[i] >= 0)
+				idx += row[i] * strides[i];
+		return table[idx];
+	}
+
+	/**
+	 * returns p(evidence) for each row of indices of values of the observed variables, -1 meaning missing
+	 * @param rows
+	 * @return
+	 */
+	public double[] getProbabilityEvidenceForRows(int[][] rows) {
+
+		final double[] res = new double[rows.length];
+		for (int r=0; r<rows.length; r++)
+			res[r] = getProbabilityEvidence(rows[r]);
+		return res;
+	}
+
+}
@@ -0,0 +1,724 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cern.jet.random.AbstractContinousDistribution;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * A variable elimination compiled for a signature of evidence, that is a set of observed
+ * variables whatever their values. The network is pruned to the observed variables and their
+ * ancestors; the other variables are eliminated in a greedy order. The eliminations
+ * which do not depend on the values of evidence are done once at compilation;
+ * the others are replayed for each assignment of the observed variables, using the
+ * cached reductions of the factors.
+ *
+ * A plan answers p(evidence), and samples the variables of the network knowing evidence
+ * by sampling backwards the eliminated variables then forwards the pruned ones.
+ * 
+ * Blocks of rows of evidence are evaluated together (see {@link #getProbabilityEvidence(int[][])}): 
+ * the factors are stored dense, the values of the observed variables of each row select
+ * a slice of the CPTs instead of reducing them, and each elimination is one pass over 
+ * the block of rows.
+ *
+ * A plan is compiled for the state of the network when it was compiled, that is one
+ * {@link CompiledNetwork}: it should be compiled again once the network changed.
+ *
+ * Plans are not thread safe.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class EvidenceSignaturePlan {
+
+	private final CategoricalBayesianNetwork bn;
+
+	/**
+	 * the state of the network this plan was compiled for
+	 */
+	private final CompiledNetwork network;
+
+	private final NodeCategorical[] observed;
+
+	// the slots of factors: first the CPTs of the relevant variables, then the result of each step
+	private final Factor[] template;
+	private final boolean[] dynamic;
+	private final int countInitial;
+
+	// the steps, one per variable eliminated
+	private final NodeCategorical[] stepVariable;
+	private final int[][] stepInputs;
+	private final Factor[] constantProducts;
+
+	// the slots remaining after all the eliminations, which depend on evidence, and the product of the others
+	private final int[] remaining;
+	private final double constant;
+
+	// the variables not relevant for evidence, in topological order
+	private final NodeCategorical[] pruned;
+
+	// the hidden variables of each slot
+	private final List<Set<NodeCategorical>> scopes;
+
+	/**
+	 * the count of rows evaluated together in one pass
+	 */
+	public static int BATCH_ROWS = 1024;
+	
+	/**
+	 * the maximum count of values stored for the result of an elimination over a batch of rows
+	 */
+	public static int MAX_BATCH_ENTRIES = 1 << 22;
+	
+	// the dense kernels, prepared on demand for the evaluation of batches
+	private boolean batchPrepared = false;
+	private int batchRows = 0;
+	private double[][] denseValues;		// for the slots computed at compilation and the CPTs depending on evidence
+	private int[][] observedStrides;	// for the CPTs depending on evidence, the stride of each observed variable
+	private int[] batchCapacity;		// for the results of eliminations depending on evidence
+	private int[][] stepCards;			// for each step, the domains of the eliminated variable then of the result
+	private int[][][] stepStrides;		// for each step and input, the stride of each variable walked
+	private int[][] stepResultStrides;	// for each step, the stride of each variable walked in the result
+
+	private EvidenceSignaturePlan(
+			CategoricalBayesianNetwork bn,
+			NodeCategorical[] observed,
+			List<Factor> initial,
+			Set<NodeCategorical> observedSet,
+			List<NodeCategorical> order,
+			NodeCategorical[] pruned) {
+
+		this.bn = bn;
+		this.network = bn.getCompiled();
+		this.observed = observed;
+		this.countInitial = initial.size();
+		this.pruned = pruned;
+
+		final int countSlots = countInitial + order.size();
+		this.template = new Factor[countSlots];
+		this.dynamic = new boolean[countSlots];
+		List<Set<NodeCategorical>> scopes = new ArrayList<>(countSlots);
+		List<Integer> pool = new ArrayList<>(countSlots);
+		for (int s=0; s<countInitial; s++) {
+			Factor f = initial.get(s);
+			template[s] = f;
+			Set<NodeCategorical> scope = new HashSet<>(f.getVariables());
+			dynamic[s] = scope.removeAll(observedSet);
+			scopes.add(scope);
+			pool.add(s);
+		}
+
+		// eliminate symbolically; compute the steps which do not depend on evidence
+		this.stepVariable = order.toArray(new NodeCategorical[order.size()]);
+		this.stepInputs = new int[stepVariable.length][];
+		this.constantProducts = new Factor[stepVariable.length];
+		for (int k=0; k<stepVariable.length; k++) {
+			final NodeCategorical n = stepVariable[k];
+			final int out = countInitial + k;
+			List<Integer> inputs = new ArrayList<>();
+			Set<NodeCategorical> scope = new HashSet<>();
+			boolean anyDynamic = false;
+			for (Integer s: pool) {
+				if (scopes.get(s).contains(n)) {
+					inputs.add(s);
+					scope.addAll(scopes.get(s));
+					anyDynamic |= dynamic[s];
+				}
+			}
+			pool.removeAll(inputs);
+			pool.add(out);
+			scope.remove(n);
+			scopes.add(scope);
+			stepInputs[k] = inputs.stream().mapToInt(Integer::intValue).toArray();
+			dynamic[out] = anyDynamic;
+			if (!anyDynamic) {
+				constantProducts[k] = Factor.multiplyAndSumOut(slots(template, stepInputs[k]), Collections.emptySet());
+				template[out] = constantProducts[k].sumOut(n);
+			}
+		}
+
+		// the constant factors remaining have no variable anymore
+		double c = 1.;
+		List<Integer> dynamicRemaining = new ArrayList<>();
+		for (Integer s: pool) {
+			if (dynamic[s])
+				dynamicRemaining.add(s);
+			else
+				c *= template[s].sum();
+		}
+		this.remaining = dynamicRemaining.stream().mapToInt(Integer::intValue).toArray();
+		this.constant = c;
+		this.scopes = scopes;
+	}
+
+	/**
+	 * Compiles a plan for the evidence on these variables
+	 * @param bn
+	 * @param observed
+	 * @return
+	 */
+	public static EvidenceSignaturePlan compile(CategoricalBayesianNetwork bn, NodeCategorical[] observed) {
+
+		Set<NodeCategorical> observedSet = new HashSet<>(Arrays.asList(observed));
+		if (observedSet.size() != observed.length)
+			throw new IllegalArgumentException("a variable cannot be observed twice: "+Arrays.toString(observed));
+
+		// the variables which are neither observed nor ancestors of observed variables
+		// sum to 1 and are pruned
+		Set<NodeCategorical> relevant = new HashSet<>(observedSet);
+		for (NodeCategorical n: observed)
+			relevant.addAll(bn.getAllAncestors(n));
+
+		final CompiledNetwork network = bn.getCompiled();
+		List<Factor> initial = new ArrayList<>(relevant.size());
+		List<Set<NodeCategorical>> scopes = new ArrayList<>(relevant.size());
+		List<NodeCategorical> pruned = new ArrayList<>();
+		for (NodeCategorical n: bn.enumerateNodes()) {
+			if (relevant.contains(n)) {
+				Factor f = network.getFactor(n);
+				initial.add(f);
+				Set<NodeCategorical> scope = new HashSet<>(f.getVariables());
+				scope.removeAll(observedSet);
+				scopes.add(scope);
+			} else {
+				pruned.add(n);
+			}
+		}
+
+		Set<NodeCategorical> hidden = new HashSet<>(relevant);
+		hidden.removeAll(observedSet);
+		List<NodeCategorical> order = EliminationOrderGreedy.computeEliminationOrder(scopes, hidden);
+		// variables related to no other one are not in the graph of scopes
+		for (NodeCategorical n: bn.enumerateNodes())
+			if (hidden.contains(n) && !order.contains(n))
+				order.add(n);
+
+		return new EvidenceSignaturePlan(
+				bn,
+				observed.clone(),
+				initial,
+				observedSet,
+				order,
+				pruned.toArray(new NodeCategorical[pruned.size()]));
+	}
+
+	/**
+	 * returns the state of the network this plan was compiled for
+	 * @return
+	 */
+	public CompiledNetwork getNetwork() {
+		return network;
+	}
+
+	public NodeCategorical[] getObservedVariables() {
+		return observed.clone();
+	}
+
+	/**
+	 * returns the count of eliminations which will be replayed for each evidence
+	 * @return
+	 */
+	public int countDynamicSteps() {
+		int count = 0;
+		for (int k=0; k<stepVariable.length; k++)
+			if (dynamic[countInitial+k])
+				count++;
+		return count;
+	}
+
+	private static List<Factor> slots(Factor[] slots, int[] indices) {
+		List<Factor> res = new ArrayList<>(indices.length);
+		for (int s: indices)
+			res.add(slots[s]);
+		return res;
+	}
+
+	/**
+	 * Fills the slots of factors for these values of the observed variables,
+	 * and keeps the products of the factors of each step if products is not null.
+	 */
+	private Factor[] replay(int[] values, Factor[] products) {
+
+		if (values.length != observed.length)
+			throw new IllegalArgumentException("expecting "+observed.length+" values for the observed variables "+Arrays.toString(observed));
+
+		Factor[] slots = template.clone();
+		for (int s=0; s<countInitial; s++) {
+			if (!dynamic[s])
+				continue;
+			Factor f = slots[s];
+			for (int i=0; i<observed.length; i++)
+				f = f.reduction(observed[i], observed[i].getValueIndexed(values[i]));
+			slots[s] = f;
+		}
+
+		for (int k=0; k<stepVariable.length; k++) {
+			final int out = countInitial + k;
+			if (!dynamic[out]) {
+				if (products != null)
+					products[k] = constantProducts[k];
+				continue;
+			}
+			List<Factor> inputs = slots(slots, stepInputs[k]);
+			if (products == null) {
+				slots[out] = Factor.multiplyAndSumOut(inputs, stepVariable[k]);
+			} else {
+				products[k] = Factor.multiplyAndSumOut(inputs, Collections.emptySet());
+				slots[out] = products[k].sumOut(stepVariable[k]);
+			}
+		}
+		return slots;
+	}
+
+	/**
+	 * returns p(evidence) for these indices of values of the observed variables
+	 * @param values
+	 * @return
+	 */
+	public double getProbabilityEvidence(int[] values) {
+
+		Factor[] slots = replay(values, null);
+		double p = constant;
+		for (int s: remaining)
+			p *= slots[s].sum();
+		return p;
+	}
+
+	/**
+	 * Builds the dense kernels for the evaluation of batches, 
+	 * or leaves batchRows to 0 if the factors are too big to be stored dense.
+	 */
+	private void prepareBatches() {
+		
+		batchPrepared = true;
+		
+		final int countSlots = template.length;
+		denseValues = new double[countSlots][];
+		observedStrides = new int[countSlots][];
+		batchCapacity = new int[countSlots];
+		
+		// the layout of the results of eliminations depending on evidence: the row varies the fastest, 
+		// then the variables of the scope
+		long maxCapacity = 1;
+		List<Map<NodeCategorical,Long>> layouts = new ArrayList<>(countSlots);
+		for (int s=0; s<countSlots; s++) {
+			Map<NodeCategorical,Long> layout = new HashMap<>();
+			layouts.add(layout);
+			if (template[s] != null) {
+				if (template[s].getCapacity() > MAX_BATCH_ENTRIES)
+					return;
+				for (NodeCategorical n: template[s].getVariables())
+					layout.put(n, template[s].getStride(n));
+				continue;
+			}
+			long capacity = 1;
+			for (NodeCategorical n: scopes.get(s)) {
+				layout.put(n, capacity);
+				capacity *= n.getDomainSize();
+			}
+			if (capacity > MAX_BATCH_ENTRIES)
+				return;
+			batchCapacity[s] = (int)capacity;
+			maxCapacity = Math.max(maxCapacity, capacity);
+		}
+		final int rows = (int)Math.max(1, Math.min(BATCH_ROWS, MAX_BATCH_ENTRIES / maxCapacity));
+		for (int s=countInitial; s<countSlots; s++)
+			if (template[s] == null)
+				for (Map.Entry<NodeCategorical,Long> e: layouts.get(s).entrySet())
+					e.setValue(e.getValue() * rows);
+		
+		for (int s=0; s<countSlots; s++) {
+			if (template[s] == null)
+				continue;
+			denseValues[s] = template[s].getDenseValues();
+			if (s < countInitial && dynamic[s]) {
+				observedStrides[s] = new int[observed.length];
+				for (int i=0; i<observed.length; i++)
+					observedStrides[s][i] = (int)template[s].getStride(observed[i]);
+			}
+		}
+		
+		stepCards = new int[stepVariable.length][];
+		stepStrides = new int[stepVariable.length][][];
+		stepResultStrides = new int[stepVariable.length][];
+		for (int k=0; k<stepVariable.length; k++) {
+			final int out = countInitial + k;
+			if (!dynamic[out])
+				continue;
+			List<NodeCategorical> walked = new ArrayList<>(scopes.get(out).size()+1);
+			walked.add(stepVariable[k]);
+			walked.addAll(scopes.get(out));
+			stepCards[k] = new int[walked.size()];
+			stepResultStrides[k] = new int[walked.size()];
+			stepStrides[k] = new int[stepInputs[k].length][walked.size()];
+			for (int l=0; l<walked.size(); l++) {
+				final NodeCategorical n = walked.get(l);
+				stepCards[k][l] = n.getDomainSize();
+				stepResultStrides[k][l] = layouts.get(out).getOrDefault(n, 0L).intValue();
+				for (int i=0; i<stepInputs[k].length; i++)
+					stepStrides[k][i][l] = layouts.get(stepInputs[k][i]).getOrDefault(n, 0L).intValue();
+			}
+		}
+		
+		batchRows = rows;
+	}
+	
+	/**
+	 * returns p(evidence) for each row of indices of values of the observed variables.
+	 * The rows are evaluated by blocks, each elimination being one pass over the block.
+	 * @param values for each row, the indices of the values of the observed variables
+	 * @return
+	 */
+	public double[] getProbabilityEvidence(int[][] values) {
+		
+		if (!batchPrepared)
+			prepareBatches();
+		
+		final double[] res = new double[values.length];
+		if (batchRows == 0) {
+			// too big to be evaluated dense
+			for (int r=0; r<values.length; r++)
+				res[r] = getProbabilityEvidence(values[r]);
+			return res;
+		}
+		
+		for (int first=0; first<values.length; first+=batchRows)
+			evaluateBatch(values, first, Math.min(values.length, first+batchRows), res);
+		
+		return res;
+	}
+	
+	/**
+	 * computes p(evidence) for the rows from first (inclusive) to last (exclusive)
+	 */
+	private void evaluateBatch(int[][] values, int first, int last, double[] res) {
+		
+		final int count = last - first;
+		final int countSlots = template.length;
+		final double[][] buffers = new double[countSlots][];
+		final int[][] bases = new int[countSlots][];
+		final int[] zeros = new int[count];
+		final int[] rowIndices = new int[count];
+		for (int r=0; r<count; r++)
+			rowIndices[r] = r;
+		
+		for (int s=0; s<countSlots; s++) {
+			if (s >= countInitial && dynamic[s]) {
+				// filled by the elimination
+				buffers[s] = new double[batchCapacity[s]*batchRows];
+				bases[s] = rowIndices;
+			} else if (s < countInitial && dynamic[s]) {
+				// the values of evidence select the slice of the CPT
+				buffers[s] = denseValues[s];
+				bases[s] = new int[count];
+				for (int r=0; r<count; r++) {
+					final int[] row = values[first+r];
+					if (row.length != observed.length)
+						throw new IllegalArgumentException("expecting "+observed.length+" values for the observed variables "+Arrays.toString(observed));
+					int base = 0;
+					for (int i=0; i<observed.length; i++)
+						base += row[i] * observedStrides[s][i];
+					bases[s][r] = base;
+				}
+			} else {
+				buffers[s] = denseValues[s];
+				bases[s] = zeros;
+			}
+		}
+		
+		for (int k=0; k<stepVariable.length; k++) {
+			final int out = countInitial + k;
+			if (dynamic[out])
+				eliminate(k, count, buffers, bases);
+		}
+		
+		for (int r=0; r<count; r++) {
+			double p = constant;
+			for (int s: remaining)
+				p *= buffers[s][bases[s][r]];
+			res[first+r] = p;
+		}
+	}
+	
+	/**
+	 * multiplies the inputs of step k and sums out its variable for the count first rows of the batch.
+	 * Walks every instantiation of the variables of the step, the eliminated one first; 
+	 * for each instantiation, the product is computed for every row. 
+	 */
+	private void eliminate(int k, int count, double[][] buffers, int[][] bases) {
+		
+		final int[] inputs = stepInputs[k];
+		final int countInputs = inputs.length;
+		final int[] cards = stepCards[k];
+		final int[][] strides = stepStrides[k];
+		final int[] resultStrides = stepResultStrides[k];
+		
+		final double[][] inputValues = new double[countInputs][];
+		final int[][] inputBases = new int[countInputs][];
+		for (int i=0; i<countInputs; i++) {
+			inputValues[i] = buffers[inputs[i]];
+			inputBases[i] = bases[inputs[i]];
+		}
+		final double[] result = buffers[countInitial + k];
+		
+		final int[] counters = new int[cards.length];
+		final int[] positions = new int[countInputs];
+		int position = 0;
+		long instantiations = 1;
+		for (int card: cards)
+			instantiations *= card;
+		
+		for (long j=0; j<instantiations; j++) {
+			
+			for (int r=0; r<count; r++) {
+				double p = inputValues[0][inputBases[0][r] + positions[0]];
+				for (int i=1; i<countInputs; i++)
+					p *= inputValues[i][inputBases[i][r] + positions[i]];
+				result[position + r] += p;
+			}
+			
+			// next instantiation
+			for (int l=0; l<cards.length; l++) {
+				counters[l]++;
+				position += resultStrides[l];
+				for (int i=0; i<countInputs; i++)
+					positions[i] += strides[i][l];
+				if (counters[l] < cards[l])
+					break;
+				counters[l] = 0;
+				position -= resultStrides[l] * cards[l];
+				for (int i=0; i<countInputs; i++)
+					positions[i] -= strides[i][l] * cards[l];
+			}
+		}
+		
+		if (InferencePerformanceUtils.singleton.enabled)
+			InferencePerformanceUtils.singleton.incMultiplications((int)Math.min(Integer.MAX_VALUE, instantiations * count * (countInputs-1)));
+	}
+	
+	/**
+	 * A table over a variable and the variables it depends on, from which the variable 
+	 * is drawn knowing the values of the others.
+	 */
+	private static final class SamplingTable {
+		
+		private final int target;
+		private final int card;
+		private final int targetStride;
+		private final int[] others;
+		private final int[] otherStrides;
+		private final double[] values;
+		
+		public SamplingTable(NodeCategorical n, Factor factor, Map<NodeCategorical,Integer> variable2index) {
+			this.target = variable2index.get(n);
+			this.card = n.getDomainSize();
+			this.targetStride = (int)factor.getStride(n);
+			List<NodeCategorical> dependencies = new ArrayList<>(factor.getVariables());
+			dependencies.remove(n);
+			this.others = new int[dependencies.size()];
+			this.otherStrides = new int[dependencies.size()];
+			for (int j=0; j<others.length; j++) {
+				others[j] = variable2index.get(dependencies.get(j));
+				otherStrides[j] = (int)factor.getStride(dependencies.get(j));
+			}
+			this.values = factor.getDenseValues();
+		}
+		
+		/**
+		 * picks a value with a probability proportional to the values of the table knowing the others
+		 */
+		public void draw(int[] assignment, double u) {
+			int offset = 0;
+			for (int j=0; j<others.length; j++)
+				offset += assignment[others[j]] * otherStrides[j];
+			double total = 0.;
+			for (int x=0; x<card; x++)
+				total += values[offset + x*targetStride];
+			double remaining = u * total;
+			int last = 0;
+			for (int x=0; x<card; x++) {
+				final double w = values[offset + x*targetStride];
+				if (w == 0.)
+					continue;
+				last = x;
+				remaining -= w;
+				if (remaining <= 0)
+					break;
+			}
+			assignment[target] = last;
+		}
+	}
+	
+	// the tables to sample the pruned variables forward, prepared on demand
+	private SamplingTable[] prunedTables = null;
+	
+	// the tables of the steps which do not depend on evidence, shared by all the posteriors
+	private SamplingTable[] constantTables = null;
+	
+	// the variables are sampled by their id in the compiled network
+	private Map<NodeCategorical,Integer> variable2index = null;
+	private NodeCategorical[] variables = null;
+	
+	private void prepareSampling() {
+		variables = network.getNodes();
+		variable2index = new HashMap<>(variables.length*2);
+		for (int i=0; i<variables.length; i++)
+			variable2index.put(variables[i], i);
+		prunedTables = new SamplingTable[pruned.length];
+		for (int j=0; j<pruned.length; j++)
+			prunedTables[j] = new SamplingTable(pruned[j], network.getFactor(pruned[j]), variable2index);
+		constantTables = new SamplingTable[stepVariable.length];
+		for (int k=0; k<stepVariable.length; k++)
+			if (!dynamic[countInitial+k])
+				constantTables[k] = new SamplingTable(stepVariable[k], constantProducts[k], variable2index);
+	}
+	
+	/**
+	 * The posterior distribution of the variables of the network knowing the values of the 
+	 * observed variables, as the tables to sample each eliminated variable backwards and each 
+	 * pruned variable forwards. Once built, drawing an individual does not run any inference. 
+	 * It only stores the tables of the steps which depend on evidence; the tables of the other
+	 * steps are shared by all the posteriors of the plan (see {@link #estimateBytes()}).
+	 */
+	public final class Posterior {
+		
+		private final int[] values;
+		private final double probabilityEvidence;
+		private final SamplingTable[] stepTables;
+		private final long cells;
+		
+		private Posterior(int[] values) {
+			
+			Factor[] products = new Factor[stepVariable.length];
+			Factor[] slots = replay(values, products);
+			double p = constant;
+			for (int s: remaining)
+				p *= slots[s].sum();
+			if (p == 0.)
+				throw new IllegalArgumentException("cannot generate if the probability of evidence is 0 - evidence is not possible");
+			
+			this.values = values.clone();
+			this.probabilityEvidence = p;
+			this.stepTables = new SamplingTable[stepVariable.length];
+			long cells = 0;
+			for (int k=0; k<stepVariable.length; k++) {
+				if (!dynamic[countInitial+k]) {
+					stepTables[k] = constantTables[k];
+					continue;
+				}
+				stepTables[k] = new SamplingTable(stepVariable[k], products[k], variable2index);
+				cells += stepTables[k].values.length;
+			}
+			this.cells = cells;
+		}
+		
+		public double getProbabilityEvidence() {
+			return probabilityEvidence;
+		}
+		
+		/**
+		 * returns an estimate of the memory used by this posterior only, in bytes, 
+		 * that is the tables of the steps depending on evidence
+		 * @return
+		 */
+		public long estimateBytes() {
+			return 8 * cells + 4 * values.length + 16 * stepTables.length + 64;
+		}
+		
+		/**
+		 * Samples all the variables of the network. 
+		 * The eliminated variables are sampled in the reverse order of elimination, each one from the
+		 * product of its step knowing the variables sampled before; then the pruned variables are sampled
+		 * forward from their CPT.
+		 * @param rng
+		 * @return
+		 */
+		public Map<NodeCategorical,String> sample(AbstractContinousDistribution rng) {
+			
+			int[] assignment = draw(rng);
+			
+			Map<NodeCategorical,String> res = new HashMap<>(variables.length*2);
+			for (int i=0; i<variables.length; i++)
+				res.put(variables[i], variables[i].getValueIndexed(assignment[i]));
+			return res;
+		}
+		
+		/**
+		 * Samples all the variables of the network into this assignment of the compiled network
+		 * @see #sample(AbstractContinousDistribution)
+		 * @param rng
+		 * @param into
+		 */
+		public void sample(AbstractContinousDistribution rng, Assignment into) {
+			
+			if (into.getNetwork() != network)
+				throw new IllegalArgumentException("the assignment does not belong the network compiled for this plan");
+			
+			int[] assignment = draw(rng);
+			for (int i=0; i<assignment.length; i++)
+				into.set(i, assignment[i]);
+		}
+		
+		private int[] draw(AbstractContinousDistribution rng) {
+			
+			int[] assignment = new int[variables.length];
+			for (int i=0; i<observed.length; i++)
+				assignment[variable2index.get(observed[i])] = values[i];
+			
+			// the other variables of the product of a step were eliminated later, so they are sampled already
+			for (int k=stepTables.length-1; k>=0; k--)
+				stepTables[k].draw(assignment, rng.nextDouble());
+			
+			for (SamplingTable table: prunedTables)
+				table.draw(assignment, rng.nextDouble());
+			
+			return assignment;
+		}
+	}
+	
+	/**
+	 * Builds the posterior of the network knowing these indices of values of the observed variables. 
+	 * @see Posterior
+	 * @param values
+	 * @return
+	 */
+	public Posterior getPosterior(int[] values) {
+		
+		if (prunedTables == null)
+			prepareSampling();
+		return new Posterior(values);
+	}
+	
+	/**
+	 * Samples all the variables of the network knowing these indices of values of the observed variables.
+	 * @see Posterior#sample(AbstractContinousDistribution)
+	 * @param values
+	 * @param rng
+	 * @return
+	 */
+	public Map<NodeCategorical,String> sample(int[] values, AbstractContinousDistribution rng) {
+		
+		return getPosterior(values).sample(rng);
+	}
+	
+	/**
+	 * Samples all the variables of the network knowing these indices of values of the observed variables, 
+	 * into this assignment of the compiled network. 
+	 * @see Posterior#sample(AbstractContinousDistribution, Assignment)
+	 */
+	public void sample(int[] values, AbstractContinousDistribution rng, Assignment into) {
+		
+		getPosterior(values).sample(rng, into);
+	}
+
+}
@@ -1,28 +1,41 @@
 package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.map.LRUMap;
 
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.IteratorCategoricalVariables;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 
 /**
- * A factor f over variables X is a function that maps each instantiation 
+ * A factor f over variables X is a function that maps each instantiation
  * x of variables X to a non-negative number.
- * 
- * TODO optimisation for storage ? use double[] instead of a map ? 
- * 
+ *
+ * Each instantiation is identified by a key computed with mixed-radix strides:
+ * the first variable of the ordered variables varies the fastest (stride 1),
+ * the stride of each next variable is the previous stride times the domain size
+ * of the previous variable.
+ *
+ * The values are stored either densely in a double[] indexed by these keys,
+ * or sparsely as the sorted keys of the non-zero values and a parallel double[].
+ * Many CPTs are mostly zeros (deterministic relationships); so after each operation
+ * the storage is chosen from the share of non-zero values (see {@link #SPARSE_DENSITY}).
+ * Dense kernels walk the indices as an odometer, sparse kernels sort the keys and merge them.
+ * None of them allocate per cell: an operation allocates its result and, for the sparse kernels,
+ * a few arrays of the size of its operands.
+ *
+ * A factor without any variable holds one unique value; a factor created without
+ * variables and no value is the unit factor (1), neutral for multiplication.
+ *
  * @author Samuel Thiriot
  *
  */
@@ -30,175 +43,473 @@ public final class Factor {
 
 	private final CategoricalBayesianNetwork bn;
 	protected final Set<NodeCategorical> variables;
-	
+
+	/**
+	 * the variables in the order of the strides
+	 */
+	private NodeCategorical[] orderedVariables;
+	/**
+	 * for each variable of orderedVariables, the offset to add to a key to go to the next value of this variable
+	 */
+	private long[] strides;
+	/**
+	 * count of instantiations of the variables
+	 */
+	private long capacity;
+	/**
+	 * the sorted keys of the non-zero values when sparse, null when dense
+	 */
+	private long[] keys = null;
+	/**
+	 * the values of the factor, indexed by key when dense, parallel to keys when sparse
+	 */
+	private double[] values;
+
 	public Set<NodeCategorical> getVariables() {
 		return variables;
 	}
 
-	protected final boolean keepZeros = false;
-	
-	public Map<Map<NodeCategorical,String>,Double> values = new HashMap<>();
-	
 	protected LRUMap<NodeCategorical,Map<String,Factor>> cacheReductionVariable2ValueToResult = null;
-	
+
 	public static int CACHE_LEVEL1 = 50;
 	public static int CACHE_LEVEL2 = 100;
-	
-	
+
+	/**
+	 * factors having less than this share of non-zero values are stored sparse
+	 */
+	public static double SPARSE_DENSITY = 0.3;
 	/**
-	 * Creates a factor over these variables
+	 * factors having less values than this are always stored dense
+	 */
+	public static int SPARSE_MIN_SIZE = 64;
+
+
+	/**
+	 * Creates a factor over these variables. All the values are initialized to 0,
+	 * but for a factor without variables which is the unit factor.
 	 * @param bn
 	 * @param variables
 	 */
 	public Factor(CategoricalBayesianNetwork bn, Set<NodeCategorical> variables) {
+		this(bn, variables.toArray(new NodeCategorical[variables.size()]));
+		if (orderedVariables.length == 0) {
+			this.values = new double[] { 1. };
+		} else if (capacity <= SPARSE_MIN_SIZE) {
+			this.values = new double[(int)capacity];
+		} else {
+			this.keys = new long[0];
+			this.values = new double[0];
+		}
+	}
+
+	/**
+	 * Creates a factor over these variables, the first one varying the fastest in the values.
+	 * The values array is used as is (no copy) and might be stored sparse if it is mostly zeros.
+	 * @param bn
+	 * @param orderedVariables
+	 * @param values
+	 */
+	public Factor(CategoricalBayesianNetwork bn, NodeCategorical[] orderedVariables, double[] values) {
+		this(bn, orderedVariables);
+		if (values.length != capacity)
+			throw new IllegalArgumentException("expecting "+capacity+" values for "+Arrays.toString(orderedVariables)+" but got "+values.length);
+		this.values = values;
+		adaptStorage();
+	}
+
+	/**
+	 * internal: creates a factor without any storage
+	 */
+	private Factor(CategoricalBayesianNetwork bn, NodeCategorical[] orderedVariables) {
 		this.bn = bn;
-		this.variables = variables;
+		this.variables = new HashSet<>(Arrays.asList(orderedVariables));
+		if (this.variables.size() != orderedVariables.length)
+			throw new IllegalArgumentException("a variable is defined twice in "+Arrays.toString(orderedVariables));
+		this.orderedVariables = orderedVariables;
+		this.strides = computeStrides(orderedVariables);
+		this.capacity = computeCapacity(orderedVariables, strides);
 	}
-	
+
+	private static long[] computeStrides(NodeCategorical[] vars) {
+		long[] res = new long[vars.length];
+		long stride = 1;
+		for (int i=0; i<vars.length; i++) {
+			res[i] = stride;
+			try {
+				stride = Math.multiplyExact(stride, vars[i].getDomainSize());
+			} catch (ArithmeticException e) {
+				throw new IllegalArgumentException("the factor over "+Arrays.toString(vars)+" has too many values to be indexed", e);
+			}
+		}
+		return res;
+	}
+
+	private static long computeCapacity(NodeCategorical[] vars, long[] strides) {
+		if (vars.length == 0)
+			return 1;
+		return Math.multiplyExact(strides[vars.length-1], vars[vars.length-1].getDomainSize());
+	}
+
+	private int indexOf(NodeCategorical n) {
+		for (int i=0; i<orderedVariables.length; i++)
+			if (orderedVariables[i] == n)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Returns the count of values of the factor, that is the product of the domain sizes of its variables
+	 * @return
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the offset between two successive values of this variable in the dense values
+	 * (see {@link #getDenseValues()}), or 0 if the variable is not in the factor.
+	 * @param n
+	 * @return
+	 */
+	public long getStride(NodeCategorical n) {
+		final int i = indexOf(n);
+		return i < 0 ? 0 : strides[i];
+	}
+
+	/**
+	 * Returns a copy of the values as a dense array, the first variable varying the fastest.
+	 * @return
+	 */
+	public double[] getDenseValues() {
+		if (capacity > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("the factor over "+Arrays.toString(orderedVariables)+" is too big to be stored dense");
+		if (keys == null)
+			return values.clone();
+		double[] res = new double[(int)capacity];
+		for (int i=0; i<keys.length; i++)
+			res[(int)keys[i]] = values[i];
+		return res;
+	}
+
+	/**
+	 * Returns true if the values are stored as sorted keys of the non-zero values.
+	 * @return
+	 */
+	public boolean isSparse() {
+		return keys != null;
+	}
+
+	/**
+	 * Switches the storage between dense and sparse depending on the share of non-zero values.
+	 */
+	private void adaptStorage() {
+
+		final boolean fitsDense = capacity <= Integer.MAX_VALUE - 8;
+
+		if (keys == null) {
+			if (capacity <= SPARSE_MIN_SIZE)
+				return;
+			int nonZeros = 0;
+			for (double d: values)
+				if (d != 0)
+					nonZeros++;
+			if (nonZeros >= SPARSE_DENSITY * capacity)
+				return;
+			// dense to sparse
+			long[] novelKeys = new long[nonZeros];
+			double[] novelValues = new double[nonZeros];
+			for (int i=0, j=0; i<values.length; i++) {
+				if (values[i] != 0) {
+					novelKeys[j] = i;
+					novelValues[j++] = values[i];
+				}
+			}
+			keys = novelKeys;
+			values = novelValues;
+		} else if (fitsDense && (capacity <= SPARSE_MIN_SIZE || keys.length >= SPARSE_DENSITY * capacity)) {
+			// sparse to dense
+			double[] novelValues = new double[(int)capacity];
+			for (int i=0; i<keys.length; i++)
+				novelValues[(int)keys[i]] = values[i];
+			keys = null;
+			values = novelValues;
+		}
+	}
+
+	/**
+	 * Returns the key of the value at this position, which is the position itself in a dense storage.
+	 * @param position
+	 * @return
+	 */
+	private long keyAt(int position) {
+		return keys == null ? position : keys[position];
+	}
+
+	/**
+	 * Returns the position in values for this key, or -1 if the value is 0
+	 * @param key
+	 * @return
+	 */
+	private int positionOf(long key) {
+		if (keys == null)
+			return (int)key;
+		int res = Arrays.binarySearch(keys, key);
+		return res < 0 ? -1 : res;
+	}
+
+	/**
+	 * Returns the permutation of [0,n[ which sorts sortKeys (stable merge sort)
+	 * @param sortKeys
+	 * @param n
+	 * @return
+	 */
+	private static int[] sortedPermutation(long[] sortKeys, int n) {
+		int[] perm = new int[n];
+		for (int i=0; i<n; i++)
+			perm[i] = i;
+		int[] buffer = new int[n];
+		for (int width=1; width<n; width*=2) {
+			for (int lo=0; lo<n-width; lo+=2*width) {
+				final int mid = lo+width;
+				final int hi = Math.min(lo+2*width, n);
+				// skip the already sorted runs
+				if (sortKeys[perm[mid-1]] <= sortKeys[perm[mid]])
+					continue;
+				int i=lo, j=mid, k=lo;
+				while (i < mid && j < hi)
+					buffer[k++] = sortKeys[perm[i]] <= sortKeys[perm[j]] ? perm[i++] : perm[j++];
+				while (i < mid)
+					buffer[k++] = perm[i++];
+				while (j < hi)
+					buffer[k++] = perm[j++];
+				System.arraycopy(buffer, lo, perm, lo, hi-lo);
+			}
+		}
+		return perm;
+	}
+
+	/**
+	 * Stores as sparse the values for these unsorted keys, summing the values having the same key
+	 */
+	private void setSparseFromUnsorted(long[] unsortedKeys, double[] unsortedValues, int n) {
+		final int[] perm = sortedPermutation(unsortedKeys, n);
+		long[] novelKeys = new long[n];
+		double[] novelValues = new double[n];
+		int count = 0;
+		for (int i=0; i<n; i++) {
+			final long key = unsortedKeys[perm[i]];
+			final double value = unsortedValues[perm[i]];
+			if (count > 0 && novelKeys[count-1] == key) {
+				novelValues[count-1] += value;
+			} else {
+				novelKeys[count] = key;
+				novelValues[count++] = value;
+			}
+		}
+		keys = count == n ? novelKeys : Arrays.copyOf(novelKeys, count);
+		values = count == n ? novelValues : Arrays.copyOf(novelValues, count);
+	}
+
 	public boolean hasUniqueValue() {
-		return variables.isEmpty() && values.size()==1;
+		return variables.isEmpty();
 	}
-	
+
 	/**
-	 * Returns the unique value for a factor which as no variable, 
-	 * else throws a 
+	 * Returns the unique value for a factor which as no variable,
+	 * else throws an IllegalArgumentException
 	 * @return
 	 */
 	public double getUniqueValue() {
-		
+
 		if (!variables.isEmpty())
 			throw new IllegalArgumentException("Factor "+this+" has more than one variable, cannot return a unique value.");
-		
-		try {
-			return values.values().iterator().next();
-		} catch (NoSuchElementException e) {
-			throw new RuntimeException("error whilst getting the result of the operation; there are "+values.size()+" values",e);
-		}
+
+		return values.length == 0 ? 0. : values[0];
 	}
-	
+
 	/**
 	 * Clones a factor.
 	 */
 	public Factor clone() {
-		Factor res = new Factor(bn, new HashSet<>(variables));
-		for (Map.Entry<Map<NodeCategorical,String>,Double> e: values.entrySet()) {
-			res.setFactor(e.getKey(), e.getValue());
-		}
+		Factor res = new Factor(bn, orderedVariables.clone());
+		res.keys = keys == null ? null : keys.clone();
+		res.values = values.clone();
 		return res;
 	}
-	
+
+	/**
+	 * Returns the sum of the values. The unit factor sums to 1; a factor 
+	 * whose values are all 0, such as a sparse factor without any value left, sums to 0.
+	 * (When the values were stored in a map, an empty map was taken as the unit factor 
+	 * and summed to 1.)
+	 * @return
+	 */
 	public double sum() {
-		
-		// convention
-		if (values.isEmpty()) {
-			return 1.0;
-		}
-	
+
 		double total = 0;
-		for (Double d: values.values()) {
+		for (double d: values) {
 			total += d;
 		}
+		InferencePerformanceUtils.singleton.incAdditions(values.length);
 		return total;
 	}
-	
+
+	/**
+	 * Returns the count of values stored in this factor; when dense
+	 * this is the product of the domain sizes of its variables, when
+	 * sparse the count of non-zero values.
+	 * @return
+	 */
 	public final int size() {
-		return values.size();
+		return values.length;
 	}
-	
+
+	/**
+	 * Returns the value stored at this position (see {@link #getInstantiation(int)})
+	 * @param idx
+	 * @return
+	 */
+	public final double getValue(int idx) {
+		return values[idx];
+	}
+
+	/**
+	 * Returns the values of the variables for the value stored at this position.
+	 * @param idx
+	 * @return
+	 */
+	public Map<NodeCategorical,String> getInstantiation(int idx) {
+		long key = keys == null ? idx : keys[idx];
+		Map<NodeCategorical,String> res = new HashMap<>(orderedVariables.length*2);
+		for (int i=orderedVariables.length-1; i>=0; i--) {
+			res.put(orderedVariables[i], orderedVariables[i].getValueIndexed((int)(key / strides[i])));
+			key = key % strides[i];
+		}
+		return res;
+	}
+
 	/**
 	 * Reduces this factor by removing any reference to nEvidence: keeps only the lines
-	 * compliant with nEvidence=vEvidence and removes the other ones. 
+	 * compliant with nEvidence=vEvidence and removes the other ones.
 	 * after this operation there is one less variables in the factor.
 	 * @param nEvidence
 	 * @param vEvidence
 	 */
 	public void reduce(NodeCategorical nEvidence, String vEvidence) {
-		
+
 		// quick exit
-		if (!variables.contains(nEvidence))
+		final int p = indexOf(nEvidence);
+		if (p < 0)
 			return;
-		
-		// for each value in our map...
-		
-		Map<Map<NodeCategorical,String>,Double> novelvalues = new HashMap<>(values.size()/nEvidence.getDomainSize());
-		
-		for (Iterator<Map.Entry<Map<NodeCategorical,String>,Double>> itValues = values.entrySet().iterator(); itValues.hasNext();) {
-			
-			Map.Entry<Map<NodeCategorical,String>,Double> eValues = itValues.next();
-			
-			Map<NodeCategorical,String> keys = eValues.getKey();
-			Double p = eValues.getValue();
-			
-			String vLine = keys.get(nEvidence);
-			if (vLine.equals(vEvidence)) {
-				// keep it !
-				Map<NodeCategorical,String> n2s = new HashMap<>(keys);
-				n2s.remove(nEvidence);
-				Double previousp = novelvalues.put(n2s, p);
-
-				if (previousp != null) {
-					// oops, we knew this one already. Let's sum instead. 
-					novelvalues.put(n2s, p+previousp);
-					InferencePerformanceUtils.singleton.incAdditions();
+
+		NodeCategorical[] novelVariables = new NodeCategorical[orderedVariables.length-1];
+		int[] inStrides = new int[novelVariables.length];
+		for (int i=0, j=0; i<orderedVariables.length; i++) {
+			if (i == p)
+				continue;
+			novelVariables[j] = orderedVariables[i];
+			inStrides[j] = (int)strides[i];
+			j++;
+		}
+		final long stride = strides[p];
+		final int card = nEvidence.getDomainSize();
+		final long novelCapacity = capacity / card;
+
+		// a value out of the domain of the variable is compliant with no line
+		final int v = nEvidence.indexOf(vEvidence);
+
+		if (keys != null) {
+			// keep the keys having the right digit for the variable;
+			// removing this digit keeps them sorted
+			long[] novelKeys = new long[keys.length];
+			double[] novelValues = new double[keys.length];
+			int count = 0;
+			if (v >= 0) {
+				for (int i=0; i<keys.length; i++) {
+					final long key = keys[i];
+					if ((key / stride) % card != v)
+						continue;
+					novelKeys[count] = key % stride + (key / (stride*card)) * stride;
+					novelValues[count++] = values[i];
 				}
-			} else {
-				// in fact we want to drop that one 
 			}
-			
-			
+			keys = Arrays.copyOf(novelKeys, count);
+			values = Arrays.copyOf(novelValues, count);
+		} else {
+			double[] novelValues = new double[(int)novelCapacity];
+			if (v >= 0) {
+				// walk the remaining variables as an odometer,
+				// starting in the source at the slice of the evidence
+				int j = v * (int)stride;
+				final int[] assignment = new int[novelVariables.length];
+				for (int i=0; i<novelValues.length; i++) {
+					novelValues[i] = values[j];
+					for (int l=0; l<assignment.length; l++) {
+						if (++assignment[l] < novelVariables[l].getDomainSize()) {
+							j += inStrides[l];
+							break;
+						}
+						assignment[l] = 0;
+						j -= (novelVariables[l].getDomainSize()-1)*inStrides[l];
+					}
+				}
+			}
+			values = novelValues;
 		}
-		
+
 		variables.remove(nEvidence);
-		values = novelvalues;
+		orderedVariables = novelVariables;
+		strides = computeStrides(novelVariables);
+		capacity = novelCapacity;
+		cacheReductionVariable2ValueToResult = null;
+		adaptStorage();
 
 	}
-	
+
 	/**
-	 * reduces this factor given evidence, that is replaces values with 0 for each 
+	 * reduces this factor given evidence, that is replaces values with 0 for each
 	 * combination of values which is not compliant with evidence
-	 * 
+	 *
 	 */
 	public void reduce(Map<NodeCategorical,String> evidence) {
-		
+
 		for (Map.Entry<NodeCategorical,String> e: evidence.entrySet()) {
 			reduce(e.getKey(), e.getValue());
-			
+
 		}
-	
+
 	}
-	
+
 	/**
-	 * computes a novel factor which is a reduction of this factor. 
+	 * computes a novel factor which is a reduction of this factor.
 	 * @param evidence
 	 * @return
 	 */
 	public Factor reduction(Map<NodeCategorical,String> evidence) {
-		// TODO optimization: if the evidence is not related to us, we might return us. 
-		//System.err.println("factor before reduction: "+this.values);
+		// TODO optimization: if the evidence is not related to us, we might return us.
 		Factor res = this.clone();
 		res.reduce(evidence);
-		//System.err.println("factor after reduction: "+res.values);
 		return res;
 	}
-	
+
 	public Factor reduction(NodeCategorical n, String s) {
-		
+
 		// optimisation: in case we are not concerned by this variable, return this
 		if (!variables.contains(n))
 			return this;
-		
+
 		if (cacheReductionVariable2ValueToResult == null)
 			cacheReductionVariable2ValueToResult = new LRUMap<>(Math.min(CACHE_LEVEL1,variables.size()));
-		
+
 		Map<String,Factor> cacheForVariable = cacheReductionVariable2ValueToResult.get(n);
-		
+
 		if (cacheForVariable == null) {
 			cacheForVariable = new LRUMap<>(Math.min(CACHE_LEVEL2, n.getDomainSize()));
 			cacheReductionVariable2ValueToResult.put(n, cacheForVariable);
 		}
-		
+
 		Factor res = cacheForVariable.get(s);
-		
+
 		if (res == null) {
 			InferencePerformanceUtils.singleton.incCacheMiss();
 			res = this.clone();
@@ -207,176 +518,421 @@ public final class Factor {
 		} else {
 			InferencePerformanceUtils.singleton.incCacheHit();
 		}
-		
+
 		return res;
-		
-		// TODO optimization: if the evidence is not related to us, we might return us. 
-		//Factor res = this.clone();
-		//res.reduce(n, s);
-		//return res;
-	}
-	
-	public void setFactor(Map<NodeCategorical,String> instanciations, double p) {
-		if (!keepZeros && p==0)
-			values.remove(instanciations);
-		else 
-			values.put(instanciations, p);	
 	}
-	
+
 	/**
-	 * Gets the value of the factor for a given set of instantiations (values for variables)
+	 * Returns the key for this instantiation, which should
+	 * define a value for each and every variable of this factor
 	 * @param instantiations
 	 * @return
 	 */
-	public double get(Map<NodeCategorical,String> instantiations) {
-		
-		// are parameters valid ? 
+	private long getKey(Map<NodeCategorical,String> instantiations) {
+
+		// are parameters valid ?
 		if (!variables.containsAll(instantiations.keySet())) {
 			throw new IllegalArgumentException("invalid variables "+instantiations.keySet()+" for factor "+this);
 		}
-		
-		double p;
-		
-		if (instantiations.size() == variables.size()) {
-			// perfect solution: just read one single value in this factor 
-			
-			// get it 
-			Double v = values.get(instantiations);
-			
-			if (v==null & !keepZeros)
-				// the fact we red nothing means this is 0.
-				p=0.;
-			else 
-				p = v;
-				
-		} else {
+		if (instantiations.size() != variables.size()) {
 			throw new IllegalArgumentException("not enough coordinates to get factor data");
-			/*
-			// seems like we don't have all the values required for reading our index ! 
-			// let's sum over it 
-			double total = 0.;
-			for (IteratorCategoricalVariables itDomain = bn.iterateDomains(variables.stream().filter(v -> !instantiations.containsKey(v)).collect(Collectors.toSet())); itDomain.hasNext(); ) {
-				Map<NodeCategorical,String> n2v = itDomain.next();
-				n2v.putAll(instantiations);
-				Double read = values.get(n2v);
-				if (read != null) {
-					total += read; // notice we ignore null lines here... for some reason...
-					if (total >= 1)
-						break;
-				}
-			}
-			p = total;*/
 		}
-		
-		
-		// compute on demand
-		//p = bn.jointProbability(instantiations, Collections.emptyMap());
-		//values.put(instantiations, p);
-		
-		return p;
+
+		long key = 0;
+		for (int i=0; i<orderedVariables.length; i++) {
+			key += orderedVariables[i].getDomainIndex(instantiations.get(orderedVariables[i])) * strides[i];
+		}
+		return key;
+	}
+
+	public void setFactor(Map<NodeCategorical,String> instanciations, double p) {
+		final long key = getKey(instanciations);
+		if (keys == null) {
+			values[(int)key] = p;
+			return;
+		}
+		int pos = Arrays.binarySearch(keys, key);
+		if (pos >= 0) {
+			values[pos] = p;
+		} else if (p != 0) {
+			// insert the novel key at its place
+			pos = -pos-1;
+			long[] novelKeys = new long[keys.length+1];
+			double[] novelValues = new double[keys.length+1];
+			System.arraycopy(keys, 0, novelKeys, 0, pos);
+			System.arraycopy(values, 0, novelValues, 0, pos);
+			novelKeys[pos] = key;
+			novelValues[pos] = p;
+			System.arraycopy(keys, pos, novelKeys, pos+1, keys.length-pos);
+			System.arraycopy(values, pos, novelValues, pos+1, keys.length-pos);
+			keys = novelKeys;
+			values = novelValues;
+		}
 	}
-	
+
+	/**
+	 * Gets the value of the factor for a given set of instantiations (values for variables)
+	 * @param instantiations
+	 * @return
+	 */
+	public double get(Map<NodeCategorical,String> instantiations) {
+		final int pos = positionOf(getKey(instantiations));
+		return pos < 0 ? 0. : values[pos];
+	}
+
 	public double get(String... sss) {
 		return this.get(bn.toNodeAndValue(this.variables, sss));
 	}
 
-	
+
 	public Factor sumOut(String varName) {
 		return this.sumOut(bn.getVariable(varName));
 	}
-	
+
 	public Factor sumOut(NodeCategorical var) {
-		
+
+		final int p = indexOf(var);
+		if (p < 0)
+			throw new IllegalArgumentException("cannot sum out "+var+" which is not a variable of "+this);
+
 		// the novel factor will target all the values but the one we sum
-		Set<NodeCategorical> novelSet = new HashSet<>(variables);
-		novelSet.remove(var);
-		
-		Factor res = new Factor(bn, novelSet);
-		
-		for (IteratorCategoricalVariables it = bn.iterateDomains(novelSet); it.hasNext();) {
-			Map<NodeCategorical,String> v2n = it.next();
-			double d = 0;
-			for (String v: var.getDomain()) {
-				v2n.put(var, v);
-				d += get(v2n);
-				InferencePerformanceUtils.singleton.incAdditions();
+		NodeCategorical[] novelVariables = new NodeCategorical[orderedVariables.length-1];
+		for (int i=0, j=0; i<orderedVariables.length; i++) {
+			if (i != p)
+				novelVariables[j++] = orderedVariables[i];
+		}
+		Factor res = new Factor(bn, novelVariables);
+
+		if (keys != null) {
+			// drop the digit of the variable from every key, then sort and merge the equal keys
+			final long stride = strides[p];
+			final int card = var.getDomainSize();
+			long[] novelKeys = new long[keys.length];
+			for (int i=0; i<keys.length; i++) {
+				novelKeys[i] = keys[i] % stride + (keys[i] / (stride*card)) * stride;
+			}
+			res.setSparseFromUnsorted(novelKeys, values, keys.length);
+		} else {
+
+			// for each of our variables, the stride in the result (0 for the summed one)
+			final int[] outStrides = new int[orderedVariables.length];
+			for (int i=0, j=0; i<orderedVariables.length; i++) {
+				if (i != p)
+					outStrides[i] = (int)res.strides[j++];
+			}
+
+			// walk our values sequentially, and accumulate them in the result
+			final double[] out = new double[(int)res.capacity];
+			final int[] assignment = new int[orderedVariables.length];
+			int k = 0;
+			for (int i=0; i<values.length; i++) {
+				out[k] += values[i];
+				for (int l=0; l<assignment.length; l++) {
+					if (++assignment[l] < orderedVariables[l].getDomainSize()) {
+						k += outStrides[l];
+						break;
+					}
+					assignment[l] = 0;
+					k -= (orderedVariables[l].getDomainSize()-1)*outStrides[l];
+				}
 			}
-			v2n.remove(var);
-			res.setFactor(v2n, d);
+			res.values = out;
 		}
-		
+		InferencePerformanceUtils.singleton.incAdditions(values.length);
+		res.adaptStorage();
+
 		return res;
 	}
-	
+
 	public Factor multiply(Factor f) {
-		
+
 		if (!bn.getNodes().containsAll(f.variables))
 			throw new IllegalArgumentException("the other factor variables do not all belong this network");
-		
-		// special case of the empty factor: it is invariant, so we can return the other factor 
-		if (this.values.isEmpty())
-			return f.clone();
-		if (f.values.isEmpty())
-			return this.clone();
-		
-		Set<NodeCategorical> vvs = new HashSet<>(this.variables);
-		vvs.addAll(f.variables);
-		
-		Set<NodeCategorical> varsDiff = new HashSet<>(f.variables);
-		varsDiff.removeAll(this.variables);
-		
-		Factor res = new Factor(bn, vvs);
-		
-		for (IteratorCategoricalVariables it1=bn.iterateDomains(this.variables); it1.hasNext(); ) {
-			Map<NodeCategorical,String> it1m = it1.next(); 
-			double d1 = this.get(it1m);
-			for (IteratorCategoricalVariables it2=bn.iterateDomains(varsDiff); it2.hasNext(); ) {
-				Map<NodeCategorical,String> it2m = new HashMap<>(it2.next()); 
-				for (NodeCategorical n: this.variables) {
-					if (f.variables.contains(n))
-						it2m.put(n,it1m.get(n));
+
+		// the result is defined over our variables, followed by the ones of the other factor
+		List<NodeCategorical> vvs = new ArrayList<>(orderedVariables.length + f.orderedVariables.length);
+		vvs.addAll(Arrays.asList(orderedVariables));
+		for (NodeCategorical n: f.orderedVariables) {
+			if (!variables.contains(n))
+				vvs.add(n);
+		}
+		Factor res = new Factor(bn, vvs.toArray(new NodeCategorical[vvs.size()]));
+
+		if (keys != null || f.keys != null || res.capacity > Integer.MAX_VALUE - 8)
+			multiplySparse(f, res);
+		else
+			multiplyDense(f, res);
+
+		res.adaptStorage();
+		return res;
+	}
+
+	/**
+	 * internal: multiplies two dense factors into the result
+	 */
+	private void multiplyDense(Factor f, Factor res) {
+
+		// for each variable of the result, the strides in this and f (0 if they do not contain it)
+		final NodeCategorical[] resVariables = res.orderedVariables;
+		final int[] stride1 = new int[resVariables.length];
+		final int[] stride2 = new int[resVariables.length];
+		for (int l=0; l<resVariables.length; l++) {
+			final int i1 = indexOf(resVariables[l]);
+			stride1[l] = i1 < 0 ? 0 : (int)strides[i1];
+			final int i2 = f.indexOf(resVariables[l]);
+			stride2[l] = i2 < 0 ? 0 : (int)f.strides[i2];
+		}
+
+		// walk the result sequentially, and follow the corresponding indices in both factors
+		final double[] out = new double[(int)res.capacity];
+		final double[] values2 = f.values;
+		final int[] assignment = new int[resVariables.length];
+		int j = 0;
+		int k = 0;
+		for (int i=0; i<out.length; i++) {
+			out[i] = values[j] * values2[k];
+			for (int l=0; l<assignment.length; l++) {
+				if (++assignment[l] < resVariables[l].getDomainSize()) {
+					j += stride1[l];
+					k += stride2[l];
+					break;
+				}
+				assignment[l] = 0;
+				j -= (resVariables[l].getDomainSize()-1)*stride1[l];
+				k -= (resVariables[l].getDomainSize()-1)*stride2[l];
+			}
+		}
+		res.values = out;
+		InferencePerformanceUtils.singleton.incMultiplications(out.length);
+	}
+
+	/**
+	 * internal: multiplies two factors, at least one being sparse, into the result.
+	 * Both sides are sorted on the shared variables and merged (merge-join).
+	 */
+	private void multiplySparse(Factor f, Factor res) {
+
+		// the shared variables, indexed with their own mixed radix
+		List<NodeCategorical> shared = new ArrayList<>();
+		for (NodeCategorical n: orderedVariables)
+			if (f.variables.contains(n))
+				shared.add(n);
+
+		final int size1 = values.length;
+		final int size2 = f.values.length;
+		final double[] values2 = f.values;
+
+		// for each entry, compute its key on shared variables
+		// and its contribution to the key of the result
+		final long[] sharedKeys1 = new long[size1];
+		final long[] resKeys1 = new long[size1];
+		final long[] sharedKeys2 = new long[size2];
+		final long[] resKeys2 = new long[size2];
+		{
+			long sharedStride = 1;
+			for (NodeCategorical n: shared) {
+				final int i1 = indexOf(n);
+				final int i2 = f.indexOf(n);
+				final int card = n.getDomainSize();
+				for (int i=0; i<size1; i++)
+					sharedKeys1[i] += ((keyAt(i) / strides[i1]) % card) * sharedStride;
+				for (int i=0; i<size2; i++)
+					sharedKeys2[i] += ((f.keyAt(i) / f.strides[i2]) % card) * sharedStride;
+				sharedStride *= card;
+			}
+			// our variables keep their strides in the result
+			for (int i=0; i<size1; i++)
+				resKeys1[i] = keyAt(i);
+			// the other variables of f come after
+			for (int l=orderedVariables.length; l<res.orderedVariables.length; l++) {
+				final int i2 = f.indexOf(res.orderedVariables[l]);
+				final int card = res.orderedVariables[l].getDomainSize();
+				for (int i=0; i<size2; i++)
+					resKeys2[i] += ((f.keyAt(i) / f.strides[i2]) % card) * res.strides[l];
+			}
+		}
+
+		final int[] perm1 = sortedPermutation(sharedKeys1, size1);
+		final int[] perm2 = sortedPermutation(sharedKeys2, size2);
+
+		// merge the groups having the same shared key
+		long[] outKeys = new long[Math.max(16, Math.max(size1, size2))];
+		double[] outValues = new double[outKeys.length];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < perm1.length && j < perm2.length) {
+			final long s1 = sharedKeys1[perm1[i]];
+			final long s2 = sharedKeys2[perm2[j]];
+			if (s1 < s2) {
+				i++;
+			} else if (s1 > s2) {
+				j++;
+			} else {
+				int iEnd = i;
+				while (iEnd < perm1.length && sharedKeys1[perm1[iEnd]] == s1)
+					iEnd++;
+				int jEnd = j;
+				while (jEnd < perm2.length && sharedKeys2[perm2[jEnd]] == s1)
+					jEnd++;
+				for (int a=i; a<iEnd; a++) {
+					final double v1 = values[perm1[a]];
+					if (v1 == 0)
+						continue;
+					for (int b=j; b<jEnd; b++) {
+						final double v = v1 * values2[perm2[b]];
+						if (v == 0)
+							continue;
+						if (count == outKeys.length) {
+							outKeys = Arrays.copyOf(outKeys, count*2);
+							outValues = Arrays.copyOf(outValues, count*2);
+						}
+						outKeys[count] = resKeys1[perm1[a]] + resKeys2[perm2[b]];
+						outValues[count++] = v;
+					}
+				}
+				InferencePerformanceUtils.singleton.incMultiplications((iEnd-i)*(jEnd-j));
+				i = iEnd;
+				j = jEnd;
+			}
+		}
+
+		res.setSparseFromUnsorted(outKeys, outValues, count);
+	}
+
+	/**
+	 * Multiplies all these factors and sums out the given variables in one single pass,
+	 * without building the intermediate product: the kernel walks the joint instantiations
+	 * with the summed variables varying the fastest, and accumulates the product of the
+	 * factors values into the cell of the result.
+	 * Falls back to pairwise {@link #multiply(Factor)} and {@link #sumOut(NodeCategorical)}
+	 * when a factor is sparse (the sparse kernels are then more efficient) or when the
+	 * result would be too big to be stored dense.
+	 * @param factors the factors to multiply, at least one
+	 * @param toSumOut the variables to sum out, which should belong the factors
+	 * @return
+	 */
+	public static Factor multiplyAndSumOut(Collection<Factor> factors, Collection<NodeCategorical> toSumOut) {
+
+		if (factors.isEmpty())
+			throw new IllegalArgumentException("at least one factor is required");
+
+		final Factor[] ff = factors.toArray(new Factor[factors.size()]);
+		final CategoricalBayesianNetwork bn = ff[0].bn;
+
+		// the variables to walk: first the ones summed out, then the ones of the result
+		LinkedHashSet<NodeCategorical> resultVariables = new LinkedHashSet<>();
+		boolean anySparse = false;
+		for (Factor f: ff) {
+			resultVariables.addAll(Arrays.asList(f.orderedVariables));
+			anySparse = anySparse || f.keys != null;
+		}
+		if (!resultVariables.containsAll(toSumOut))
+			throw new IllegalArgumentException("cannot sum out "+toSumOut+" which are not all variables of "+factors);
+		resultVariables.removeAll(toSumOut);
+		List<NodeCategorical> walked = new ArrayList<>(toSumOut);
+		walked.addAll(resultVariables);
+
+		Factor res = new Factor(bn, resultVariables.toArray(new NodeCategorical[resultVariables.size()]));
+
+		if (anySparse || res.capacity > Integer.MAX_VALUE - 8) {
+			Factor f = ff[0];
+			for (int i=1; i<ff.length; i++)
+				f = f.multiply(ff[i]);
+			for (NodeCategorical n: toSumOut)
+				f = f.sumOut(n);
+			return f;
+		}
+
+		// for each walked variable, its stride in each factor (0 if absent) and in the result
+		final int countWalked = walked.size();
+		final int[] cards = new int[countWalked];
+		final int[][] factorStrides = new int[countWalked][ff.length];
+		final int[] resStrides = new int[countWalked];
+		long countJoint = 1;
+		for (int l=0; l<countWalked; l++) {
+			final NodeCategorical n = walked.get(l);
+			cards[l] = n.getDomainSize();
+			countJoint *= cards[l];
+			for (int i=0; i<ff.length; i++) {
+				final int idx = ff[i].indexOf(n);
+				factorStrides[l][i] = idx < 0 ? 0 : (int)ff[i].strides[idx];
+			}
+			final int idx = res.indexOf(n);
+			resStrides[l] = idx < 0 ? 0 : (int)res.strides[idx];
+		}
+
+		final double[][] vv = new double[ff.length][];
+		for (int i=0; i<ff.length; i++)
+			vv[i] = ff[i].values;
+		final int[] positions = new int[ff.length];
+		final int[] assignment = new int[countWalked];
+		final double[] out = new double[(int)res.capacity];
+		int k = 0;
+		for (long c=0; c<countJoint; c++) {
+
+			double p = vv[0][positions[0]];
+			for (int i=1; i<ff.length && p != 0; i++)
+				p *= vv[i][positions[i]];
+			out[k] += p;
+
+			for (int l=0; l<countWalked; l++) {
+				final int[] stridesL = factorStrides[l];
+				if (++assignment[l] < cards[l]) {
+					for (int i=0; i<ff.length; i++)
+						positions[i] += stridesL[i];
+					k += resStrides[l];
+					break;
 				}
-				double d2 = f.get(it2m);
-				
-				it2m.putAll(it1m);
-				
-				double times = d1 * d2;
-				InferencePerformanceUtils.singleton.incMultiplications();
-				
-				res.setFactor(it2m, times);
+				assignment[l] = 0;
+				for (int i=0; i<ff.length; i++)
+					positions[i] -= (cards[l]-1)*stridesL[i];
+				k -= (cards[l]-1)*resStrides[l];
 			}
 		}
-		
+		res.values = out;
+		InferencePerformanceUtils.singleton.incMultiplications((int)Math.min(Integer.MAX_VALUE, countJoint*(ff.length-1)));
+		InferencePerformanceUtils.singleton.incAdditions((int)Math.min(Integer.MAX_VALUE, countJoint));
+		res.adaptStorage();
+
 		return res;
 	}
-	
+
+	/**
+	 * Multiplies all these factors and sums out the given variable in one single pass.
+	 * @see #multiplyAndSumOut(Collection, Collection)
+	 */
+	public static Factor multiplyAndSumOut(Collection<Factor> factors, NodeCategorical toSumOut) {
+		return multiplyAndSumOut(factors, Collections.singleton(toSumOut));
+	}
+
 	/**
 	 * Reduces a factor by suming until only the variables passed as parameter remain.
 	 * @param onlyVariables
 	 * @return
 	 */
 	public Factor reduceTo(Set<NodeCategorical> onlyVariables) {
-		
+
 		if (variables.equals(onlyVariables))
 			return this;
-		
+
 		if (!variables.containsAll(onlyVariables))
 			throw new IllegalArgumentException("not all of these variables "+onlyVariables+" belong this factor "+this);
-		
+
 		Set<NodeCategorical> toRemoveS = new HashSet<>(variables);
 		toRemoveS.removeAll(onlyVariables);
-		
+
 		List<NodeCategorical> toRemoveL = new ArrayList<>(toRemoveS);
-		// TODO optimisation of order 
+		// TODO optimisation of order
 
 		Factor f = this;
 		for (NodeCategorical toRemove: toRemoveL) {
 			f = f.sumOut(toRemove);
 		}
-		
+
 		return f;
 	}
-	
+
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
@@ -394,10 +950,18 @@ public final class Factor {
 	public String toStringLong() {
 		StringBuffer sb = new StringBuffer(toString());
 		sb.append(":\n");
-		for (Map.Entry<Map<NodeCategorical,String>,Double> e: values.entrySet()) {
+		for (int i=0; i<values.length; i++) {
+			if (values[i] == 0)
+				continue;
+			final long key = keys == null ? i : keys[i];
 			sb.append("\t");
-			sb.append(e.getKey().entrySet().stream().map(e2->e2.getKey().name+"="+e2.getValue()).collect(Collectors.joining(",")));
-			sb.append(":").append(e.getValue()).append("\n");
+			for (int l=0; l<orderedVariables.length; l++) {
+				if (l > 0)
+					sb.append(",");
+				sb.append(orderedVariables[l].name).append("=")
+					.append(orderedVariables[l].getValueIndexed((int)((key / strides[l]) % orderedVariables[l].getDomainSize())));
+			}
+			sb.append(":").append(values[i]).append("\n");
 		}
 		return sb.toString();
 	}
@@ -406,34 +970,30 @@ public final class Factor {
 	 * Updates the values inside the factor so the total sums to 1
 	 */
 	public void normalize() {
-		
+
 		// sum ?
-		double total = 0;
-		for (double d: values.values()) {
-			total += d;
-			InferencePerformanceUtils.singleton.incAdditions();
-		}
-		
+		double total = sum();
+
 		// do nothing if good already !
 		if (total==1)
 			return;
-		
+
 		// norm !
-		for (Entry<Map<NodeCategorical, String>, Double> e: values.entrySet()) {
-			values.put(e.getKey(), e.getValue()/total );
-			InferencePerformanceUtils.singleton.incMultiplications();
+		for (int i=0; i<values.length; i++) {
+			values[i] /= total;
 		}
-		
+		InferencePerformanceUtils.singleton.incMultiplications(values.length);
+
 	}
 
 	public void divide(int size) {
 		// norm !
-		for (Entry<Map<NodeCategorical, String>, Double> e: values.entrySet()) {
-			values.put(e.getKey(), e.getValue()/size );
-			InferencePerformanceUtils.singleton.incMultiplications();
+		for (int i=0; i<values.length; i++) {
+			values[i] /= size;
 		}
+		InferencePerformanceUtils.singleton.incMultiplications(values.length);
 	}
-	
+
 	public boolean contains(NodeCategorical n) {
 		return variables.contains(n);
 	}
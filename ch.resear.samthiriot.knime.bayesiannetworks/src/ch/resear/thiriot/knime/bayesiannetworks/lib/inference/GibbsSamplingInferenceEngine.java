@@ -0,0 +1,599 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import cern.jet.random.engine.MersenneTwister;
+import cern.jet.random.engine.RandomEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * Approximate inference by Gibbs sampling: Markov chains resample each variable
+ * without evidence from its distribution knowing its Markov blanket (parents, children
+ * and parents of children). These distributions, the product of the CPT slices of the
+ * variable and its children, are precomputed once for the network as cumulated tables
+ * indexed by the values of the blanket; so a Gibbs update is an array lookup plus one draw.
+ * Tables are only computed for the variables without evidence, smallest first, as long as
+ * they fit {@link #MAX_TABLE_SIZE} each and {@link #MAX_TABLES_SIZE} in total;
+ * the distributions of the other blankets are computed on the fly.
+ *
+ * Several chains run in parallel, each with its own random stream seeded from the random
+ * engine of the inference engine. Their count is a setting, not the count of processors, so
+ * the estimates given a seed are the same on every computer; the chains are spread over
+ * the threads of the common fork-join pool. After a burn-in, each chain keeps one state every
+ * thinning sweeps to estimate the posteriors. {@link #sampleOne()} continues a chain,
+ * so successive individuals are posterior samples (correlated if the thinning is low).
+ *
+ * The probability of evidence, which Gibbs sampling does not estimate, is delegated to
+ * an {@link ImportanceSamplingInferenceEngine}.
+ * Single variable updates cannot leave a mode when the network has deterministic relationships
+ * (probabilities of 0): for instance when evidence is only possible with two variables being both
+ * changed. So sweeps end with a Metropolis-Hastings step which proposes a whole state drawn
+ * by forward sampling, and accepts it with the ratio of the likelihoods of evidence of the
+ * proposed and current states; chains then move between all the states compatible with evidence.
+ * This step is needed at every sweep when the network has probabilities of 0; otherwise the
+ * Gibbs updates alone reach every state, and the step only runs every {@link #DEFAULT_JUMP_PERIOD} 
+ * sweeps to help mixing.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public class GibbsSamplingInferenceEngine extends AbstractInferenceEngine {
+
+	public static final String ENGINE_NAME = "Gibbs sampling";
+
+	public static int DEFAULT_SAMPLES = 20000;
+	public static int DEFAULT_BURN_IN = 500;
+	public static int DEFAULT_THINNING = 1;
+	public static int DEFAULT_CHAINS = 4;
+
+	/**
+	 * the count of sweeps between two proposals of a whole state, 
+	 * for the networks without probabilities of 0
+	 */
+	public static int DEFAULT_JUMP_PERIOD = 10;
+
+	/**
+	 * the max count of entries of a precomputed table of a Markov blanket
+	 */
+	public static int MAX_TABLE_SIZE = 1 << 20;
+
+	/**
+	 * the max count of entries of all the precomputed tables of Markov blankets
+	 */
+	public static long MAX_TABLES_SIZE = 1 << 23;
+
+	/**
+	 * the count of attempts to find an initial state compatible with evidence
+	 */
+	public static int MAX_INIT_ATTEMPTS = 100000;
+
+	protected int samples = DEFAULT_SAMPLES;
+	protected int burnIn = DEFAULT_BURN_IN;
+	protected int thinning = DEFAULT_THINNING;
+	protected int chains = DEFAULT_CHAINS;
+	protected int jumpPeriod;
+
+	protected final RandomEngine seeder;
+
+	// the network, in topological order
+	protected final CompiledNetwork network;
+	protected final NodeCategorical[] variables;
+	protected final int[] cards;
+	protected final int[][] parents;
+	protected final int[][] children;
+	protected final int[] valueOffset;
+
+	// the Markov blankets
+	protected final int[][] blankets;
+	protected final int[][] blanketStrides;
+	/**
+	 * for each variable, the count of configurations of its blanket times its count of values
+	 */
+	protected final double[] blanketSizes;
+	/**
+	 * for each variable, the cumulated distribution of its values for each configuration of
+	 * its Markov blanket; null if not computed yet, or not within the limits of size
+	 */
+	protected final double[][] blanketTables;
+	protected long tablesSize = 0;
+
+	// the state for the current evidence
+	protected final int[] evidence;
+	protected double[] marginals;
+	protected int[] state = null;
+	protected RandomEngine stateRandom = null;
+	protected long stateSweeps = 0;
+	protected ImportanceSamplingInferenceEngine evidenceEstimator = null;
+
+	public GibbsSamplingInferenceEngine(
+			ILogger logger,
+			RandomEngine random,
+			CategoricalBayesianNetwork bn) {
+
+		super(logger, random, bn);
+
+		this.seeder = random == null ? new MersenneTwister() : random;
+
+		this.network = bn.getCompiled();
+		final int count = network.size();
+		this.variables = network.getNodes();
+		this.cards = new int[count];
+		this.valueOffset = new int[count+1];
+		this.parents = new int[count][];
+		this.children = new int[count][];
+		for (int i=0; i<count; i++) {
+			cards[i] = network.getCard(i);
+			valueOffset[i+1] = network.getValueOffset(i) + cards[i];
+			parents[i] = network.getParents(i);
+			children[i] = network.getChildren(i);
+		}
+
+		// the Markov blankets; their tables are computed when needed
+		this.blankets = new int[count][];
+		this.blanketStrides = new int[count][];
+		this.blanketSizes = new double[count];
+		this.blanketTables = new double[count][];
+		for (int i=0; i<count; i++) {
+			Set<Integer> blanket = new LinkedHashSet<>();
+			for (int p: parents[i])
+				blanket.add(p);
+			for (int c: children[i]) {
+				blanket.add(c);
+				for (int p: parents[c])
+					blanket.add(p);
+			}
+			blanket.remove(i);
+			blankets[i] = blanket.stream().mapToInt(Integer::intValue).toArray();
+			blanketStrides[i] = new int[blankets[i].length];
+			double size = cards[i];
+			for (int k=0; k<blankets[i].length; k++) {
+				blanketStrides[i][k] = (int)Math.min(size, Integer.MAX_VALUE);
+				size *= cards[blankets[i][k]];
+			}
+			blanketSizes[i] = size;
+		}
+
+		this.evidence = new int[count];
+		this.marginals = new double[valueOffset[count]];
+
+		this.jumpPeriod = hasZeroProbabilities(network) ? 1 : DEFAULT_JUMP_PERIOD;
+	}
+
+	/**
+	 * returns true if a CPT of the network has a probability of 0, 
+	 * which might prevent the Gibbs updates from leaving a mode
+	 */
+	protected static boolean hasZeroProbabilities(CompiledNetwork network) {
+		for (int i=0; i<network.size(); i++)
+			for (int k=0; k<network.getCPTSize(i); k++)
+				if (network.getProbability(i, k) == 0.)
+					return true;
+		return false;
+	}
+
+	/**
+	 * Fills the distribution of variable i knowing its Markov blanket in values into res,
+	 * from the CPT slices of the variable and its children.
+	 * @return the total of the distribution
+	 */
+	protected final double computeBlanketDistribution(int i, int[] values, double[] res, int offset) {
+
+		final int backup = values[i];
+		double total = 0.;
+		for (int x=0; x<cards[i]; x++) {
+			values[i] = x;
+			double p = network.getProbability(i, rowOf(i, values)+x);
+			for (int k=0; k<children[i].length && p != 0.; k++) {
+				final int c = children[i][k];
+				p *= network.getProbability(c, rowOf(c, values)+values[c]);
+			}
+			res[offset+x] = p;
+			total += p;
+		}
+		values[i] = backup;
+		return total;
+	}
+
+	/**
+	 * Computes the cumulated distributions of variable i for every configuration of its blanket
+	 * @param i
+	 * @param size
+	 * @return
+	 */
+	protected double[] computeBlanketTable(int i, int size) {
+
+		final int[] blanket = blankets[i];
+		double[] res = new double[size];
+		int[] values = new int[variables.length];
+		// enumerate the configurations of the blanket, the first one varying the fastest
+		for (int row=0; row<size; row+=cards[i]) {
+			final double total = computeBlanketDistribution(i, values, res, row);
+			double cumulated = 0.;
+			for (int x=0; x<cards[i]; x++) {
+				cumulated += res[row+x];
+				// an impossible configuration remains full of zeros
+				res[row+x] = total > 0. ? cumulated / total : 0.;
+			}
+			for (int k=0; k<blanket.length; k++) {
+				if (++values[blanket[k]] < cards[blanket[k]])
+					break;
+				values[blanket[k]] = 0;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Computes the tables of the blankets of the variables without evidence, smallest first,
+	 * within the limits of size; the tables already computed are kept for the next evidence.
+	 */
+	protected void computeBlanketTables() {
+
+		Integer[] candidates = IntStream.range(0, variables.length)
+				.filter(i -> evidence[i] < 0 && blanketTables[i] == null && blanketSizes[i] <= MAX_TABLE_SIZE)
+				.boxed()
+				.sorted((i,j) -> Double.compare(blanketSizes[i], blanketSizes[j]))
+				.toArray(Integer[]::new);
+		int tabulated = 0;
+		for (int i: candidates) {
+			if (tablesSize + blanketSizes[i] > MAX_TABLES_SIZE)
+				break;
+			blanketTables[i] = computeBlanketTable(i, (int)blanketSizes[i]);
+			tablesSize += (long)blanketSizes[i];
+			tabulated++;
+		}
+		if (tabulated > 0 && logger.isDebugEnabled())
+			logger.debug("precomputed the tables of "+tabulated+" more Markov blankets, "+tablesSize+" entries in total");
+	}
+
+	/**
+	 * returns the index of the first value of the CPT row of variable i for the parents values
+	 */
+	protected final int rowOf(int i, int[] values) {
+		return network.rowOf(i, values);
+	}
+
+	/**
+	 * returns the count of entries of the tables of blankets computed so far
+	 * @return
+	 */
+	public long getTablesSize() {
+		return tablesSize;
+	}
+
+	public void setSamples(int samples) {
+		if (samples < 1)
+			throw new IllegalArgumentException("the count of samples should be at least 1");
+		this.samples = samples;
+		this.dirty = true;
+	}
+
+	public void setBurnIn(int burnIn) {
+		if (burnIn < 0)
+			throw new IllegalArgumentException("the burn-in should be positive");
+		this.burnIn = burnIn;
+		this.dirty = true;
+	}
+
+	/**
+	 * Sets the count of sweeps between two kept states of a chain
+	 * @param thinning
+	 */
+	public void setThinning(int thinning) {
+		if (thinning < 1)
+			throw new IllegalArgumentException("the thinning should be at least 1");
+		this.thinning = thinning;
+		this.dirty = true;
+	}
+
+	public void setChains(int chains) {
+		if (chains < 1)
+			throw new IllegalArgumentException("the count of chains should be at least 1");
+		this.chains = chains;
+		this.dirty = true;
+	}
+
+	public int getJumpPeriod() {
+		return jumpPeriod;
+	}
+
+	/**
+	 * Sets the count of sweeps between two proposals of a whole state, 
+	 * which is 1 by default for the networks having probabilities of 0, 
+	 * and {@link #DEFAULT_JUMP_PERIOD} else
+	 * @param jumpPeriod
+	 */
+	public void setJumpPeriod(int jumpPeriod) {
+		if (jumpPeriod < 1)
+			throw new IllegalArgumentException("the period of the jumps should be at least 1");
+		this.jumpPeriod = jumpPeriod;
+		this.dirty = true;
+	}
+
+	/**
+	 * Resamples once every variable without evidence knowing its blanket,
+	 * then proposes to jump to another state if this is the last sweep of a jump period
+	 * @param values
+	 * @param random
+	 * @param scratch
+	 * @param proposal
+	 * @param sweeps the count of sweeps of the chain, this one included
+	 */
+	protected void sweep(int[] values, RandomEngine random, double[] scratch, int[] proposal, long sweeps) {
+
+		for (int i=0; i<variables.length; i++) {
+
+			if (evidence[i] >= 0)
+				continue;
+
+			final int card = cards[i];
+			final double[] table;
+			int row = 0;
+			if (blanketTables[i] != null) {
+				table = blanketTables[i];
+				for (int k=0; k<blankets[i].length; k++)
+					row += values[blankets[i][k]] * blanketStrides[i][k];
+			} else {
+				table = scratch;
+				final double total = computeBlanketDistribution(i, values, scratch, 0);
+				double cumulated = 0.;
+				for (int x=0; x<card; x++) {
+					cumulated += scratch[x];
+					scratch[x] = total > 0. ? cumulated / total : 0.;
+				}
+			}
+
+			// an impossible blanket keeps the current value
+			if (table[row+card-1] == 0.)
+				continue;
+
+			final double u = random.raw();
+			int x = 0;
+			while (x < card-1 && table[row+x] < u)
+				x++;
+			values[i] = x;
+		}
+
+		if (sweeps % jumpPeriod == 0)
+			jump(values, random, proposal);
+	}
+
+	/**
+	 * Proposes a state drawn by forward sampling, and moves to it with the Metropolis-Hastings
+	 * probability of acceptance. As the proposal is the network without evidence, this probability
+	 * is the ratio of the likelihoods of evidence of the proposed and current states.
+	 * @param values the current state, which is replaced by the proposal if accepted
+	 * @param random
+	 * @param proposal
+	 */
+	protected void jump(int[] values, RandomEngine random, int[] proposal) {
+
+		final double proposed = drawForward(proposal, random);
+		if (proposed == 0.)
+			return;
+		final double current = likelihood(values);
+		if (proposed < current && random.raw() * current > proposed)
+			return;
+		System.arraycopy(proposal, 0, values, 0, values.length);
+	}
+
+	/**
+	 * returns the probability of evidence knowing the values of the other variables
+	 */
+	protected final double likelihood(int[] values) {
+
+		double res = 1.;
+		for (int i=0; i<variables.length; i++)
+			if (evidence[i] >= 0)
+				res *= network.getProbability(i, rowOf(i, values)+evidence[i]);
+		return res;
+	}
+
+	/**
+	 * Draws the variables without evidence from their CPT, the evidence variables being
+	 * fixed to their value, and returns the likelihood of evidence; stops as soon as
+	 * this likelihood is 0
+	 * @param values
+	 * @param random
+	 * @return
+	 */
+	protected double drawForward(int[] values, RandomEngine random) {
+
+		double likelihood = 1.;
+		for (int i=0; i<variables.length; i++) {
+			final int row = rowOf(i, values);
+			if (evidence[i] >= 0) {
+				values[i] = evidence[i];
+				likelihood *= network.getProbability(i, row+evidence[i]);
+				if (likelihood == 0.)
+					return 0.;
+				continue;
+			}
+			final double u = random.raw();
+			double cumulated = 0.;
+			int x = cards[i]-1;
+			for (int k=0; k<cards[i]; k++) {
+				cumulated += network.getProbability(i, row+k);
+				if (cumulated >= u) {
+					x = k;
+					break;
+				}
+			}
+			while (network.getProbability(i, row+x) == 0. && x > 0)
+				x--;
+			values[i] = x;
+		}
+		return likelihood;
+	}
+
+	/**
+	 * Finds an initial state compatible with evidence by forward sampling with evidence,
+	 * keeping the first state having a non-zero probability; returns null if none was found
+	 * @param random
+	 * @return
+	 */
+	protected int[] initialState(RandomEngine random) {
+
+		int[] values = new int[variables.length];
+		for (int attempt=0; attempt<MAX_INIT_ATTEMPTS; attempt++)
+			if (drawForward(values, random) > 0.)
+				return values;
+		return null;
+	}
+
+	@Override
+	public void compute() {
+
+		Arrays.fill(evidence, -1);
+		for (Map.Entry<NodeCategorical,String> e: evidenceVariable2value.entrySet())
+			evidence[network.getId(e.getKey())] = e.getKey().getDomainIndex(e.getValue());
+
+		if (evidenceEstimator != null) {
+			evidenceEstimator.clearEvidence();
+			evidenceEstimator.addEvidence(evidenceVariable2value);
+		}
+
+		computeBlanketTables();
+
+		final int perChain = (samples + chains - 1) / chains;
+		final int[] seeds = new int[chains];
+		for (int c=0; c<chains; c++)
+			seeds[c] = seeder.nextInt();
+		final double[][] counts = new double[chains][];
+		final int[][] states = new int[chains][];
+
+		IntStream.range(0, chains).parallel().forEach(c -> {
+			RandomEngine random = new MersenneTwister(seeds[c]);
+			double[] scratch = new double[Arrays.stream(cards).max().orElse(0)];
+			int[] proposal = new int[variables.length];
+			int[] values = initialState(random);
+			if (values == null)
+				return;
+			long sweeps = 0;
+			for (int s=0; s<burnIn; s++)
+				sweep(values, random, scratch, proposal, ++sweeps);
+			double[] local = new double[valueOffset[variables.length]];
+			for (int s=0; s<perChain; s++) {
+				for (int t=0; t<thinning; t++)
+					sweep(values, random, scratch, proposal, ++sweeps);
+				for (int i=0; i<variables.length; i++)
+					local[valueOffset[i]+values[i]]++;
+			}
+			counts[c] = local;
+			states[c] = values;
+		});
+
+		// merge the chains in their order
+		marginals = new double[valueOffset[variables.length]];
+		double total = 0.;
+		state = null;
+		for (int c=0; c<chains; c++) {
+			if (counts[c] == null)
+				continue;
+			for (int k=0; k<marginals.length; k++)
+				marginals[k] += counts[c][k];
+			total += perChain;
+			if (state == null) {
+				state = states[c];
+				stateRandom = new MersenneTwister(seeds[c]+1);
+				stateSweeps = 0;
+			}
+		}
+		if (state == null) {
+			// as other engines, an impossible evidence leads to NaN posteriors
+			logger.warn("found no state compatible with evidence "+evidenceVariable2value+" after "+MAX_INIT_ATTEMPTS+" attempts");
+			Arrays.fill(marginals, Double.NaN);
+		} else {
+			for (int k=0; k<marginals.length; k++)
+				marginals[k] /= total;
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("ran "+chains+" chains of "+perChain+" samples for evidence "+evidenceVariable2value);
+
+		super.compute();
+	}
+
+	@Override
+	protected double retrieveConditionalProbability(NodeCategorical n, String s) {
+
+		if (dirty)
+			compute();
+
+		final int i = network.getId(n);
+		return marginals[valueOffset[i] + n.getDomainIndex(s)];
+	}
+
+	@Override
+	protected double[] retrieveConditionalProbability(NodeCategorical n) {
+
+		if (dirty)
+			compute();
+
+		final int i = network.getId(n);
+		return Arrays.copyOfRange(marginals, valueOffset[i], valueOffset[i+1]);
+	}
+
+	@Override
+	protected double computeProbabilityEvidence() {
+
+		if (evidenceEstimator == null) {
+			evidenceEstimator = new ImportanceSamplingInferenceEngine(logger, new MersenneTwister(seeder.nextInt()), bn);
+			evidenceEstimator.addEvidence(evidenceVariable2value);
+		}
+		return evidenceEstimator.getProbabilityEvidence();
+	}
+
+	/**
+	 * Continues a chain for thinning sweeps, and returns its state
+	 */
+	@Override
+	public Map<NodeCategorical,String> sampleOne() {
+
+		continueChain();
+
+		Map<NodeCategorical,String> res = new LinkedHashMap<>(variables.length*2);
+		for (int i=0; i<variables.length; i++)
+			res.put(variables[i], variables[i].getValueIndexed(state[i]));
+		return res;
+	}
+
+	/**
+	 * Continues a chain for thinning sweeps, and writes its state into the assignment
+	 */
+	@Override
+	public void sampleOne(Assignment into) {
+
+		if (into.getNetwork() != network)
+			throw new IllegalArgumentException("the assignment does not belong the network of this engine");
+
+		continueChain();
+
+		for (int i=0; i<variables.length; i++)
+			into.set(i, state[i]);
+	}
+
+	private void continueChain() {
+
+		if (dirty)
+			compute();
+
+		if (state == null)
+			throw new IllegalArgumentException("cannot generate if the probability of evidence is 0 - evidence is not possible");
+
+		double[] scratch = new double[Arrays.stream(cards).max().orElse(0)];
+		int[] proposal = new int[variables.length];
+		for (int t=0; t<thinning; t++)
+			sweep(state, stateRandom, scratch, proposal, ++stateSweeps);
+	}
+
+}
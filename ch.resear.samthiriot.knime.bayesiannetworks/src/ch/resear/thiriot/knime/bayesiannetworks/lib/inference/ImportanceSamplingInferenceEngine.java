@@ -0,0 +1,547 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import cern.jet.random.engine.MersenneTwister;
+import cern.jet.random.engine.RandomEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * Approximate inference by importance sampling. Samples are drawn in topological order
+ * from an importance function, the evidence variables being fixed to their value;
+ * each sample is weighted by its probability in the network divided by its probability
+ * in the importance function. The importance function starts as the CPTs (which is
+ * likelihood weighting), and is adapted as in AIS-BN (Cheng and Druzdzel, 2000) for the
+ * ancestors of evidence: their small probabilities are raised, then the importance
+ * CPTs are learnt from the weighted samples of successive learning stages.
+ *
+ * Sampling stops after the max count of samples, or earlier when the standard error
+ * of the posteriors, bounded by 1/(2 sqrt(effective count of samples)), is below the target error.
+ * Samples are drawn in parallel by blocks, each block using its own random stream seeded
+ * from the random engine of the inference engine; so results are reproducible for a given seed.
+ *
+ * Time is bounded by the count of samples, whatever the treewidth of the network.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public class ImportanceSamplingInferenceEngine extends AbstractInferenceEngine {
+
+	public static final String ENGINE_NAME = "importance sampling";
+
+	public static int DEFAULT_SAMPLES = 100000;
+	public static double DEFAULT_TARGET_ERROR = 0.005;
+
+	/**
+	 * count of samples drawn with the same random stream
+	 */
+	public static int BLOCK_SIZE = 1000;
+
+	/**
+	 * count of blocks drawn before checking the error again; the blocks of a round are drawn
+	 * in parallel, but the count of samples drawn does not depend on the count of threads
+	 */
+	public static int ROUND_BLOCKS = 8;
+
+	/**
+	 * count of learning stages of the importance function,
+	 * and the share of samples used for learning
+	 */
+	public static int LEARNING_STAGES = 10;
+	public static double LEARNING_SHARE = 0.2;
+
+	/**
+	 * probabilities of the importance function lower than this threshold are raised to it
+	 */
+	public static double CUTOFF = 0.01;
+
+	protected int samples = DEFAULT_SAMPLES;
+	protected double targetError = DEFAULT_TARGET_ERROR;
+
+	protected final RandomEngine seeder;
+
+	// the network, in topological order
+	protected final CompiledNetwork network;
+	protected final NodeCategorical[] variables;
+	protected final int[] cards;
+	protected final double[][] cpts;
+	protected final int[] valueOffset;
+
+	// the state for the current evidence
+	protected final int[] evidence;
+	protected double[][] importance;
+	protected final boolean[] learnt;
+	protected double[] marginals;
+	protected double pEvidence = 1.;
+	protected double effectiveSamples = 0.;
+	protected long drawnSamples = 0;
+
+	// the seed and size of each block drawn for the current evidence, to draw them again for resampling
+	protected int[] blockSeeds = new int[0];
+	protected int[] blockSizes = new int[0];
+	protected int countBlocks = 0;
+
+	// the weighted samples to resample from, built on demand: the values of sample s start at s * variables.length
+	protected int[] pool = null;
+	protected double[] poolCumulatedWeights = null;
+
+	public ImportanceSamplingInferenceEngine(
+			ILogger logger,
+			RandomEngine random,
+			CategoricalBayesianNetwork bn) {
+
+		super(logger, random, bn);
+
+		this.seeder = random == null ? new MersenneTwister() : random;
+
+		this.network = bn.getCompiled();
+		final int count = network.size();
+		this.variables = network.getNodes();
+		this.cards = new int[count];
+		this.valueOffset = new int[count+1];
+		// the CPTs are copied, as they are the initial importance function
+		this.cpts = new double[count][];
+		for (int i=0; i<count; i++) {
+			cards[i] = network.getCard(i);
+			valueOffset[i+1] = network.getValueOffset(i) + cards[i];
+			cpts[i] = network.getCPT(i);
+		}
+
+		this.evidence = new int[count];
+		this.importance = cpts.clone();
+		this.learnt = new boolean[count];
+		this.marginals = new double[valueOffset[count]];
+	}
+
+	/**
+	 * Sets the max count of samples drawn for each evidence.
+	 * When individuals are generated, the samples of non null weight are drawn again and kept 
+	 * to resample individuals from, so the memory of the engine grows with this count 
+	 * times the count of variables.
+	 * @param samples
+	 */
+	public void setSamples(int samples) {
+		if (samples < 1)
+			throw new IllegalArgumentException("the count of samples should be at least 1");
+		this.samples = samples;
+		this.dirty = true;
+	}
+
+	/**
+	 * Sets the standard error of posteriors below which sampling stops;
+	 * 0 draws always the max count of samples.
+	 * @param targetError
+	 */
+	public void setTargetError(double targetError) {
+		if (targetError < 0 || targetError >= 1)
+			throw new IllegalArgumentException("the target error should be in [0,1[");
+		this.targetError = targetError;
+		this.dirty = true;
+	}
+
+	/**
+	 * returns the count of samples drawn for the last evidence, learning excluded
+	 * @return
+	 */
+	public long getDrawnSamples() {
+		return drawnSamples;
+	}
+
+	/**
+	 * returns the effective count of samples for the last evidence,
+	 * that is (sum of weights)^2 / sum of squared weights
+	 * @return
+	 */
+	public double getEffectiveSamples() {
+		return effectiveSamples;
+	}
+
+	/**
+	 * The weighted samples of a block
+	 */
+	protected class Accumulator {
+
+		protected double sumWeights = 0.;
+		protected double sumSquaredWeights = 0.;
+		protected final double[] marginals = new double[valueOffset[variables.length]];
+		protected final double[][] families;
+
+		protected Accumulator(boolean learning) {
+			if (learning) {
+				families = new double[variables.length][];
+				for (int i=0; i<variables.length; i++)
+					if (learnt[i])
+						families[i] = new double[cpts[i].length];
+			} else {
+				families = null;
+			}
+		}
+
+		protected void add(int[] values, double w) {
+			sumWeights += w;
+			sumSquaredWeights += w*w;
+			if (w == 0.)
+				return;
+			for (int i=0; i<variables.length; i++) {
+				marginals[valueOffset[i]+values[i]] += w;
+				if (families != null && families[i] != null)
+					families[i][rowOf(i, values)+values[i]] += w;
+			}
+		}
+
+		protected void merge(Accumulator other) {
+			sumWeights += other.sumWeights;
+			sumSquaredWeights += other.sumSquaredWeights;
+			for (int k=0; k<marginals.length; k++)
+				marginals[k] += other.marginals[k];
+			if (families != null)
+				for (int i=0; i<families.length; i++)
+					if (families[i] != null)
+						for (int k=0; k<families[i].length; k++)
+							families[i][k] += other.families[i][k];
+		}
+	}
+
+	/**
+	 * returns the index of the first value of the CPT row of variable i for the parents values
+	 */
+	protected final int rowOf(int i, int[] values) {
+		return network.rowOf(i, values);
+	}
+
+	/**
+	 * Draws one sample from the importance function into values,
+	 * and returns its weight
+	 * @param values
+	 * @param random
+	 * @return
+	 */
+	protected double drawOne(int[] values, RandomEngine random) {
+
+		double w = 1.;
+		for (int i=0; i<variables.length; i++) {
+			final int row = rowOf(i, values);
+			final double[] cpt = cpts[i];
+			if (evidence[i] >= 0) {
+				values[i] = evidence[i];
+				w *= cpt[row+evidence[i]];
+				if (w == 0.)
+					return 0.;
+				continue;
+			}
+			final double[] q = importance[i];
+			final double u = random.raw();
+			double cumulated = 0.;
+			int x = cards[i]-1;
+			for (int k=0; k<cards[i]; k++) {
+				cumulated += q[row+k];
+				if (cumulated >= u) {
+					x = k;
+					break;
+				}
+			}
+			// rounding errors might select a last value which is not possible
+			while (q[row+x] == 0. && x > 0)
+				x--;
+			values[i] = x;
+			if (q != cpt)
+				w *= cpt[row+x] / q[row+x];
+		}
+		return w;
+	}
+
+	/**
+	 * Draws this count of samples in parallel blocks, each block with its own random stream.
+	 * Blocks are merged in their order, so the result does not depend on the scheduling of threads.
+	 * @param count
+	 * @param learning
+	 * @param record if true, the seed and size of each block are recorded to draw them again
+	 * @return
+	 */
+	protected Accumulator drawSamples(int count, boolean learning, boolean record) {
+
+		final int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		final int[] seeds = new int[blocks];
+		for (int b=0; b<blocks; b++)
+			seeds[b] = seeder.nextInt();
+		if (record) {
+			if (countBlocks + blocks > blockSeeds.length) {
+				blockSeeds = Arrays.copyOf(blockSeeds, Math.max(countBlocks + blocks, blockSeeds.length*2));
+				blockSizes = Arrays.copyOf(blockSizes, blockSeeds.length);
+			}
+			for (int b=0; b<blocks; b++) {
+				blockSeeds[countBlocks] = seeds[b];
+				blockSizes[countBlocks++] = Math.min(BLOCK_SIZE, count - b*BLOCK_SIZE);
+			}
+		}
+
+		Accumulator[] results = new Accumulator[blocks];
+		IntStream.range(0, blocks).parallel().forEach(b -> {
+			RandomEngine random = new MersenneTwister(seeds[b]);
+			Accumulator acc = new Accumulator(learning);
+			final int size = Math.min(BLOCK_SIZE, count - b*BLOCK_SIZE);
+			int[] values = new int[variables.length];
+			for (int s=0; s<size; s++)
+				acc.add(values, drawOne(values, random));
+			results[b] = acc;
+		});
+
+		Accumulator res = results[0];
+		for (int b=1; b<blocks; b++)
+			res.merge(results[b]);
+		return res;
+	}
+
+	/**
+	 * Builds the pool of the samples of non null weight, by drawing again the blocks recorded
+	 * for the current evidence with the same random streams: the pool holds the very samples
+	 * the posteriors were estimated from.
+	 */
+	protected void buildPool() {
+
+		final int[][] values = new int[countBlocks][];
+		final double[][] weights = new double[countBlocks][];
+		final int[] sizes = new int[countBlocks];
+		IntStream.range(0, countBlocks).parallel().forEach(b -> {
+			RandomEngine random = new MersenneTwister(blockSeeds[b]);
+			int[] blockValues = new int[blockSizes[b]*variables.length];
+			double[] blockWeights = new double[blockSizes[b]];
+			int[] sample = new int[variables.length];
+			int kept = 0;
+			for (int s=0; s<blockSizes[b]; s++) {
+				final double w = drawOne(sample, random);
+				// samples of null weight would never be resampled
+				if (w == 0.)
+					continue;
+				System.arraycopy(sample, 0, blockValues, kept*variables.length, variables.length);
+				blockWeights[kept++] = w;
+			}
+			values[b] = blockValues;
+			weights[b] = blockWeights;
+			sizes[b] = kept;
+		});
+
+		int size = 0;
+		for (int b=0; b<countBlocks; b++)
+			size += sizes[b];
+		pool = new int[size*variables.length];
+		poolCumulatedWeights = new double[size];
+		double cumulated = 0.;
+		for (int b=0, s=0; b<countBlocks; b++) {
+			System.arraycopy(values[b], 0, pool, s*variables.length, sizes[b]*variables.length);
+			for (int k=0; k<sizes[b]; k++, s++) {
+				cumulated += weights[b][k];
+				poolCumulatedWeights[s] = cumulated;
+			}
+		}
+	}
+
+	/**
+	 * Initializes the importance function for the current evidence.
+	 * Only the ancestors of evidence have an importance function different from their CPT.
+	 */
+	protected void initImportance() {
+
+		importance = cpts.clone();
+		Arrays.fill(learnt, false);
+		for (NodeCategorical n: evidenceVariable2value.keySet()) {
+			for (NodeCategorical a: n.getAllAncestors()) {
+				final int i = network.getId(a);
+				if (evidence[i] >= 0 || learnt[i])
+					continue;
+				learnt[i] = true;
+				// raise the small probabilities of the CPT (epsilon-cutoff heuristic)
+				double[] q = cpts[i].clone();
+				final double cutoff = Math.min(CUTOFF, 1./cards[i]);
+				for (int row=0; row<q.length; row+=cards[i]) {
+					double total = 0.;
+					for (int x=0; x<cards[i]; x++) {
+						if (q[row+x] > 0. && q[row+x] < cutoff)
+							q[row+x] = cutoff;
+						total += q[row+x];
+					}
+					if (total > 0.)
+						for (int x=0; x<cards[i]; x++)
+							q[row+x] /= total;
+				}
+				importance[i] = q;
+			}
+		}
+	}
+
+	/**
+	 * Learns the importance function of the ancestors of evidence from the weighted samples of
+	 * successive stages, with the learning rate of AIS-BN decreasing from 0.4 to 0.14.
+	 * @param budget
+	 */
+	protected void learnImportance(int budget) {
+
+		final int perStage = budget / LEARNING_STAGES;
+		if (perStage < 1)
+			return;
+
+		for (int stage=0; stage<LEARNING_STAGES; stage++) {
+
+			Accumulator acc = drawSamples(perStage, true, false);
+			if (acc.sumWeights == 0.)
+				continue;
+
+			final double rate = 0.4 * Math.pow(0.14/0.4, (double)stage/LEARNING_STAGES);
+			for (int i=0; i<variables.length; i++) {
+				if (!learnt[i])
+					continue;
+				final double[] q = importance[i];
+				final double[] family = acc.families[i];
+				for (int row=0; row<q.length; row+=cards[i]) {
+					double total = 0.;
+					for (int x=0; x<cards[i]; x++)
+						total += family[row+x];
+					if (total == 0.)
+						continue;
+					for (int x=0; x<cards[i]; x++)
+						if (cpts[i][row+x] > 0.)
+							q[row+x] += rate * (family[row+x]/total - q[row+x]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void compute() {
+
+		Arrays.fill(evidence, -1);
+		for (Map.Entry<NodeCategorical,String> e: evidenceVariable2value.entrySet())
+			evidence[network.getId(e.getKey())] = e.getKey().getDomainIndex(e.getValue());
+
+		initImportance();
+
+		int budget = samples;
+		boolean anyLearnt = false;
+		for (boolean b: learnt)
+			anyLearnt |= b;
+		if (anyLearnt) {
+			final int learning = (int)(samples * LEARNING_SHARE);
+			learnImportance(learning);
+			budget -= learning;
+		}
+
+		// draw rounds of samples until the error is low enough
+		final int round = Math.max(1, Math.min(budget, BLOCK_SIZE * ROUND_BLOCKS));
+		Accumulator total = null;
+		drawnSamples = 0;
+		countBlocks = 0;
+		pool = null;
+		poolCumulatedWeights = null;
+		do {
+			final int count = (int)Math.min(round, budget - drawnSamples);
+			Accumulator acc = drawSamples(count, false, true);
+			if (total == null)
+				total = acc;
+			else
+				total.merge(acc);
+			drawnSamples += count;
+			effectiveSamples = total.sumSquaredWeights > 0. ? total.sumWeights*total.sumWeights / total.sumSquaredWeights : 0.;
+		} while (drawnSamples < budget && (targetError == 0. || effectiveSamples == 0. || 0.5/Math.sqrt(effectiveSamples) > targetError));
+
+		pEvidence = total.sumWeights / drawnSamples;
+		marginals = total.marginals;
+		// as other engines, an impossible evidence leads to NaN posteriors
+		for (int k=0; k<marginals.length; k++)
+			marginals[k] /= total.sumWeights;
+
+		if (logger.isDebugEnabled())
+			logger.debug("drew "+drawnSamples+" samples (effective count "+effectiveSamples+") for evidence "+evidenceVariable2value+": p(evidence)~"+pEvidence);
+
+		super.compute();
+	}
+
+	@Override
+	protected double retrieveConditionalProbability(NodeCategorical n, String s) {
+
+		if (dirty)
+			compute();
+
+		final int i = network.getId(n);
+		return marginals[valueOffset[i] + n.getDomainIndex(s)];
+	}
+
+	@Override
+	protected double[] retrieveConditionalProbability(NodeCategorical n) {
+
+		if (dirty)
+			compute();
+
+		final int i = network.getId(n);
+		return Arrays.copyOfRange(marginals, valueOffset[i], valueOffset[i+1]);
+	}
+
+	@Override
+	protected double computeProbabilityEvidence() {
+
+		return pEvidence;
+	}
+
+	/**
+	 * Resamples an individual from the weighted samples of the last computation
+	 * (sampling importance resampling). Individuals are only approximately distributed
+	 * as the posterior, and are drawn among the samples of non null weight drawn for the evidence:
+	 * generating more individuals than the count of samples repeats some of them.
+	 */
+	@Override
+	public Map<NodeCategorical,String> sampleOne() {
+
+		// resampling builds the pool first, if needed
+		final int offset = resample() * variables.length;
+
+		Map<NodeCategorical,String> res = new LinkedHashMap<>(variables.length*2);
+		for (int i=0; i<variables.length; i++)
+			res.put(variables[i], variables[i].getValueIndexed(pool[offset+i]));
+		return res;
+	}
+
+	/**
+	 * Resamples an individual into the assignment
+	 * @see #sampleOne()
+	 */
+	@Override
+	public void sampleOne(Assignment into) {
+
+		if (into.getNetwork() != network)
+			throw new IllegalArgumentException("the assignment does not belong the network of this engine");
+
+		// resampling builds the pool first, if needed
+		final int offset = resample() * variables.length;
+		for (int i=0; i<variables.length; i++)
+			into.set(i, pool[offset+i]);
+	}
+
+	/**
+	 * returns the index in the pool of a sample drawn proportionally to its weight
+	 */
+	private int resample() {
+
+		if (dirty)
+			compute();
+		if (pool == null)
+			buildPool();
+
+		final int size = poolCumulatedWeights.length;
+		if (size == 0)
+			throw new IllegalArgumentException("cannot generate if the probability of evidence is 0 - evidence is not possible");
+
+		// the pool only contains samples of non null weight
+		final double u = rng.nextDouble() * poolCumulatedWeights[size-1];
+		int idx = Arrays.binarySearch(poolCumulatedWeights, u);
+		if (idx < 0)
+			idx = -idx-1;
+		return Math.min(idx, size-1);
+	}
+
+}
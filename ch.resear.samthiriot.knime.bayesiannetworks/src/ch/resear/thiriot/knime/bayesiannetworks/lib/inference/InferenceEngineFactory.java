@@ -0,0 +1,99 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import cern.jet.random.engine.RandomEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+
+/**
+ * Creates the inference engine named in the settings of a node:
+ * the exact engine, unless the estimated cost of exact inference is beyond a limit,
+ * in which case the approximate engine is used.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class InferenceEngineFactory {
+
+	/**
+	 * the names of the exact inference engines
+	 */
+	public static final List<String> EXACT_ENGINES = Collections.unmodifiableList(Arrays.asList(
+			EliminationInferenceEngine.ENGINE_NAME,
+			RecursiveConditionningEngine.ENGINE_NAME,
+			JunctionTreeInferenceEngine.ENGINE_NAME,
+			ArithmeticCircuitInferenceEngine.ENGINE_NAME
+			));
+
+	/**
+	 * the names of the approximate inference engines
+	 */
+	public static final List<String> APPROXIMATE_ENGINES = Collections.unmodifiableList(Arrays.asList(
+			LoopyBeliefPropagationEngine.ENGINE_NAME,
+			ImportanceSamplingInferenceEngine.ENGINE_NAME,
+			GibbsSamplingInferenceEngine.ENGINE_NAME
+			));
+
+	private InferenceEngineFactory() {
+
+	}
+
+	/**
+	 * creates the exact inference engine of this name
+	 * @throws IllegalArgumentException if no exact engine has this name
+	 */
+	public static AbstractInferenceEngine createExact(
+			String name,
+			ILogger logger, RandomEngine random, CategoricalBayesianNetwork bn) {
+
+		if (EliminationInferenceEngine.ENGINE_NAME.equals(name))
+			return new EliminationInferenceEngine(logger, random, bn);
+		if (RecursiveConditionningEngine.ENGINE_NAME.equals(name))
+			return new RecursiveConditionningEngine(logger, random, bn);
+		if (JunctionTreeInferenceEngine.ENGINE_NAME.equals(name))
+			return new JunctionTreeInferenceEngine(logger, random, bn);
+		if (ArithmeticCircuitInferenceEngine.ENGINE_NAME.equals(name))
+			return new ArithmeticCircuitInferenceEngine(logger, random, bn);
+		throw new IllegalArgumentException("unknown exact inference engine \""+name+"\"; expecting one of "+EXACT_ENGINES);
+	}
+
+	/**
+	 * creates the approximate inference engine of this name
+	 * @throws IllegalArgumentException if no approximate engine has this name
+	 */
+	public static AbstractInferenceEngine createApproximate(
+			String name,
+			ILogger logger, RandomEngine random, CategoricalBayesianNetwork bn) {
+
+		if (LoopyBeliefPropagationEngine.ENGINE_NAME.equals(name))
+			return new LoopyBeliefPropagationEngine(logger, random, bn);
+		if (ImportanceSamplingInferenceEngine.ENGINE_NAME.equals(name))
+			return new ImportanceSamplingInferenceEngine(logger, random, bn);
+		if (GibbsSamplingInferenceEngine.ENGINE_NAME.equals(name))
+			return new GibbsSamplingInferenceEngine(logger, random, bn);
+		throw new IllegalArgumentException("unknown approximate inference engine \""+name+"\"; expecting one of "+APPROXIMATE_ENGINES);
+	}
+
+	/**
+	 * creates the exact inference engine, unless the estimated cost of exact inference
+	 * on this network is beyond maxExactCost; then creates the approximate one.
+	 * @see EliminationOrderGreedy#estimateCost(CategoricalBayesianNetwork)
+	 */
+	public static AbstractInferenceEngine create(
+			String exactEngine, String approximateEngine, double maxExactCost,
+			ILogger logger, RandomEngine random, CategoricalBayesianNetwork bn) {
+
+		final double cost = EliminationOrderGreedy.estimateCost(bn);
+		if (cost > maxExactCost) {
+			logger.warn("the estimated cost of exact inference ("+cost+") is beyond the limit of "+maxExactCost
+					+"; the probabilities will be approximated by "+approximateEngine);
+			return createApproximate(approximateEngine, logger, random, bn);
+		}
+		logger.info("the estimated cost of exact inference is "+cost+"; the probabilities will be computed by "+exactEngine);
+		return createExact(exactEngine, logger, random, bn);
+	}
+
+}
@@ -0,0 +1,111 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+
+/**
+ * One inference engine per thread over the same Bayesian network.
+ * The engines are not thread safe, as they store the evidence and the caches of the
+ * computations; each thread using this holder gets its own engine, created on first use
+ * and then reused, so its caches stay warm for all the work done by this thread.
+ * The compiled network is built once here, so every engine reads the same immutable snapshot.
+ *
+ * The holder itself is safe to share between threads.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class InferenceEnginesPerThread {
+
+	private final CategoricalBayesianNetwork bn;
+
+	private final Function<CategoricalBayesianNetwork,AbstractInferenceEngine> factory;
+
+	private final ThreadLocal<AbstractInferenceEngine> thread2engine;
+
+	/**
+	 * all the engines created so far, whatever their thread
+	 */
+	private final Queue<AbstractInferenceEngine> engines = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Creates engines on demand with the factory
+	 * @param bn
+	 * @param factory
+	 */
+	public InferenceEnginesPerThread(
+			CategoricalBayesianNetwork bn,
+			Function<CategoricalBayesianNetwork,AbstractInferenceEngine> factory) {
+
+		this.bn = bn;
+		this.factory = factory;
+
+		bn.getCompiled();
+
+		this.thread2engine = ThreadLocal.withInitial(this::createEngine);
+	}
+
+	/**
+	 * Uses this engine for the current thread, and creates the engines of the other threads
+	 * with the factory
+	 * @param engine
+	 * @param factory
+	 */
+	public InferenceEnginesPerThread(
+			AbstractInferenceEngine engine,
+			Function<CategoricalBayesianNetwork,AbstractInferenceEngine> factory) {
+
+		this(engine.getBN(), factory);
+
+		engines.add(engine);
+		thread2engine.set(engine);
+	}
+
+	private AbstractInferenceEngine createEngine() {
+
+		final AbstractInferenceEngine engine = factory.apply(bn);
+		if (engine.getBN() != bn)
+			throw new IllegalArgumentException("the factory created an engine for another network");
+		engines.add(engine);
+		return engine;
+	}
+
+	public CategoricalBayesianNetwork getBN() {
+		return bn;
+	}
+
+	/**
+	 * returns the engine of the current thread, created on the first call
+	 * @return
+	 */
+	public AbstractInferenceEngine get() {
+		return thread2engine.get();
+	}
+
+	/**
+	 * returns the count of engines created so far, that is the count of threads having used this holder
+	 * @return
+	 */
+	public int countEngines() {
+		return engines.size();
+	}
+
+	/**
+	 * returns the engines created so far; they should only be used by their own thread
+	 * @return
+	 */
+	public List<AbstractInferenceEngine> getEngines() {
+		return new ArrayList<>(engines);
+	}
+
+	@Override
+	public String toString() {
+		return countEngines()+" inference engines over "+bn;
+	}
+
+}
@@ -1,5 +1,7 @@
 package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
 
 /**
@@ -20,6 +22,9 @@ import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
  * another test
  * ref:												multiplication: 1801, 	additions:3108
  * after not computing the last proba for a domain: multiplication: 1693, 	additions:2910
+ *
+ * The counters are {@link LongAdder}s, so parallel inferences do not contend for the same
+ * fields, and they can be read from another thread while inference is running.
  * @author sam
  *
  */
@@ -29,37 +34,70 @@ public class InferencePerformanceUtils {
 	
 	public final boolean enabled = true;
 	
-	private int countMultiply = 0;
-	private int countAdditions = 0;
+	private final LongAdder countMultiply = new LongAdder();
+	private final LongAdder countAdditions = new LongAdder();
 	
-	private int cacheHit = 0;
-	private int cacheMiss = 0;
+	private final LongAdder cacheHit = new LongAdder();
+	private final LongAdder cacheMiss = new LongAdder();
 	
+	/**
+	 * count of the iterative computations which stopped before converging
+	 */
+	private final LongAdder notConverged = new LongAdder();
 	
+	/**
+	 * resets the counters; should be called when no inference is running
+	 */
 	public void reset() {
-		countMultiply = 0;
-		countAdditions = 0;
-		cacheHit = 0;
-		cacheMiss = 0;
+		countMultiply.reset();
+		countAdditions.reset();
+		cacheHit.reset();
+		cacheMiss.reset();
+		notConverged.reset();
 	}
 	
 	public void incAdditions() {
-		countAdditions++;
+		countAdditions.increment();
 	}
 	
 	public void incAdditions(int count) {
-		countAdditions += count;
+		countAdditions.add(count);
 	}
 	
 	public void incMultiplications() {
-		countMultiply++;
+		countMultiply.increment();
+	}
+	
+	public void incMultiplications(int count) {
+		countMultiply.add(count);
+	}
+	
+	public long getCountMultiplications() {
+		return countMultiply.sum();
+	}
+	
+	public long getCountAdditions() {
+		return countAdditions.sum();
+	}
+	
+	public long getCacheHits() {
+		return cacheHit.sum();
+	}
+	
+	public long getCacheMisses() {
+		return cacheMiss.sum();
+	}
+	
+	public long getCountNotConverged() {
+		return notConverged.sum();
 	}
 	
 	public void display(ILogger logger) {
-		logger.info("multiplication: "+countMultiply+
-				" additions:"+countAdditions
-				+ ", cache hits:"+cacheHit
-				+ " and miss:"+cacheMiss);
+		logger.info("multiplication: "+getCountMultiplications()+
+				" additions:"+getCountAdditions()
+				+ ", cache hits:"+getCacheHits()
+				+ " and miss:"+getCacheMisses()
+				+ (getCountNotConverged() > 0 ? ", not converged:"+getCountNotConverged() : ""));
 	}
 	
 	private InferencePerformanceUtils() {
@@ -67,11 +105,15 @@ public class InferencePerformanceUtils {
 	}
 
 	public void incCacheMiss() {
-		cacheMiss++;
+		cacheMiss.increment();
 	}
 
 	public void incCacheHit() {
-		cacheHit++;		
+		cacheHit.increment();
+	}
+
+	public void incNotConverged() {
+		notConverged.increment();
 	}
 
 }
@@ -0,0 +1,564 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cern.jet.random.engine.RandomEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * Inference engine based on a junction tree (Shafer-Shenoy propagation).
+ * The moral graph of the network is triangulated and organized as a tree
+ * of cliques once, when the engine is created. Then for each evidence set,
+ * a first pass of messages from the leaves to the root gives the probability
+ * of evidence, and a second pass from the root to the leaves (done only when
+ * posteriors are questioned) gives the posterior marginals of all the variables
+ * at once.
+ *
+ * Evidence is entered as indicator factors in the clique of each observed variable,
+ * so the structure of the tree and the factors of the network are never altered.
+ * The messages are kept from one evidence set to the next: only the ones depending
+ * on the variables whose evidence changed are computed again.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public class JunctionTreeInferenceEngine extends AbstractInferenceEngine {
+
+	public static final String ENGINE_NAME = "junction tree";
+
+	/**
+	 * the variables of each clique
+	 */
+	protected final List<Set<NodeCategorical>> cliques;
+
+	/**
+	 * the parent of each clique in the tree rooted on clique 0 (-1 for the root)
+	 */
+	protected final int[] parent;
+
+	/**
+	 * the children of each clique in the tree
+	 */
+	protected final int[][] children;
+
+	/**
+	 * the cliques in breadth first order from the root
+	 */
+	protected final int[] order;
+
+	/**
+	 * the separator between each clique and its parent
+	 */
+	protected final List<Set<NodeCategorical>> separators;
+
+	/**
+	 * the factors of the network assigned to each clique
+	 */
+	protected final List<List<Factor>> cliqueFactors;
+
+	/**
+	 * for each variable, the smallest clique containing it,
+	 * in which evidence will be entered and marginals read
+	 */
+	protected final Map<NodeCategorical,Integer> variable2clique;
+
+	// the state of propagation for the current evidence
+	protected Factor[] messagesUp;
+	protected Factor[] messagesDown;
+	protected Factor[] beliefs;
+	protected boolean distributed = false;
+	protected double pEvidence = 1.;
+	protected Map<NodeCategorical,double[]> variable2marginal = new HashMap<>();
+
+	/**
+	 * for each clique, the factors of the evidence entered there
+	 */
+	protected final List<List<Factor>> evidenceFactors;
+
+	/**
+	 * the evidence of the last propagation, or null if nothing was propagated yet
+	 */
+	protected Map<NodeCategorical,String> propagatedEvidence = null;
+
+	public JunctionTreeInferenceEngine(
+			ILogger logger,
+			RandomEngine random,
+			CategoricalBayesianNetwork bn) {
+
+		super(logger, random, bn);
+
+		// triangulate the moral graph
+		this.cliques = triangulate();
+
+		final int count = cliques.size();
+
+		// connect the cliques as a maximum spanning tree over the size of separators;
+		// as the cliques come from a triangulated graph, this tree has the running intersection property.
+		// separators of size 0 connect the disconnected parts of the network.
+		List<int[]> edges = new ArrayList<>(count*(count-1)/2);
+		final int[] separatorSizes = new int[count*count];
+		for (int i=0; i<count; i++) {
+			for (int j=i+1; j<count; j++) {
+				Set<NodeCategorical> inter = new HashSet<>(cliques.get(i));
+				inter.retainAll(cliques.get(j));
+				separatorSizes[i*count+j] = inter.size();
+				edges.add(new int[] { i, j });
+			}
+		}
+		edges.sort(Comparator.comparingInt(e -> -separatorSizes[e[0]*count+e[1]]));
+
+		final int[] component = new int[count];
+		for (int i=0; i<count; i++)
+			component[i] = i;
+		List<List<Integer>> neighboors = new ArrayList<>(count);
+		for (int i=0; i<count; i++)
+			neighboors.add(new LinkedList<>());
+		for (int[] e: edges) {
+			int ci = findComponent(component, e[0]);
+			int cj = findComponent(component, e[1]);
+			if (ci == cj)
+				continue;
+			component[ci] = cj;
+			neighboors.get(e[0]).add(e[1]);
+			neighboors.get(e[1]).add(e[0]);
+		}
+
+		// root the tree on the first clique
+		this.parent = new int[count];
+		this.children = new int[count][];
+		this.order = new int[count];
+		this.separators = new ArrayList<>(count);
+		Arrays.fill(parent, -1);
+		boolean[] visited = new boolean[count];
+		int head = 0, tail = 0;
+		if (count > 0) {
+			order[tail++] = 0;
+			visited[0] = true;
+		}
+		while (head < tail) {
+			final int c = order[head++];
+			List<Integer> childrenC = new ArrayList<>();
+			for (Integer k: neighboors.get(c)) {
+				if (visited[k])
+					continue;
+				visited[k] = true;
+				parent[k] = c;
+				childrenC.add(k);
+				order[tail++] = k;
+			}
+			children[c] = childrenC.stream().mapToInt(Integer::intValue).toArray();
+		}
+		for (int c=0; c<count; c++) {
+			Set<NodeCategorical> sep = new HashSet<>(cliques.get(c));
+			if (parent[c] >= 0)
+				sep.retainAll(cliques.get(parent[c]));
+			else
+				sep.clear();
+			separators.add(sep);
+		}
+
+		// home of each variable: the smallest clique which contains it
+		this.variable2clique = new HashMap<>();
+		for (NodeCategorical n: bn.enumerateNodes())
+			variable2clique.put(n, smallestCliqueContaining(Collections.singleton(n)));
+
+		// assign each factor of the network to a clique containing its family
+		final CompiledNetwork network = bn.getCompiled();
+		this.cliqueFactors = new ArrayList<>(count);
+		for (int c=0; c<count; c++)
+			cliqueFactors.add(new LinkedList<>());
+		for (NodeCategorical n: bn.enumerateNodes()) {
+			Set<NodeCategorical> family = new HashSet<>(n.getParents());
+			family.add(n);
+			int c = smallestCliqueContaining(family);
+			if (c < 0)
+				throw new RuntimeException("the junction tree contains no clique for the family of "+n+"; the triangulation is wrong");
+			cliqueFactors.get(c).add(network.getFactor(n));
+		}
+		this.evidenceFactors = new ArrayList<>(count);
+		for (int c=0; c<count; c++)
+			evidenceFactors.add(new LinkedList<>());
+
+		if (logger.isInfoEnabled())
+			logger.info("compiled a junction tree with "+count+" cliques, the biggest having "+
+					cliques.stream().mapToDouble(JunctionTreeInferenceEngine::cliqueSize).max().orElse(0)+" entries");
+	}
+
+	private static int findComponent(int[] component, int i) {
+		while (component[i] != i) {
+			component[i] = component[component[i]];
+			i = component[i];
+		}
+		return i;
+	}
+
+	private static double cliqueSize(Collection<NodeCategorical> clique) {
+		double size = 1.;
+		for (NodeCategorical n: clique)
+			size *= n.getDomainSize();
+		return size;
+	}
+
+	/**
+	 * Triangulates the moral graph by eliminating the variables in the greedy order 
+	 * of {@link EliminationOrderGreedy}. 
+	 * Returns the maximal clusters, which are the cliques of the triangulated graph.
+	 * @return
+	 */
+	protected List<Set<NodeCategorical>> triangulate() {
+
+		EliminationOrderGreedy.EliminationGraph graph = new EliminationOrderGreedy.EliminationGraph(bn);
+
+		List<Set<NodeCategorical>> res = new ArrayList<>();
+
+		for (NodeCategorical best: EliminationOrderGreedy.computeEliminationOrder(logger, bn)) {
+
+			// eliminate it
+			Set<NodeCategorical> neighboors = graph.eliminate(best);
+
+			// keep the cluster if it is maximal
+			Set<NodeCategorical> cluster = new HashSet<>(neighboors);
+			cluster.add(best);
+			boolean maximal = true;
+			for (Set<NodeCategorical> c: res) {
+				if (c.containsAll(cluster)) {
+					maximal = false;
+					break;
+				}
+			}
+			if (maximal)
+				res.add(cluster);
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("triangulation of the moral graph produced the cliques "+res);
+
+		return res;
+	}
+
+	/**
+	 * returns the index of the smallest clique containing all these variables,
+	 * or -1 if there is none
+	 * @param variables
+	 * @return
+	 */
+	protected int smallestCliqueContaining(Set<NodeCategorical> variables) {
+		int best = -1;
+		double bestSize = Double.MAX_VALUE;
+		for (int c=0; c<cliques.size(); c++) {
+			if (!cliques.get(c).containsAll(variables))
+				continue;
+			double size = cliqueSize(cliques.get(c));
+			if (size < bestSize) {
+				best = c;
+				bestSize = size;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Multiplies the factors and sums out all their variables but the ones to keep.
+	 * @param factors
+	 * @param toKeep
+	 * @return
+	 */
+	protected Factor multiplyAndKeep(List<Factor> factors, Set<NodeCategorical> toKeep) {
+
+		if (factors.isEmpty())
+			return new Factor(bn, Collections.emptySet());
+
+		Set<NodeCategorical> toSumOut = new HashSet<>();
+		for (Factor f: factors)
+			toSumOut.addAll(f.getVariables());
+		toSumOut.removeAll(toKeep);
+
+		return Factor.multiplyAndSumOut(factors, toSumOut);
+	}
+
+	/**
+	 * returns the factor encoding evidence n=v, that is 1 for v and 0 for other values
+	 * @param n
+	 * @param v
+	 * @return
+	 */
+	protected Factor createEvidenceFactor(NodeCategorical n, String v) {
+		double[] values = new double[n.getDomainSize()];
+		values[n.getDomainIndex(v)] = 1.;
+		return new Factor(bn, new NodeCategorical[] { n }, values);
+	}
+
+	/**
+	 * Collects the factors of the clique c: its own factors, the evidence entered there
+	 * and the messages received from all its neighboors but the one excluded.
+	 * @param c
+	 * @param excluded the neighboor which will receive the message, or -1 to collect all
+	 * @return
+	 */
+	protected List<Factor> collectFactors(int c, int excluded) {
+
+		List<Factor> res = new ArrayList<>(cliqueFactors.get(c));
+		res.addAll(evidenceFactors.get(c));
+		for (int k: children[c]) {
+			if (k != excluded)
+				res.add(messagesUp[k]);
+		}
+		if (parent[c] >= 0 && parent[c] != excluded)
+			res.add(messagesDown[c]);
+
+		return res;
+	}
+
+	/**
+	 * Propagates the evidence. Only the evidence which changed since the last propagation
+	 * is entered again, and only the messages depending on it are computed again:
+	 * a message sent up by a clique depends on the evidence entered below it, a message
+	 * sent down to a clique depends on the evidence entered out of its subtree.
+	 * So when consecutive evidence sets differ by a few variables (as when successive rows
+	 * of a table are processed), most of the messages are reused.
+	 */
+	@Override
+	public void compute() {
+
+		final int count = cliques.size();
+
+		// find the cliques in which evidence changed
+		Set<Integer> changed = new HashSet<>();
+		if (propagatedEvidence == null) {
+			for (int c=0; c<count; c++)
+				changed.add(c);
+			messagesUp = new Factor[count];
+			messagesDown = new Factor[count];
+			beliefs = new Factor[count];
+		} else {
+			for (Map.Entry<NodeCategorical,String> e: evidenceVariable2value.entrySet()) {
+				if (!e.getValue().equals(propagatedEvidence.get(e.getKey())))
+					changed.add(variable2clique.get(e.getKey()));
+			}
+			for (NodeCategorical n: propagatedEvidence.keySet()) {
+				if (!evidenceVariable2value.containsKey(n))
+					changed.add(variable2clique.get(n));
+			}
+		}
+
+		if (!changed.isEmpty()) {
+
+			// enter again the evidence of these cliques
+			for (Integer c: changed)
+				evidenceFactors.get(c).clear();
+			for (Map.Entry<NodeCategorical,String> e: evidenceVariable2value.entrySet()) {
+				final int c = variable2clique.get(e.getKey());
+				if (changed.contains(c))
+					evidenceFactors.get(c).add(createEvidenceFactor(e.getKey(), e.getValue()));
+			}
+
+			// count the changed cliques in each subtree to invalidate the messages depending on them
+			final int[] changedBelow = new int[count];
+			for (int i=count-1; i>=0; i--) {
+				final int c = order[i];
+				if (changed.contains(c))
+					changedBelow[c]++;
+				if (parent[c] >= 0)
+					changedBelow[parent[c]] += changedBelow[c];
+			}
+			for (int c=0; c<count; c++) {
+				if (changedBelow[c] > 0)
+					messagesUp[c] = null;
+				if (changedBelow[c] < changed.size())
+					messagesDown[c] = null;
+			}
+			Arrays.fill(beliefs, null);
+			variable2marginal.clear();
+			distributed = false;
+
+			// collect: messages from the leaves to the root
+			for (int i=count-1; i>0; i--) {
+				final int c = order[i];
+				if (messagesUp[c] == null) {
+					messagesUp[c] = multiplyAndKeep(collectFactors(c, parent[c]), separators.get(c));
+					InferencePerformanceUtils.singleton.incCacheMiss();
+				} else
+					InferencePerformanceUtils.singleton.incCacheHit();
+			}
+
+			// the probability of evidence is what remains at the root
+			if (count > 0)
+				pEvidence = multiplyAndKeep(collectFactors(order[0], -1), Collections.emptySet()).getUniqueValue();
+			else
+				pEvidence = 1.;
+
+			propagatedEvidence = new HashMap<>(evidenceVariable2value);
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("probability for evidence p("+evidenceVariable2value+")="+pEvidence+" (evidence changed in "+changed.size()+" cliques)");
+
+		super.compute();
+	}
+
+	/**
+	 * distributes the messages from the root to the leaves,
+	 * so the beliefs of every clique can be computed
+	 */
+	protected void distribute() {
+
+		if (dirty)
+			compute();
+
+		if (distributed)
+			return;
+
+		for (int i=1; i<order.length; i++) {
+			final int c = order[i];
+			if (messagesDown[c] == null) {
+				messagesDown[c] = multiplyAndKeep(collectFactors(parent[c], c), separators.get(c));
+				InferencePerformanceUtils.singleton.incCacheMiss();
+			} else
+				InferencePerformanceUtils.singleton.incCacheHit();
+		}
+
+		distributed = true;
+	}
+
+	/**
+	 * returns the belief of the clique c, that is the joint probability
+	 * of its variables with the evidence.
+	 * @param c
+	 * @return
+	 */
+	protected Factor getBelief(int c) {
+
+		distribute();
+
+		if (beliefs[c] == null)
+			beliefs[c] = multiplyAndKeep(collectFactors(c, -1), cliques.get(c));
+
+		return beliefs[c];
+	}
+
+	/**
+	 * returns the posterior marginal of the variable n
+	 * @param n
+	 * @return
+	 */
+	protected double[] getMarginal(NodeCategorical n) {
+
+		if (dirty)
+			compute();
+
+		double[] res = variable2marginal.get(n);
+		if (res == null) {
+
+			Factor f = getBelief(variable2clique.get(n)).reduceTo(Collections.singleton(n));
+
+			// as other engines, an impossible evidence leads to NaN posteriors
+			final double total = f.sum();
+
+			res = new double[n.getDomainSize()];
+			Map<NodeCategorical,String> instantiation = new HashMap<>(2);
+			for (int i=0; i<res.length; i++) {
+				instantiation.put(n, n.getValueIndexed(i));
+				res[i] = f.get(instantiation) / total;
+			}
+			variable2marginal.put(n, res);
+		}
+		return res;
+	}
+
+	@Override
+	protected double retrieveConditionalProbability(NodeCategorical n, String s) {
+
+		return getMarginal(n)[n.getDomainIndex(s)];
+	}
+
+	@Override
+	protected double[] retrieveConditionalProbability(NodeCategorical n) {
+
+		return getMarginal(n).clone();
+	}
+
+	@Override
+	protected double computeProbabilityEvidence() {
+
+		return pEvidence;
+	}
+
+	/**
+	 * Returns the joint probability of these variables and evidence,
+	 * if they all belong one clique.
+	 */
+	@Override
+	public Factor computeFactorPosteriorMarginals(Set<NodeCategorical> variables) {
+
+		int c = smallestCliqueContaining(variables);
+		if (c < 0)
+			return super.computeFactorPosteriorMarginals(variables);
+
+		Factor f = getBelief(c).reduceTo(variables);
+		if (f == beliefs[c])
+			f = f.clone();
+		f.reduce(evidenceVariable2value);
+		return f;
+	}
+
+	/**
+	 * Samples the cliques from the root to the leaves: the variables of each clique
+	 * are drawn from its belief knowing the values already drawn for its separator.
+	 */
+	@Override
+	public Map<NodeCategorical,String> sampleOne() {
+
+		if (dirty)
+			compute();
+
+		if (pEvidence == 0.0)
+			throw new IllegalArgumentException("cannot generate if the probability of evidence is 0 - evidence is not possible");
+
+		Map<NodeCategorical,String> res = new HashMap<>(bn.getNodes().size()*2);
+		Map<NodeCategorical,String> known = new HashMap<>();
+
+		for (int c: order) {
+
+			Factor f = getBelief(c);
+
+			known.clear();
+			for (NodeCategorical n: separators.get(c))
+				known.put(n, res.get(n));
+			if (!known.isEmpty())
+				f = f.reduction(known);
+
+			final double random = rng.nextDouble() * f.sum();
+
+			double cumulated = 0.;
+			int chosen = -1;
+			for (int i=0; i<f.size(); i++) {
+				if (f.getValue(i) == 0.)
+					continue;
+				chosen = i;
+				cumulated += f.getValue(i);
+				if (cumulated >= random)
+					break;
+			}
+			if (chosen < 0)
+				throw new RuntimeException("oops, should have picked values based on the belief of clique "+cliques.get(c)+" knowing "+known+", but they sum to 0");
+
+			res.putAll(f.getInstantiation(chosen));
+		}
+
+		return res;
+	}
+
+}
@@ -0,0 +1,385 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import cern.jet.random.engine.RandomEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+/**
+ * Approximate inference by loopy belief propagation on the factor graph of the network
+ * (one factor per CPT). All the messages are updated in parallel at each iteration
+ * (flooding schedule), optionally damped, until they change less than the tolerance
+ * or the count of iterations reaches the budget.
+ * The result is exact for polytrees; for other networks, it is an approximation which
+ * costs per iteration the size of the CPTs, whatever the width of the network, so it
+ * remains tractable when exact inference is not.
+ *
+ * The probability of evidence is estimated by the Bethe free energy of the beliefs.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public class LoopyBeliefPropagationEngine extends AbstractInferenceEngine {
+
+	public static final String ENGINE_NAME = "loopy belief propagation";
+
+	public static double DEFAULT_TOLERANCE = 1e-6;
+	public static double DEFAULT_DAMPING = 0.;
+	public static int DEFAULT_MAX_ITERATIONS = 200;
+
+	/**
+	 * below this count of edges, the messages are updated sequentially
+	 */
+	public static int PARALLEL_MIN_EDGES = 256;
+
+	protected double tolerance = DEFAULT_TOLERANCE;
+	protected double damping = DEFAULT_DAMPING;
+	protected int maxIterations = DEFAULT_MAX_ITERATIONS;
+
+	// the factor graph, with one factor per variable (its CPT)
+	protected final CompiledNetwork network;
+	protected final NodeCategorical[] variables;
+	protected final int[] cards;
+	protected final int[][] factorVariables;
+	protected final int[][] factorStrides;
+	protected final int[] factorFirstEdge;
+	protected final int[][] variableEdges;
+
+	// the edges between factors and variables
+	protected final int[] edgeFactor;
+	protected final int[] edgePosition;
+	protected final int[] edgeVariable;
+	protected final int[] edgeOffset;
+
+	// the state of propagation for the current evidence
+	protected final int[] evidence;
+	protected final double[] messagesToFactor;
+	protected final double[] messagesToVariable;
+	protected final double[] novelMessagesToVariable;
+	protected final double[] edgeDelta;
+	protected int iterations = 0;
+	protected boolean converged = false;
+	protected Double pEvidence = null;
+
+	public LoopyBeliefPropagationEngine(
+			ILogger logger,
+			RandomEngine random,
+			CategoricalBayesianNetwork bn) {
+
+		super(logger, random, bn);
+
+		this.network = bn.getCompiled();
+		final int count = network.size();
+		this.variables = network.getNodes();
+		this.cards = new int[count];
+		for (int i=0; i<count; i++)
+			cards[i] = network.getCard(i);
+
+		// each CPT is a factor over the variable (varying the fastest) then its parents, last one first
+		this.factorVariables = new int[count][];
+		this.factorStrides = new int[count][];
+		this.factorFirstEdge = new int[count];
+		int countEdges = 0;
+		for (int f=0; f<count; f++) {
+			final int countParents = network.countParents(f);
+			factorVariables[f] = new int[countParents+1];
+			factorStrides[f] = new int[countParents+1];
+			factorVariables[f][0] = f;
+			for (int p=0; p<countParents; p++)
+				factorVariables[f][countParents-p] = network.getParent(f, p);
+			int stride = 1;
+			for (int k=0; k<factorVariables[f].length; k++) {
+				factorStrides[f][k] = stride;
+				stride *= cards[factorVariables[f][k]];
+			}
+			factorFirstEdge[f] = countEdges;
+			countEdges += factorVariables[f].length;
+		}
+
+		// one edge per variable of each factor
+		this.edgeFactor = new int[countEdges];
+		this.edgePosition = new int[countEdges];
+		this.edgeVariable = new int[countEdges];
+		this.edgeOffset = new int[countEdges+1];
+		List<List<Integer>> variable2edges = new ArrayList<>(count);
+		for (int i=0; i<count; i++)
+			variable2edges.add(new ArrayList<>());
+		for (int f=0; f<count; f++) {
+			for (int k=0; k<factorVariables[f].length; k++) {
+				final int e = factorFirstEdge[f] + k;
+				edgeFactor[e] = f;
+				edgePosition[e] = k;
+				edgeVariable[e] = factorVariables[f][k];
+				edgeOffset[e+1] = edgeOffset[e] + cards[edgeVariable[e]];
+				variable2edges.get(edgeVariable[e]).add(e);
+			}
+		}
+		this.variableEdges = new int[count][];
+		for (int i=0; i<count; i++)
+			variableEdges[i] = variable2edges.get(i).stream().mapToInt(Integer::intValue).toArray();
+
+		this.evidence = new int[count];
+		this.messagesToFactor = new double[edgeOffset[countEdges]];
+		this.messagesToVariable = new double[edgeOffset[countEdges]];
+		this.novelMessagesToVariable = new double[edgeOffset[countEdges]];
+		this.edgeDelta = new double[countEdges];
+	}
+
+	public void setTolerance(double tolerance) {
+		if (tolerance <= 0)
+			throw new IllegalArgumentException("the tolerance should be positive");
+		this.tolerance = tolerance;
+		this.dirty = true;
+	}
+
+	/**
+	 * Sets the damping: at each iteration, a message becomes damping times its
+	 * previous value plus (1-damping) times its novel value. Damping helps
+	 * convergence on networks with many loops.
+	 * @param damping in [0,1[
+	 */
+	public void setDamping(double damping) {
+		if (damping < 0 || damping >= 1)
+			throw new IllegalArgumentException("the damping should be in [0,1[");
+		this.damping = damping;
+		this.dirty = true;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		if (maxIterations < 1)
+			throw new IllegalArgumentException("the count of iterations should be at least 1");
+		this.maxIterations = maxIterations;
+		this.dirty = true;
+	}
+
+	/**
+	 * returns the count of iterations of the last propagation
+	 * @return
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * returns true if the last propagation converged before reaching the max count of iterations
+	 * @return
+	 */
+	public boolean hasConverged() {
+		return converged;
+	}
+
+	private void forEachEdge(IntConsumer action) {
+		if (edgeDelta.length < PARALLEL_MIN_EDGES)
+			IntStream.range(0, edgeDelta.length).forEach(action);
+		else
+			IntStream.range(0, edgeDelta.length).parallel().forEach(action);
+	}
+
+	/**
+	 * the message from a variable to a factor is the product of the messages
+	 * received from the other factors and of the evidence on the variable
+	 * @param e
+	 */
+	protected void updateMessageToFactor(int e) {
+
+		final int v = edgeVariable[e];
+		final int offset = edgeOffset[e];
+		final int[] edgesOfV = variableEdges[v];
+		double total = 0.;
+		for (int x=0; x<cards[v]; x++) {
+			double p = evidence[v] < 0 || evidence[v] == x ? 1. : 0.;
+			for (int i=0; i<edgesOfV.length && p != 0.; i++) {
+				if (edgesOfV[i] != e)
+					p *= messagesToVariable[edgeOffset[edgesOfV[i]] + x];
+			}
+			messagesToFactor[offset+x] = p;
+			total += p;
+		}
+		if (total > 0.)
+			for (int x=0; x<cards[v]; x++)
+				messagesToFactor[offset+x] /= total;
+	}
+
+	/**
+	 * the message from a factor to a variable sums out the other variables of the
+	 * factor multiplied by the messages they sent.
+	 * The novel message is damped, and its change is stored for the edge.
+	 * @param e
+	 */
+	protected void updateMessageToVariable(int e) {
+
+		final int f = edgeFactor[e];
+		final int position = edgePosition[e];
+		final int[] vars = factorVariables[f];
+		final int[] strides = factorStrides[f];
+		final int size = network.getCPTSize(f);
+		final int first = factorFirstEdge[f];
+		final int offset = edgeOffset[e];
+		final int card = cards[vars[position]];
+
+		Arrays.fill(novelMessagesToVariable, offset, offset+card, 0.);
+		for (int idx=0; idx<size; idx++) {
+			double p = network.getProbability(f, idx);
+			for (int k=0; k<vars.length && p != 0.; k++) {
+				if (k != position)
+					p *= messagesToFactor[edgeOffset[first+k] + (idx / strides[k]) % cards[vars[k]]];
+			}
+			novelMessagesToVariable[offset + (idx / strides[position]) % card] += p;
+		}
+
+		double total = 0.;
+		for (int x=0; x<card; x++)
+			total += novelMessagesToVariable[offset+x];
+		double delta = 0.;
+		for (int x=0; x<card; x++) {
+			double m = total > 0. ? novelMessagesToVariable[offset+x] / total : 0.;
+			m = (1.-damping) * m + damping * messagesToVariable[offset+x];
+			delta = Math.max(delta, Math.abs(m - messagesToVariable[offset+x]));
+			novelMessagesToVariable[offset+x] = m;
+		}
+		edgeDelta[e] = delta;
+	}
+
+	@Override
+	public void compute() {
+
+		Arrays.fill(evidence, -1);
+		for (Map.Entry<NodeCategorical,String> e: evidenceVariable2value.entrySet())
+			evidence[network.getId(e.getKey())] = e.getKey().getDomainIndex(e.getValue());
+
+		// start from uniform messages
+		for (int e=0; e<edgeDelta.length; e++)
+			Arrays.fill(messagesToVariable, edgeOffset[e], edgeOffset[e+1], 1./cards[edgeVariable[e]]);
+
+		converged = false;
+		for (iterations=1; iterations<=maxIterations && !converged; iterations++) {
+			forEachEdge(this::updateMessageToFactor);
+			forEachEdge(this::updateMessageToVariable);
+			System.arraycopy(novelMessagesToVariable, 0, messagesToVariable, 0, messagesToVariable.length);
+			double maxDelta = 0.;
+			for (double d: edgeDelta)
+				maxDelta = Math.max(maxDelta, d);
+			converged = maxDelta < tolerance;
+		}
+		iterations--;
+		// the messages to factors consistent with the last messages to variables
+		forEachEdge(this::updateMessageToFactor);
+		pEvidence = null;
+
+		// counted rather than warned, as a node computes once per row: 
+		// the node warns once for all the rows
+		if (!converged) {
+			InferencePerformanceUtils.singleton.incNotConverged();
+			if (logger.isDebugEnabled())
+				logger.debug("loopy belief propagation did not converge after "+maxIterations+" iterations for evidence "+evidenceVariable2value+"; the probabilities are approximate");
+		} else if (logger.isDebugEnabled())
+			logger.debug("loopy belief propagation converged after "+iterations+" iterations");
+
+		super.compute();
+	}
+
+	/**
+	 * returns the belief of the variable of index v: its evidence
+	 * multiplied by the messages of its factors.
+	 * @param v
+	 * @param res
+	 */
+	protected void computeBelief(int v, double[] res) {
+
+		double total = 0.;
+		for (int x=0; x<cards[v]; x++) {
+			double p = evidence[v] < 0 || evidence[v] == x ? 1. : 0.;
+			for (int e: variableEdges[v])
+				p *= messagesToVariable[edgeOffset[e] + x];
+			res[x] = p;
+			total += p;
+		}
+		// as other engines, an impossible evidence leads to NaN posteriors
+		for (int x=0; x<cards[v]; x++)
+			res[x] /= total;
+	}
+
+	@Override
+	protected double retrieveConditionalProbability(NodeCategorical n, String s) {
+
+		return retrieveConditionalProbability(n)[n.getDomainIndex(s)];
+	}
+
+	@Override
+	protected double[] retrieveConditionalProbability(NodeCategorical n) {
+
+		if (dirty)
+			compute();
+
+		final int v = network.getId(n);
+		double[] res = new double[cards[v]];
+		computeBelief(v, res);
+		return res;
+	}
+
+	/**
+	 * Estimates the probability of evidence as the exponential of minus the Bethe free energy:
+	 * ln Z = sum over factors of (E[ln f] + H(b_f)) - sum over variables of (degree-1) H(b_v)
+	 */
+	@Override
+	protected double computeProbabilityEvidence() {
+
+		if (pEvidence != null)
+			return pEvidence;
+
+		double lnZ = 0.;
+
+		// factors: the belief of a factor is its value multiplied by the messages of its variables
+		for (int f=0; f<variables.length; f++) {
+			final int[] vars = factorVariables[f];
+			final int[] strides = factorStrides[f];
+			final int size = network.getCPTSize(f);
+			final int first = factorFirstEdge[f];
+			double total = 0.;
+			double sumBLnF = 0.;
+			double sumBLnB = 0.;
+			for (int idx=0; idx<size; idx++) {
+				double b = network.getProbability(f, idx);
+				for (int k=0; k<vars.length && b != 0.; k++)
+					b *= messagesToFactor[edgeOffset[first+k] + (idx / strides[k]) % cards[vars[k]]];
+				if (b == 0.)
+					continue;
+				total += b;
+				sumBLnF += b * Math.log(network.getProbability(f, idx));
+				sumBLnB += b * Math.log(b);
+			}
+			if (total == 0.) {
+				pEvidence = 0.;
+				return pEvidence;
+			}
+			// with b normalized: sum b ln f - sum b ln b
+			lnZ += sumBLnF / total - (sumBLnB / total - Math.log(total));
+		}
+
+		// variables
+		double[] belief = new double[Arrays.stream(cards).max().orElse(0)];
+		for (int v=0; v<variables.length; v++) {
+			final int degree = variableEdges[v].length;
+			if (degree <= 1)
+				continue;
+			computeBelief(v, belief);
+			double sumBLnB = 0.;
+			for (int x=0; x<cards[v]; x++)
+				if (belief[x] > 0.)
+					sumBLnB += belief[x] * Math.log(belief[x]);
+			lnZ += (degree - 1) * sumBLnB;
+		}
+
+		pEvidence = Math.exp(lnZ);
+		return pEvidence;
+	}
+
+}
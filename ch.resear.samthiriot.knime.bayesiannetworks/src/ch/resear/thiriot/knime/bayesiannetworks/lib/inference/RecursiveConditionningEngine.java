@@ -12,6 +12,8 @@ import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 
 public class RecursiveConditionningEngine extends AbstractInferenceEngine {
 
+	public static final String ENGINE_NAME = "recursive conditionning";
+
 	protected DNode dtreeWithoutEvidence = null;
 	private List<NodeCategorical> eliminationOrder = null;
 	
@@ -361,5 +363,10 @@ public class RecursiveConditionningEngine extends AbstractInferenceEngine {
 	
 		return sampled;
 	}
-	
+
+	@Override
+	protected boolean usesEvidenceSignaturePlans() {
+		return true;
+	}
+
 }
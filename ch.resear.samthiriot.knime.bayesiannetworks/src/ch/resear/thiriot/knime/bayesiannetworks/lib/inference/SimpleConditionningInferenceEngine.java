@@ -1,7 +1,7 @@
 package ch.resear.thiriot.knime.bayesiannetworks.lib.inference;
 
+import java.security.InvalidParameterException;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -12,7 +12,8 @@ import org.apache.commons.collections4.map.LRUMap;
 import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.IteratorCategoricalVariables;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.DomainCursor;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 
 /**
@@ -250,6 +251,26 @@ public class SimpleConditionningInferenceEngine extends AbstractInferenceEngine
 		res.put(nuisance, d);
 	}
 	
+	/**
+	 * returns the ids of the variables of a joint probability, the ones having the most zeros first
+	 * to stop the product as soon as possible; each variable should come with its parents.
+	 */
+	private int[] jointVariables(CompiledNetwork network, Set<NodeCategorical> known, Set<NodeCategorical> nuisance) {
+		
+		Set<NodeCategorical> all = new HashSet<>(known);
+		all.addAll(nuisance);
+		int[] ids = new int[all.size()];
+		int i = 0;
+		for (NodeCategorical n: bn.enumerateVariablesPerZeros()) {
+			if (!all.contains(n))
+				continue;
+			if (!all.containsAll(n.getParents()))
+				throw new InvalidParameterException("wrong parameters: expected values for each parent of "+n+": "+n.getParents());
+			ids[i++] = network.getId(n);
+		}
+		return ids;
+	}
+	
 	/**
 	 * Given a set of known values for variables, and the list of the remaining variables not 
 	 * covered by this evidence (refered to as nuisance variables),
@@ -279,15 +300,40 @@ public class SimpleConditionningInferenceEngine extends AbstractInferenceEngine
 		if (debug)
 			logger.debug("summing probabilities for nuisance "+known+", and known "+nuisanceS);
 
-		for (IteratorCategoricalVariables it = bn.iterateDomains(nuisanceS); it.hasNext(); ) {
+		// the joint probabilities are read from the CPTs of the compiled network:
+		// the known values are set once, then each combination of the nuisance variables
+		final CompiledNetwork network = bn.getCompiled();
+		final int[] values = new int[network.size()];
+		for (Map.Entry<NodeCategorical,String> e: known.entrySet()) {
+			final int id = network.getId(e.getKey());
+			values[id] = network.getValueIndex(id, e.getValue());
+		}
+		final int[] ids = jointVariables(network, known.keySet(), nuisanceS);
+		final DomainCursor cursor = new DomainCursor(nuisanceS);
+		final int[] nuisanceIds = new int[cursor.countVariables()];
+		for (int i=0; i<nuisanceIds.length; i++)
+			nuisanceIds[i] = network.getId(cursor.getVariable(i));
+		
+		while (cursor.next()) {
 			
-			Map<NodeCategorical,String> n2v = it.next();
-			n2v.putAll(known);
+			for (int i=0; i<nuisanceIds.length; i++)
+				values[nuisanceIds[i]] = cursor.get(i);
 			
-			double p = this.bn.jointProbability(n2v, Collections.emptyMap());
+			double p = 1.;
+			for (int id: ids) {
+				final double q = network.getProbability(id, values);
+				if (q == 0.) {
+					// optimisation: stop if multiplication by 0
+					p = 0.;
+					break;
+				} else if (q != 1.) {
+					p *= q;
+					InferencePerformanceUtils.singleton.incMultiplications();
+				}
+			}
 			
 			if (debug)
-				logger.debug("p("+n2v+")="+p);
+				logger.debug("p("+known+", "+cursor.toMap()+")="+p);
 			
 			res += p;
 			InferencePerformanceUtils.singleton.incAdditions();
@@ -455,8 +501,9 @@ public class SimpleConditionningInferenceEngine extends AbstractInferenceEngine
 		return res;
 	}
 
+	@Override
+	protected boolean usesEvidenceSignaturePlans() {
+		return true;
+	}
 
-
-	
-	
 }
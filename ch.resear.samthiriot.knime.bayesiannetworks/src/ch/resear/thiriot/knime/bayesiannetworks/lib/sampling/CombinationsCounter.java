@@ -0,0 +1,250 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.sampling;
+
+import java.util.Arrays;
+
+/**
+ * Counts the entities per distinct combination of values, each combination being the indices
+ * of the values of the nodes by id of a compiled network.
+ * It is a hash map of primitive types: the combinations are stored one after the other in one array
+ * of int, with their counts and hashes, and found through an open addressing index; so counting an entity
+ * allocates nothing, and the memory only depends on the count of distinct combinations.
+ * The combinations are kept in the order they were first counted.
+ *
+ * It is not thread safe: each thread should count into its own counter, then the counters can be
+ * merged with {@link #addAll(CombinationsCounter)}.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class CombinationsCounter {
+
+	/**
+	 * the count of values of a combination
+	 */
+	private final int width;
+
+	/**
+	 * the values of the combinations, one after the other
+	 */
+	private int[] values;
+
+	/**
+	 * the count of entities of each combination
+	 */
+	private int[] counts;
+
+	/**
+	 * the hash of each combination
+	 */
+	private int[] hashes;
+
+	/**
+	 * open addressing index of the combinations: each slot contains 1 + the index of the combination,
+	 * or 0 if empty. Its length is a power of two at least twice the count of combinations.
+	 */
+	private int[] slots;
+
+	private int size = 0;
+
+	private long entities = 0;
+
+	public CombinationsCounter(int width) {
+		this(width, 16);
+	}
+
+	/**
+	 * @param width the count of values of each combination
+	 * @param expected the count of distinct combinations expected
+	 */
+	public CombinationsCounter(int width, int expected) {
+
+		if (width < 0 || expected < 0)
+			throw new IllegalArgumentException("cannot count "+expected+" combinations of "+width+" values");
+		this.width = width;
+		final int capacity = Math.max(expected, 4);
+		this.values = new int[capacity * width];
+		this.counts = new int[capacity];
+		this.hashes = new int[capacity];
+		this.slots = new int[Integer.highestOneBit(capacity * 4 - 1)];
+	}
+
+	private static int hash(int[] values, int offset, int width) {
+		int h = 1;
+		for (int i=0; i<width; i++)
+			h = 31 * h + values[offset+i];
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * returns the slot of this combination, or the empty slot where it should be
+	 */
+	private int findSlot(int[] combination, int offset, int h) {
+		final int mask = slots.length - 1;
+		for (int i = h & mask; ; i = (i + 1) & mask) {
+			final int s = slots[i];
+			if (s == 0)
+				return i;
+			final int entry = s - 1;
+			if (hashes[entry] == h && equalsAt(entry, combination, offset))
+				return i;
+		}
+	}
+
+	private boolean equalsAt(int entry, int[] combination, int offset) {
+		final int start = entry * width;
+		for (int i=0; i<width; i++)
+			if (values[start+i] != combination[offset+i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * doubles the capacity and rebuilds the index
+	 */
+	private void grow() {
+
+		final int capacity = counts.length * 2;
+		values = Arrays.copyOf(values, capacity * width);
+		counts = Arrays.copyOf(counts, capacity);
+		hashes = Arrays.copyOf(hashes, capacity);
+
+		slots = new int[slots.length * 2];
+		final int mask = slots.length - 1;
+		for (int entry=0; entry<size; entry++) {
+			int i = hashes[entry] & mask;
+			while (slots[i] != 0)
+				i = (i + 1) & mask;
+			slots[i] = entry + 1;
+		}
+	}
+
+	/**
+	 * Adds entities having this combination of values
+	 * @param combination the array containing the values
+	 * @param offset the index of the first value of the combination in the array
+	 * @param count the count of entities, at least 1: every combination kept is written as a row
+	 */
+	public void add(int[] combination, int offset, int count) {
+
+		if (count <= 0)
+			throw new IllegalArgumentException("cannot count "+count+" entities");
+		if (offset < 0 || offset + width > combination.length)
+			throw new IllegalArgumentException("expecting "+width+" values from "+offset+" but got "+combination.length+" values");
+
+		final int h = hash(combination, offset, width);
+		int slot = findSlot(combination, offset, h);
+		if (slots[slot] != 0) {
+			final int entry = slots[slot] - 1;
+			counts[entry] = Math.addExact(counts[entry], count);
+		} else {
+			if (size == counts.length) {
+				grow();
+				slot = findSlot(combination, offset, h);
+			}
+			System.arraycopy(combination, offset, values, size * width, width);
+			counts[size] = count;
+			hashes[size] = h;
+			slots[slot] = ++size;
+		}
+		entities += count;
+	}
+
+	/**
+	 * Adds one entity having this combination of values
+	 * @param combination
+	 */
+	public void add(int[] combination) {
+		add(combination, 0, 1);
+	}
+
+	/**
+	 * Adds the entities counted by another counter
+	 * @param other
+	 */
+	public void addAll(CombinationsCounter other) {
+
+		if (other.width != width)
+			throw new IllegalArgumentException("cannot merge combinations of "+other.width+" values into combinations of "+width+" values");
+		for (int entry=0; entry<other.size; entry++)
+			add(other.values, entry * width, other.counts[entry]);
+	}
+
+	public int countVariables() {
+		return width;
+	}
+
+	/**
+	 * returns the count of distinct combinations
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * returns the count of entities, that is the sum of the counts of the combinations
+	 * @return
+	 */
+	public long countEntities() {
+		return entities;
+	}
+
+	/**
+	 * returns the value of index id of the combination of this index
+	 * @param entry the index of the combination, in the order they were counted first
+	 * @param id
+	 * @return
+	 */
+	public int get(int entry, int id) {
+		if (entry >= size)
+			throw new IndexOutOfBoundsException("no combination "+entry+" among "+size);
+		return values[entry * width + id];
+	}
+
+	/**
+	 * copies the values of the combination of this index into this array
+	 * @param entry
+	 * @param into
+	 */
+	public void get(int entry, int[] into) {
+		if (entry >= size)
+			throw new IndexOutOfBoundsException("no combination "+entry+" among "+size);
+		System.arraycopy(values, entry * width, into, 0, width);
+	}
+
+	/**
+	 * returns the count of entities of the combination of this index
+	 * @param entry
+	 * @return
+	 */
+	public int getCount(int entry) {
+		if (entry >= size)
+			throw new IndexOutOfBoundsException("no combination "+entry+" among "+size);
+		return counts[entry];
+	}
+
+	/**
+	 * returns the count of entities having this combination of values, 0 if none
+	 * @param combination
+	 * @return
+	 */
+	public int getCount(int[] combination) {
+		if (combination.length < width)
+			throw new IllegalArgumentException("expecting "+width+" values but got "+combination.length);
+		final int s = slots[findSlot(combination, 0, hash(combination, 0, width))];
+		return s == 0 ? 0 : counts[s-1];
+	}
+
+	public void clear() {
+		Arrays.fill(slots, 0);
+		size = 0;
+		entities = 0;
+	}
+
+	@Override
+	public String toString() {
+		return entities+" entities in "+size+" combinations of "+width+" values";
+	}
+
+}
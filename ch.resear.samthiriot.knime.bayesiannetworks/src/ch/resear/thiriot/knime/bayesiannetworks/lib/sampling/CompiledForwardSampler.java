@@ -0,0 +1,169 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.sampling;
+
+import cern.jet.random.engine.RandomEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.AliasTable;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+
+/**
+ * Ancestral sampling over a compiled network, with no inference engine and no evidence:
+ * the nodes are drawn by id, which is a topological order, from the alias table of the row
+ * of the CPT indexed by the values of their parents.
+ * Entities are written as the indices of the values of each node by id,
+ * one after the other in blocks of int or by column in an {@link EntitiesBlock},
+ * so nothing is allocated per entity.
+ *
+ * An instance is not thread-safe; create one per thread over the same compiled network,
+ * each with its own random engine.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class CompiledForwardSampler {
+
+	private final CompiledNetwork network;
+	private final RandomEngine random;
+
+	/**
+	 * for each node by id: its parents, their strides in its CPT, and its alias tables
+	 */
+	private final int[][] parents;
+	private final int[][] strides;
+	private final AliasTable[] tables;
+
+	public CompiledForwardSampler(CompiledNetwork network, RandomEngine random) {
+
+		this.network = network;
+		this.random = random;
+
+		final int count = network.size();
+		this.parents = new int[count][];
+		this.strides = new int[count][];
+		this.tables = new AliasTable[count];
+		for (int id=0; id<count; id++) {
+			parents[id] = network.getParents(id);
+			strides[id] = network.getParentStrides(id);
+			tables[id] = network.getAliasTable(id);
+		}
+	}
+
+	public CompiledNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * returns the count of values of each entity, that is the count of nodes
+	 * @return
+	 */
+	public int countVariables() {
+		return tables.length;
+	}
+
+	/**
+	 * Samples one entity at this offset of the array
+	 * @param values
+	 * @param offset
+	 */
+	private void sampleAt(final int[] values, final int offset) {
+
+		for (int id=0; id<tables.length; id++) {
+			final int[] pp = parents[id];
+			final int[] ss = strides[id];
+			int row = 0;
+			for (int p=0; p<pp.length; p++)
+				row += values[offset+pp[p]] * ss[p];
+			values[offset+id] = tables[id].sample(row, random.raw());
+		}
+	}
+
+	/**
+	 * Samples one entity into this array of the indices of values by id
+	 * @param values an array of at least {@link #countVariables()} ints
+	 */
+	public void sample(int[] values) {
+
+		if (values.length < tables.length)
+			throw new IllegalArgumentException("expecting an array of "+tables.length+" values but got "+values.length);
+		sampleAt(values, 0);
+	}
+
+	/**
+	 * Samples one entity into this assignment
+	 * @param into an assignment of the compiled network
+	 * @param buffer an array of at least {@link #countVariables()} ints, recycled from one call to the next
+	 */
+	public void sample(Assignment into, int[] buffer) {
+
+		if (into.getNetwork() != network)
+			throw new IllegalArgumentException("the assignment belongs another network");
+		sample(buffer);
+		into.setAll(buffer, 0);
+	}
+
+	/**
+	 * Samples several entities in a block: the values of the entity r are stored from
+	 * r * {@link #countVariables()}
+	 * @param block an array of at least count * {@link #countVariables()} ints
+	 * @param count the count of entities to sample
+	 */
+	public void sampleBlock(int[] block, int count) {
+
+		if (count < 0 || (long)count * tables.length > block.length)
+			throw new IllegalArgumentException("cannot store "+count+" entities of "+tables.length+" values in "+block.length+" ints");
+		for (int r=0, offset=0; r<count; r++, offset+=tables.length)
+			sampleAt(block, offset);
+	}
+
+	/**
+	 * Samples several entities at the end of a block of columns; each row is one entity
+	 * @param block a block of {@link #countVariables()} columns
+	 * @param count the count of entities to sample, at most the free rows of the block
+	 */
+	public void sampleBlock(EntitiesBlock block, int count) {
+
+		if (block.countVariables() != tables.length)
+			throw new IllegalArgumentException("expecting a block of "+tables.length+" columns but got "+block.countVariables());
+		if (count < 0 || count > block.capacity() - block.size())
+			throw new IllegalArgumentException("cannot add "+count+" entities to a "+block+" of capacity "+block.capacity());
+
+		final int[][] columns = block.columns();
+		final int first = block.size();
+		for (int r=first; r<first+count; r++) {
+			for (int id=0; id<tables.length; id++) {
+				final int[] pp = parents[id];
+				final int[] ss = strides[id];
+				int row = 0;
+				for (int p=0; p<pp.length; p++)
+					row += columns[pp[p]][r] * ss[p];
+				columns[id][r] = tables[id].sample(row, random.raw());
+			}
+		}
+		block.grow(count);
+	}
+
+	/**
+	 * Samples several entities and only counts them per combination of values;
+	 * the entities are the ones {@link #sampleBlock(int[], int)} would return
+	 * @param counter a counter of combinations of {@link #countVariables()} values
+	 * @param count the count of entities to sample
+	 */
+	public void sampleCounts(CombinationsCounter counter, int count) {
+
+		if (counter.countVariables() != tables.length)
+			throw new IllegalArgumentException("expecting combinations of "+tables.length+" values but got "+counter.countVariables());
+		if (count < 0)
+			throw new IllegalArgumentException("cannot sample "+count+" entities");
+
+		final int[] values = new int[tables.length];
+		for (int r=0; r<count; r++) {
+			sampleAt(values, 0);
+			counter.add(values, 0, 1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "forward sampler over the "+network;
+	}
+
+}
@@ -0,0 +1,195 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.sampling;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+
+/**
+ * Caches the conditional distributions computed during recursive sampling.
+ * The evidence of a recursive spliterator is always a prefix of the nodes in the order of
+ * {@link ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork#enumerateNodes()},
+ * which is the order of the ids of the compiled network: the node of depth d of the trie
+ * stands for the values of the nodes 0 to d-1, has one child per value of the node d,
+ * and stores the distribution of the node d given these values.
+ * The children of a prefix are only allocated once the first of them is kept.
+ *
+ * The distributions only depend on the network, so the same trie is reused by the split parts
+ * and by the threads of one sampling, and by the next samplings of the same compiled network
+ * (see {@link #reuseOrCreate(ConditionalDistributionsTrie, CompiledNetwork)}).
+ * Its size is bounded by {@link #CACHE_MAX_DISTRIBUTIONS}.
+ * It is safe to share between threads: when two threads compute the same distribution,
+ * one of the results is kept.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class ConditionalDistributionsTrie {
+
+	/**
+	 * the maximum count of distributions stored in one trie; beyond, the distributions
+	 * of the new prefixes are computed but not kept
+	 */
+	public static int CACHE_MAX_DISTRIBUTIONS = 1 << 18;
+
+	/**
+	 * The values of the first nodes of the network, and the distribution of the next node.
+	 */
+	public final class Prefix {
+
+		private final int depth;
+
+		private volatile double[] distribution = null;
+
+		/**
+		 * the prefix extended with each value of the node of this depth, created on demand
+		 */
+		private volatile AtomicReferenceArray<Prefix> children = null;
+
+		private Prefix(int depth) {
+			this.depth = depth;
+		}
+
+		/**
+		 * returns the count of nodes having a value, that is the id of the node
+		 * of the distribution
+		 * @return
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * returns the probability of each value of the node of id {@link #getDepth()}
+		 * given this prefix, or null if it was not computed yet. The array should not be modified.
+		 * @return
+		 */
+		public double[] getDistribution() {
+			return distribution;
+		}
+
+		/**
+		 * stores the distribution of the node of id {@link #getDepth()} given this prefix,
+		 * unless the trie is full or the distribution was stored already;
+		 * the array should not be modified afterwards
+		 * @param distribution
+		 */
+		public void setDistribution(double[] distribution) {
+			if (distribution.length != network.getCard(depth))
+				throw new IllegalArgumentException("expecting "+network.getCard(depth)+" probabilities for "+network.getNode(depth)+" but got "+distribution.length);
+			if (this.distribution != null || isFull())
+				return;
+			synchronized (this) {
+				if (this.distribution != null)
+					return;
+				this.distribution = distribution;
+			}
+			countDistributions.incrementAndGet();
+		}
+
+		/**
+		 * returns this prefix extended with the index of a value of the node of id {@link #getDepth()}
+		 * @param value
+		 * @return
+		 */
+		public Prefix child(int value) {
+
+			if (depth + 1 >= network.size())
+				throw new IllegalArgumentException("there is no node after "+network.getNode(depth));
+			AtomicReferenceArray<Prefix> current = children;
+			Prefix res = current == null ? null : current.get(value);
+			if (res != null)
+				return res;
+			res = new Prefix(depth+1);
+			if (isFull())
+				// full: this prefix is not kept
+				return res;
+			if (current == null) {
+				synchronized (this) {
+					if (children == null)
+						children = new AtomicReferenceArray<>(network.getCard(depth));
+					current = children;
+				}
+			}
+			if (current.compareAndSet(value, null, res)) {
+				countPrefixes.incrementAndGet();
+				return res;
+			}
+			// another thread created it meanwhile
+			return current.get(value);
+		}
+
+	}
+
+	private final CompiledNetwork network;
+
+	private final Prefix root;
+
+	private final AtomicInteger countPrefixes = new AtomicInteger(1);
+
+	private final AtomicInteger countDistributions = new AtomicInteger(0);
+
+	public ConditionalDistributionsTrie(CompiledNetwork network) {
+		if (network.size() == 0)
+			throw new IllegalArgumentException("cannot sample a network without nodes");
+		this.network = network;
+		this.root = new Prefix(0);
+	}
+
+	/**
+	 * returns the previous trie if it was built for this compiled network, 
+	 * so the distributions it holds are reused, or a new empty trie else. 
+	 * As a network creates a new compiled network when it changes, 
+	 * the distributions of the previous state of a network are never reused. 
+	 * @param previous the trie of the previous sampling, or null
+	 * @param network
+	 * @return
+	 */
+	public static ConditionalDistributionsTrie reuseOrCreate(ConditionalDistributionsTrie previous, CompiledNetwork network) {
+		if (previous != null && previous.network == network)
+			return previous;
+		return new ConditionalDistributionsTrie(network);
+	}
+
+	public CompiledNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * returns the empty prefix, which stores the distribution of the first node
+	 * @return
+	 */
+	public Prefix getRoot() {
+		return root;
+	}
+
+	/**
+	 * returns the count of prefixes stored in the trie
+	 * @return
+	 */
+	public int countPrefixes() {
+		return countPrefixes.get();
+	}
+
+	/**
+	 * returns the count of distributions stored in the trie
+	 * @return
+	 */
+	public int countDistributions() {
+		return countDistributions.get();
+	}
+
+	/**
+	 * returns true if the trie stores as many distributions as {@link #CACHE_MAX_DISTRIBUTIONS}
+	 * @return
+	 */
+	public boolean isFull() {
+		return countDistributions.get() >= CACHE_MAX_DISTRIBUTIONS;
+	}
+
+	@Override
+	public String toString() {
+		return countDistributions()+" conditional distributions for "+countPrefixes()+" prefixes of "+network;
+	}
+
+}
@@ -2,18 +2,36 @@ package ch.resear.thiriot.knime.bayesiannetworks.lib.sampling;
 
 import java.util.Map;
 
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 
 public class EntitiesAndCount {
 
 	public final Map<NodeCategorical,String> node2value;
 	public final Integer count;
-	
+
+	/**
+	 * the values as an assignment, or null if the entities were generated as a map
+	 */
+	public final Assignment assignment;
+
 	public EntitiesAndCount(Map<NodeCategorical,String> node2value, Integer count) {
 		this.node2value = node2value;
 		this.count = count;
+		this.assignment = null;
+	}
+
+	/**
+	 * Entities generated as an assignment; node2value is then a view of the assignment
+	 * @param assignment
+	 * @param count
+	 */
+	public EntitiesAndCount(Assignment assignment, Integer count) {
+		this.node2value = assignment.asMap();
+		this.count = count;
+		this.assignment = assignment;
 	}
-	
+
 	@Override
 	public String toString() {
 		return count + " X "+node2value;
@@ -0,0 +1,148 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.sampling;
+
+import java.util.Arrays;
+
+/**
+ * A block of sampled entities stored by column: for each node by id of the compiled network,
+ * the index of the value of each row, plus the count of entities each row stands for.
+ * Samplers fill blocks and writers convert them to tables, with no object per entity;
+ * a block is allocated once and recycled with {@link #clear()}.
+ *
+ * It is mutable and not thread safe: it should be handed from one thread to another
+ * through a synchronized structure such as a blocking queue.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class EntitiesBlock {
+
+	/**
+	 * for each node by id, the index of its value in each row
+	 */
+	private final int[][] columns;
+
+	/**
+	 * for each row, the count of entities having these values
+	 */
+	private final int[] counts;
+
+	private int size = 0;
+
+	public EntitiesBlock(int countVariables, int capacity) {
+
+		if (countVariables < 0 || capacity < 0)
+			throw new IllegalArgumentException("cannot create a block of "+capacity+" rows of "+countVariables+" values");
+		this.columns = new int[countVariables][capacity];
+		this.counts = new int[capacity];
+	}
+
+	public int countVariables() {
+		return columns.length;
+	}
+
+	/**
+	 * returns the maximum count of rows
+	 * @return
+	 */
+	public int capacity() {
+		return counts.length;
+	}
+
+	/**
+	 * returns the count of rows
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean isFull() {
+		return size == counts.length;
+	}
+
+	/**
+	 * returns the count of entities in the block, that is the sum of the counts of the rows
+	 * @return
+	 */
+	public long countEntities() {
+		long res = 0;
+		for (int r=0; r<size; r++)
+			res += counts[r];
+		return res;
+	}
+
+	/**
+	 * returns the index of the value of the node of this id in this row
+	 * @param row
+	 * @param id
+	 * @return
+	 */
+	public int get(int row, int id) {
+		if (row >= size)
+			throw new IndexOutOfBoundsException("no row "+row+" in a block of "+size+" rows");
+		return columns[id][row];
+	}
+
+	/**
+	 * returns the count of entities of this row
+	 * @param row
+	 * @return
+	 */
+	public int getCount(int row) {
+		if (row >= size)
+			throw new IndexOutOfBoundsException("no row "+row+" in a block of "+size+" rows");
+		return counts[row];
+	}
+
+	/**
+	 * Appends a row
+	 * @param values the indices of the values of the nodes by id
+	 * @param count the count of entities having these values
+	 * @return the index of the row
+	 */
+	public int add(int[] values, int count) {
+
+		if (isFull())
+			throw new IllegalStateException("the block is full");
+		if (values.length < columns.length)
+			throw new IllegalArgumentException("expecting "+columns.length+" values but got "+values.length);
+		if (count <= 0)
+			throw new IllegalArgumentException("a row should stand for at least one entity");
+		for (int id=0; id<columns.length; id++)
+			columns[id][size] = values[id];
+		counts[size] = count;
+		return size++;
+	}
+
+	/**
+	 * the columns, for the samplers which write the values in place before calling {@link #grow(int)}
+	 */
+	int[][] columns() {
+		return columns;
+	}
+
+	/**
+	 * adds these rows, whose values were written in place, each standing for one entity
+	 */
+	void grow(int count) {
+		Arrays.fill(counts, size, size+count, 1);
+		size += count;
+	}
+
+	/**
+	 * removes all the rows, to fill the block again
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "block of "+size+" rows of "+columns.length+" values";
+	}
+
+}
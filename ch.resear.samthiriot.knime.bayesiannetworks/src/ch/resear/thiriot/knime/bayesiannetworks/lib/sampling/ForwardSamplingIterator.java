@@ -1,26 +1,42 @@
 package ch.resear.thiriot.knime.bayesiannetworks.lib.sampling;
 
 import java.util.Iterator;
-import java.util.Map;
+import java.util.NoSuchElementException;
 
 import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
 
 // TODO make it splititerator ?
 
+/**
+ * Samples entities by drawing the value of each node in topological order knowing 
+ * the values of its parents, using the alias tables of the compiled network: 
+ * one table lookup and one uniform number per variable (see {@link CompiledForwardSampler}).
+ * 
+ * @author Samuel Thiriot
+ *
+ */
 public class ForwardSamplingIterator implements Iterator<EntitiesAndCount> {
 	
 	public static final String GENERATION_METHOD_NAME = "forward sampling";
+	
+	/**
+	 * the name of the forward sampling which counts the entities per combination of values 
+	 * (see {@link CombinationsCounter}), so one row is created per distinct combination
+	 */
+	public static final String GENERATION_METHOD_NAME_GROUPED = "forward sampling with counts";
 
-	private final RandomEngine random;
-	private final CategoricalBayesianNetwork bn;
+	private final CompiledNetwork network;
+	private final CompiledForwardSampler sampler;
 	private final int count;
 	
-	private final AbstractInferenceEngine engine;
+	/**
+	 * the index of the values sampled for the last entity
+	 */
+	private final int[] values;
 	
 	private int done;
 	
@@ -31,11 +47,10 @@ public class ForwardSamplingIterator implements Iterator<EntitiesAndCount> {
 			ILogger logger
 			) {
 		
-		this.random = random;
-		this.bn = bn;
+		this.network = bn.getCompiled();
+		this.sampler = new CompiledForwardSampler(network, random);
 		this.count = count;
-		
-		this.engine = new SimpleConditionningInferenceEngine(logger, random, bn);
+		this.values = new int[network.size()];
 		
 		done = 0;
 	}
@@ -48,11 +63,24 @@ public class ForwardSamplingIterator implements Iterator<EntitiesAndCount> {
 	@Override
 	public EntitiesAndCount next() {
 		
-    	Map<NodeCategorical,String> variable2value = engine.sampleOne();
-    	done++;
+		Assignment variable2value = new Assignment(network);
+		next(variable2value);
     	
     	return new EntitiesAndCount(variable2value, 1);
     	
 	}
+	
+	/**
+	 * Samples the next entity into this assignment, which can be recycled from one entity to the next
+	 * @param into an assignment of the compiled network of the Bayesian network
+	 */
+	public void next(Assignment into) {
+		
+		if (done >= count)
+			throw new NoSuchElementException();
+		
+		sampler.sample(into, values);
+		done++;
+	}
 
 }
@@ -7,28 +7,53 @@ import java.util.Map;
 import org.knime.core.node.ExecutionMonitor;
 
 import cern.jet.random.Binomial;
+import cern.jet.random.engine.MersenneTwister;
+import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEnginesPerThread;
 
 public final class MultinomialRecursiveSamplingSpliterator 
 					extends RecursiveSamplingSpliterator<Binomial> {
 
 	public static final String GENERATION_METHOD_NAME = "multinomial sampling";
 
-	public MultinomialRecursiveSamplingSpliterator(int count, CategoricalBayesianNetwork bn, Binomial rng,
+	/**
+	 * the random engine of the binomial law, used to create the independent generators 
+	 * of the spliterators split from this one
+	 */
+	private final RandomEngine random;
+	
+	public MultinomialRecursiveSamplingSpliterator(int count, CategoricalBayesianNetwork bn, RandomEngine random,
 			AbstractInferenceEngine engine, ExecutionMonitor exec, ILogger ilogger) {
-		this(count, bn.enumerateNodes(), rng, engine, exec, ilogger);
+		this(count, bn, random, enginesFor(engine, ilogger), exec, ilogger);
 	}
 
-	protected MultinomialRecursiveSamplingSpliterator(int count, List<NodeCategorical> nodes, Binomial rng,
-			AbstractInferenceEngine engine, ExecutionMonitor exec, ILogger ilogger) {
+	public MultinomialRecursiveSamplingSpliterator(int count, CategoricalBayesianNetwork bn, RandomEngine random,
+			InferenceEnginesPerThread engines, ExecutionMonitor exec, ILogger ilogger) {
+		this(count, bn, random, engines, new ConditionalDistributionsTrie(bn.getCompiled()), exec, ilogger);
+	}
+
+	/**
+	 * Samples with the inference engine of each thread, reusing the distributions computed before 
+	 * for the same network 
+	 */
+	public MultinomialRecursiveSamplingSpliterator(int count, CategoricalBayesianNetwork bn, RandomEngine random,
+			InferenceEnginesPerThread engines, ConditionalDistributionsTrie distributions, 
+			ExecutionMonitor exec, ILogger ilogger) {
+		this(count, bn.enumerateNodes(), random, engines, rootOf(distributions, bn), exec, ilogger);
+	}
+
+	protected MultinomialRecursiveSamplingSpliterator(int count, List<NodeCategorical> nodes, RandomEngine random,
+			InferenceEnginesPerThread engines, ConditionalDistributionsTrie.Prefix prefix, 
+			ExecutionMonitor exec, ILogger ilogger) {
 		this(count, nodes.get(0), nodes.subList(1, nodes.size()),
-				Collections.emptyMap(), Collections.emptyMap(),
-				rng,
-				engine,
+				Collections.emptyMap(), prefix,
+				new Binomial(42, 0.1, random),
+				random,
+				engines,
 				exec,
 				ilogger,
 				"",
@@ -37,35 +62,38 @@ public final class MultinomialRecursiveSamplingSpliterator
 	}
 
 	protected MultinomialRecursiveSamplingSpliterator(int count, NodeCategorical n, List<NodeCategorical> remaining,
-			Map<NodeCategorical, String> evidence, Map<NodeCategorical, Map<String, Double>> alreadyComputed,
-			Binomial rng, AbstractInferenceEngine engine, ExecutionMonitor exec, ILogger ilogger, String name,
+			Map<NodeCategorical, String> evidence, ConditionalDistributionsTrie.Prefix prefix,
+			Binomial rng, RandomEngine random, InferenceEnginesPerThread engines, ExecutionMonitor exec, ILogger ilogger, String name,
 			List<String> domain) {
-		super(count, n, remaining, evidence, alreadyComputed, rng, engine, exec, ilogger, name, domain);
+		super(count, n, remaining, evidence, prefix, rng, engines, exec, ilogger, name, domain);
+		this.random = random;
 	}
 	
 	protected MultinomialRecursiveSamplingSpliterator(int count, NodeCategorical n, List<NodeCategorical> remaining,
-			Map<NodeCategorical, String> evidence, Map<NodeCategorical, Map<String, Double>> alreadyComputed,
-			Binomial rng, AbstractInferenceEngine engine, ExecutionMonitor exec, ILogger ilogger, String name,
+			Map<NodeCategorical, String> evidence, ConditionalDistributionsTrie.Prefix prefix,
+			Binomial rng, RandomEngine random, InferenceEnginesPerThread engines, ExecutionMonitor exec, ILogger ilogger, String name,
 			List<String> domain,
 			Map<String,Integer> value2count
 			) {
-		super(count, n, remaining, evidence, alreadyComputed, rng, engine, exec, ilogger, name, domain,
+		super(count, n, remaining, evidence, prefix, rng, engines, exec, ilogger, name, domain,
 				value2count);
+		this.random = random;
 	}
 	
 
 	@Override
 	protected RecursiveSamplingSpliterator<Binomial> createSubIterator(int count, NodeCategorical n, List<NodeCategorical> remaining,
-			Map<NodeCategorical, String> evidence, Map<NodeCategorical, Map<String, Double>> alreadyComputed,
+			Map<NodeCategorical, String> evidence, ConditionalDistributionsTrie.Prefix prefix,
 			List<String> domain) {
 		return new MultinomialRecursiveSamplingSpliterator(
 				count, 
 				n, 
 				remaining, 
 				evidence, 
-				alreadyComputed, 
+				prefix, 
 				rng, 
-				engine, 
+				random,
+				engines, 
 				exec, 
 				logger, 
 				name, 
@@ -76,17 +104,23 @@ public final class MultinomialRecursiveSamplingSpliterator
 	@Override
 	protected RecursiveSamplingSpliterator<Binomial> createSubIterator(int count, NodeCategorical n,
 			List<NodeCategorical> remaining, Map<NodeCategorical, String> evidence,
-			Map<NodeCategorical, Map<String, Double>> alreadyComputed, List<String> otherDomain,
+			ConditionalDistributionsTrie.Prefix prefix, List<String> otherDomain,
 			Map<String, Integer> value2count) {
 		
+		// the split part might be explored by another thread: it gets its own generator,
+		// seeded here so the result only depends on the seed and on the splits;
+		// it will use the inference engine of the thread exploring it
+		final RandomEngine otherRandom = new MersenneTwister(random.nextInt());
+		
 		return new MultinomialRecursiveSamplingSpliterator(
 				count, 
 				n, 
 				remaining, 
 				evidence, 
-				alreadyComputed, 
-				rng, 
-				new SimpleConditionningInferenceEngine(logger, null, engine.getBN()), 
+				prefix, 
+				new Binomial(42, 0.1, otherRandom), 
+				otherRandom,
+				engines, 
 				exec, 
 				logger, 
 				name, 
@@ -0,0 +1,95 @@
+package ch.resear.thiriot.knime.bayesiannetworks.lib.sampling;
+
+import cern.jet.random.engine.RandomEngine;
+
+/**
+ * Independent streams of random numbers derived from one seed: the stream of index i is
+ * a SplitMix64 generator starting from a 64 bits mix of the seed and i, so it does not depend 
+ * on the streams used before, nor on the thread using it. The mix is a bijection, so two 
+ * indices never share the same seed.
+ * Sampling the block of entities i with the stream i produces the same entities whatever the
+ * count of threads sharing the work.
+ *
+ * It has no mutable state and is safe to share between threads; each stream should only
+ * be used by one thread.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+public final class RandomStreams {
+
+	/**
+	 * the increment of the SplitMix64 generator
+	 */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private final long seed;
+
+	public RandomStreams(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * the finalizer of SplitMix64: consecutive inputs lead to unrelated outputs
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * The SplitMix64 generator (Steele, Lea and Flood, 2014): its state of 64 bits is 
+	 * incremented by the golden gamma, and each output is the mix of the state.
+	 */
+	private static final class SplitMix64 extends RandomEngine {
+
+		private static final long serialVersionUID = 1L;
+
+		private long state;
+
+		private SplitMix64(long seed) {
+			this.state = seed;
+		}
+
+		@Override
+		public long nextLong() {
+			state += GOLDEN_GAMMA;
+			return mix(state);
+		}
+
+		@Override
+		public int nextInt() {
+			return (int)(nextLong() >>> 32);
+		}
+	}
+
+	/**
+	 * returns the seed of the stream of this index, all the 64 bits of which are used
+	 * @param index
+	 * @return
+	 */
+	public long getStreamSeed(long index) {
+		return mix(seed + GOLDEN_GAMMA * (index + 1));
+	}
+
+	/**
+	 * returns a new random engine for the stream of this index; two calls with the same index
+	 * return engines producing the same numbers.
+	 * @param index
+	 * @return
+	 */
+	public RandomEngine getStream(long index) {
+		return new SplitMix64(getStreamSeed(index));
+	}
+
+	@Override
+	public String toString() {
+		return "random streams of seed "+seed;
+	}
+
+}
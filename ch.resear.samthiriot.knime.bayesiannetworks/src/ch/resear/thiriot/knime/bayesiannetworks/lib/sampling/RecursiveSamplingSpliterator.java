@@ -17,12 +17,20 @@ import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEnginesPerThread;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferencePerformanceUtils;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
 
 /**
  * Samples from a Bayesian network recursively, by exploring first the root variable, 
  * then defining somehow how many entities to generate for each value of the domain,
  * then recursively defining the counts for the other variables.
  * 
+ * The conditional probabilities are computed by the inference engine of the thread
+ * exploring the spliterator, so the parts split from it can be explored in parallel.
+ * They are kept in a {@link ConditionalDistributionsTrie} shared by all the spliterators
+ * sampling the same network, so they are only computed once per evidence.
+ * 
  * @author Samuel Thiriot
  * 
  * @param <R>
@@ -54,9 +62,16 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 	private final Map<NodeCategorical,String> evidence;
 	private final List<NodeCategorical> remaining;
 	
-	private final Map<NodeCategorical,Map<String,Double>> alreadyComputedNow;
+	/**
+	 * the values of the evidence in the cache of the conditional distributions
+	 */
+	private final ConditionalDistributionsTrie.Prefix prefix;
 	
-	protected final AbstractInferenceEngine engine;
+	/**
+	 * the inference engines shared by this spliterator, its subs and its split parts: 
+	 * each thread uses its own
+	 */
+	protected final InferenceEnginesPerThread engines;
 	
 	private int count;
 	
@@ -64,25 +79,55 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 			int count, 
 			CategoricalBayesianNetwork bn, 
 			R rng,
-			AbstractInferenceEngine engine,
+			InferenceEnginesPerThread engines,
 			ExecutionMonitor exec,
 			ILogger ilogger) {
 		
-		this(count, bn.enumerateNodes(), rng, engine, exec, ilogger);
+		this(count, bn.enumerateNodes(), rng, engines, 
+				new ConditionalDistributionsTrie(bn.getCompiled()).getRoot(), 
+				exec, ilogger);
+	}
+	
+	/**
+	 * returns engines using this engine in the current thread, and a {@link SimpleConditionningInferenceEngine}
+	 * in the other threads
+	 * @param engine
+	 * @param ilogger
+	 * @return
+	 */
+	protected static InferenceEnginesPerThread enginesFor(AbstractInferenceEngine engine, ILogger ilogger) {
+		return new InferenceEnginesPerThread(
+				engine, 
+				bn -> new SimpleConditionningInferenceEngine(ilogger, null, bn));
+	}
+	
+	/**
+	 * returns the empty prefix of these distributions, after checking they were computed for this network
+	 * @param distributions
+	 * @param bn
+	 * @return
+	 */
+	protected static ConditionalDistributionsTrie.Prefix rootOf(
+			ConditionalDistributionsTrie distributions, 
+			CategoricalBayesianNetwork bn) {
+		if (distributions.getNetwork() != bn.getCompiled())
+			throw new IllegalArgumentException("the distributions were computed for another state of the network "+bn);
+		return distributions.getRoot();
 	}
 
 	protected RecursiveSamplingSpliterator(
 			int count, 
 			List<NodeCategorical> nodes, 
 			R rng,
-			AbstractInferenceEngine engine,
+			InferenceEnginesPerThread engines,
+			ConditionalDistributionsTrie.Prefix prefix,
 			ExecutionMonitor exec,
 			ILogger ilogger) {
 		
 		this(count, nodes.get(0), nodes.subList(1, nodes.size()),
-			Collections.emptyMap(), Collections.emptyMap(),
+			Collections.emptyMap(), prefix,
 			rng,
-			engine,
+			engines,
 			exec,
 			ilogger,
 			"",
@@ -96,9 +141,9 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 	protected RecursiveSamplingSpliterator(
 			int count, NodeCategorical n, List<NodeCategorical> remaining,
 			Map<NodeCategorical,String> evidence,
-			Map<NodeCategorical,Map<String,Double>> alreadyComputed,
+			ConditionalDistributionsTrie.Prefix prefix,
 			R rng,
-			AbstractInferenceEngine engine,
+			InferenceEnginesPerThread engines,
 			ExecutionMonitor exec,
 			ILogger ilogger,
 			String name,
@@ -112,7 +157,7 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 		this.evidence = evidence;
 		this.remaining = remaining;
 		this.logger = ilogger;
-		this.engine = engine;
+		this.engines = engines;
 		this.debug = ilogger.isDebugEnabled();
 		this.count =  count;
 		this.domainToExplore = new ArrayList<>(domainToExplore);
@@ -125,37 +170,38 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 			logger.debug("iterator "+this.name+(remaining.isEmpty()?" -| ":"")+" (generate "+count+")"); 
 			logger.debug("\tcomputing p("+n.name+"|"+evidence.entrySet().stream().map(e -> e.getKey().name+"="+e.getValue()).collect(Collectors.joining(","))+")");
 		}
-		engine.clearEvidence();
-		engine.addEvidence(evidence);
-		double[] probabilities; 
-		try {
-			probabilities = node.getDomain()
-										.stream()
-										.mapToDouble(
-												s -> engine.getConditionalProbability(node, s) // n.getConditionalProbabilityPosterior(s, evidence, alreadyComputed)
-										).toArray();
-			if (debug) {
-				logger.debug("\tprobabilities: "+java.util.Arrays.toString(probabilities));
+		this.prefix = prefix;
+		double[] probabilities = prefix.getDistribution();
+		if (probabilities != null) {
+			// already computed for the same evidence
+			InferencePerformanceUtils.singleton.incCacheHit();
+		} else {
+			InferencePerformanceUtils.singleton.incCacheMiss();
+			final AbstractInferenceEngine engine = engines.get();
+			engine.clearEvidence();
+			engine.addEvidence(evidence);
+			try {
+				probabilities = node.getDomain()
+											.stream()
+											.mapToDouble(
+													s -> engine.getConditionalProbability(node, s)
+											).toArray();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				throw new RuntimeException(
+						"error when computing conditional probabilities for variable "+node+": "+e.getMessage()
+						, e);
 			}
-		} catch (RuntimeException e) {
-			e.printStackTrace();
-			throw new RuntimeException(
-					"error when computing conditional probabilities for variable "+node+": "+e.getMessage()
-					, e);
+			if (Double.isNaN(probabilities[0])) {
+				throw new RuntimeException("unable to compute p("+n.name+"|"+evidence.entrySet().stream().map(e -> e.getKey().name+"="+e.getValue()).collect(Collectors.joining(","))+")");
+			}
+			prefix.setDistribution(probabilities);
 		}
-		if (Double.isNaN(probabilities[0])) {
-			throw new RuntimeException("unable to compute p("+n.name+"|"+evidence.entrySet().stream().map(e -> e.getKey().name+"="+e.getValue()).collect(Collectors.joining(","))+")");
+		if (debug) {
+			logger.debug("\tprobabilities: "+java.util.Arrays.toString(probabilities));
 		}
 		//System.out.println("probabilities:\t "+java.util.Arrays.toString(probabilities));
 		
-		// add out values to what was already computed
-		alreadyComputedNow = new HashMap<>(alreadyComputed);
-		Map<String,Double> node2v = new HashMap<>();
-		for (int i=0; i<probabilities.length; i++) {
-			node2v.put(n.getDomain(i), probabilities[i]);
-		}
-		alreadyComputedNow.put(n, node2v);
-		
 		int[] counts;
 		try {
 			counts = getCounts(count, probabilities);
@@ -191,9 +237,9 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 	protected RecursiveSamplingSpliterator(
 			int count, NodeCategorical n, List<NodeCategorical> remaining,
 			Map<NodeCategorical,String> evidence,
-			Map<NodeCategorical,Map<String,Double>> alreadyComputed,
+			ConditionalDistributionsTrie.Prefix prefix,
 			R rng,
-			AbstractInferenceEngine engine,
+			InferenceEnginesPerThread engines,
 			ExecutionMonitor exec,
 			ILogger ilogger,
 			String name,
@@ -208,13 +254,12 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 		this.evidence = evidence;
 		this.remaining = remaining;
 		this.logger = ilogger;
-		this.engine = engine;
-		this.debug = true; //ilogger.isDebugEnabled();
+		this.engines = engines;
+		this.debug = ilogger.isDebugEnabled();
 		this.count =  count;
 		this.domainToExplore = new ArrayList<>(domainToExplore);
 		
-		// add out values to what was already computed
-		this.alreadyComputedNow = alreadyComputed;
+		this.prefix = prefix;
 		
 		this.value2count = value2count;
 		
@@ -277,7 +322,7 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 				itSub = createSubIterator(countNow, 
 						remaining.get(0), remaining.subList(1, remaining.size()),
 						evidenceNow,
-						alreadyComputedNow,
+						prefix.child(node.getDomainIndex(v)),
 						remaining.get(0).getDomain()
 						);
 						
@@ -302,33 +347,76 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 	@Override
 	public RecursiveSamplingSpliterator<R> trySplit() {
 
-		// there is only one combination to explore here.
-		if (domainToExplore.size() < 2) {
-			// cannot split this one. 
-			// but maybe the subiterator can be split?
-			// TODO 
+		// the values left to explore here which lead to entities
+		List<String> pending = new ArrayList<>(domainToExplore.size());
+		long pendingCount = 0;
+		for (String v: domainToExplore) {
+			final Integer c = value2count.get(v);
+			if (c != null && c > 0) {
+				pending.add(v);
+				pendingCount += c;
+			}
+		}
+		domainToExplore = pending;
+		
+		// only one value left: start exploring it, so its sub iterator can be split
+		if (itSub == null && pending.size() == 1 && !remaining.isEmpty()) {
+			final String v = domainToExplore.remove(0);
+			Map<NodeCategorical,String> evidenceNow = new HashMap<>(evidence);
+			evidenceNow.put(node,v);
+			itSub = createSubIterator(value2count.get(v), 
+					remaining.get(0), remaining.subList(1, remaining.size()),
+					evidenceNow,
+					prefix.child(node.getDomainIndex(v)),
+					remaining.get(0).getDomain()
+					);
+			pending = domainToExplore;
+			pendingCount = 0;
+		}
+		
+		final long subCount = itSub == null ? 0 : itSub.estimateSize();
+
+		// the sub iterator holds most of the entities: split it
+		if (itSub != null && subCount >= pendingCount) {
+			RecursiveSamplingSpliterator<R> res = itSub.trySplit();
+			if (res != null)
+				return res;
+		}
+		
+		// give away the last values to explore, for about half of the entities;
+		// without sub iterator, we should keep at least one value
+		final int minKept = itSub == null ? 1 : 0;
+		if (pending.size() <= minKept) {
+			// there is only one combination to explore here.
 			return null;
 		}
-			
-		// let's split the remaining domain
-		int idxSplit = domainToExplore.size() / 2;
-		List<String> otherDomain = domainToExplore.subList(idxSplit, domainToExplore.size());
+		final long target = (subCount + pendingCount) / 2;
+		int idxSplit = pending.size();
+		long given = 0;
+		while (idxSplit > minKept) {
+			final long c = value2count.get(pending.get(idxSplit-1));
+			// stop when one more value would go further from the half
+			if (given > 0 && Math.abs(given + c - target) >= Math.abs(given - target))
+				break;
+			given += c;
+			idxSplit--;
+		}
+		List<String> otherDomain = new ArrayList<>(pending.subList(idxSplit, pending.size()));
 		
 		// adapt this domain
-		domainToExplore = domainToExplore.subList(0, idxSplit);
+		domainToExplore = new ArrayList<>(pending.subList(0, idxSplit));
 
 		if (logger.isDebugEnabled())
 			logger.debug("splitting "+node.name+" between "+domainToExplore+" and "+otherDomain);
 		
-		this.count = domainToExplore.stream().mapToInt(s -> value2count.get(s)).sum();
-		//this.exec = exec;
+		this.count = (int)(subCount + pendingCount - given);
 		
 		return createSubIterator(
-				otherDomain.stream().mapToInt(s -> value2count.get(s)).sum(),
+				(int)given,
 				node,
 				remaining,
 				evidence,
-				alreadyComputedNow, 
+				prefix, 
 				otherDomain,
 				value2count);
 	}
@@ -338,34 +426,40 @@ public abstract class RecursiveSamplingSpliterator<R extends DoubleFunction>
 	protected abstract RecursiveSamplingSpliterator<R> createSubIterator(
 			int count, NodeCategorical n, List<NodeCategorical> remaining,
 			Map<NodeCategorical,String> evidence,
-			Map<NodeCategorical,Map<String,Double>> alreadyComputed,
+			ConditionalDistributionsTrie.Prefix prefix,
 			List<String> otherDomain
 			);
 	
 	protected abstract RecursiveSamplingSpliterator<R> createSubIterator(
 			int count, NodeCategorical n, List<NodeCategorical> remaining,
 			Map<NodeCategorical,String> evidence,
-			Map<NodeCategorical,Map<String,Double>> alreadyComputed,
+			ConditionalDistributionsTrie.Prefix prefix,
 			List<String> otherDomain,
 			Map<String,Integer> value2count
 			);
 
+	/**
+	 * Returns the count of entities left to generate (not of {@link EntitiesAndCount}, 
+	 * which might group several entities). The count is exact: the split parts of a 
+	 * spliterator generate as many entities as it would have.
+	 */
 	@Override
 	public long estimateSize() {
 		
-		// Estimation: we have to compute combinations of domains of this node and subnodes
-		
-		long combinations = domainToExplore.size();
-		for (NodeCategorical n: remaining) {
-			combinations *= n.getDomainSize();
+		long size = itSub == null ? 0 : itSub.estimateSize();
+		for (String v: domainToExplore) {
+			final Integer c = value2count.get(v);
+			if (c != null)
+				size += c;
 		}
-		
-		return combinations; 
+		return size; 
 	}
 
 	@Override
 	public int characteristics() {
-		return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.ORDERED;
+		// not SIZED: the size is the count of entities, not the count of elements;
+		// not ORDERED: the part split from a sub iterator is in the middle of the entities
+		return Spliterator.DISTINCT | Spliterator.NONNULL;
 	}
 
 	
@@ -6,12 +6,13 @@ import java.util.Map;
 
 import org.knime.core.node.ExecutionMonitor;
 
+import cern.jet.random.engine.MersenneTwister;
 import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEnginesPerThread;
 
 public final class RoundAndSampleRecursiveSamplingSpliterator 
 				extends RecursiveSamplingSpliterator<RandomEngine> {
@@ -26,14 +27,42 @@ public final class RoundAndSampleRecursiveSamplingSpliterator
 			ExecutionMonitor exec, 
 			ILogger ilogger) {
 		
-		this(count, bn.enumerateNodes(), rng, engine, exec, ilogger);
+		this(count, bn, rng, enginesFor(engine, ilogger), exec, ilogger);
+	}
+
+	public RoundAndSampleRecursiveSamplingSpliterator(
+			int count, 
+			CategoricalBayesianNetwork bn, 
+			RandomEngine rng,
+			InferenceEnginesPerThread engines, 
+			ExecutionMonitor exec, 
+			ILogger ilogger) {
+		
+		this(count, bn, rng, engines, new ConditionalDistributionsTrie(bn.getCompiled()), exec, ilogger);
+	}
+
+	/**
+	 * Samples with the inference engine of each thread, reusing the distributions computed before 
+	 * for the same network 
+	 */
+	public RoundAndSampleRecursiveSamplingSpliterator(
+			int count, 
+			CategoricalBayesianNetwork bn, 
+			RandomEngine rng,
+			InferenceEnginesPerThread engines, 
+			ConditionalDistributionsTrie distributions,
+			ExecutionMonitor exec, 
+			ILogger ilogger) {
+		
+		this(count, bn.enumerateNodes(), rng, engines, rootOf(distributions, bn), exec, ilogger);
 	}
 
 	protected RoundAndSampleRecursiveSamplingSpliterator(
 			int count, 
 			List<NodeCategorical> nodes, 
 			RandomEngine rng,
-			AbstractInferenceEngine engine, 
+			InferenceEnginesPerThread engines, 
+			ConditionalDistributionsTrie.Prefix prefix,
 			ExecutionMonitor exec, 
 			ILogger ilogger) {
 		
@@ -42,9 +71,9 @@ public final class RoundAndSampleRecursiveSamplingSpliterator
 				nodes.get(0), 
 				nodes.subList(1, nodes.size()),
 				Collections.emptyMap(), 
-				Collections.emptyMap(),
+				prefix,
 				rng,
-				engine,
+				engines,
 				exec,
 				ilogger,
 				"",
@@ -57,15 +86,15 @@ public final class RoundAndSampleRecursiveSamplingSpliterator
 			NodeCategorical n, 
 			List<NodeCategorical> remaining,
 			Map<NodeCategorical, String> evidence, 
-			Map<NodeCategorical, Map<String, Double>> alreadyComputed,
+			ConditionalDistributionsTrie.Prefix prefix,
 			RandomEngine rng, 
-			AbstractInferenceEngine engine, 
+			InferenceEnginesPerThread engines, 
 			ExecutionMonitor exec, 
 			ILogger ilogger, 
 			String name,
 			List<String> domain) {
 		
-		super(count, n, remaining, evidence, alreadyComputed, rng, engine, exec, ilogger, name, domain);
+		super(count, n, remaining, evidence, prefix, rng, engines, exec, ilogger, name, domain);
 	}
 	
 	protected RoundAndSampleRecursiveSamplingSpliterator(
@@ -73,9 +102,9 @@ public final class RoundAndSampleRecursiveSamplingSpliterator
 			NodeCategorical n, 
 			List<NodeCategorical> remaining,
 			Map<NodeCategorical, String> evidence, 
-			Map<NodeCategorical, Map<String, Double>> alreadyComputed,
+			ConditionalDistributionsTrie.Prefix prefix,
 			RandomEngine rng, 
-			AbstractInferenceEngine engine, 
+			InferenceEnginesPerThread engines, 
 			ExecutionMonitor exec, 
 			ILogger ilogger, 
 			String name,
@@ -83,7 +112,7 @@ public final class RoundAndSampleRecursiveSamplingSpliterator
 			Map<String,Integer> value2count
 			) {
 		
-		super(count, n, remaining, evidence, alreadyComputed, rng, engine, exec, ilogger, name, domain,
+		super(count, n, remaining, evidence, prefix, rng, engines, exec, ilogger, name, domain,
 				value2count);
 	}
 
@@ -93,25 +122,28 @@ public final class RoundAndSampleRecursiveSamplingSpliterator
 			NodeCategorical n, 
 			List<NodeCategorical> remaining,
 			Map<NodeCategorical, String> evidence, 
-			Map<NodeCategorical, Map<String, Double>> alreadyComputed,
+			ConditionalDistributionsTrie.Prefix prefix,
 			List<String> domain
 			) {
 		
 		return new RoundAndSampleRecursiveSamplingSpliterator(
-				count, n, remaining, evidence, alreadyComputed, 
-				rng, engine, exec, logger, name, domain);
+				count, n, remaining, evidence, prefix, 
+				rng, engines, exec, logger, name, domain);
 	}
 	
 
 	@Override
 	protected RecursiveSamplingSpliterator<RandomEngine> createSubIterator(int count, NodeCategorical n,
 			List<NodeCategorical> remaining, Map<NodeCategorical, String> evidence,
-			Map<NodeCategorical, Map<String, Double>> alreadyComputed, List<String> otherDomain,
+			ConditionalDistributionsTrie.Prefix prefix, List<String> otherDomain,
 			Map<String, Integer> value2count) {
+		// the split part might be explored by another thread: it gets its own generator,
+		// seeded here so the result only depends on the seed and on the splits;
+		// it will use the inference engine of the thread exploring it
 		return new RoundAndSampleRecursiveSamplingSpliterator(
-				count, n, remaining, evidence, alreadyComputed, 
-				rng, 
-				new SimpleConditionningInferenceEngine(logger, null, engine.getBN()), 
+				count, n, remaining, evidence, prefix, 
+				new MersenneTwister(rng.nextInt()), 
+				engines, 
 				exec, logger, name, otherDomain,
 				value2count);
 	}
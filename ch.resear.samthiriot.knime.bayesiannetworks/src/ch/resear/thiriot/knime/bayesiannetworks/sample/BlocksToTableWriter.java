@@ -0,0 +1,273 @@
+package ch.resear.thiriot.knime.bayesiannetworks.sample;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.IntCell.IntCellFactory;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+
+import ch.resear.thiriot.knime.bayesiannetworks.DataTableToBNMapper;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.CombinationsCounter;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.EntitiesBlock;
+
+/**
+ * Writes the blocks of entities produced by one sampler into a table, in its own thread:
+ * the sampler takes a free block, fills it and hands it over through a bounded queue,
+ * so sampling goes on while the previous blocks are converted to rows.
+ * The blocks are recycled once written.
+ *
+ * Every cell comes from the cells prepared once per value of the domain of each column;
+ * only the array of cells, the row and its key are created per row.
+ *
+ * @author Samuel Thiriot
+ *
+ */
+final class BlocksToTableWriter implements Callable<BufferedDataTable> {
+
+	/**
+	 * how long to wait before checking again the writer is still running, in milliseconds
+	 */
+	private static final long POLL_MILLISECONDS = 100;
+
+	private static final String ROW_KEY_PREFIX = "Row ";
+
+	private final DataTableSpec outputSpec;
+	private final ExecutionContext exec;
+	private final boolean groupRows;
+
+	/**
+	 * the node id of each column
+	 */
+	private final int[] columnIds;
+
+	/**
+	 * for each column, the cell of each value of the domain
+	 */
+	private final DataCell[][] cells;
+
+	private final BlockingQueue<EntitiesBlock> filled;
+	private final BlockingQueue<EntitiesBlock> free;
+
+	/**
+	 * the block queued at the end
+	 */
+	private final EntitiesBlock end = new EntitiesBlock(0, 0);
+
+	private final StringBuilder key = new StringBuilder(ROW_KEY_PREFIX);
+
+	private long nextRow;
+
+	private Future<BufferedDataTable> result = null;
+
+	/**
+	 * @param network the compiled network of the entities
+	 * @param columns the nodes of the columns of the table
+	 * @param node2mapper
+	 * @param outputSpec
+	 * @param exec
+	 * @param groupRows if true, writes a row per row of the block with the count of entities,
+	 * else writes a row per entity
+	 * @param firstRow the id of the first row
+	 * @param blockCapacity the count of rows of the blocks
+	 * @param queueSize the count of blocks waiting to be written
+	 */
+	public BlocksToTableWriter(
+			CompiledNetwork network,
+			List<NodeCategorical> columns,
+			Map<NodeCategorical,DataTableToBNMapper> node2mapper,
+			DataTableSpec outputSpec,
+			ExecutionContext exec,
+			boolean groupRows,
+			long firstRow,
+			int blockCapacity,
+			int queueSize) {
+
+		if (queueSize < 1)
+			throw new IllegalArgumentException("the queue should hold at least one block");
+
+		this.outputSpec = outputSpec;
+		this.exec = exec;
+		this.groupRows = groupRows;
+		this.nextRow = firstRow;
+
+		this.columnIds = new int[columns.size()];
+		this.cells = new DataCell[columns.size()][];
+		for (int j=0; j<columnIds.length; j++) {
+			columnIds[j] = network.getId(columns.get(j));
+			cells[j] = node2mapper.get(columns.get(j)).getCellsForDomain();
+		}
+
+		// one block more than the queue for the sampler, another one for the writer
+		this.filled = new ArrayBlockingQueue<>(queueSize + 1);
+		this.free = new ArrayBlockingQueue<>(queueSize + 2);
+		for (int i=0; i<queueSize + 2; i++)
+			free.add(new EntitiesBlock(network.size(), blockCapacity));
+	}
+
+	/**
+	 * Starts writing in a thread of this executor
+	 * @param executor
+	 */
+	public void start(ExecutorService executor) {
+		if (result != null)
+			throw new IllegalStateException("the writer was already started");
+		result = executor.submit(this);
+	}
+
+	/**
+	 * throws the error of the writer if it stopped
+	 */
+	private void checkRunning() throws InterruptedException, CanceledExecutionException {
+		if (result.isDone()) {
+			getTable();
+			throw new IllegalStateException("the writer stopped before the end of the sampling");
+		}
+	}
+
+	/**
+	 * Returns an empty block to fill, waiting for the writer to release one
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public EntitiesBlock takeFreeBlock() throws InterruptedException, CanceledExecutionException {
+		while (true) {
+			EntitiesBlock block = free.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+			if (block != null)
+				return block;
+			checkRunning();
+		}
+	}
+
+	/**
+	 * Queues this block to be written; it should not be used afterwards.
+	 * Waits while the queue is full.
+	 * @param block
+	 * @throws InterruptedException
+	 * @throws CanceledExecutionException if the writer was canceled
+	 */
+	public void write(EntitiesBlock block) throws InterruptedException, CanceledExecutionException {
+		if (block.isEmpty()) {
+			free.add(block);
+			return;
+		}
+		while (!filled.offer(block, POLL_MILLISECONDS, TimeUnit.MILLISECONDS))
+			checkRunning();
+	}
+
+	/**
+	 * Queues the distinct combinations of this counter to be written, one row per combination
+	 * @param counter
+	 * @throws InterruptedException
+	 * @throws CanceledExecutionException if the writer was canceled
+	 */
+	public void write(CombinationsCounter counter) throws InterruptedException, CanceledExecutionException {
+
+		final int[] values = new int[counter.countVariables()];
+		EntitiesBlock block = takeFreeBlock();
+		for (int entry=0; entry<counter.size(); entry++) {
+			counter.get(entry, values);
+			block.add(values, counter.getCount(entry));
+			if (block.isFull()) {
+				write(block);
+				block = takeFreeBlock();
+			}
+		}
+		write(block);
+	}
+
+	/**
+	 * Waits for the blocks queued to be written, and returns the table
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public BufferedDataTable finish() throws InterruptedException, CanceledExecutionException {
+		while (!filled.offer(end, POLL_MILLISECONDS, TimeUnit.MILLISECONDS))
+			checkRunning();
+		return getTable();
+	}
+
+	/**
+	 * Stops writing, after an error of the sampler
+	 */
+	public void abort() {
+		if (result != null)
+			result.cancel(true);
+	}
+
+	private BufferedDataTable getTable() throws InterruptedException, CanceledExecutionException {
+		try {
+			return result.get();
+		} catch (CancellationException e) {
+			throw new RuntimeException("the writing of the table was cancelled", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			if (e.getCause() instanceof CanceledExecutionException)
+				throw (CanceledExecutionException)e.getCause();
+			throw new RuntimeException("error while writing the table: "+e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private RowKey nextKey() {
+		key.setLength(ROW_KEY_PREFIX.length());
+		key.append(nextRow++);
+		return new RowKey(key.toString());
+	}
+
+	private void writeBlock(BufferedDataContainer container, EntitiesBlock block) {
+
+		for (int r=0; r<block.size(); r++) {
+
+			DataCell[] results = new DataCell[groupRows ? columnIds.length+1 : columnIds.length];
+			for (int j=0; j<columnIds.length; j++)
+				results[j] = cells[j][block.get(r, columnIds[j])];
+
+			final int count = block.getCount(r);
+			if (groupRows) {
+				results[columnIds.length] = IntCellFactory.create(count);
+				container.addRowToTable(new DefaultRow(nextKey(), results));
+			} else {
+				for (int i=0; i<count; i++)
+					container.addRowToTable(new DefaultRow(nextKey(), results));
+			}
+		}
+	}
+
+	@Override
+	public BufferedDataTable call() throws InterruptedException, CanceledExecutionException {
+
+		BufferedDataContainer container = exec.createDataContainer(outputSpec);
+		try {
+			while (true) {
+				EntitiesBlock block = filled.take();
+				if (block == end)
+					break;
+				writeBlock(container, block);
+				block.clear();
+				free.put(block);
+				exec.checkCanceled();
+			}
+		} finally {
+			container.close();
+		}
+		return container.getTable();
+	}
+
+}
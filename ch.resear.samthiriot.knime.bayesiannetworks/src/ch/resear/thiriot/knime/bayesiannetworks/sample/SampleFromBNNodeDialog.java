@@ -60,18 +60,20 @@ public class SampleFromBNNodeDialog extends DefaultNodeSettingsPane {
         		java.util.Arrays.asList(
         				MultinomialRecursiveSamplingIterator.GENERATION_METHOD_NAME,
         				RoundAndSampleRecursiveSamplingIterator.GENERATION_METHOD_NAME,
-        				ForwardSamplingIterator.GENERATION_METHOD_NAME)
+        				ForwardSamplingIterator.GENERATION_METHOD_NAME,
+        				ForwardSamplingIterator.GENERATION_METHOD_NAME_GROUPED)
         		));
 
         SettingsModelBoolean m_grouprows = new SettingsModelBoolean("m_grouprows", true);
         addDialogComponent(new DialogComponentBoolean(m_grouprows, "group similar raws"));
 
-        // one can only group rows for the methods working by groups
-        m_grouprows.setEnabled(!m_generation_method.getStringValue().equals(ForwardSamplingIterator.GENERATION_METHOD_NAME));
+        // one can only group rows for the methods working by groups; 
+        // forward sampling with counts always groups them
+        m_grouprows.setEnabled(!m_generation_method.getStringValue().startsWith(ForwardSamplingIterator.GENERATION_METHOD_NAME));
         m_generation_method.addChangeListener(new ChangeListener() {
 			@Override
 			public void stateChanged(ChangeEvent e) {
-		        m_grouprows.setEnabled(!m_generation_method.getStringValue().equals(ForwardSamplingIterator.GENERATION_METHOD_NAME));
+		        m_grouprows.setEnabled(!m_generation_method.getStringValue().startsWith(ForwardSamplingIterator.GENERATION_METHOD_NAME));
 			}
 		});
         
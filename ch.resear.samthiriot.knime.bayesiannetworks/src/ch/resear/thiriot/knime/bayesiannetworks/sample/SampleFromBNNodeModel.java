@@ -4,27 +4,23 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Spliterator;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Consumer;
 
-import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnDomainCreator;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataTableSpec;
-import org.knime.core.data.RowKey;
-import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.def.IntCell;
 import org.knime.core.data.def.IntCell.IntCellFactory;
-import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
@@ -44,20 +40,26 @@ import org.knime.core.node.port.PortType;
 
 import cern.colt.Version;
 import cern.colt.function.DoubleFunction;
-import cern.jet.random.Binomial;
 import cern.jet.random.engine.MersenneTwister;
 import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.DataTableToBNMapper;
 import ch.resear.thiriot.knime.bayesiannetworks.LogIntoNodeLogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
-import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.BNUtils;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEnginesPerThread;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferencePerformanceUtils;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.CombinationsCounter;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.CompiledForwardSampler;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.ConditionalDistributionsTrie;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.EntitiesAndCount;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.EntitiesBlock;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.ForwardSamplingIterator;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.MultinomialRecursiveSamplingIterator;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.MultinomialRecursiveSamplingSpliterator;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.RandomStreams;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.RecursiveSamplingSpliterator;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.RoundAndSampleRecursiveSamplingIterator;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.RoundAndSampleRecursiveSamplingSpliterator;
@@ -80,6 +82,32 @@ public class SampleFromBNNodeModel extends NodeModel {
         
     private static final int MIN_ROWS_FOR_PARALLEL = 19;
     
+    /**
+     * count of entities sampled at once by the forward sampling threads, 
+     * each block with its own random stream. The entities sampled for a given seed 
+     * depend on it.
+     */
+    public static int FORWARD_SAMPLING_BLOCK = 1024;
+    
+    /**
+     * count of parts the recursive sampling spliterators are split into, 
+     * so the threads which are done can steal the work of the others. 
+     * It does not depend on the count of threads, so the entities sampled 
+     * for a given seed do not depend on it either.
+     */
+    public static int RECURSIVE_SAMPLING_PARTS = 64;
+    
+    /**
+     * count of rows of the blocks of entities passed from the recursive samplers to the writers
+     */
+    public static int OUTPUT_BLOCK = 1024;
+    
+    /**
+     * count of blocks of entities waiting to be written for each sampler; 
+     * beyond, the sampler waits for the writer
+     */
+    public static int WRITER_QUEUE_BLOCKS = 4;
+    
     /** the settings key which is used to retrieve and 
         store the settings (from the dialog or from a settings file)    
        (package visibility to be usable from the dialog). */
@@ -148,14 +176,26 @@ public class SampleFromBNNodeModel extends NodeModel {
     		specs.add(node2mapper.get(node).getSpecForNode());
     	}
     	
-    	if (m_groupRows.getBooleanValue() && 
-    			!m_generationMethod.getStringValue().equals(ForwardSamplingIterator.GENERATION_METHOD_NAME))
+    	if (hasCountColumn())
     		specs.add(new DataColumnSpecCreator("count", IntCell.TYPE).createSpec());
     	
     	return specs.toArray(new DataColumnSpec[specs.size()]);
     }
     
 
+    /**
+     * Returns true if the rows of the table stand for several entities, counted in a column: 
+     * always for the forward sampling with counts, on demand for the recursive methods.
+     */
+    private boolean hasCountColumn() {
+    	
+    	final String generationMethod = m_generationMethod.getStringValue();
+    	if (generationMethod.equals(ForwardSamplingIterator.GENERATION_METHOD_NAME_GROUPED))
+    		return true;
+    	return m_groupRows.getBooleanValue() 
+    			&& !generationMethod.equals(ForwardSamplingIterator.GENERATION_METHOD_NAME);
+    }
+
     @Override
 	protected PortObjectSpec[] configure(PortObjectSpec[] inSpecs) throws InvalidSettingsException {
     	
@@ -171,8 +211,7 @@ public class SampleFromBNNodeModel extends NodeModel {
         		specs.add(node2mapper.get(nodeName).getSpecForNode());
         	}
         	
-        	if (m_groupRows.getBooleanValue() && 
-        			!m_generationMethod.getStringValue().equals(ForwardSamplingIterator.GENERATION_METHOD_NAME)) {
+        	if (hasCountColumn()) {
         		
         		DataColumnSpecCreator creator = new DataColumnSpecCreator("count", IntCell.TYPE);
         		creator.setDomain(new DataColumnDomainCreator(
@@ -193,9 +232,20 @@ public class SampleFromBNNodeModel extends NodeModel {
 	}
     
     private long totalRowsGenerated = 0;
+    
+    /**
+     * the threads writing the tables during the execution
+     */
+    private ExecutorService writers = null;
     private long timestampStart = 0;
     private boolean groupRows = false;
     
+    /**
+     * the conditional distributions computed by the recursive samplings, 
+     * kept for the next executions as long as the network does not change
+     */
+    private ConditionalDistributionsTrie distributions = null;
+    
     private class SpliteratorSamplerToTable 
     					implements Callable<BufferedDataTable>,
     					Consumer<EntitiesAndCount> {
@@ -209,8 +259,10 @@ public class SampleFromBNNodeModel extends NodeModel {
         private final boolean nostorage;
 
         private int done = 0;
-        private int rows = 0;
-        private BufferedDataContainer container = null;
+        private CompiledNetwork network = null;
+        private BlocksToTableWriter writer = null;
+        private EntitiesBlock block = null;
+        private int[] values = null;
         
     	public SpliteratorSamplerToTable(
 				CategoricalBayesianNetwork bn,
@@ -233,18 +285,31 @@ public class SampleFromBNNodeModel extends NodeModel {
 		@Override
 		public BufferedDataTable call() throws Exception {
 
-	        container = exec.createDataContainer(outputSpec);
-
+			network = bn.getCompiled();
+			values = new int[network.size()];
+			writer = new BlocksToTableWriter(
+					network, bn.getNodesSortedByName(), node2mapper, 
+					outputSpec, exec, 
+					groupRows, 
+					firstId, 
+					OUTPUT_BLOCK, WRITER_QUEUE_BLOCKS);
+			writer.start(writers);
+			
 	        try {
-
+	        	block = writer.takeFreeBlock();
+	        	
 		        // ask the spliterator to execute on all the remaining elements
 		        it.forEachRemaining(this);
 		        
-	        } finally {
-	        	container.close();
+		        writer.write(block);
+		        block = null;
+		        
+	        } catch (Exception e) {
+	        	writer.abort();
+	        	throw e;
 	        }
 	        
-			return container.getTable();
+			return writer.finish();
 		}
 
 		@Override
@@ -256,7 +321,7 @@ public class SampleFromBNNodeModel extends NodeModel {
 	        		throw new RuntimeException("no entity generated...");
 	        	totalRowsGenerated += next.count;
         	} catch (RuntimeException e) {
-        		e.printStackTrace();
+        		logger.error("error when sampling the next entity", e);
         		throw new RuntimeException("Error when sampling the next entity: "+e.getMessage(), e);
         	}
         	
@@ -275,50 +340,113 @@ public class SampleFromBNNodeModel extends NodeModel {
         	//} 
         	
         	if (!nostorage) {
-	        	if (groupRows) {
-		        	// convert to KNIME cells
-		        	DataCell[] results = new DataCell[next.node2value.size()+1];
-		        	int j=0;
-		        	for (NodeCategorical node : bn.getNodesSortedByName()) {
-		        		String valueStr = next.node2value.get(node);
-		        		if (valueStr == null)
-		        			throw new RuntimeException("value for node "+node+" not found");
-		        		results[j++] = node2mapper.get(node).createCellForStringValue(valueStr);
-		        	}
-		        	results[j] = IntCellFactory.create(next.count);
-		        	
-		        	// append
-		        	container.addRowToTable(
-		        			new DefaultRow(
-			        			new RowKey("Row " + (firstId + rows++) ), 
-			        			results
-			        			)
-		        			);
-	        	} else {
-	        		// convert to KNIME cells
-		        	DataCell[] results = new DataCell[next.node2value.size()];
-		        	int j=0;
-		        	for (NodeCategorical node : bn.getNodesSortedByName()) {
-		        		String valueStr = next.node2value.get(node);
-		        		if (valueStr == null)
-		        			throw new RuntimeException("value for node "+node+" not found");
-		        		results[j++] = node2mapper.get(node).createCellForStringValue(valueStr);
-		        	}
-		        	for (int i=0; i<next.count; i++) {
-			        	// append
-			        	container.addRowToTable(
-			        			new DefaultRow(
-				        			new RowKey("Row " + (firstId + rows++) ), 
-				        			results
-				        			)
-			        			);
-		        	}
-	        	}
+        		// code the values for the writer
+        		for (int id=0; id<values.length; id++) {
+        			String valueStr = next.node2value.get(network.getNode(id));
+	        		if (valueStr == null)
+	        			throw new RuntimeException("value for node "+network.getNode(id)+" not found");
+	        		values[id] = network.getValueIndex(id, valueStr);
+        		}
+        		block.add(values, next.count);
+        		
+        		if (block.isFull()) {
+        			// hand the block over to the writer
+        			try {
+        				writer.write(block);
+        				block = null;
+        				block = writer.takeFreeBlock();
+        			} catch (InterruptedException e) {
+        				Thread.currentThread().interrupt();
+        				throw new RuntimeException("interrupted while writing the entities", e);
+        			} catch (CanceledExecutionException e) {
+        				throw new RuntimeException("the writing of the entities was canceled", e);
+        			}
+        		}
         	}
 		}
     	
     }
 
+    /**
+     * Samples the entities of a recursive sampling spliterator, as a fork/join task: 
+     * while the spliterator holds more entities than the threshold, it splits it 
+     * and forks a task for the part split; then it samples the remaining part into a table. 
+     * Returns the tables of all the parts. 
+     * Each part is given its own range of row ids, from firstId, as the count of 
+     * entities of each part is known in advance: the row ids are unique, but the rows 
+     * are not in the order the spliterator would have generated them.
+     */
+    private class SpliteratorSamplingTask extends RecursiveTask<List<BufferedDataTable>> {
+
+		private static final long serialVersionUID = 1L;
+		
+		private final CategoricalBayesianNetwork bn;
+    	private final RecursiveSamplingSpliterator<? extends DoubleFunction> it;
+    	private final DataTableSpec outputSpec;
+    	private final ExecutionContext exec;
+    	private final int countToSample;
+        private final int firstId;
+        private final long threshold;
+        private final boolean nostorage;
+
+    	public SpliteratorSamplingTask(
+				CategoricalBayesianNetwork bn,
+				RecursiveSamplingSpliterator<? extends DoubleFunction> it,
+				DataTableSpec outputSpec,
+				ExecutionContext exec,
+				int countToSample,
+				int firstId,
+				long threshold,
+				boolean nostorage) {
+    		
+    		this.bn = bn;
+    		this.it = it;
+    		this.outputSpec = outputSpec;
+    		this.exec = exec;
+    		this.countToSample = countToSample;
+    		this.firstId = firstId;
+    		this.threshold = threshold;
+    		this.nostorage = nostorage;
+    	}
+    	
+		@Override
+		protected List<BufferedDataTable> compute() {
+			
+			List<SpliteratorSamplingTask> forked = new ArrayList<>();
+			
+			long size = it.estimateSize();
+			while (size > threshold) {
+				RecursiveSamplingSpliterator<? extends DoubleFunction> other = it.trySplit();
+				if (other == null)
+					break;
+				// the part split takes the ids after the ones left to this part
+				final long sizeOther = other.estimateSize();
+				size -= sizeOther;
+				SpliteratorSamplingTask task = new SpliteratorSamplingTask(
+						bn, other, outputSpec, exec, countToSample, 
+						(int)(firstId + size), 
+						threshold, nostorage);
+				task.fork();
+				forked.add(task);
+			}
+			
+			List<BufferedDataTable> tables = new ArrayList<>(forked.size()+1);
+			try {
+				tables.add(new SpliteratorSamplerToTable(bn, it, outputSpec, exec, countToSample, firstId, nostorage).call());
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException("error while sampling: "+e.getMessage(), e);
+			}
+			// the last part forked holds the ids just after ours
+			for (int i=forked.size()-1; i>=0; i--)
+				tables.addAll(forked.get(i).join());
+			
+			return tables;
+		}
+    	
+    }
+
     private class BNToTableForwardSampler implements Callable<BufferedDataTable> {
 
     	private final DataTableSpec outputSpec;
@@ -326,11 +454,16 @@ public class SampleFromBNNodeModel extends NodeModel {
     	private final int countToSample;
     	private final CategoricalBayesianNetwork bn;
         private final int firstId;
-        private final RandomEngine random;
+        private final RandomStreams streams;
         private final boolean nostorage;
         
+        /**
+         * Samples the entities from firstId, which should be the first of a block of 
+         * {@link SampleFromBNNodeModel#FORWARD_SAMPLING_BLOCK} entities: each block is sampled
+         * with the random stream of its index.
+         */
     	public BNToTableForwardSampler(
-    				RandomEngine random, 
+    				RandomStreams streams, 
     				CategoricalBayesianNetwork bn,
     				DataTableSpec outputSpec,
     				ExecutionContext exec,
@@ -343,99 +476,126 @@ public class SampleFromBNNodeModel extends NodeModel {
     		this.countToSample = countToSample;
     		this.bn = bn; //.clone();
     		this.firstId = firstId;
-    		this.random = new MersenneTwister(random.nextInt());
+    		this.streams = streams;
     		this.nostorage = nostorage;
     	}
     	
 		@Override
 		public BufferedDataTable call() throws Exception {
 
-	        BufferedDataContainer container = exec.createDataContainer(outputSpec);
-
-	        Iterator<EntitiesAndCount> it = new ForwardSamplingIterator(random, bn, countToSample, ilogger);
+	        final CompiledNetwork network = bn.getCompiled();
+	        
+	        // the blocks are written to the table in another thread
+	        BlocksToTableWriter writer = new BlocksToTableWriter(
+	        		network, bn.getNodesSortedByName(), node2mapper, 
+	        		outputSpec, exec, 
+	        		false, 
+	        		firstId, 
+	        		FORWARD_SAMPLING_BLOCK, WRITER_QUEUE_BLOCKS);
+	        writer.start(writers);
 		    
+	        try {
+		        int done = 0;
+		        while (done < countToSample) {
+	
+		        	final int size = Math.min(FORWARD_SAMPLING_BLOCK, countToSample - done);
+		        	final EntitiesBlock block = writer.takeFreeBlock();
+		        	try {
+		        		// the random numbers of a block only depend on its index
+		        		final long blockIndex = (firstId + done) / FORWARD_SAMPLING_BLOCK;
+		        		new CompiledForwardSampler(network, streams.getStream(blockIndex)).sampleBlock(block, size);
+			        	done += size;
+			        	totalRowsGenerated += size;
+		        	} catch (RuntimeException e) {
+		        		logger.error("error when sampling the next entity", e);
+		        		throw new RuntimeException("Error when sampling the next entity: "+e.getMessage(), e);
+		        	}
+		        	
+		        	double progress = (double)done/countToSample;
+		        	long timestampNow = System.currentTimeMillis();
+		        	if (firstId == 0) { // only the first thread makes message updates
+			        	String msg = "entity "+totalRowsGenerated;
+	
+			        	long elapsedSeconds = (timestampNow - timestampStart)/1000;
+			        	if (elapsedSeconds > 1) {
+				        	double entitiesPerSecond = totalRowsGenerated / elapsedSeconds;
+				        	//logger.warn("generating "+((int)entitiesPerSecond)+" rows per second");
+				        	msg = msg + " ("+(int)entitiesPerSecond+"/s)";
+			        	}
+			        	exec.setProgress(progress, msg);
+		        	}
+		        	
+		        	if (nostorage)
+		        		// an empty block is only recycled
+		        		block.clear();
+		        	writer.write(block);
+		        	exec.checkCanceled();
+		        }
+	        } catch (Exception e) {
+	        	writer.abort();
+	        	throw e;
+	        }
+	        
+			return writer.finish();
+		}
+    	
+    }
+    
+    /**
+     * Samples entities by forward sampling like {@link BNToTableForwardSampler}, 
+     * but only counts them per combination of values. 
+     */
+    private class BNToCountsForwardSampler implements Callable<CombinationsCounter> {
+
+    	private final ExecutionContext exec;
+    	private final int countToSample;
+    	private final CategoricalBayesianNetwork bn;
+        private final int firstId;
+        private final RandomStreams streams;
+        
+    	public BNToCountsForwardSampler(
+    				RandomStreams streams, 
+    				CategoricalBayesianNetwork bn,
+    				ExecutionContext exec,
+    				int countToSample,
+    				int firstId) {
+
+    		this.exec = exec;
+    		this.countToSample = countToSample;
+    		this.bn = bn;
+    		this.firstId = firstId;
+    		this.streams = streams;
+    	}
+    	
+		@Override
+		public CombinationsCounter call() throws Exception {
+
+	        final CompiledNetwork network = bn.getCompiled();
+	        final CombinationsCounter counter = new CombinationsCounter(network.size());
+	        
 	        int done = 0;
-	        int rows = 0;
-	        while (it.hasNext()) {
+	        while (done < countToSample) {
 
-	        	EntitiesAndCount next;
+	        	final int size = Math.min(FORWARD_SAMPLING_BLOCK, countToSample - done);
 	        	try {
-		        	next = it.next();
-		        	done += next.count;
-		        	if (next.node2value.isEmpty())
-		        		throw new RuntimeException("no entity generated...");
-		        	totalRowsGenerated += next.count;
+	        		// the random numbers of a block only depend on its index
+	        		final long blockIndex = (firstId + done) / FORWARD_SAMPLING_BLOCK;
+	        		new CompiledForwardSampler(network, streams.getStream(blockIndex)).sampleCounts(counter, size);
+		        	done += size;
+		        	totalRowsGenerated += size;
 	        	} catch (RuntimeException e) {
-	        		e.printStackTrace();
+	        		logger.error("error when sampling the next entity", e);
 	        		throw new RuntimeException("Error when sampling the next entity: "+e.getMessage(), e);
 	        	}
-	        	//System.out.println(next);
 	        	
-	        	double progress = (double)done/countToSample;
-	        	long timestampNow = System.currentTimeMillis();
-	        	if (firstId == 0) { // only the first thread makes message updates
-		        	String msg = "entity "+totalRowsGenerated;
-
-		        	long elapsedSeconds = (timestampNow - timestampStart)/1000;
-		        	if (elapsedSeconds > 1) {
-			        	double entitiesPerSecond = totalRowsGenerated / elapsedSeconds;
-			        	//logger.warn("generating "+((int)entitiesPerSecond)+" rows per second");
-			        	msg = msg + " ("+(int)entitiesPerSecond+"/s)";
-		        	}
-		        	exec.setProgress(progress, msg);
-	        	}
-	        	//} /* else {
-	        	//	exec.setProgress(progress);
-	        	//}*/
-	        	
-	        	if (!nostorage) {
-		        	if (groupRows) {
-			        	// convert to KNIME cells
-			        	DataCell[] results = new DataCell[next.node2value.size()+1];
-			        	int j=0;
-			        	for (NodeCategorical node : bn.getNodesSortedByName()) {
-			        		String valueStr = next.node2value.get(node);
-			        		if (valueStr == null)
-			        			throw new RuntimeException("value for node "+node+" not found");
-			        		results[j++] = node2mapper.get(node).createCellForStringValue(valueStr);
-			        	}
-			        	results[j] = IntCellFactory.create(next.count);
-			        	
-			        	// append
-			        	container.addRowToTable(
-			        			new DefaultRow(
-				        			new RowKey("Row " + (firstId + rows++) ), 
-				        			results
-				        			)
-			        			);
-		        	} else {
-		        		// convert to KNIME cells
-			        	DataCell[] results = new DataCell[next.node2value.size()];
-			        	int j=0;
-			        	for (NodeCategorical node : bn.getNodesSortedByName()) {
-			        		String valueStr = next.node2value.get(node);
-			        		if (valueStr == null)
-			        			throw new RuntimeException("value for node "+node+" not found");
-			        		results[j++] = node2mapper.get(node).createCellForStringValue(valueStr);
-			        	}
-			        	for (int i=0; i<next.count; i++) {
-				        	// append
-				        	container.addRowToTable(
-				        			new DefaultRow(
-					        			new RowKey("Row " + (firstId + rows++) ), 
-					        			results
-					        			)
-				        			);
-			        	}
-		        	}
-	        	}
+	        	if (firstId == 0) // only the first thread makes message updates
+		        	exec.setProgress(
+		        			(double)done/countToSample, 
+		        			"entity "+totalRowsGenerated+" in "+counter.size()+" combinations");
 	        	exec.checkCanceled();
 	        }
 	        
-	        container.close();
-	        
-	        
-			return container.getTable();
+			return counter;
 		}
     	
     }
@@ -464,7 +624,7 @@ public class SampleFromBNNodeModel extends NodeModel {
     	// retrieve parameters
     	final int countToSample = m_count.getIntValue();
     	final String generationMethod = m_generationMethod.getStringValue();
-    	groupRows = m_groupRows.getBooleanValue() && !generationMethod.equals(ForwardSamplingIterator.GENERATION_METHOD_NAME);
+    	groupRows = hasCountColumn();
     	
     	final boolean nostorage = m_noStorage.getBooleanValue();
     	
@@ -491,6 +651,7 @@ public class SampleFromBNNodeModel extends NodeModel {
     	logger.info("generating random numbers using the MersenneTwister pseudo-random number generator with seed "+seed+", as implemented in the COLT library "
         		+Version.getMajorVersion()+"."+Version.getMinorVersion()+"."+Version.getMicroVersion());
         final RandomEngine random = new MersenneTwister(seed);
+        final RandomStreams streams = new RandomStreams(seed);
         exec.checkCanceled();
 
         // prepare parallel processing
@@ -511,83 +672,156 @@ public class SampleFromBNNodeModel extends NodeModel {
     	// submit the execution of the threads
         exec.setMessage("sampling");
         List<Callable<BufferedDataTable>> samplers = new ArrayList<>(threadsToUse);
+        List<Callable<CombinationsCounter>> counters = new ArrayList<>(threadsToUse);
+        final boolean counting = generationMethod.equals(ForwardSamplingIterator.GENERATION_METHOD_NAME_GROUPED);
+        SpliteratorSamplingTask recursiveSamplingRoot = null;
+        InferenceEnginesPerThread recursiveEngines = null;
     	
-        if (generationMethod.equals(ForwardSamplingIterator.GENERATION_METHOD_NAME)) {
+        if (generationMethod.equals(ForwardSamplingIterator.GENERATION_METHOD_NAME) || counting) {
         	// if the method is forward sampling, 
-        	// then create n thread having each part of the total to sample
-        	int countRemaining = countToSample;
+        	// then create n thread having each part of the total to sample,
+        	// made of whole blocks so the random streams do not depend on the count of threads
+        	// (when counting, each thread counts its combinations, which are merged after)
+        	final int blockSize = FORWARD_SAMPLING_BLOCK;
+        	final int countBlocks = (int)(((long)countToSample + blockSize - 1) / blockSize);
+        	final int blocksPerThread = (countBlocks + threadsToUse - 1) / threadsToUse;
     		int countDistributed = 0;
     		ExecutionContext ex = exec.createSubExecutionContext(0.9);
-	        for (int t=0; t<threadsToUse-1; t++) {
-	        	int count = countToSample/threadsToUse;
-	        	countRemaining -= count;
+	        while (countDistributed < countToSample) {
+	        	int count = (int)Math.min((long)blocksPerThread * blockSize, countToSample - countDistributed);
+	        	if (counting)
+	        		counters.add(
+	        				new BNToCountsForwardSampler(
+	        						streams, bn, 
+	        						ex, 
+	        						count, 
+	        						countDistributed
+	        				));
+	        	else
+		        	samplers.add(
+		        			new BNToTableForwardSampler(
+		        					streams, bn, outputSpec, 
+		        					ex, 
+		        					count,
+		        					countDistributed,
+		        					nostorage
+		        			));
+	        	countDistributed += count;
+	        }
+	        if (samplers.isEmpty() && !counting)
+	        	// nothing to sample, but we still need an empty table
 	        	samplers.add(
 	        			new BNToTableForwardSampler(
-	        					random, bn, outputSpec, 
+	        					streams, bn, outputSpec, 
 	        					ex, 
-	        					count,
-	        					countDistributed,
+	        					0,
+	        					0,
 	        					nostorage
 	        			));
-	        	countDistributed += count;
-	        }
-        	samplers.add(
-	        		new BNToTableForwardSampler(
-	    					random, bn, outputSpec, 
-	    					ex, 
-	    					countRemaining,
-	    					countDistributed,
-	    					nostorage
-	    			));
 
     	} else {
     		// create the spliterator of interest
+    		// each thread of the pool computes the probabilities with its own inference engine
+    		recursiveEngines = new InferenceEnginesPerThread(
+    				bn, 
+    				b -> new SimpleConditionningInferenceEngine(ilogger, null, b));
+    		// the conditional distributions are shared by the parts and threads of this execution, 
+    		// and by the next executions on the same network
+    		final ConditionalDistributionsTrie previous = distributions;
+    		distributions = ConditionalDistributionsTrie.reuseOrCreate(previous, bn.getCompiled());
+    		if (distributions == previous)
+    			logger.info("reusing the "+distributions.countDistributions()+" conditional distributions computed before");
     		RecursiveSamplingSpliterator<? extends DoubleFunction> split = null;
     		if (generationMethod.equals(RoundAndSampleRecursiveSamplingIterator.GENERATION_METHOD_NAME))
     			split = new RoundAndSampleRecursiveSamplingSpliterator(
 		        		countToSample, 
 		        		bn, 
 		        		random, 
-		        		new SimpleConditionningInferenceEngine(ilogger, null, bn),
+		        		recursiveEngines,
+		        		distributions,
 		        		exec, 
 		        		ilogger);
 	        else if (generationMethod.equals(MultinomialRecursiveSamplingIterator.GENERATION_METHOD_NAME))
 	        	split = new MultinomialRecursiveSamplingSpliterator(
 		        		countToSample, 
 		        		bn, 
-		        		new Binomial(42, 0.1, random), 
-		        		new SimpleConditionningInferenceEngine(ilogger, null, bn),
+		        		random, 
+		        		recursiveEngines,
+		        		distributions,
 		        		exec, 
 		        		ilogger);
 	        else
 	        	throw new RuntimeException("Unknown generation method "+generationMethod);
 	        
-    		// try to split the spliterator as many times as demanded
-    		List<Spliterator<?>> spliterators = BNUtils.splititeratorForParallel(split, threadsToUse);
-    		logger.warn("sampling "+countToSample+" with recursive method \""+generationMethod+"\" using "+spliterators.size()+" parallel threads");
+    		logger.info("sampling "+countToSample+" with recursive method \""+generationMethod+"\" using "+threadsToUse+" parallel threads");
     		
-    		// now create as many samplers as required
-    		int firstId = 0;
-    		ExecutionContext ex = exec.createSubExecutionContext(0.9);
-    		for (Spliterator<?> spliti: spliterators) {
-    			samplers.add(new SpliteratorSamplerToTable(
-    					bn, 
-    					(RecursiveSamplingSpliterator<? extends DoubleFunction>) spliti, 
-    					outputSpec, 
-    					ex, 
-    					countToSample, 
-    					firstId,
-    					nostorage));
-    			firstId = firstId + countToSample;
-    		}
+    		// the task splits the spliterator while it holds more entities than this threshold
+    		recursiveSamplingRoot = new SpliteratorSamplingTask(
+    				bn, 
+    				split, 
+    				outputSpec, 
+    				exec.createSubExecutionContext(0.9), 
+    				countToSample, 
+    				0, 
+    				Math.max(1, countToSample / RECURSIVE_SAMPLING_PARTS),
+    				nostorage);
     	}
         exec.checkCanceled();
 
         // submit executions
-    	ExecutorService executorService = Executors.newFixedThreadPool(threadsToUse);
     	totalRowsGenerated = 0;
     	timestampStart = System.currentTimeMillis();
-    	List<Future<BufferedDataTable>> results = executorService.invokeAll(samplers);
+    	List<BufferedDataTable> resultTables = new ArrayList<>();
+    	// each sampler hands its entities over to its own writer
+    	writers = Executors.newCachedThreadPool();
+    	try {
+	    	if (recursiveSamplingRoot != null) {
+	    		// work stealing between the parts of the spliterator
+	    		InferencePerformanceUtils.singleton.reset();
+	    		ForkJoinPool pool = new ForkJoinPool(threadsToUse);
+	    		try {
+	    			resultTables.addAll(pool.invoke(recursiveSamplingRoot));
+	    		} finally {
+	    			pool.shutdown();
+	    		}
+	    		logger.info("sampled "+countToSample+" entities in "+resultTables.size()+" parts with "+recursiveEngines.countEngines()+" inference engines");
+	    		InferencePerformanceUtils.singleton.display(ilogger);
+	    	} else if (counting) {
+	    		// count in parallel, merge, then write one row per combination
+		    	ExecutorService executorService = Executors.newFixedThreadPool(threadsToUse);
+		    	List<Future<CombinationsCounter>> results = executorService.invokeAll(counters);
+		    	executorService.shutdown();
+		    	CombinationsCounter counts = new CombinationsCounter(bn.getCompiled().size());
+		        for (Future<CombinationsCounter> result: results) 
+		        	counts.addAll(result.get());
+		        logger.info("sampled "+counts.countEntities()+" entities in "+counts.size()+" distinct combinations");
+		        
+		        BlocksToTableWriter writer = new BlocksToTableWriter(
+		        		bn.getCompiled(), bn.getNodesSortedByName(), node2mapper, 
+		        		outputSpec, exec.createSubExecutionContext(0.1), 
+		        		true, 
+		        		0, 
+		        		OUTPUT_BLOCK, WRITER_QUEUE_BLOCKS);
+		        writer.start(writers);
+		        try {
+		        	if (!nostorage)
+		        		writer.write(counts);
+		        } catch (Exception e) {
+		        	writer.abort();
+		        	throw e;
+		        }
+		        resultTables.add(writer.finish());
+	    	} else {
+		    	ExecutorService executorService = Executors.newFixedThreadPool(threadsToUse);
+		    	List<Future<BufferedDataTable>> results = executorService.invokeAll(samplers);
+		    	executorService.shutdown();
+		        for (Future<BufferedDataTable> result: results) 
+		            resultTables.add(result.get());
+	    	}
+    	} finally {
+    		writers.shutdownNow();
+    		writers = null;
+    	}
     	int performance;
     	{
     		long timestampNow = System.currentTimeMillis();
@@ -597,22 +831,17 @@ public class SampleFromBNNodeModel extends NodeModel {
     				"generation of "+countToSample+" entities on "+threadsToUse+" CPUs with method "+generationMethod
     						+ " took "+elapsedMilliSeconds+"s, that is on average "+performance+" entities/s");
     	}
-    	executorService.shutdown();
     	
         // merge
         BufferedDataTable resTable;
-        if (threadsToUse > 1) {
+        if (resultTables.size() > 1) {
             exec.setProgress("merging tables");
-	        final BufferedDataTable[] resultTables = new BufferedDataTable[samplers.size()];
-	        for (int i = 0; i < resultTables.length; i++) {
-	            resultTables[i] = results.get(i).get();
-	        }
 	        resTable = exec.createConcatenateTable(
         			exec.createSubProgress(0.1), 
-        			resultTables
+        			resultTables.toArray(new BufferedDataTable[resultTables.size()])
         			);
         } else {
-        	resTable = results.get(0).get();
+        	resTable = resultTables.get(0);
         }
         
         pushFlowVariableInt("sampled_count", countToSample);
@@ -631,7 +860,8 @@ public class SampleFromBNNodeModel extends NodeModel {
     @Override
     protected void reset() {
         
-    	// nothing to do
+    	// forget the conditional distributions
+    	distributions = null;
     }
 
 
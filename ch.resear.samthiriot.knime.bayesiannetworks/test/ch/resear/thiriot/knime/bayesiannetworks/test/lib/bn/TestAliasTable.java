@@ -0,0 +1,106 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.bn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.AliasTable;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.ForwardSamplingIterator;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataGerland1;
+
+public class TestAliasTable {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestAliasTable.class);
+
+	@Test
+	public void testProbabilitiesOfRows() {
+
+		final double[] cpt = new double[] {
+				0.1, 0.2, 0.3, 0.4,
+				0.0, 0.5, 0.0, 0.5,
+				0.0, 0.0, 0.0, 0.0,
+				0.0, 0.0, 1.0, 0.0,
+				0.7, 0.1, 0.1, 0.1
+		};
+		AliasTable table = new AliasTable(cpt, 4);
+		assertEquals(5, table.countRows());
+
+		for (int row=0; row<cpt.length; row+=4) {
+			double[] expected = new double[4];
+			double total = 0.;
+			for (int k=0; k<4; k++)
+				total += cpt[row+k];
+			for (int k=0; k<4; k++)
+				expected[k] = total == 0. ? 0.25 : cpt[row+k] / total;
+			assertArrayEquals(expected, table.getProbabilities(row), 1e-12);
+		}
+
+		// impossible values are never drawn
+		for (int i=0; i<10000; i++) {
+			final double u = i / 10000.;
+			assertNotEquals(0, table.sample(4, u));
+			assertNotEquals(2, table.sample(4, u));
+			assertEquals(2, table.sample(12, u));
+		}
+	}
+
+	@Test
+	public void testCompiledNetworkRows() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+
+		for (int id=0; id<network.size(); id++) {
+			AliasTable table = network.getAliasTable(id);
+			final double[] cpt = network.getCPT(id);
+			for (int row=0; row<cpt.length; row+=network.getCard(id)) {
+				double[] probas = table.getProbabilities(row);
+				for (int k=0; k<probas.length; k++)
+					assertEquals(cpt[row+k], probas[k], 1e-8);
+			}
+		}
+	}
+
+	@Test
+	public void testForwardSamplingFollowsTheMarginals() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+		SimpleConditionningInferenceEngine engine = new SimpleConditionningInferenceEngine(logger, new MersenneTwister(1), bn);
+
+		final int count = 50000;
+		ForwardSamplingIterator it = new ForwardSamplingIterator(new MersenneTwister(42), bn, count, logger);
+		Assignment assignment = new Assignment(network);
+		int[][] counts = new int[network.size()][];
+		for (int id=0; id<network.size(); id++)
+			counts[id] = new int[network.getCard(id)];
+		while (it.hasNext()) {
+			it.next(assignment);
+			for (int id=0; id<network.size(); id++)
+				counts[id][assignment.get(id)]++;
+		}
+
+		for (int id=0; id<network.size(); id++) {
+			NodeCategorical n = network.getNode(id);
+			for (int v=0; v<network.getCard(id); v++)
+				assertEquals(
+						"p("+n.getName()+"="+n.getValueIndexed(v)+")",
+						engine.getConditionalProbability(n, n.getValueIndexed(v)),
+						(double)counts[id][v]/count,
+						0.01);
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.bn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.IteratorCategoricalVariables;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.GibbsSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ImportanceSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataGerland1;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataSachs;
+
+public class TestAssignment {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestAssignment.class);
+
+	@Test
+	public void testMutators() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		CompiledNetwork network = bn.getCompiled();
+
+		Assignment a = new Assignment(network);
+		assertTrue(a.isEmpty());
+		assertTrue(a.asMap().isEmpty());
+
+		a.set(0, 1).set(network.size()-1, 0);
+		assertEquals(2, a.countObserved());
+		assertTrue(a.isObserved(0));
+		assertFalse(a.isObserved(1));
+		assertEquals(1, a.get(0));
+		assertEquals(-1, a.get(1));
+		assertEquals(network.getValue(0, 1), a.getValue(network.getNode(0)));
+		assertNull(a.getValue(network.getNode(1)));
+
+		Map<NodeCategorical,String> expected = new HashMap<>();
+		expected.put(network.getNode(0), network.getValue(0, 1));
+		expected.put(network.getNode(network.size()-1), network.getValue(network.size()-1, 0));
+		assertEquals(expected, a.toMap());
+		assertEquals(expected, a.asMap());
+		assertEquals(a, Assignment.of(network, expected));
+
+		Assignment copy = new Assignment(network).copyFrom(a);
+		assertEquals(a, copy);
+		assertEquals(a.hashCode(), copy.hashCode());
+		copy.unset(0);
+		assertFalse(copy.isObserved(0));
+		assertTrue(a.isObserved(0));
+		assertFalse(a.equals(copy));
+
+		a.clear();
+		assertTrue(a.isEmpty());
+		assertEquals(-1, a.get(0));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testRefusesValuesOutOfDomain() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+		new Assignment(network).set(0, network.getCard(0));
+	}
+
+	@Test
+	public void testProbabilitiesAndIteration() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+
+		List<NodeCategorical> nodes = bn.enumerateNodes();
+		IteratorCategoricalVariables itMaps = bn.iterateDomains(nodes);
+		IteratorCategoricalVariables itAssignments = bn.iterateDomains(nodes);
+		Assignment a = new Assignment(network);
+		int count = 0;
+		while (itMaps.hasNext()) {
+			assertTrue(itAssignments.hasNext());
+			Map<NodeCategorical,String> n2v = itMaps.next();
+			itAssignments.next(a);
+			assertEquals(n2v, a.toMap());
+
+			for (NodeCategorical n: nodes) {
+				Map<NodeCategorical,String> parents = new HashMap<>();
+				for (NodeCategorical parent: n.getParents())
+					parents.put(parent, n2v.get(parent));
+				final double p = n.getProbability(n2v.get(n), parents);
+				assertEquals(p, n.getProbability(a), 0.);
+				assertEquals(p, n.getProbability(a.get(n), a), 0.);
+			}
+			assertEquals(bn.jointProbability(n2v, new HashMap<>()), network.jointProbability(a), 1e-12);
+			count++;
+		}
+		assertFalse(itAssignments.hasNext());
+		assertTrue(count > 1);
+	}
+
+	protected void assertSamplesRespectEvidence(AbstractInferenceEngine engine) {
+
+		CategoricalBayesianNetwork bn = engine.getBN();
+		CompiledNetwork network = bn.getCompiled();
+		NodeCategorical observed = bn.getNodesSortedByName().get(0);
+		final String value = observed.getDomain(0);
+		engine.addEvidence(observed, value);
+
+		Assignment a = new Assignment(network);
+		for (int i=0; i<50; i++) {
+			engine.sampleOne(a);
+			assertTrue(a.isComplete());
+			assertEquals(value, a.getValue(observed));
+		}
+	}
+
+	@Test
+	public void testSampleOneIntoAssignment() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		assertSamplesRespectEvidence(new SimpleConditionningInferenceEngine(logger, new MersenneTwister(1), bn));
+		assertSamplesRespectEvidence(new GibbsSamplingInferenceEngine(logger, new MersenneTwister(1), bn));
+		assertSamplesRespectEvidence(new ImportanceSamplingInferenceEngine(logger, new MersenneTwister(1), bn));
+	}
+
+}
@@ -0,0 +1,107 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.bn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.Factor;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataGerland1;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataSachs;
+
+public class TestCompiledNetwork {
+
+	/**
+	 * compares the probabilities of the compiled network with the ones of the nodes
+	 * for random assignments
+	 */
+	protected void compareWithNodes(CategoricalBayesianNetwork bn) {
+
+		CompiledNetwork compiled = bn.getCompiled();
+		List<NodeCategorical> nodes = bn.enumerateNodes();
+		assertEquals(nodes.size(), compiled.size());
+
+		for (int i=0; i<compiled.size(); i++) {
+			assertSame(nodes.get(i), compiled.getNode(i));
+			assertEquals(i, compiled.getId(nodes.get(i)));
+			for (int k=0; k<compiled.countParents(i); k++)
+				assertTrue("parents come first in the topological order", compiled.getParent(i, k) < i);
+			for (int k=0; k<compiled.countChildren(i); k++)
+				assertTrue(compiled.getNode(compiled.getChild(i, k)).getParents().contains(nodes.get(i)));
+			for (String s: nodes.get(i).getDomain())
+				assertEquals(s, compiled.getValue(i, compiled.getValueIndex(i, s)));
+		}
+
+		// the factors hold the same probabilities; each call creates a new one
+		Factor[] factors = new Factor[compiled.size()];
+		for (int i=0; i<factors.length; i++)
+			factors[i] = compiled.getFactor(i);
+		assertNotSame(factors[0], compiled.getFactor(0));
+
+		Uniform random = new Uniform(new MersenneTwister(1));
+		for (int t=0; t<200; t++) {
+			int[] values = new int[compiled.size()];
+			Map<NodeCategorical,String> assignment = new HashMap<>();
+			double expected = 1.;
+			for (int i=0; i<values.length; i++) {
+				values[i] = random.nextIntFromTo(0, compiled.getCard(i)-1);
+				assignment.put(nodes.get(i), compiled.getValue(i, values[i]));
+			}
+			for (int i=0; i<values.length; i++) {
+				Map<NodeCategorical,String> parents = new HashMap<>();
+				for (NodeCategorical p: nodes.get(i).getParents())
+					parents.put(p, assignment.get(p));
+				final double p = nodes.get(i).getProbability(assignment.get(nodes.get(i)), parents);
+				assertEquals(p, compiled.getProbability(i, values), 0.);
+				parents.put(nodes.get(i), assignment.get(nodes.get(i)));
+				assertEquals(p, factors[i].get(parents), 0.);
+				expected *= p;
+			}
+			assertEquals(expected, compiled.jointProbability(values), 1e-15);
+		}
+	}
+
+	@Test
+	public void testGerland() {
+		compareWithNodes(CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename)));
+	}
+
+	@Test
+	public void testSachs() {
+		compareWithNodes(CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename)));
+	}
+
+	@Test
+	public void testSnapshotRenewedWhenProbabilitiesChange() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork compiled = bn.getCompiled();
+		assertSame(compiled, bn.getCompiled());
+
+		NodeCategorical n = bn.enumerateNodes().get(0);
+		final int id = compiled.getId(n);
+		final double before = compiled.getProbability(id, 0);
+		double[] content = n.getContent();
+		content[0] = before / 2;
+		n.setProbabilities(content);
+
+		// the past snapshot is immutable
+		assertEquals(before, compiled.getProbability(id, 0), 0.);
+		CompiledNetwork renewed = bn.getCompiled();
+		assertNotSame(compiled, renewed);
+		assertEquals(before / 2, renewed.getProbability(id, 0), 0.);
+	}
+
+}
@@ -0,0 +1,134 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.bn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.DomainCursor;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.IteratorCategoricalVariables;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataGerland1;
+
+public class TestDomainCursor {
+
+	@Test
+	public void testWalksLikeTheIterator() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		List<NodeCategorical> nodes = bn.getNodesSortedByName();
+
+		IteratorCategoricalVariables it = bn.iterateDomains(nodes);
+		DomainCursor cursor = new DomainCursor(nodes);
+		assertEquals(DomainCursor.countCombinations(nodes.toArray(new NodeCategorical[nodes.size()])), cursor.remaining());
+		long count = 0;
+		while (cursor.next()) {
+			assertTrue(it.hasNext());
+			assertEquals(it.next(), cursor.toMap());
+			assertEquals(count++, cursor.getPosition());
+		}
+		assertFalse(it.hasNext());
+		assertEquals(0, cursor.remaining());
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testTracksTheOffsetsInCPTs() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+
+		for (NodeCategorical n: bn.getNodesSortedByName()) {
+
+			final double[] content = n.getContent();
+
+			// over the parents: the offset of the row of the parents
+			DomainCursor parents = new DomainCursor(n.getParentsArray());
+			final int row = parents.trackCPT(n);
+			Map<NodeCategorical,String> n2v = new HashMap<>();
+			Set<Integer> rows = new HashSet<>();
+			while (parents.next()) {
+				parents.putInto(n2v);
+				rows.add(parents.getOffset(row));
+				for (int v=0; v<n.getDomainSize(); v++)
+					assertEquals(n.getProbability(n.getValueIndexed(v), n2v), content[parents.getOffset(row)+v], 0.);
+			}
+			assertEquals(n.getParentsDimensionality(), rows.size());
+
+			// over the node and other variables: the complete offset, the others being ignored
+			List<NodeCategorical> variables = new ArrayList<>(bn.getNodesSortedByName());
+			DomainCursor all = new DomainCursor(variables);
+			final int cpt = all.trackCPT(n);
+			while (all.next()) {
+				Map<NodeCategorical,String> combination = all.toMap();
+				Map<NodeCategorical,String> parentsValues = new HashMap<>();
+				for (NodeCategorical p: n.getParents())
+					parentsValues.put(p, combination.get(p));
+				assertEquals(n.getProbability(combination.get(n), parentsValues), content[all.getOffset(cpt)], 0.);
+			}
+		}
+	}
+
+	@Test
+	public void testSplitsCoverAllTheCombinationsOnce() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		List<NodeCategorical> nodes = bn.getNodesSortedByName();
+		NodeCategorical target = nodes.get(nodes.size()-1);
+
+		DomainCursor root = new DomainCursor(nodes);
+		final long total = root.remaining();
+		final int cpt = root.trackCPT(target);
+
+		// walk a few combinations before splitting
+		for (int i=0; i<3; i++)
+			assertTrue(root.next());
+
+		List<DomainCursor> cursors = new ArrayList<>();
+		cursors.add(root);
+		for (int round=0; round<4; round++) {
+			for (DomainCursor c: new ArrayList<>(cursors)) {
+				DomainCursor other = c.trySplit();
+				if (other != null)
+					cursors.add(other);
+			}
+		}
+		assertEquals(16, cursors.size());
+
+		Set<Long> positions = new HashSet<>();
+		final double[] content = target.getContent();
+		for (DomainCursor c: cursors) {
+			while (c.next()) {
+				assertTrue(positions.add(c.getPosition()));
+				Map<NodeCategorical,String> combination = c.toMap();
+				Map<NodeCategorical,String> parentsValues = new HashMap<>();
+				for (NodeCategorical p: target.getParents())
+					parentsValues.put(p, combination.get(p));
+				assertEquals(target.getProbability(combination.get(target), parentsValues), content[c.getOffset(cpt)], 0.);
+			}
+		}
+		assertEquals(total-3, positions.size());
+	}
+
+	@Test
+	public void testNoVariable() {
+
+		DomainCursor cursor = new DomainCursor(new NodeCategorical[0]);
+		assertEquals(1, cursor.remaining());
+		assertNull(cursor.trySplit());
+		assertTrue(cursor.next());
+		assertTrue(cursor.toMap().isEmpty());
+		assertFalse(cursor.next());
+	}
+
+}
@@ -0,0 +1,92 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.bn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+
+public class TestFiniteNode {
+
+	@Test
+	public void testLargeDomain() {
+
+		CategoricalBayesianNetwork bn = new CategoricalBayesianNetwork("test");
+		NodeCategorical nCommune = new NodeCategorical(bn, "commune");
+
+		// like municipality codes, added in several times
+		List<String> codes = new ArrayList<>();
+		for (int i=0; i<700; i++)
+			codes.add(Integer.toString(1000+i));
+		nCommune.addDomain(codes.subList(0, 500));
+		for (String code: codes.subList(500, 700))
+			nCommune.addDomain(code);
+
+		assertEquals(700, nCommune.getDomainSize());
+		assertEquals(codes, nCommune.getDomain());
+		for (int i=0; i<codes.size(); i++) {
+			// a new string equal to the value is found
+			String code = new String(codes.get(i));
+			assertEquals(i, nCommune.indexOf(code));
+			assertEquals(i, nCommune.getDomainIndex(code));
+			assertEquals(code, nCommune.getDomain(i));
+			assertSame(nCommune.getDomain(i), nCommune.getValueIndexed(i));
+			// values are interned
+			assertSame(code.intern(), nCommune.getDomain(i));
+		}
+		assertEquals(700*nCommune.getParentsDimensionality(), nCommune.getContent().length);
+	}
+
+	@Test
+	public void testUnknownValues() {
+
+		CategoricalBayesianNetwork bn = new CategoricalBayesianNetwork("test");
+		NodeCategorical nGender = new NodeCategorical(bn, "gender");
+		nGender.addDomain("male", "female");
+
+		assertEquals(-1, nGender.indexOf("other"));
+		assertEquals(-1, nGender.indexOf(null));
+		assertFalse(nGender.getDomain().contains("other"));
+		assertTrue(nGender.getDomain().contains("female"));
+		try {
+			nGender.getDomainIndex("other");
+			fail("an unknown value should be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			nGender.getDomain().add("other");
+			fail("the domain should be read-only");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	@Test
+	public void testDuplicateValues() {
+
+		CategoricalBayesianNetwork bn = new CategoricalBayesianNetwork("test");
+		NodeCategorical nGender = new NodeCategorical(bn, "gender");
+		nGender.addDomain("male", "female");
+
+		try {
+			nGender.addDomain("female");
+			fail("a value already in the domain should be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			nGender.addDomain("other", "other");
+			fail("a value twice in the values added should be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(2, nGender.getDomainSize());
+		assertEquals(-1, nGender.indexOf("other"));
+	}
+
+}
@@ -2,9 +2,10 @@ package ch.resear.thiriot.knime.bayesiannetworks.test.lib.bn;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertNull;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -146,6 +147,8 @@ public class TestIterators {
 		
 		CategoricalBayesianNetwork bn = getTestBN();
 		
+		// we know it has 12 combinations
+		
 		SpliteratorCategoricalVariables it1 = bn.spliterateDomains(null);
 		
 		assertNotNull(it1);
@@ -153,23 +156,28 @@ public class TestIterators {
 		SpliteratorCategoricalVariables it2 = it1.trySplit();
 		assertNotNull(it2);
 
-		// should not be splittable anymore
+		// each half is split again in two
 		SpliteratorCategoricalVariables it3 = it1.trySplit();
-		assertNull(it3);
+		assertNotNull(it3);
 		
 		SpliteratorCategoricalVariables it4 = it2.trySplit();
 		assertNotNull(it4);
+		
+		assertEquals(3, it1.estimateSize());
+		assertEquals(3, it2.estimateSize());
+		assertEquals(3, it3.estimateSize());
+		assertEquals(3, it4.estimateSize());
 
 		// iterate it all
 		List<Map<NodeCategorical, String>> actualEntries = new ArrayList<>();
 		it1.forEachRemaining(actualEntries::add);
-		assertEquals(4, actualEntries.size());
+		assertEquals(3, actualEntries.size());
 
 		it2.forEachRemaining(actualEntries::add);
-		assertEquals(8, actualEntries.size());
+		assertEquals(6, actualEntries.size());
 
-		//it3.forEachRemaining(actualEntries::add);
-		//assertEquals(6, actualEntries.size());
+		it3.forEachRemaining(actualEntries::add);
+		assertEquals(9, actualEntries.size());
 
 		it4.forEachRemaining(actualEntries::add);
 		assertEquals(12, actualEntries.size());
@@ -180,6 +188,8 @@ public class TestIterators {
 			expectedCount *= n.getDomainSize();
 		}
 		assertEquals(expectedCount, actualEntries.size());
+		// ... and each combination once
+		assertEquals(expectedCount, new HashSet<>(actualEntries).size());
 		
 	}
 	
@@ -208,7 +218,7 @@ public class TestIterators {
 		CategoricalBayesianNetwork bn = getTestBN();
 		
 		// iterate it all
-		List<Map<NodeCategorical, String>> actualEntries = new ArrayList<>();
+		List<Map<NodeCategorical, String>> actualEntries = Collections.synchronizedList(new ArrayList<>());
 		
 		bn.parallelStreamDomains(null).forEach(actualEntries::add);
 
@@ -0,0 +1,89 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ArithmeticCircuit;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ArithmeticCircuitInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+
+public class TestArithmeticCircuit {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestArithmeticCircuit.class);
+
+	/**
+	 * Asserts random evidence in two engines sharing the same circuit,
+	 * and compares their results with the junction tree
+	 * @param data
+	 */
+	protected void compareWithJunctionTree(AbstractTestData data) {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(data.filename));
+
+		ArithmeticCircuit circuit = ArithmeticCircuit.compile(bn);
+		ArithmeticCircuitInferenceEngine ie1 = new ArithmeticCircuitInferenceEngine(logger, new MersenneTwister(), bn, circuit);
+		ArithmeticCircuitInferenceEngine ie2 = new ArithmeticCircuitInferenceEngine(logger, new MersenneTwister(), bn, circuit);
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+
+		Uniform random = new Uniform(new MersenneTwister(42));
+		List<NodeCategorical> varsOrdered = bn.enumerateNodes();
+
+		for (int step=0; step<10; step++) {
+
+			ie1.clearEvidence();
+			reference.clearEvidence();
+			for (int i=0; i<3; i++) {
+				NodeCategorical n = varsOrdered.get(random.nextIntFromTo(0, varsOrdered.size()-1));
+				String v = n.getDomain(random.nextIntFromTo(0, n.getDomainSize()-1));
+				ie1.addEvidence(n, v);
+				reference.addEvidence(n, v);
+			}
+			// the other engine keeps another evidence, which should not interfere
+			ie2.clearEvidence();
+			ie2.addEvidence(varsOrdered.get(0), varsOrdered.get(0).getDomain(step % varsOrdered.get(0).getDomainSize()));
+			ie2.getProbabilityEvidence();
+
+			double expectedP = reference.getProbabilityEvidence();
+			assertEquals("p(evidence) after step "+step, expectedP, ie1.getProbabilityEvidence(), 1e-10);
+			if (expectedP == 0.)
+				continue;
+
+			for (NodeCategorical q: varsOrdered) {
+				for (String s: q.getDomain()) {
+					assertEquals(
+							"p("+q.name+"="+s+"|evidence) after step "+step,
+							reference.getConditionalProbability(q, s),
+							ie1.getConditionalProbability(q, s),
+							1e-10
+							);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCircuitSprinkler() {
+		compareWithJunctionTree(new DataSprinkler());
+	}
+
+	@Test
+	public void testCircuitCancer() {
+		compareWithJunctionTree(new DataCancerSmall());
+	}
+
+	@Test
+	public void testCircuitSachs() {
+		compareWithJunctionTree(new DataSachs());
+	}
+
+}
@@ -9,6 +9,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +23,7 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
+import cern.jet.random.Uniform;
 import cern.jet.random.engine.MersenneTwister;
 import cern.jet.random.engine.RandomEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
@@ -29,8 +31,13 @@ import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ArithmeticCircuitInferenceEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.GibbsSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ImportanceSamplingInferenceEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferencePerformanceUtils;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.LoopyBeliefPropagationEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.RecursiveConditionningEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
 
@@ -48,9 +55,24 @@ public class TestCompareInferenceEngines {
 		EliminationInferenceEngine.class,
 		//BestInferenceEngine.class,
 		RecursiveConditionningEngine.class,
-		SimpleConditionningInferenceEngine.class
+		SimpleConditionningInferenceEngine.class,
+		JunctionTreeInferenceEngine.class,
+		ArithmeticCircuitInferenceEngine.class
 	});
 	
+	/**
+	 * the approximate engines, with the max difference of their posteriors with exact inference, 
+	 * and the max relative error of their probability of evidence
+	 */
+	public static Map<Class<?>,double[]> approximateEnginesToTolerances = new LinkedHashMap<>();
+	static {
+		approximateEnginesToTolerances.put(ImportanceSamplingInferenceEngine.class, new double[] { 0.01, 0.02 });
+		// the probability of evidence is estimated by importance sampling
+		approximateEnginesToTolerances.put(GibbsSamplingInferenceEngine.class, new double[] { 0.02, 0.05 });
+		// only exact without loops; Sachs has many
+		approximateEnginesToTolerances.put(LoopyBeliefPropagationEngine.class, new double[] { 0.15, 0.5 });
+	}
+	
 	@Parameters(name="{0}")
     public static Collection<Object[]> data() {
         return Arrays.asList(new Object[][] {
@@ -109,6 +131,84 @@ public class TestCompareInferenceEngines {
 	public void tearDown() throws Exception {
 	}
 
+	/**
+	 * creates an approximate engine, set up to be precise enough for the comparison
+	 */
+	protected AbstractInferenceEngine createApproximateEngine(Class<?> c) {
+		
+		if (c == ImportanceSamplingInferenceEngine.class) {
+			ImportanceSamplingInferenceEngine ie = new ImportanceSamplingInferenceEngine(logger, new MersenneTwister(1), bn);
+			ie.setSamples(200000);
+			ie.setTargetError(0.002);
+			return ie;
+		} else if (c == GibbsSamplingInferenceEngine.class) {
+			GibbsSamplingInferenceEngine ie = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(1), bn);
+			ie.setSamples(100000);
+			return ie;
+		} else if (c == LoopyBeliefPropagationEngine.class) {
+			LoopyBeliefPropagationEngine ie = new LoopyBeliefPropagationEngine(logger, new MersenneTwister(1), bn);
+			ie.setDamping(0.2);
+			ie.setTolerance(1e-10);
+			ie.setMaxIterations(1000);
+			return ie;
+		}
+		throw new IllegalArgumentException("no settings for the approximate engine "+c.getSimpleName());
+	}
+	
+	/**
+	 * Asserts random evidence in this engine and the junction tree, 
+	 * and compares the posteriors with the given precision and the probability of evidence 
+	 * with the given relative precision
+	 */
+	public static void compareWithJunctionTree(
+			AbstractInferenceEngine ie, CategoricalBayesianNetwork bn, 
+			double precision, double precisionEvidence) {
+		
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(
+				LogIntoJavaLogger.getLogger(TestCompareInferenceEngines.class), new MersenneTwister(1), bn);
+		final String name = ie.getClass().getSimpleName();
+		
+		Uniform random = new Uniform(new MersenneTwister(42));
+		List<NodeCategorical> varsOrdered = bn.enumerateNodes();
+
+		for (int step=0; step<6; step++) {
+
+			ie.clearEvidence();
+			reference.clearEvidence();
+			for (int i=0; i<1+step%3; i++) {
+				NodeCategorical n = varsOrdered.get(random.nextIntFromTo(0, varsOrdered.size()-1));
+				String v = n.getDomain(random.nextIntFromTo(0, n.getDomainSize()-1));
+				ie.addEvidence(n, v);
+				reference.addEvidence(n, v);
+			}
+
+			final double expectedP = reference.getProbabilityEvidence();
+			if (expectedP == 0.)
+				continue;
+			assertEquals(
+					"relative error of "+name+" on p(evidence) after step "+step, 
+					1., ie.getProbabilityEvidence()/expectedP, precisionEvidence);
+
+			for (NodeCategorical q: varsOrdered) {
+				for (String s: q.getDomain()) {
+					assertEquals(
+							name+": p("+q.name+"="+s+"|evidence) after step "+step,
+							reference.getConditionalProbability(q, s),
+							ie.getConditionalProbability(q, s),
+							precision
+							);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testApproximateEngines() {
+		
+		for (Map.Entry<Class<?>,double[]> e: approximateEnginesToTolerances.entrySet())
+			compareWithJunctionTree(createApproximateEngine(e.getKey()), bn, e.getValue()[0], e.getValue()[1]);
+	}
+
 
 	@Test(timeout=1000)
 	public void ensureProbabilityEvidenceNothingIsOne() {
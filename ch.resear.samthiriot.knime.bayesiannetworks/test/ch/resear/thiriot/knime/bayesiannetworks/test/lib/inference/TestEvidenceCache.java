@@ -0,0 +1,181 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EvidenceCache;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EvidenceSignaturePlan;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+
+public class TestEvidenceCache {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestEvidenceCache.class);
+
+	@Test
+	public void testHitsMissesAndEviction() {
+
+		EvidenceCache<String> cache = new EvidenceCache<>(2);
+
+		int[] tuple = new int[] { 0, -1, 2 };
+		assertNull(cache.get(tuple));
+		cache.put(tuple, "a");
+		// the cache keeps a copy of the tuple
+		tuple[0] = 1;
+		assertNull(cache.get(tuple));
+		assertEquals("a", cache.get(new int[] { 0, -1, 2 }));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		cache.put(new int[] { 1 }, "b");
+		cache.get(new int[] { 0, -1, 2 });
+		cache.put(new int[] { 2 }, "c");
+		// the least recently used is forgotten
+		assertEquals(2, cache.size());
+		assertNull(cache.get(new int[] { 1 }));
+		assertEquals("a", cache.get(new int[] { 0, -1, 2 }));
+		assertEquals("c", cache.get(new int[] { 2 }));
+	}
+
+	@Test
+	public void testEvictionByWeight() {
+
+		EvidenceCache<String> cache = new EvidenceCache<>(100, 5, String::length);
+
+		cache.put(new int[] { 0 }, "ab");
+		cache.put(new int[] { 1 }, "cd");
+		assertEquals(4, cache.getWeight());
+		cache.get(new int[] { 0 });
+		cache.put(new int[] { 2 }, "ef");
+		// the least recently used is forgotten until the weight fits
+		assertEquals(2, cache.size());
+		assertEquals(4, cache.getWeight());
+		assertNull(cache.get(new int[] { 1 }));
+		assertEquals("ab", cache.get(new int[] { 0 }));
+
+		// a value heavier than the cache is not kept
+		cache.put(new int[] { 3 }, "abcdef");
+		assertNull(cache.get(new int[] { 3 }));
+		assertEquals(2, cache.size());
+
+		cache.clear();
+		assertEquals(0, cache.getWeight());
+	}
+
+	@Test
+	public void testGetOrComputeComputesDistinctTuplesOnce() {
+
+		EvidenceCache<Integer> cache = new EvidenceCache<>(100);
+		int[][] rows = new int[][] { {0, 1}, {1, 1}, {0, 1}, {-1, 0}, {1, 1} };
+
+		final List<int[]> computed = new ArrayList<>();
+		List<Integer> values = cache.getOrCompute(rows, missing -> {
+			List<Integer> res = new ArrayList<>();
+			for (int[] row: missing) {
+				computed.add(row);
+				res.add(row[0]*10+row[1]);
+			}
+			return res;
+		});
+		assertEquals(3, computed.size());
+		assertEquals(3, cache.getMisses());
+		assertEquals(2, cache.getHits());
+		for (int r=0; r<rows.length; r++)
+			assertEquals(Integer.valueOf(rows[r][0]*10+rows[r][1]), values.get(r));
+
+		computed.clear();
+		cache.getOrCompute(rows, missing -> {
+			throw new IllegalStateException("every tuple should be cached");
+		});
+		assertEquals(7, cache.getHits());
+	}
+
+	@Test
+	public void testProbabilitiesWithCache() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		EliminationInferenceEngine engine = new EliminationInferenceEngine(logger, new MersenneTwister(), bn);
+
+		List<NodeCategorical> nodes = bn.enumerateNodes();
+		NodeCategorical[] observed = nodes.subList(nodes.size()-3, nodes.size()).toArray(new NodeCategorical[0]);
+		Uniform random = new Uniform(new MersenneTwister(4));
+		int[][] rows = new int[500][observed.length];
+		for (int r=0; r<rows.length; r++)
+			for (int i=0; i<observed.length; i++)
+				rows[r][i] = random.nextIntFromTo(-1, 1);
+
+		EvidenceCache<Double> cache = new EvidenceCache<>(1000);
+		double[] expected = engine.getProbabilityEvidenceForRows(observed, rows);
+		double[] cached = engine.getProbabilityEvidenceForRows(observed, rows, cache);
+		for (int r=0; r<rows.length; r++)
+			assertEquals(expected[r], cached[r], 0.);
+		assertEquals(rows.length, cache.getHits() + cache.getMisses());
+		assertEquals(cache.size(), cache.getMisses());
+
+		engine.getProbabilityEvidenceForRows(observed, rows, cache);
+		assertEquals(2*rows.length - cache.size(), cache.getHits());
+	}
+
+	@Test
+	public void testSamplesWithCachedPosteriors() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		EliminationInferenceEngine engine = new EliminationInferenceEngine(logger, new MersenneTwister(3), bn);
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+
+		List<NodeCategorical> nodes = bn.enumerateNodes();
+		NodeCategorical e = nodes.get(nodes.size()-1);
+		NodeCategorical[] observed = new NodeCategorical[] { e };
+		reference.addEvidence(e, e.getValueIndexed(2));
+
+		EvidenceCache<EvidenceSignaturePlan.Posterior> cache = new EvidenceCache<>(10);
+		List<Map<NodeCategorical,String>> generated = new ArrayList<>();
+		for (int block=0; block<20; block++) {
+			int[][] rows = new int[1000][];
+			for (int r=0; r<rows.length; r++)
+				rows[r] = new int[] { 2 };
+			generated.addAll(engine.sampleForRows(observed, rows, cache));
+		}
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.size());
+
+		// a cache bounded in memory weights the posteriors by their size
+		EvidenceCache<EvidenceSignaturePlan.Posterior> bounded = new EvidenceCache<>(
+				10, 1 << 20, EvidenceSignaturePlan.Posterior::estimateBytes);
+		engine.sampleForRows(observed, new int[][] { { 2 } }, bounded);
+		EvidenceSignaturePlan.Posterior posterior = bounded.get(new int[] { 2 });
+		assertTrue(posterior.estimateBytes() > 0);
+		assertEquals(posterior.estimateBytes(), bounded.getWeight());
+
+		for (NodeCategorical q: nodes) {
+			Map<String,Integer> value2count = new HashMap<>();
+			for (Map<NodeCategorical,String> individual: generated) {
+				assertEquals(e.getValueIndexed(2), individual.get(e));
+				value2count.merge(individual.get(q), 1, Integer::sum);
+			}
+			for (String s: q.getDomain())
+				assertEquals(
+						"frequency of "+q.name+"="+s,
+						reference.getConditionalProbability(q, s),
+						value2count.getOrDefault(s, 0)/(double)generated.size(),
+						0.015
+						);
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EvidenceJointTable;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+
+public class TestEvidenceJointTable {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestEvidenceJointTable.class);
+
+	/**
+	 * Compares the probabilities of random rows with missing values read from the joint table
+	 * with the junction tree
+	 * @param data
+	 * @param countObserved
+	 */
+	protected void compareWithJunctionTree(AbstractTestData data, int countObserved) {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(data.filename));
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+
+		List<NodeCategorical> nodes = bn.getNodesSortedByName();
+		NodeCategorical[] observed = new NodeCategorical[Math.min(countObserved, nodes.size())];
+		for (int i=0; i<observed.length; i++)
+			observed[i] = nodes.get(i);
+
+		EvidenceJointTable table = EvidenceJointTable.compute(
+				new EliminationInferenceEngine(logger, new MersenneTwister(), bn),
+				observed);
+
+		Uniform random = new Uniform(new MersenneTwister(12));
+		int[][] rows = new int[300][observed.length];
+		for (int r=0; r<rows.length; r++)
+			for (int i=0; i<observed.length; i++)
+				rows[r][i] = random.nextIntFromTo(-1, observed[i].getDomainSize()-1);
+		rows[0] = new int[observed.length];
+		java.util.Arrays.fill(rows[0], -1);
+
+		double[] probabilities = table.getProbabilityEvidenceForRows(rows);
+		for (int r=0; r<rows.length; r++) {
+			reference.clearEvidence();
+			for (int i=0; i<observed.length; i++)
+				if (rows[r][i] >= 0)
+					reference.addEvidence(observed[i], observed[i].getValueIndexed(rows[r][i]));
+			assertEquals("p(evidence) of row "+r, reference.getProbabilityEvidence(), probabilities[r], 1e-10);
+		}
+	}
+
+	@Test
+	public void testSprinkler() {
+		compareWithJunctionTree(new DataSprinkler(), 3);
+	}
+
+	@Test
+	public void testGerland() {
+		compareWithJunctionTree(new DataGerland1(), 4);
+	}
+
+	@Test
+	public void testSachs() {
+		compareWithJunctionTree(new DataSachs(), 6);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testRefusesEvidence() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		EliminationInferenceEngine engine = new EliminationInferenceEngine(logger, new MersenneTwister(), bn);
+		NodeCategorical n = bn.enumerateNodes().get(0);
+		engine.addEvidence(n, n.getDomain(0));
+		EvidenceJointTable.compute(engine, new NodeCategorical[] { n });
+	}
+
+}
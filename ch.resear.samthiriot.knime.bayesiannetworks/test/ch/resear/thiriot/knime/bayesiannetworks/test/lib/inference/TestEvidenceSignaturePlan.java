@@ -0,0 +1,215 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EvidenceSignaturePlan;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+
+public class TestEvidenceSignaturePlan {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestEvidenceSignaturePlan.class);
+
+	/**
+	 * Creates random rows of evidence on the last variables of the network,
+	 * with missing values
+	 */
+	protected int[][] createRows(NodeCategorical[] observed, int count, Uniform random) {
+
+		int[][] rows = new int[count][observed.length];
+		for (int r=0; r<count; r++)
+			for (int i=0; i<observed.length; i++)
+				rows[r][i] = random.nextIntFromTo(-1, observed[i].getDomainSize()-1);
+		return rows;
+	}
+
+	protected NodeCategorical[] selectObserved(CategoricalBayesianNetwork bn) {
+		List<NodeCategorical> nodes = bn.enumerateNodes();
+		return nodes.subList(nodes.size()/2, nodes.size()).toArray(new NodeCategorical[0]);
+	}
+
+	/**
+	 * Compares the batch computation of an engine with the junction tree row per row
+	 * @param data
+	 * @param engine
+	 */
+	protected void compareBatchWithJunctionTree(AbstractTestData data, Class<? extends AbstractInferenceEngine> engineClass) throws Exception {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(data.filename));
+		AbstractInferenceEngine engine = engineClass.getConstructor(
+				ILogger.class, cern.jet.random.engine.RandomEngine.class, CategoricalBayesianNetwork.class
+				).newInstance(logger, new MersenneTwister(), bn);
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+
+		NodeCategorical[] observed = selectObserved(bn);
+		int[][] rows = createRows(observed, 200, new Uniform(new MersenneTwister(42)));
+
+		double[] probabilities = engine.getProbabilityEvidenceForRows(observed, rows);
+
+		for (int r=0; r<rows.length; r++) {
+			reference.clearEvidence();
+			for (int i=0; i<observed.length; i++)
+				if (rows[r][i] >= 0)
+					reference.addEvidence(observed[i], observed[i].getValueIndexed(rows[r][i]));
+			assertEquals("p(evidence) of row "+r, reference.getProbabilityEvidence(), probabilities[r], 1e-10);
+		}
+	}
+
+	@Test
+	public void testBatchSprinkler() throws Exception {
+		compareBatchWithJunctionTree(new DataSprinkler(), EliminationInferenceEngine.class);
+	}
+
+	@Test
+	public void testBatchCancer() throws Exception {
+		compareBatchWithJunctionTree(new DataCancerSmall(), EliminationInferenceEngine.class);
+	}
+
+	@Test
+	public void testBatchGerland() throws Exception {
+		compareBatchWithJunctionTree(new DataGerland1(), EliminationInferenceEngine.class);
+	}
+
+	@Test
+	public void testBatchSachs() throws Exception {
+		compareBatchWithJunctionTree(new DataSachs(), EliminationInferenceEngine.class);
+	}
+
+	@Test
+	public void testBatchRowPerRowKeepsEvidence() throws Exception {
+
+		// the junction tree has no plan, so it asserts evidence row per row
+		compareBatchWithJunctionTree(new DataSachs(), JunctionTreeInferenceEngine.class);
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		JunctionTreeInferenceEngine engine = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+		NodeCategorical first = bn.enumerateNodes().get(0);
+		engine.addEvidence(first, first.getDomain(0));
+		final double before = engine.getProbabilityEvidence();
+
+		NodeCategorical[] observed = selectObserved(bn);
+		engine.getProbabilityEvidenceForRows(observed, createRows(observed, 10, new Uniform(new MersenneTwister(1))));
+
+		assertEquals(before, engine.getProbabilityEvidence(), 0.);
+	}
+
+	@Test
+	public void testBatchKernelsMatchRowPerRow() {
+
+		final int batchRows = EvidenceSignaturePlan.BATCH_ROWS;
+		final int maxEntries = EvidenceSignaturePlan.MAX_BATCH_ENTRIES;
+		try {
+			for (int[] settings: new int[][] { {1024, 1 << 22}, {7, 1 << 22}, {1024, 64}, {1024, 1} }) {
+
+				EvidenceSignaturePlan.BATCH_ROWS = settings[0];
+				EvidenceSignaturePlan.MAX_BATCH_ENTRIES = settings[1];
+
+				for (AbstractTestData data: new AbstractTestData[] { new DataGerland1(), new DataSachs() }) {
+					CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(data.filename));
+					List<NodeCategorical> nodes = bn.enumerateNodes();
+					NodeCategorical[] observed = new NodeCategorical[] { nodes.get(nodes.size()-1), nodes.get(nodes.size()/2) };
+					EvidenceSignaturePlan plan = EvidenceSignaturePlan.compile(bn, observed);
+
+					int[][] rows = createRows(observed, 100, new Uniform(new MersenneTwister(3)));
+					for (int[] row: rows)
+						for (int i=0; i<row.length; i++)
+							row[i] = Math.max(0, row[i]);
+
+					double[] probabilities = plan.getProbabilityEvidence(rows);
+					for (int r=0; r<rows.length; r++)
+						assertEquals(
+								"p(evidence) of row "+r+" with batches "+Arrays.toString(settings),
+								plan.getProbabilityEvidence(rows[r]),
+								probabilities[r],
+								1e-12);
+				}
+			}
+		} finally {
+			EvidenceSignaturePlan.BATCH_ROWS = batchRows;
+			EvidenceSignaturePlan.MAX_BATCH_ENTRIES = maxEntries;
+		}
+	}
+
+	@Test
+	public void testSampleFollowsPosterior() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		EliminationInferenceEngine engine = new EliminationInferenceEngine(logger, new MersenneTwister(5), bn);
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+
+		List<NodeCategorical> nodes = bn.enumerateNodes();
+		NodeCategorical e = nodes.get(nodes.size()-1);
+		NodeCategorical[] observed = new NodeCategorical[] { e };
+		int[][] rows = new int[20000][];
+		for (int r=0; r<rows.length; r++)
+			rows[r] = new int[] { 1 };
+		reference.addEvidence(e, e.getValueIndexed(1));
+
+		List<Map<NodeCategorical,String>> generated = engine.sampleForRows(observed, rows);
+
+		for (NodeCategorical q: nodes) {
+			Map<String,Integer> value2count = new HashMap<>();
+			for (Map<NodeCategorical,String> individual: generated) {
+				assertEquals(e.getValueIndexed(1), individual.get(e));
+				value2count.merge(individual.get(q), 1, Integer::sum);
+			}
+			for (String s: q.getDomain())
+				assertEquals(
+						"frequency of "+q.name+"="+s,
+						reference.getConditionalProbability(q, s),
+						value2count.getOrDefault(s, 0)/(double)rows.length,
+						0.015
+						);
+		}
+	}
+
+	@Test
+	public void testPlansCompiledAgainOnceTheNetworkChanged() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		EliminationInferenceEngine engine = new EliminationInferenceEngine(logger, new MersenneTwister(5), bn);
+
+		NodeCategorical[] observed = selectObserved(bn);
+		int[][] rows = createRows(observed, 20, new Uniform(new MersenneTwister(2)));
+		engine.sampleAssignmentsForRows(observed, rows);
+
+		// change the CPT of the root, which is an ancestor of every observed variable
+		NodeCategorical root = bn.enumerateNodes().get(0);
+		double[] cpt = new double[root.getDomainSize()];
+		cpt[0] = 1.;
+		root.setProbabilities(cpt);
+
+		List<Assignment> generated = engine.sampleAssignmentsForRows(observed, rows);
+		for (Assignment assignment: generated) {
+			assertEquals(bn.getCompiled(), assignment.getNetwork());
+			assertEquals(root.getValueIndexed(0), assignment.toMap().get(root));
+		}
+
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+		double[] probabilities = engine.getProbabilityEvidenceForRows(observed, rows);
+		for (int r=0; r<rows.length; r++) {
+			reference.clearEvidence();
+			for (int i=0; i<observed.length; i++)
+				if (rows[r][i] >= 0)
+					reference.addEvidence(observed[i], observed[i].getValueIndexed(rows[r][i]));
+			assertEquals("p(evidence) of row "+r, reference.getProbabilityEvidence(), probabilities[r], 1e-10);
+		}
+	}
+
+}
@@ -3,6 +3,10 @@ package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -42,7 +46,7 @@ public class TestFactors {
 		Factor f = nAge.asFactor();
 		
 		// is the factor having the right size? 
-		assertEquals(2*2, f.values.size());
+		assertEquals(2*2, f.size());
 		
 		assertEquals(0.55, f.get("age","<15","gender","male"), Math.pow(1, -4));
 		
@@ -108,7 +112,7 @@ public class TestFactors {
 		Factor m = f1.multiply(f2);
 		
 		// is the factor having the right size? 
-		assertEquals(2*2, m.values.size());
+		assertEquals(2*2, m.size());
 				
 		// test mult
 		assertEquals(0.45*0.55, m.get("age",">=15","gender","male"), Math.pow(1, -4));
@@ -121,7 +125,7 @@ public class TestFactors {
 		m = f1.multiply(f2);
 		
 		// is the factor having the right size? 
-		assertEquals(2*2*2, m.values.size());
+		assertEquals(2*2*2, m.size());
 		
 		// test mult
 		assertEquals(0.45*0.1, m.get("age",">=15","gender","male","CSP","+"), Math.pow(1, -4));
@@ -129,4 +133,228 @@ public class TestFactors {
 		
 	}
 
+	@Test
+	public void testReduce() {
+		
+		CategoricalBayesianNetwork bn = new CategoricalBayesianNetwork("test1");
+		
+		NodeCategorical nGender = new NodeCategorical(bn, "gender");
+		nGender.addDomain("male", "female");
+		nGender.setProbabilities(0.55, "male");
+		nGender.setProbabilities(0.45, "female");
+		
+		NodeCategorical nAge = new NodeCategorical(bn, "age");
+		nAge.addParent(nGender);
+		nAge.addDomain("<15", ">=15", ">=65");
+		nAge.setProbabilities(0.25, "<15", "gender", "male");
+		nAge.setProbabilities(0.60, ">=15", "gender", "male");
+		nAge.setProbabilities(0.15, ">=65", "gender", "male");
+		nAge.setProbabilities(0.20, "<15", "gender", "female");
+		nAge.setProbabilities(0.55, ">=15", "gender", "female");
+		nAge.setProbabilities(0.25, ">=65", "gender", "female");
+		
+		Factor f = nAge.asFactor();
+		assertEquals(3*2, f.size());
+		
+		// reducing on the parent keeps the child
+		Factor r = f.reduction(nGender, "female");
+		assertEquals(3, r.size());
+		assertEquals(0.55, r.get("age",">=15"), 1e-9);
+		assertEquals(0.25, r.get("age",">=65"), 1e-9);
+		
+		// reducing on the child keeps the parent
+		r = f.reduction(nAge, ">=65");
+		assertEquals(2, r.size());
+		assertEquals(0.15, r.get("gender","male"), 1e-9);
+		assertEquals(0.25, r.get("gender","female"), 1e-9);
+		
+		// the original factor was not changed
+		assertEquals(0.60, f.get("age",">=15","gender","male"), 1e-9);
+
+		// reducing on everything leads to a unique value
+		r.reduce(nGender, "female");
+		assertEquals(true, r.hasUniqueValue());
+		assertEquals(0.25, r.getUniqueValue(), 1e-9);
+		
+	}
+
+	@Test
+	public void testSparse() {
+		
+		CategoricalBayesianNetwork bn = new CategoricalBayesianNetwork("test1");
+		
+		NodeCategorical nGender = new NodeCategorical(bn, "gender");
+		nGender.addDomain("male", "female");
+		nGender.setProbabilities(0.55, "male");
+		nGender.setProbabilities(0.45, "female");
+		
+		NodeCategorical nAge = new NodeCategorical(bn, "age");
+		nAge.addParent(nGender);
+		nAge.addDomain("<15", ">=15", ">=65");
+		nAge.setProbabilities(1., "<15", "gender", "male");
+		nAge.setProbabilities(0.60, ">=15", "gender", "female");
+		nAge.setProbabilities(0.40, ">=65", "gender", "female");
+		
+		NodeCategorical nCSP = new NodeCategorical(bn, "CSP");
+		nCSP.addParent(nAge);
+		nCSP.addDomain("+", "++");
+		nCSP.setProbabilities(1., "+", "age", "<15");
+		nCSP.setProbabilities(1., "++", "age", ">=15");
+		nCSP.setProbabilities(0.5, "+", "age", ">=65");
+		nCSP.setProbabilities(0.5, "++", "age", ">=65");
+		
+		final int previousMinSize = Factor.SPARSE_MIN_SIZE;
+		final double previousDensity = Factor.SPARSE_DENSITY;
+		try {
+			// compute everything dense
+			Factor.SPARSE_MIN_SIZE = Integer.MAX_VALUE;
+			Factor dAge = nAge.asFactor();
+			Factor dProduct = dAge.multiply(nCSP.asFactor()).multiply(nGender.asFactor());
+			Factor dSummed = dProduct.sumOut(nAge);
+			assertEquals(false, dProduct.isSparse());
+			
+			// compute everything sparse
+			Factor.SPARSE_MIN_SIZE = 0;
+			Factor.SPARSE_DENSITY = 2.;
+			Factor sAge = nAge.asFactor();
+			Factor sProduct = sAge.multiply(nCSP.asFactor()).multiply(nGender.asFactor());
+			Factor sSummed = sProduct.sumOut(nAge);
+			assertEquals(true, sAge.isSparse());
+			assertEquals(true, sProduct.isSparse());
+			assertEquals(3, sAge.size());
+			
+			for (String gender: nGender.getDomain()) {
+				for (String csp: nCSP.getDomain()) {
+					for (String age: nAge.getDomain())
+						assertEquals(
+								dProduct.get("age",age,"gender",gender,"CSP",csp), 
+								sProduct.get("age",age,"gender",gender,"CSP",csp), 
+								1e-9);
+					assertEquals(
+							dSummed.get("gender",gender,"CSP",csp), 
+							sSummed.get("gender",gender,"CSP",csp), 
+							1e-9);
+				}
+				assertEquals(
+						dAge.reduction(nGender, gender).get("age",">=65"), 
+						sAge.reduction(nGender, gender).get("age",">=65"),
+						1e-9);
+			}
+			assertEquals(0.45*0.40*0.5, sSummed.get("gender","female","CSP","+"), 1e-9);
+			assertEquals(1., sProduct.sum(), 1e-9);
+			
+		} finally {
+			Factor.SPARSE_MIN_SIZE = previousMinSize;
+			Factor.SPARSE_DENSITY = previousDensity;
+		}
+		
+	}
+
+	/**
+	 * The unit factor sums to 1, whereas a sparse factor without any value left sums to 0
+	 */
+	@Test
+	public void testSumOfEmptySparse() {
+		
+		CategoricalBayesianNetwork bn = new CategoricalBayesianNetwork("test1");
+		
+		NodeCategorical nGender = new NodeCategorical(bn, "gender");
+		nGender.addDomain("male", "female");
+		nGender.setProbabilities(0.55, "male");
+		nGender.setProbabilities(0.45, "female");
+		
+		NodeCategorical nAge = new NodeCategorical(bn, "age");
+		nAge.addParent(nGender);
+		nAge.addDomain("<15", ">=15", ">=65");
+		nAge.setProbabilities(1., "<15", "gender", "male");
+		nAge.setProbabilities(0.60, ">=15", "gender", "female");
+		nAge.setProbabilities(0.40, ">=65", "gender", "female");
+		
+		assertEquals(1., new Factor(bn, Collections.emptySet()).sum(), 1e-9);
+		
+		final int previousMinSize = Factor.SPARSE_MIN_SIZE;
+		final double previousDensity = Factor.SPARSE_DENSITY;
+		try {
+			Factor.SPARSE_MIN_SIZE = 0;
+			Factor.SPARSE_DENSITY = 2.;
+			Factor sAge = nAge.asFactor();
+			sAge.reduce(nGender, "male");
+			sAge.reduce(nAge, ">=65");
+			assertEquals(true, sAge.isSparse());
+			assertEquals(0, sAge.size());
+			assertEquals(0., sAge.sum(), 1e-9);
+		} finally {
+			Factor.SPARSE_MIN_SIZE = previousMinSize;
+			Factor.SPARSE_DENSITY = previousDensity;
+		}
+		
+	}
+
+	@Test
+	public void testMultiplyAndSumOut() {
+		
+		CategoricalBayesianNetwork bn = new CategoricalBayesianNetwork("test1");
+		
+		NodeCategorical nGender = new NodeCategorical(bn, "gender");
+		nGender.addDomain("male", "female");
+		nGender.setProbabilities(0.55, "male");
+		nGender.setProbabilities(0.45, "female");
+		
+		NodeCategorical nAge = new NodeCategorical(bn, "age");
+		nAge.addParent(nGender);
+		nAge.addDomain("<15", ">=15");
+		nAge.setProbabilities(0.55, "<15", "gender", "male");
+		nAge.setProbabilities(0.45, ">=15", "gender", "male");
+		nAge.setProbabilities(0.50, "<15", "gender", "female");
+		nAge.setProbabilities(0.50, ">=15", "gender", "female");
+		
+		NodeCategorical nCSP = new NodeCategorical(bn, "CSP");
+		nCSP.addParent(nGender);
+		nCSP.addParent(nAge);
+		nCSP.addDomain("+", "++", "+++");
+		nCSP.setProbabilities(0.1, "+", "gender", "male", "age", "<15");
+		nCSP.setProbabilities(0.2, "++", "gender", "male", "age", "<15");
+		nCSP.setProbabilities(0.7, "+++", "gender", "male", "age", "<15");
+		nCSP.setProbabilities(0.3, "+", "gender", "male", "age", ">=15");
+		nCSP.setProbabilities(0.3, "++", "gender", "male", "age", ">=15");
+		nCSP.setProbabilities(0.4, "+++", "gender", "male", "age", ">=15");
+		nCSP.setProbabilities(0.2, "+", "gender", "female", "age", "<15");
+		nCSP.setProbabilities(0.2, "++", "gender", "female", "age", "<15");
+		nCSP.setProbabilities(0.6, "+++", "gender", "female", "age", "<15");
+		nCSP.setProbabilities(0.5, "+", "gender", "female", "age", ">=15");
+		nCSP.setProbabilities(0.4, "++", "gender", "female", "age", ">=15");
+		nCSP.setProbabilities(0.1, "+++", "gender", "female", "age", ">=15");
+		
+		List<Factor> factors = Arrays.asList(nGender.asFactor(), nAge.asFactor(), nCSP.asFactor());
+		
+		// reference: product then sum
+		Factor product = factors.get(0).multiply(factors.get(1)).multiply(factors.get(2));
+		Factor expected = product.sumOut(nAge);
+		
+		// fused
+		Factor fused = Factor.multiplyAndSumOut(factors, nAge);
+		assertEquals(expected.getVariables(), fused.getVariables());
+		for (String gender: nGender.getDomain())
+			for (String csp: nCSP.getDomain())
+				assertEquals(
+						expected.get("gender",gender,"CSP",csp), 
+						fused.get("gender",gender,"CSP",csp), 
+						1e-9);
+		
+		// several variables summed at once
+		fused = Factor.multiplyAndSumOut(factors, Arrays.asList(nAge, nGender));
+		assertEquals(0.55*(0.55*0.1+0.45*0.3)+0.45*(0.5*0.2+0.5*0.5), fused.get("CSP","+"), 1e-9);
+		
+		// everything summed leads to a unique value
+		fused = Factor.multiplyAndSumOut(factors, Arrays.asList(nAge, nGender, nCSP));
+		assertEquals(1., fused.getUniqueValue(), 1e-9);
+		
+		// nothing summed is the product
+		fused = Factor.multiplyAndSumOut(factors, Collections.emptySet());
+		assertEquals(
+				product.get("gender","female","age",">=15","CSP","++"),
+				fused.get("gender","female","age",">=15","CSP","++"),
+				1e-9);
+	}
+
 }
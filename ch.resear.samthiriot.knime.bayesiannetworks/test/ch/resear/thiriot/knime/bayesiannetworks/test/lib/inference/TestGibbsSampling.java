@@ -0,0 +1,194 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.GibbsSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+
+public class TestGibbsSampling {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestGibbsSampling.class);
+
+	@Test
+	public void testReproducibleWithSeed() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		NodeCategorical e = bn.enumerateNodes().get(bn.getNodes().size()-1);
+		NodeCategorical q = bn.enumerateNodes().get(0);
+
+		GibbsSamplingInferenceEngine ie1 = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(7), bn);
+		GibbsSamplingInferenceEngine ie2 = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(7), bn);
+		ie1.addEvidence(e, e.getDomain(0));
+		ie2.addEvidence(e, e.getDomain(0));
+
+		for (String s: q.getDomain())
+			assertEquals(ie1.getConditionalProbability(q, s), ie2.getConditionalProbability(q, s), 0.);
+		assertEquals(ie1.sampleOne(), ie2.sampleOne());
+	}
+
+	@Test
+	public void testSameEstimatesWithAnyCountOfThreads() throws Exception {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		NodeCategorical e = bn.enumerateNodes().get(bn.getNodes().size()-1);
+		NodeCategorical q = bn.enumerateNodes().get(0);
+
+		double[][] estimates = new double[2][];
+		int[] threads = { 1, 3 };
+		for (int k=0; k<threads.length; k++) {
+			ForkJoinPool pool = new ForkJoinPool(threads[k]);
+			try {
+				estimates[k] = pool.submit(() -> {
+					GibbsSamplingInferenceEngine ie = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(11), bn);
+					ie.addEvidence(e, e.getDomain(0));
+					return q.getDomain().stream().mapToDouble(s -> ie.getConditionalProbability(q, s)).toArray();
+				}).get();
+			} finally {
+				pool.shutdown();
+			}
+		}
+		assertArrayEquals(estimates[0], estimates[1], 0.);
+	}
+
+	@Test
+	public void testSampleOneFollowsPosterior() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		NodeCategorical e = bn.enumerateNodes().get(bn.getNodes().size()-1);
+		NodeCategorical q = bn.enumerateNodes().get(0);
+
+		GibbsSamplingInferenceEngine ie = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(3), bn);
+		ie.setThinning(2);
+		ie.addEvidence(e, e.getDomain(0));
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+		reference.addEvidence(e, e.getDomain(0));
+
+		final int count = 200000;
+		Map<String,Integer> value2count = new HashMap<>();
+		for (int i=0; i<count; i++) {
+			Map<NodeCategorical,String> individual = ie.sampleOne();
+			assertEquals(e.getDomain(0), individual.get(e));
+			value2count.merge(individual.get(q), 1, Integer::sum);
+		}
+		for (String s: q.getDomain())
+			assertEquals(
+					"frequency of "+q.name+"="+s,
+					reference.getConditionalProbability(q, s),
+					value2count.getOrDefault(s, 0)/(double)count,
+					0.02
+					);
+	}
+
+	/**
+	 * In Sachs, the last value of Jnk is only possible with (PKA,PKC) being either the first values
+	 * or the second and third values: single variable updates cannot move from one to the other.
+	 */
+	@Test
+	public void testMixesAcrossDeterministicModes() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		NodeCategorical jnk = bn.getVariable("Jnk");
+		NodeCategorical pka = bn.getVariable("PKA");
+
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+		reference.addEvidence(jnk, jnk.getDomain(2));
+
+		for (int seed=0; seed<5; seed++) {
+			GibbsSamplingInferenceEngine ie = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(seed), bn);
+			ie.setSamples(20000);
+			ie.setChains(4);
+			ie.addEvidence(jnk, jnk.getDomain(2));
+			for (String s: pka.getDomain())
+				assertEquals(
+						"p(PKA="+s+"|Jnk="+jnk.getDomain(2)+") with seed "+seed,
+						reference.getConditionalProbability(pka, s),
+						ie.getConditionalProbability(pka, s),
+						0.01
+						);
+		}
+	}
+
+	@Test
+	public void testJumpsEverySweepOnlyWithZeroProbabilities() {
+
+		// Sachs has deterministic relationships: the chains need a jump at every sweep
+		CategoricalBayesianNetwork sachs = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		assertEquals(1, new GibbsSamplingInferenceEngine(logger, new MersenneTwister(1), sachs).getJumpPeriod());
+
+		// Cancer has none: the Gibbs updates reach every state, and the jumps only help mixing
+		CategoricalBayesianNetwork cancer = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataCancerSmall().filename));
+		GibbsSamplingInferenceEngine ie = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(1), cancer);
+		assertEquals(GibbsSamplingInferenceEngine.DEFAULT_JUMP_PERIOD, ie.getJumpPeriod());
+		ie.setJumpPeriod(3);
+		assertEquals(3, ie.getJumpPeriod());
+	}
+
+	@Test
+	public void testTablesWithinTheirTotalSize() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		NodeCategorical e = bn.enumerateNodes().get(bn.getNodes().size()-1);
+		NodeCategorical q = bn.enumerateNodes().get(0);
+
+		JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+		reference.addEvidence(e, e.getDomain(0));
+
+		// no table at all: every distribution is computed on the fly
+		final long maxTablesSize = GibbsSamplingInferenceEngine.MAX_TABLES_SIZE;
+		GibbsSamplingInferenceEngine.MAX_TABLES_SIZE = 0;
+		try {
+			GibbsSamplingInferenceEngine ie = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(5), bn);
+			ie.addEvidence(e, e.getDomain(0));
+			for (String s: q.getDomain())
+				assertEquals(reference.getConditionalProbability(q, s), ie.getConditionalProbability(q, s), 0.02);
+			assertEquals(0, ie.getTablesSize());
+		} finally {
+			GibbsSamplingInferenceEngine.MAX_TABLES_SIZE = maxTablesSize;
+		}
+	}
+
+	@Test
+	public void testNoTableForEvidence() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		NodeCategorical e = bn.enumerateNodes().get(bn.getNodes().size()-1);
+
+		GibbsSamplingInferenceEngine withoutEvidence = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(5), bn);
+		withoutEvidence.setSamples(100);
+		withoutEvidence.compute();
+
+		GibbsSamplingInferenceEngine withEvidence = new GibbsSamplingInferenceEngine(logger, new MersenneTwister(5), bn);
+		withEvidence.setSamples(100);
+		withEvidence.addEvidence(e, e.getDomain(0));
+		withEvidence.compute();
+
+		assertTrue(withEvidence.getTablesSize() < withoutEvidence.getTablesSize());
+
+		// the table is computed once the variable has no evidence anymore
+		withEvidence.clearEvidence();
+		withEvidence.compute();
+		assertEquals(withoutEvidence.getTablesSize(), withEvidence.getTablesSize());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidThinning() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		new GibbsSamplingInferenceEngine(logger, new MersenneTwister(), bn).setThinning(0);
+	}
+
+}
@@ -0,0 +1,86 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ImportanceSamplingInferenceEngine;
+
+public class TestImportanceSampling {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestImportanceSampling.class);
+
+	@Test
+	public void testReproducibleWithSeed() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+		NodeCategorical e = bn.enumerateNodes().get(bn.getNodes().size()-1);
+		NodeCategorical q = bn.enumerateNodes().get(0);
+
+		ImportanceSamplingInferenceEngine ie1 = new ImportanceSamplingInferenceEngine(logger, new MersenneTwister(7), bn);
+		ImportanceSamplingInferenceEngine ie2 = new ImportanceSamplingInferenceEngine(logger, new MersenneTwister(7), bn);
+		ie1.addEvidence(e, e.getDomain(0));
+		ie2.addEvidence(e, e.getDomain(0));
+
+		assertEquals(ie1.getProbabilityEvidence(), ie2.getProbabilityEvidence(), 0.);
+		for (String s: q.getDomain())
+			assertEquals(ie1.getConditionalProbability(q, s), ie2.getConditionalProbability(q, s), 0.);
+	}
+
+	@Test
+	public void testTargetErrorStopsEarly() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		NodeCategorical e = bn.enumerateNodes().get(bn.getNodes().size()-1);
+
+		ImportanceSamplingInferenceEngine ie = new ImportanceSamplingInferenceEngine(logger, new MersenneTwister(), bn);
+		ie.setSamples(1000000);
+		ie.setTargetError(0.01);
+		ie.addEvidence(e, e.getDomain(0));
+		ie.compute();
+		assertTrue(ie.getEffectiveSamples() >= 2500);
+		assertTrue(ie.getDrawnSamples() < 1000000);
+		// rounds have the same size on every machine
+		assertEquals(0, ie.getDrawnSamples() % (ImportanceSamplingInferenceEngine.BLOCK_SIZE * ImportanceSamplingInferenceEngine.ROUND_BLOCKS));
+
+		ie.setTargetError(0.);
+		ie.setSamples(5000);
+		ie.compute();
+		assertEquals(5000 - (int)(5000*ImportanceSamplingInferenceEngine.LEARNING_SHARE), ie.getDrawnSamples());
+	}
+
+	@Test
+	public void testResamplesFromAllTheBlocks() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataAlarm().filename));
+
+		final int blockSize = ImportanceSamplingInferenceEngine.BLOCK_SIZE;
+		ImportanceSamplingInferenceEngine.BLOCK_SIZE = 50;
+		try {
+			ImportanceSamplingInferenceEngine ie = new ImportanceSamplingInferenceEngine(logger, new MersenneTwister(3), bn);
+			ie.setSamples(2000);
+			ie.setTargetError(0.);
+			ie.compute();
+
+			// individuals come from all the samples, not from the first block only
+			Set<Map<NodeCategorical,String>> distinct = new HashSet<>();
+			for (int i=0; i<2000; i++)
+				distinct.add(ie.sampleOne());
+			assertTrue("only "+distinct.size()+" distinct individuals", distinct.size() > 2*ImportanceSamplingInferenceEngine.BLOCK_SIZE);
+		} finally {
+			ImportanceSamplingInferenceEngine.BLOCK_SIZE = blockSize;
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ArithmeticCircuitInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.GibbsSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ImportanceSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEngineFactory;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.LoopyBeliefPropagationEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.RecursiveConditionningEngine;
+
+public class TestInferenceEngineFactory {
+
+	private static final ILogger logger = LogIntoJavaLogger.getLogger(TestInferenceEngineFactory.class);
+
+	private final CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+
+	@Test
+	public void testExactEngineOfTheSettings() {
+
+		assertEquals(EliminationInferenceEngine.class, InferenceEngineFactory.create(
+				EliminationInferenceEngine.ENGINE_NAME, LoopyBeliefPropagationEngine.ENGINE_NAME, 1e9,
+				logger, new MersenneTwister(1), bn).getClass());
+		assertEquals(RecursiveConditionningEngine.class, InferenceEngineFactory.create(
+				RecursiveConditionningEngine.ENGINE_NAME, LoopyBeliefPropagationEngine.ENGINE_NAME, 1e9,
+				logger, new MersenneTwister(1), bn).getClass());
+		assertEquals(JunctionTreeInferenceEngine.class, InferenceEngineFactory.create(
+				JunctionTreeInferenceEngine.ENGINE_NAME, LoopyBeliefPropagationEngine.ENGINE_NAME, 1e9,
+				logger, new MersenneTwister(1), bn).getClass());
+		assertEquals(ArithmeticCircuitInferenceEngine.class, InferenceEngineFactory.create(
+				ArithmeticCircuitInferenceEngine.ENGINE_NAME, LoopyBeliefPropagationEngine.ENGINE_NAME, 1e9,
+				logger, new MersenneTwister(1), bn).getClass());
+	}
+
+	@Test
+	public void testApproximateEngineBeyondTheCost() {
+
+		assertEquals(LoopyBeliefPropagationEngine.class, InferenceEngineFactory.create(
+				JunctionTreeInferenceEngine.ENGINE_NAME, LoopyBeliefPropagationEngine.ENGINE_NAME, 1,
+				logger, new MersenneTwister(1), bn).getClass());
+		assertEquals(ImportanceSamplingInferenceEngine.class, InferenceEngineFactory.create(
+				JunctionTreeInferenceEngine.ENGINE_NAME, ImportanceSamplingInferenceEngine.ENGINE_NAME, 1,
+				logger, new MersenneTwister(1), bn).getClass());
+		assertEquals(GibbsSamplingInferenceEngine.class, InferenceEngineFactory.create(
+				JunctionTreeInferenceEngine.ENGINE_NAME, GibbsSamplingInferenceEngine.ENGINE_NAME, 1,
+				logger, new MersenneTwister(1), bn).getClass());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownExactEngine() {
+
+		InferenceEngineFactory.createExact(LoopyBeliefPropagationEngine.ENGINE_NAME, logger, new MersenneTwister(1), bn);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownApproximateEngine() {
+
+		InferenceEngineFactory.createApproximate(JunctionTreeInferenceEngine.ENGINE_NAME, logger, new MersenneTwister(1), bn);
+	}
+
+	/**
+	 * Every exact engine of the settings gives the probability of the evidence of the default one
+	 */
+	@Test
+	public void testExactEnginesAgree() {
+
+		Map<NodeCategorical,String> evidence = new HashMap<>();
+		for (NodeCategorical n: bn.enumerateNodes().subList(0, 2))
+			evidence.put(n, n.getDomain().get(0));
+
+		AbstractInferenceEngine reference = InferenceEngineFactory.createExact(
+				EliminationInferenceEngine.ENGINE_NAME, logger, new MersenneTwister(1), bn);
+		reference.addEvidence(evidence);
+		final double expected = reference.getProbabilityEvidence();
+
+		for (String name: InferenceEngineFactory.EXACT_ENGINES) {
+			AbstractInferenceEngine engine = InferenceEngineFactory.createExact(name, logger, new MersenneTwister(1), bn);
+			engine.addEvidence(evidence);
+			assertEquals(name, expected, engine.getProbabilityEvidence(), 1e-8);
+		}
+	}
+
+}
@@ -31,10 +31,15 @@ import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ArithmeticCircuitInferenceEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.BestInferenceEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationInferenceEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.Factor;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.GibbsSamplingInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.ImportanceSamplingInferenceEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferencePerformanceUtils;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.LoopyBeliefPropagationEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.RecursiveConditionningEngine;
 import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
 
@@ -57,21 +62,41 @@ public class TestInferenceEnginesOnData {
 			{ EliminationInferenceEngine.class, 			new DataSprinkler() },
 			{ RecursiveConditionningEngine.class, 			new DataSprinkler() },
 			{ BestInferenceEngine.class, 					new DataSprinkler() },
+			{ JunctionTreeInferenceEngine.class, 			new DataSprinkler() },
+			{ ArithmeticCircuitInferenceEngine.class, 		new DataSprinkler() },
+			{ LoopyBeliefPropagationEngine.class, 			new DataSprinkler() },
+			{ ImportanceSamplingInferenceEngine.class, 		new DataSprinkler() },
+			{ GibbsSamplingInferenceEngine.class, 			new DataSprinkler() },
 
 			{ SimpleConditionningInferenceEngine.class, 	new DataGerland1() },
 			{ EliminationInferenceEngine.class, 			new DataGerland1() },
 			{ RecursiveConditionningEngine.class, 			new DataGerland1() },
 			{ BestInferenceEngine.class, 					new DataGerland1() },
+			{ JunctionTreeInferenceEngine.class, 			new DataGerland1() },
+			{ ArithmeticCircuitInferenceEngine.class, 		new DataGerland1() },
+			{ LoopyBeliefPropagationEngine.class, 			new DataGerland1() },
+			{ ImportanceSamplingInferenceEngine.class, 		new DataGerland1() },
+			{ GibbsSamplingInferenceEngine.class, 			new DataGerland1() },
 
 			{ SimpleConditionningInferenceEngine.class, 	new DataCancerSmall() },
 			{ EliminationInferenceEngine.class, 			new DataCancerSmall() },
 			{ RecursiveConditionningEngine.class, 			new DataCancerSmall() },
 			{ BestInferenceEngine.class, 					new DataCancerSmall() },
+			{ JunctionTreeInferenceEngine.class, 			new DataCancerSmall() },
+			{ ArithmeticCircuitInferenceEngine.class, 		new DataCancerSmall() },
+			{ LoopyBeliefPropagationEngine.class, 			new DataCancerSmall() },
+			{ ImportanceSamplingInferenceEngine.class, 		new DataCancerSmall() },
+			{ GibbsSamplingInferenceEngine.class, 			new DataCancerSmall() },
 
 			{ SimpleConditionningInferenceEngine.class, 	new DataSachs() },
 			{ EliminationInferenceEngine.class, 			new DataSachs() },
 			{ RecursiveConditionningEngine.class, 			new DataSachs() },
 			{ BestInferenceEngine.class, 					new DataSachs() },
+			{ JunctionTreeInferenceEngine.class, 			new DataSachs() },
+			{ ArithmeticCircuitInferenceEngine.class, 		new DataSachs() },
+			{ LoopyBeliefPropagationEngine.class, 			new DataSachs() },
+			{ ImportanceSamplingInferenceEngine.class, 		new DataSachs() },
+			{ GibbsSamplingInferenceEngine.class, 			new DataSachs() },
 
 			// the complexity of this large case excludes much engines on large data
 			// we can activate those but not on build machines in which they would slow don't the process
@@ -0,0 +1,65 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.AbstractInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEnginesPerThread;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
+
+public class TestInferenceEnginesPerThread {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestInferenceEnginesPerThread.class);
+
+	@Test
+	public void testOneEnginePerThread() throws Exception {
+		
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		
+		AbstractInferenceEngine mine = new SimpleConditionningInferenceEngine(logger, null, bn);
+		InferenceEnginesPerThread engines = new InferenceEnginesPerThread(
+				mine, 
+				b -> new SimpleConditionningInferenceEngine(logger, null, b));
+		
+		// this thread keeps its engine
+		assertSame(mine, engines.get());
+		assertSame(mine, engines.get());
+		assertEquals(1, engines.countEngines());
+		
+		// another thread gets another engine, always the same
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			AbstractInferenceEngine other = executor.submit(engines::get).get();
+			assertNotSame(mine, other);
+			assertSame(bn, other.getBN());
+			assertSame(other, executor.submit(engines::get).get());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(2, engines.countEngines());
+		assertEquals(2, engines.getEngines().size());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testEngineOfAnotherNetwork() {
+		
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		CategoricalBayesianNetwork other = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		
+		InferenceEnginesPerThread engines = new InferenceEnginesPerThread(
+				bn, 
+				b -> new SimpleConditionningInferenceEngine(logger, null, other));
+		engines.get();
+	}
+
+}
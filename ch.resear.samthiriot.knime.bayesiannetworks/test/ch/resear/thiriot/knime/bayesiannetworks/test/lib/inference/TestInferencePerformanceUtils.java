@@ -0,0 +1,38 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferencePerformanceUtils;
+
+public class TestInferencePerformanceUtils {
+
+	@Test
+	public void testCountsFromParallelThreads() {
+
+		final InferencePerformanceUtils counters = InferencePerformanceUtils.singleton;
+		counters.reset();
+
+		IntStream.range(0, 10000).parallel().forEach(i -> {
+			counters.incMultiplications();
+			counters.incAdditions(2);
+			if (i % 2 == 0)
+				counters.incCacheHit();
+			else
+				counters.incCacheMiss();
+		});
+
+		assertEquals(10000, counters.getCountMultiplications());
+		assertEquals(20000, counters.getCountAdditions());
+		assertEquals(5000, counters.getCacheHits());
+		assertEquals(5000, counters.getCacheMisses());
+
+		counters.reset();
+		assertEquals(0, counters.getCountMultiplications());
+		assertEquals(0, counters.getCacheHits());
+	}
+
+}
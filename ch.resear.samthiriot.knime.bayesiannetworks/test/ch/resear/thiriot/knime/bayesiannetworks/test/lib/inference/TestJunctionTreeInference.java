@@ -0,0 +1,83 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.NodeCategorical;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.JunctionTreeInferenceEngine;
+
+public class TestJunctionTreeInference {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestJunctionTreeInference.class);
+
+	/**
+	 * Changes evidence one variable at a time, and compares the results
+	 * of the incremental propagation with the ones of a novel engine
+	 * @param data
+	 */
+	protected void compareIncrementalEvidence(AbstractTestData data) {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(data.filename));
+
+		JunctionTreeInferenceEngine ie = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+		Uniform random = new Uniform(new MersenneTwister(42));
+
+		List<NodeCategorical> varsOrdered = bn.enumerateNodes();
+		Map<NodeCategorical,String> evidence = new HashMap<>();
+
+		for (int step=0; step<20; step++) {
+
+			// change evidence for one variable
+			NodeCategorical n = varsOrdered.get(random.nextIntFromTo(0, varsOrdered.size()-1));
+			if (step % 4 == 3) {
+				ie.removeEvidence(n);
+				evidence.remove(n);
+			} else {
+				String v = n.getDomain(random.nextIntFromTo(0, n.getDomainSize()-1));
+				ie.addEvidence(n, v);
+				evidence.put(n, v);
+			}
+
+			JunctionTreeInferenceEngine reference = new JunctionTreeInferenceEngine(logger, new MersenneTwister(), bn);
+			reference.addEvidence(evidence);
+
+			double expectedP = reference.getProbabilityEvidence();
+			assertEquals("p(evidence) after step "+step, expectedP, ie.getProbabilityEvidence(), 1e-10);
+			if (expectedP == 0.)
+				continue;
+
+			for (NodeCategorical q: varsOrdered) {
+				for (String s: q.getDomain()) {
+					assertEquals(
+							"p("+q.name+"="+s+"|evidence) after step "+step,
+							reference.getConditionalProbability(q, s),
+							ie.getConditionalProbability(q, s),
+							1e-10
+							);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testIncrementalEvidenceSprinkler() {
+		compareIncrementalEvidence(new DataSprinkler());
+	}
+
+	@Test
+	public void testIncrementalEvidenceSachs() {
+		compareIncrementalEvidence(new DataSachs());
+	}
+
+}
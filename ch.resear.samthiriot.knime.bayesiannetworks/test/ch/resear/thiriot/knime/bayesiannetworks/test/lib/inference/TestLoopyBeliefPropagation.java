@@ -0,0 +1,90 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.EliminationOrderGreedy;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferencePerformanceUtils;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.LoopyBeliefPropagationEngine;
+
+public class TestLoopyBeliefPropagation {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestLoopyBeliefPropagation.class);
+
+	/**
+	 * creates an engine converging tightly, with this damping
+	 */
+	protected LoopyBeliefPropagationEngine createEngine(CategoricalBayesianNetwork bn, double damping) {
+
+		LoopyBeliefPropagationEngine ie = new LoopyBeliefPropagationEngine(logger, new MersenneTwister(), bn);
+		ie.setDamping(damping);
+		ie.setTolerance(1e-10);
+		ie.setMaxIterations(1000);
+		return ie;
+	}
+
+	@Test
+	public void testExactOnPolytree() {
+		// belief propagation and its Bethe estimate of p(evidence) are exact without loops
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataCancerSmall().filename));
+		LoopyBeliefPropagationEngine ie = createEngine(bn, 0.);
+		TestCompareInferenceEngines.compareWithJunctionTree(ie, bn, 1e-8, 1e-8);
+		assertTrue(ie.hasConverged());
+	}
+
+	@Test
+	public void testExactOnPolytreeWithDamping() {
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataCancerSmall().filename));
+		LoopyBeliefPropagationEngine ie = createEngine(bn, 0.5);
+		TestCompareInferenceEngines.compareWithJunctionTree(ie, bn, 1e-8, 1e-8);
+		assertTrue(ie.hasConverged());
+	}
+
+	@Test
+	public void testMaxIterations() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+
+		LoopyBeliefPropagationEngine ie = new LoopyBeliefPropagationEngine(logger, new MersenneTwister(), bn);
+		ie.setMaxIterations(1);
+		ie.setTolerance(1e-15);
+		InferencePerformanceUtils.singleton.reset();
+		ie.compute();
+		assertEquals(1, ie.getIterations());
+		// counted, so the nodes warn once for all the computations
+		assertEquals(1, InferencePerformanceUtils.singleton.getCountNotConverged());
+
+		ie.setMaxIterations(1000);
+		ie.setTolerance(1e-6);
+		ie.compute();
+		assertTrue(ie.hasConverged());
+		assertEquals(1, InferencePerformanceUtils.singleton.getCountNotConverged());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidDamping() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		new LoopyBeliefPropagationEngine(logger, new MersenneTwister(), bn).setDamping(1.);
+	}
+
+	@Test
+	public void testEstimateCost() {
+
+		CategoricalBayesianNetwork sprinkler = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		CategoricalBayesianNetwork sachs = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSachs().filename));
+
+		double costSprinkler = EliminationOrderGreedy.estimateCost(sprinkler);
+		assertTrue(costSprinkler > 0);
+		assertTrue(costSprinkler < EliminationOrderGreedy.estimateCost(sachs));
+	}
+
+}
@@ -0,0 +1,84 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.sampling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.CombinationsCounter;
+
+public class TestCombinationsCounter {
+
+	@Test
+	public void testCountsDistinctCombinations() {
+		
+		CombinationsCounter counter = new CombinationsCounter(3);
+		counter.add(new int[] {0, 1, 2});
+		counter.add(new int[] {2, 1, 0});
+		counter.add(new int[] {0, 1, 2});
+		counter.add(new int[] {9, 0, 1, 2}, 1, 5);
+		
+		assertEquals(2, counter.size());
+		assertEquals(8, counter.countEntities());
+		assertEquals(7, counter.getCount(new int[] {0, 1, 2}));
+		assertEquals(1, counter.getCount(new int[] {2, 1, 0}));
+		assertEquals(0, counter.getCount(new int[] {1, 1, 1}));
+		
+		// in the order of the first count
+		int[] values = new int[3];
+		counter.get(0, values);
+		assertArrayEquals(new int[] {0, 1, 2}, values);
+		assertEquals(7, counter.getCount(0));
+		assertEquals(0, counter.get(1, 2));
+		
+		counter.clear();
+		assertEquals(0, counter.size());
+		assertEquals(0, counter.getCount(new int[] {0, 1, 2}));
+	}
+	
+	@Test
+	public void testGrowAndMerge() {
+		
+		// as many combinations as a map would find, in two counters merged
+		Random random = new Random(1);
+		Map<List<Integer>,Integer> expected = new HashMap<>();
+		CombinationsCounter first = new CombinationsCounter(2, 1);
+		CombinationsCounter second = new CombinationsCounter(2);
+		for (int i=0; i<20000; i++) {
+			int[] values = new int[] { random.nextInt(50), random.nextInt(40) };
+			expected.merge(Arrays.asList(values[0], values[1]), 1, Integer::sum);
+			(i % 3 == 0 ? first : second).add(values);
+		}
+		first.addAll(second);
+		
+		assertEquals(20000, first.countEntities());
+		assertEquals(expected.size(), first.size());
+		long total = 0;
+		for (int entry=0; entry<first.size(); entry++) {
+			assertEquals(
+					(int)expected.get(Arrays.asList(first.get(entry, 0), first.get(entry, 1))), 
+					first.getCount(entry));
+			total += first.getCount(entry);
+		}
+		assertEquals(20000, total);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoEmptyCombination() {
+		
+		new CombinationsCounter(2).add(new int[] { 0, 1 }, 0, 0);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testMergeOtherWidth() {
+		
+		new CombinationsCounter(2).addAll(new CombinationsCounter(3));
+	}
+
+}
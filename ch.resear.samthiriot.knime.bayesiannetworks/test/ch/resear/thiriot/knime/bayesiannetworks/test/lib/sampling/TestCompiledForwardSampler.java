@@ -0,0 +1,140 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.sampling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.Assignment;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.CombinationsCounter;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.CompiledForwardSampler;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.EntitiesBlock;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataGerland1;
+
+public class TestCompiledForwardSampler {
+
+	@Test
+	public void testBlocksAreSuccessiveEntities() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+
+		CompiledForwardSampler one = new CompiledForwardSampler(network, new MersenneTwister(42));
+		CompiledForwardSampler blocks = new CompiledForwardSampler(network, new MersenneTwister(42));
+		final int width = blocks.countVariables();
+		assertEquals(network.size(), width);
+
+		int[] block = new int[100*width];
+		blocks.sampleBlock(block, 100);
+
+		int[] values = new int[width];
+		Assignment assignment = new Assignment(network);
+		for (int r=0; r<100; r++) {
+			if (r % 2 == 0) {
+				one.sample(values);
+			} else {
+				one.sample(assignment, values);
+				assertTrue(assignment.isComplete());
+				for (int id=0; id<width; id++)
+					assertEquals(values[id], assignment.get(id));
+			}
+			assertArrayEquals(values, Arrays.copyOfRange(block, r*width, (r+1)*width));
+		}
+	}
+
+	@Test
+	public void testBlocksOfColumns() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+
+		CompiledForwardSampler rows = new CompiledForwardSampler(network, new MersenneTwister(42));
+		CompiledForwardSampler columns = new CompiledForwardSampler(network, new MersenneTwister(42));
+		final int width = rows.countVariables();
+
+		int[] block = new int[100*width];
+		rows.sampleBlock(block, 100);
+
+		// the same entities, in two calls
+		EntitiesBlock entities = new EntitiesBlock(width, 100);
+		columns.sampleBlock(entities, 60);
+		columns.sampleBlock(entities, 40);
+		assertTrue(entities.isFull());
+		assertEquals(100, entities.countEntities());
+		for (int r=0; r<100; r++) {
+			assertEquals(1, entities.getCount(r));
+			for (int id=0; id<width; id++)
+				assertEquals(block[r*width+id], entities.get(r, id));
+		}
+	}
+
+	@Test
+	public void testCountsTheEntitiesOfBlocks() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+
+		CompiledForwardSampler rows = new CompiledForwardSampler(network, new MersenneTwister(42));
+		CompiledForwardSampler counts = new CompiledForwardSampler(network, new MersenneTwister(42));
+		final int width = rows.countVariables();
+
+		int[] block = new int[1000*width];
+		rows.sampleBlock(block, 1000);
+		CombinationsCounter expected = new CombinationsCounter(width);
+		for (int r=0; r<1000; r++)
+			expected.add(block, r*width, 1);
+
+		CombinationsCounter counter = new CombinationsCounter(width);
+		counts.sampleCounts(counter, 1000);
+		assertEquals(1000, counter.countEntities());
+		assertEquals(expected.size(), counter.size());
+		int[] values = new int[width];
+		for (int entry=0; entry<counter.size(); entry++) {
+			counter.get(entry, values);
+			assertEquals(expected.getCount(values), counter.getCount(entry));
+		}
+	}
+
+	@Test
+	public void testFollowsTheJointProbability() {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+		CompiledForwardSampler sampler = new CompiledForwardSampler(network, new MersenneTwister(1));
+		final int width = sampler.countVariables();
+
+		final int count = 100000;
+		int[] block = new int[1000*width];
+		Map<List<Integer>,Integer> combination2count = new HashMap<>();
+		for (int done=0; done<count; done+=1000) {
+			sampler.sampleBlock(block, 1000);
+			for (int offset=0; offset<block.length; offset+=width) {
+				int[] values = Arrays.copyOfRange(block, offset, offset+width);
+				// never an impossible entity
+				assertTrue(network.jointProbability(values) > 0.);
+				combination2count.merge(
+						Arrays.asList(Arrays.stream(values).boxed().toArray(Integer[]::new)),
+						1,
+						Integer::sum);
+			}
+		}
+
+		for (Map.Entry<List<Integer>,Integer> e: combination2count.entrySet()) {
+			int[] values = e.getKey().stream().mapToInt(Integer::intValue).toArray();
+			final double p = network.jointProbability(values);
+			// 5 standard deviations of the count
+			assertEquals(p*count, e.getValue(), 5*Math.sqrt(count*p*(1-p)) + 1);
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.ConditionalDistributionsTrie;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataSprinkler;
+
+public class TestConditionalDistributionsTrie {
+
+	@Test
+	public void testPrefixes() {
+		
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		CompiledNetwork network = bn.getCompiled();
+		ConditionalDistributionsTrie trie = new ConditionalDistributionsTrie(network);
+		
+		ConditionalDistributionsTrie.Prefix root = trie.getRoot();
+		assertEquals(0, root.getDepth());
+		assertNull(root.getDistribution());
+		assertEquals(1, trie.countPrefixes());
+		
+		// the same value leads to the same prefix
+		ConditionalDistributionsTrie.Prefix p0 = root.child(0);
+		assertEquals(1, p0.getDepth());
+		assertSame(p0, root.child(0));
+		assertNotSame(p0, root.child(1));
+		assertEquals(3, trie.countPrefixes());
+		
+		double[] distribution = new double[network.getCard(1)];
+		distribution[0] = 1.;
+		p0.setDistribution(distribution);
+		assertSame(distribution, root.child(0).getDistribution());
+		assertNull(root.child(1).getDistribution());
+	}
+	
+	@Test
+	public void testBoundedByDistributions() {
+		
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		CompiledNetwork network = bn.getCompiled();
+		final int max = ConditionalDistributionsTrie.CACHE_MAX_DISTRIBUTIONS;
+		ConditionalDistributionsTrie.CACHE_MAX_DISTRIBUTIONS = 2;
+		try {
+			ConditionalDistributionsTrie trie = new ConditionalDistributionsTrie(network);
+			ConditionalDistributionsTrie.Prefix root = trie.getRoot();
+			root.setDistribution(new double[network.getCard(0)]);
+			// storing again the same distribution does not count
+			root.setDistribution(new double[network.getCard(0)]);
+			assertEquals(1, trie.countDistributions());
+			assertFalse(trie.isFull());
+			
+			root.child(0).setDistribution(new double[network.getCard(1)]);
+			assertEquals(2, trie.countDistributions());
+			assertTrue(trie.isFull());
+			
+			// once full, the new prefixes and their distributions are not kept
+			final int prefixes = trie.countPrefixes();
+			ConditionalDistributionsTrie.Prefix p1 = root.child(1);
+			p1.setDistribution(new double[network.getCard(1)]);
+			assertNull(p1.getDistribution());
+			assertNotSame(p1, root.child(1));
+			assertEquals(prefixes, trie.countPrefixes());
+			assertEquals(2, trie.countDistributions());
+			
+			// the prefixes kept before are still found
+			assertSame(root.child(0), root.child(0));
+			assertTrue(root.child(0).getDistribution() != null);
+		} finally {
+			ConditionalDistributionsTrie.CACHE_MAX_DISTRIBUTIONS = max;
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testWrongDistribution() {
+		
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		ConditionalDistributionsTrie trie = new ConditionalDistributionsTrie(bn.getCompiled());
+		trie.getRoot().setDistribution(new double[bn.getCompiled().getCard(0)+1]);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoNodeAfterTheLast() {
+		
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataSprinkler().filename));
+		ConditionalDistributionsTrie trie = new ConditionalDistributionsTrie(bn.getCompiled());
+		ConditionalDistributionsTrie.Prefix p = trie.getRoot();
+		while (p.getDepth() < bn.getCompiled().size() - 1)
+			p = p.child(0);
+		p.child(0);
+	}
+
+}
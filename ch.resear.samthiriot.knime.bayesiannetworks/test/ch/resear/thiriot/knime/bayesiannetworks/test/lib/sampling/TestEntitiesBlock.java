@@ -0,0 +1,50 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.EntitiesBlock;
+
+public class TestEntitiesBlock {
+
+	@Test
+	public void testAddAndClear() {
+		
+		EntitiesBlock block = new EntitiesBlock(3, 2);
+		assertTrue(block.isEmpty());
+		assertEquals(2, block.capacity());
+		
+		assertEquals(0, block.add(new int[] {0, 1, 2}, 5));
+		assertEquals(1, block.add(new int[] {2, 1, 0}, 1));
+		assertTrue(block.isFull());
+		assertEquals(6, block.countEntities());
+		assertEquals(2, block.get(0, 2));
+		assertEquals(2, block.get(1, 0));
+		assertEquals(5, block.getCount(0));
+		
+		block.clear();
+		assertTrue(block.isEmpty());
+		assertFalse(block.isFull());
+		assertEquals(0, block.countEntities());
+	}
+	
+	@Test(expected=IllegalStateException.class)
+	public void testFull() {
+		
+		EntitiesBlock block = new EntitiesBlock(1, 1);
+		block.add(new int[] {0}, 1);
+		block.add(new int[] {0}, 1);
+	}
+	
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testNoSuchRow() {
+		
+		EntitiesBlock block = new EntitiesBlock(1, 2);
+		block.add(new int[] {0}, 1);
+		block.get(1, 0);
+	}
+
+}
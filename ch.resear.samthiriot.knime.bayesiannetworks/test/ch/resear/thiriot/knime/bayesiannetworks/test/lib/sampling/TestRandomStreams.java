@@ -0,0 +1,113 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.sampling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import cern.jet.random.engine.RandomEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CompiledNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.CompiledForwardSampler;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.RandomStreams;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataGerland1;
+
+public class TestRandomStreams {
+
+	@Test
+	public void testStreams() {
+
+		RandomStreams streams = new RandomStreams(42);
+
+		Set<Long> seeds = new HashSet<>();
+		for (long i=0; i<10000; i++)
+			seeds.add(streams.getStreamSeed(i));
+		assertEquals(10000, seeds.size());
+
+		// the same index gives the same numbers, whatever was drawn before
+		RandomEngine a = streams.getStream(7);
+		streams.getStream(6).nextInt();
+		RandomEngine b = new RandomStreams(42).getStream(7);
+		for (int i=0; i<100; i++)
+			assertEquals(a.nextInt(), b.nextInt());
+
+		assertNotEquals(new RandomStreams(42).getStreamSeed(0), new RandomStreams(43).getStreamSeed(0));
+	}
+
+	@Test
+	public void testNoSeedReusedByTheBlocksOfLargeSamplings() {
+
+		// 50 millions of entities by blocks of 1024 need about 49k streams, which would
+		// share a seed once in four samplings with seeds of 32 bits
+		RandomStreams streams = new RandomStreams(2018);
+		final int count = 1 << 20;
+		Set<Long> seeds = new HashSet<>(count*2);
+		Set<Long> firsts = new HashSet<>(count*2);
+		for (long i=0; i<count; i++) {
+			seeds.add(streams.getStreamSeed(i));
+			firsts.add(streams.getStream(i).nextLong());
+		}
+		assertEquals(count, seeds.size());
+		// and the streams start with different numbers
+		assertEquals(count, firsts.size());
+
+		// the streams are uniform
+		RandomEngine random = streams.getStream(3);
+		double total = 0.;
+		for (int i=0; i<100000; i++)
+			total += random.raw();
+		assertEquals(0.5, total / 100000, 0.01);
+	}
+
+	/**
+	 * samples count entities by blocks, each block with the stream of its index, 
+	 * the blocks being shared between this count of threads
+	 */
+	protected int[] sampleInParallel(CompiledNetwork network, RandomStreams streams, int count, int blockSize, int threads) throws Exception {
+
+		final int width = network.size();
+		final int[] result = new int[count*width];
+		final int countBlocks = (count + blockSize - 1) / blockSize;
+		final int blocksPerThread = (countBlocks + threads - 1) / threads;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t=0; t<threads; t++) {
+			final int firstBlock = t * blocksPerThread;
+			futures.add(executor.submit(() -> {
+				int[] block = new int[blockSize*width];
+				for (int b=firstBlock; b<firstBlock+blocksPerThread && b<countBlocks; b++) {
+					final int size = Math.min(blockSize, count - b*blockSize);
+					new CompiledForwardSampler(network, streams.getStream(b)).sampleBlock(block, size);
+					System.arraycopy(block, 0, result, b*blockSize*width, size*width);
+				}
+			}));
+		}
+		for (Future<?> f: futures)
+			f.get();
+		executor.shutdown();
+		return result;
+	}
+
+	@Test
+	public void testSameEntitiesWhateverTheThreads() throws Exception {
+
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CompiledNetwork network = bn.getCompiled();
+
+		int[] expected = sampleInParallel(network, new RandomStreams(1234), 10007, 100, 1);
+		for (int threads=2; threads<=5; threads++)
+			assertArrayEquals(expected, sampleInParallel(network, new RandomStreams(1234), 10007, 100, threads));
+	}
+
+}
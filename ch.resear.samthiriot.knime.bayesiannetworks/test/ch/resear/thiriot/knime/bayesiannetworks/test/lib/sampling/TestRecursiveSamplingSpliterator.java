@@ -0,0 +1,250 @@
+package ch.resear.thiriot.knime.bayesiannetworks.test.lib.sampling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.StreamSupport;
+
+import org.junit.Test;
+import org.knime.core.node.ExecutionMonitor;
+
+import cern.jet.random.engine.MersenneTwister;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.ILogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.LogIntoJavaLogger;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.bn.CategoricalBayesianNetwork;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.InferenceEnginesPerThread;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.inference.SimpleConditionningInferenceEngine;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.ConditionalDistributionsTrie;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.MultinomialRecursiveSamplingSpliterator;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.RecursiveSamplingSpliterator;
+import ch.resear.thiriot.knime.bayesiannetworks.lib.sampling.RoundAndSampleRecursiveSamplingSpliterator;
+import ch.resear.thiriot.knime.bayesiannetworks.test.lib.inference.DataGerland1;
+
+public class TestRecursiveSamplingSpliterator {
+
+	private ILogger logger = LogIntoJavaLogger.getLogger(TestRecursiveSamplingSpliterator.class);
+
+	protected List<RecursiveSamplingSpliterator<?>> createSpliterators(int count) {
+		
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		
+		List<RecursiveSamplingSpliterator<?>> res = new ArrayList<>();
+		res.add(new RoundAndSampleRecursiveSamplingSpliterator(
+				count, bn, new MersenneTwister(1), 
+				new SimpleConditionningInferenceEngine(logger, null, bn), 
+				new ExecutionMonitor(), logger));
+		res.add(new MultinomialRecursiveSamplingSpliterator(
+				count, bn, new MersenneTwister(1), 
+				new SimpleConditionningInferenceEngine(logger, null, bn), 
+				new ExecutionMonitor(), logger));
+		return res;
+	}
+	
+	/**
+	 * generates the entities of this spliterator, and returns their count
+	 */
+	protected long generate(RecursiveSamplingSpliterator<?> it) {
+		AtomicLong generated = new AtomicLong();
+		it.forEachRemaining(e -> generated.addAndGet(e.count));
+		return generated.get();
+	}
+	
+	@Test
+	public void testSplitsBelowTheRoot() {
+		
+		final int count = 10000;
+		for (RecursiveSamplingSpliterator<?> root: createSpliterators(count)) {
+			
+			assertEquals(count, root.estimateSize());
+			// the parts split from a sub iterator are not a prefix nor a suffix of the entities
+			assertFalse(root.hasCharacteristics(Spliterator.ORDERED));
+			
+			// split each part until they are small
+			List<RecursiveSamplingSpliterator<?>> parts = new ArrayList<>();
+			parts.add(root);
+			for (int i=0; i<parts.size(); i++) {
+				while (parts.get(i).estimateSize() > count / 16) {
+					RecursiveSamplingSpliterator<?> other = parts.get(i).trySplit();
+					if (other == null)
+						break;
+					parts.add(other);
+				}
+			}
+			assertTrue("only "+parts.size()+" parts", parts.size() >= 16);
+			
+			// each part generates as many entities as it announced
+			long total = 0;
+			for (RecursiveSamplingSpliterator<?> part: parts) {
+				final long expected = part.estimateSize();
+				assertEquals(expected, generate(part));
+				assertEquals(0, part.estimateSize());
+				total += expected;
+			}
+			assertEquals(count, total);
+		}
+	}
+	
+	@Test
+	public void testParallelStream() {
+		
+		final int count = 20000;
+		for (RecursiveSamplingSpliterator<?> root: createSpliterators(count)) {
+			
+			final long generated = StreamSupport.stream(root, true).mapToLong(e -> e.count).sum();
+			assertEquals(count, generated);
+		}
+	}
+
+	/**
+	 * as the sampling node does, splits while a part holds more entities than the threshold, 
+	 * then counts the entities of each combination of the part
+	 */
+	private static class CountingTask extends RecursiveTask<Map<String,Long>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RecursiveSamplingSpliterator<?> it;
+		private final long threshold;
+
+		public CountingTask(RecursiveSamplingSpliterator<?> it, long threshold) {
+			this.it = it;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected Map<String,Long> compute() {
+			List<CountingTask> forked = new ArrayList<>();
+			while (it.estimateSize() > threshold) {
+				RecursiveSamplingSpliterator<?> other = it.trySplit();
+				if (other == null)
+					break;
+				CountingTask task = new CountingTask(other, threshold);
+				task.fork();
+				forked.add(task);
+			}
+			Map<String,Long> res = new HashMap<>();
+			it.forEachRemaining(e -> res.merge(e.node2value.toString(), (long)e.count, Long::sum));
+			for (CountingTask task: forked)
+				task.join().forEach((k,v) -> res.merge(k, v, Long::sum));
+			return res;
+		}
+	}
+
+	@Test
+	public void testSameEntitiesWithAnyCountOfThreads() throws Exception {
+
+		final int count = 20000;
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		
+		List<Map<String,Long>> results = new ArrayList<>();
+		for (int threads: new int[] { 1, 4 }) {
+			RecursiveSamplingSpliterator<?> root = new MultinomialRecursiveSamplingSpliterator(
+					count, bn, new MersenneTwister(1), 
+					new InferenceEnginesPerThread(bn, b -> new SimpleConditionningInferenceEngine(logger, null, b)), 
+					new ExecutionMonitor(), logger);
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				results.add(pool.invoke(new CountingTask(root, count / 64)));
+			} finally {
+				pool.shutdown();
+			}
+		}
+		assertEquals(count, results.get(0).values().stream().mapToLong(Long::longValue).sum());
+		assertEquals(results.get(0), results.get(1));
+	}
+
+	@Test
+	public void testEnginesPerThread() throws Exception {
+		
+		final int count = 20000;
+		final int threads = 4;
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		InferenceEnginesPerThread engines = new InferenceEnginesPerThread(
+				bn, 
+				b -> new SimpleConditionningInferenceEngine(logger, null, b));
+		
+		RecursiveSamplingSpliterator<?> root = new RoundAndSampleRecursiveSamplingSpliterator(
+				count, bn, new MersenneTwister(1), engines, new ExecutionMonitor(), logger);
+		
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			final long generated = pool.submit(
+					() -> StreamSupport.stream(root, true).mapToLong(e -> e.count).sum()
+					).get();
+			assertEquals(count, generated);
+		} finally {
+			pool.shutdown();
+		}
+		
+		// at most one engine for this thread and one per thread of the pool
+		assertTrue(engines.countEngines() >= 1);
+		assertTrue(engines.countEngines()+" engines", engines.countEngines() <= threads + 1);
+	}
+
+	@Test
+	public void testReuseDistributions() {
+		
+		// as the node does: each execution has its own inference engines, and keeps the trie
+		// of the previous execution as long as the network is the same
+		final int count = 10000;
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		
+		InferenceEnginesPerThread engines = new InferenceEnginesPerThread(
+				bn, 
+				b -> new SimpleConditionningInferenceEngine(logger, null, b));
+		ConditionalDistributionsTrie distributions = ConditionalDistributionsTrie.reuseOrCreate(null, bn.getCompiled());
+		assertEquals(count, generate(new RoundAndSampleRecursiveSamplingSpliterator(
+				count, bn, new MersenneTwister(1), engines, distributions, new ExecutionMonitor(), logger)));
+		final int computed = distributions.countDistributions();
+		assertTrue(computed > 1);
+		assertTrue(engines.countEngines() > 0);
+		
+		// the next execution with the same seed only uses known distributions, 
+		// so it never needs an inference engine
+		InferenceEnginesPerThread enginesNext = new InferenceEnginesPerThread(
+				bn, 
+				b -> new SimpleConditionningInferenceEngine(logger, null, b));
+		ConditionalDistributionsTrie distributionsNext = ConditionalDistributionsTrie.reuseOrCreate(distributions, bn.getCompiled());
+		assertSame(distributions, distributionsNext);
+		assertEquals(count, generate(new RoundAndSampleRecursiveSamplingSpliterator(
+				count, bn, new MersenneTwister(1), enginesNext, distributionsNext, new ExecutionMonitor(), logger)));
+		assertEquals(computed, distributionsNext.countDistributions());
+		assertEquals(0, enginesNext.countEngines());
+		
+		// once the network changed, its distributions are computed again
+		bn.notifyNodesChanged();
+		ConditionalDistributionsTrie distributionsChanged = ConditionalDistributionsTrie.reuseOrCreate(distributionsNext, bn.getCompiled());
+		assertNotSame(distributions, distributionsChanged);
+		assertEquals(0, distributionsChanged.countDistributions());
+		assertEquals(count, generate(new MultinomialRecursiveSamplingSpliterator(
+				count, bn, new MersenneTwister(1), 
+				new InferenceEnginesPerThread(bn, b -> new SimpleConditionningInferenceEngine(logger, null, b)), 
+				distributionsChanged, new ExecutionMonitor(), logger)));
+		assertTrue(distributionsChanged.countDistributions() > 1);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDistributionsOfAnotherNetwork() {
+		
+		CategoricalBayesianNetwork bn = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		CategoricalBayesianNetwork other = CategoricalBayesianNetwork.loadFromXMLBIF(new File(new DataGerland1().filename));
+		new RoundAndSampleRecursiveSamplingSpliterator(
+				10, bn, new MersenneTwister(1), 
+				new InferenceEnginesPerThread(bn, b -> new SimpleConditionningInferenceEngine(logger, null, b)), 
+				new ConditionalDistributionsTrie(other.getCompiled()), 
+				new ExecutionMonitor(), logger);
+	}
+
+}